@@ -155,10 +155,15 @@ public class Account implements BaseAccount {
     private int idleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private final Map<NetworkType, Boolean> compressionMap = new ConcurrentHashMap<>();
+    private final Map<NetworkClass, DownloadProfile> downloadProfiles = new ConcurrentHashMap<>();
     private Searchable searchableFolders;
     private boolean subscribedFoldersOnly;
     private int maximumPolledMessageAge;
     private int maximumAutoDownloadMessageSize;
+    private int prefetchBandwidthBudget;
+    private long prefetchStorageBudget;
+    private int maximumPrefetchMessageSize;
+    private boolean useServerThreading;
     // Tracks if we have sent a notification for this account for
     // current set of fetched messages
     private boolean ringNotified;
@@ -725,6 +730,27 @@ public class Account implements BaseAccount {
         return Collections.unmodifiableMap(compressionMap);
     }
 
+    public synchronized void setDownloadProfile(NetworkClass networkClass, DownloadProfile downloadProfile) {
+        downloadProfiles.put(networkClass, downloadProfile);
+    }
+
+    /**
+     * @return The download profile set for {@code networkClass}, or the default one derived from
+     *         {@link #getMaximumAutoDownloadMessageSize()}.
+     */
+    public synchronized DownloadProfile getDownloadProfile(NetworkClass networkClass) {
+        DownloadProfile downloadProfile = downloadProfiles.get(networkClass);
+        if (downloadProfile == null) {
+            return DownloadProfile.getDefault(networkClass, maximumAutoDownloadMessageSize);
+        }
+
+        return downloadProfile;
+    }
+
+    public Map<NetworkClass, DownloadProfile> getDownloadProfiles() {
+        return Collections.unmodifiableMap(downloadProfiles);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof Account) {
@@ -836,6 +862,49 @@ public class Account implements BaseAccount {
         this.maximumAutoDownloadMessageSize = maximumAutoDownloadMessageSize;
     }
 
+    /**
+     * @return Number of bytes that may be spent on prefetching message bodies after a mail check. {@code 0} disables
+     *         prefetching.
+     */
+    public synchronized int getPrefetchBandwidthBudget() {
+        return prefetchBandwidthBudget;
+    }
+
+    public synchronized void setPrefetchBandwidthBudget(int prefetchBandwidthBudget) {
+        this.prefetchBandwidthBudget = prefetchBandwidthBudget;
+    }
+
+    /**
+     * @return Size in bytes the local store may grow to before prefetching stops.
+     */
+    public synchronized long getPrefetchStorageBudget() {
+        return prefetchStorageBudget;
+    }
+
+    public synchronized void setPrefetchStorageBudget(long prefetchStorageBudget) {
+        this.prefetchStorageBudget = prefetchStorageBudget;
+    }
+
+    public synchronized int getMaximumPrefetchMessageSize() {
+        return maximumPrefetchMessageSize;
+    }
+
+    public synchronized void setMaximumPrefetchMessageSize(int maximumPrefetchMessageSize) {
+        this.maximumPrefetchMessageSize = maximumPrefetchMessageSize;
+    }
+
+    /**
+     * @return {@code true} if the thread structure of a folder should be fetched from the server (if supported) when
+     *         the folder is synchronized for the first time.
+     */
+    public synchronized boolean isUseServerThreading() {
+        return useServerThreading;
+    }
+
+    public synchronized void setUseServerThreading(boolean useServerThreading) {
+        this.useServerThreading = useServerThreading;
+    }
+
     public Date getEarliestPollDate() {
         int age = getMaximumPolledMessageAge();
         if (age >= 0) {
@@ -109,6 +109,10 @@ class AccountPreferenceSerializer(
             isSubscribedFoldersOnly = storage.getBoolean("$accountUuid.subscribedFoldersOnly", false)
             maximumPolledMessageAge = storage.getInt("$accountUuid.maximumPolledMessageAge", -1)
             maximumAutoDownloadMessageSize = storage.getInt("$accountUuid.maximumAutoDownloadMessageSize", 32768)
+            prefetchBandwidthBudget = storage.getInt("$accountUuid.prefetchBandwidthBudget", DEFAULT_PREFETCH_BANDWIDTH_BUDGET)
+            prefetchStorageBudget = storage.getLong("$accountUuid.prefetchStorageBudget", DEFAULT_PREFETCH_STORAGE_BUDGET)
+            maximumPrefetchMessageSize = storage.getInt("$accountUuid.maximumPrefetchMessageSize", DEFAULT_MAXIMUM_PREFETCH_MESSAGE_SIZE)
+            isUseServerThreading = storage.getBoolean("$accountUuid.useServerThreading", DEFAULT_USE_SERVER_THREADING)
             messageFormat = getEnumStringPref<MessageFormat>(storage, "$accountUuid.messageFormat", DEFAULT_MESSAGE_FORMAT)
             val messageFormatAuto = storage.getBoolean("$accountUuid.messageFormatAuto", DEFAULT_MESSAGE_FORMAT_AUTO)
             if (messageFormatAuto && messageFormat == MessageFormat.TEXT) {
@@ -124,6 +128,9 @@ class AccountPreferenceSerializer(
                 val useCompression = storage.getBoolean("$accountUuid.useCompression.$type", true)
                 setCompression(type, useCompression)
             }
+            for (networkClass in NetworkClass.values()) {
+                loadDownloadProfile(storage, accountUuid, networkClass)?.let { setDownloadProfile(networkClass, it) }
+            }
 
             importedAutoExpandFolder = storage.getString("$accountUuid.autoExpandFolderName", null)
 
@@ -235,6 +242,18 @@ class AccountPreferenceSerializer(
         return newIdentities
     }
 
+    private fun loadDownloadProfile(storage: Storage, accountUuid: String, networkClass: NetworkClass): DownloadProfile? {
+        val prefix = "$accountUuid.downloadProfile.$networkClass"
+        if (!storage.contains("$prefix.maximumAutoDownloadMessageSize")) return null
+
+        return DownloadProfile(
+            maximumAutoDownloadMessageSize = storage.getInt("$prefix.maximumAutoDownloadMessageSize", 0),
+            fetchWindowSize = storage.getInt("$prefix.fetchWindowSize", K9.DEFAULT_VISIBLE_LIMIT),
+            isPrefetchEnabled = storage.getBoolean("$prefix.prefetchEnabled", false),
+            isPreviewOnly = storage.getBoolean("$prefix.previewOnly", false)
+        )
+    }
+
     @Synchronized
     fun save(editor: StorageEditor, storage: Storage, account: Account) {
         val accountUuid = account.uuid
@@ -299,6 +318,10 @@ class AccountPreferenceSerializer(
             editor.putBoolean("$accountUuid.subscribedFoldersOnly", isSubscribedFoldersOnly)
             editor.putInt("$accountUuid.maximumPolledMessageAge", maximumPolledMessageAge)
             editor.putInt("$accountUuid.maximumAutoDownloadMessageSize", maximumAutoDownloadMessageSize)
+            editor.putInt("$accountUuid.prefetchBandwidthBudget", prefetchBandwidthBudget)
+            editor.putLong("$accountUuid.prefetchStorageBudget", prefetchStorageBudget)
+            editor.putInt("$accountUuid.maximumPrefetchMessageSize", maximumPrefetchMessageSize)
+            editor.putBoolean("$accountUuid.useServerThreading", isUseServerThreading)
             val messageFormatAuto = if (MessageFormat.AUTO == messageFormat) {
                 // saving MessageFormat.AUTO as is to the database will cause downgrades to crash on
                 // startup, so we save as MessageFormat.TEXT instead with a separate flag for auto.
@@ -346,6 +369,14 @@ class AccountPreferenceSerializer(
                     editor.putBoolean("$accountUuid.useCompression.$type", useCompression)
                 }
             }
+
+            for ((networkClass, downloadProfile) in downloadProfiles) {
+                val prefix = "$accountUuid.downloadProfile.$networkClass"
+                editor.putInt("$prefix.maximumAutoDownloadMessageSize", downloadProfile.maximumAutoDownloadMessageSize)
+                editor.putInt("$prefix.fetchWindowSize", downloadProfile.fetchWindowSize)
+                editor.putBoolean("$prefix.prefetchEnabled", downloadProfile.isPrefetchEnabled)
+                editor.putBoolean("$prefix.previewOnly", downloadProfile.isPreviewOnly)
+            }
         }
 
         saveIdentities(account, storage, editor)
@@ -418,6 +449,10 @@ class AccountPreferenceSerializer(
         editor.remove("$accountUuid.subscribedFoldersOnly")
         editor.remove("$accountUuid.maximumPolledMessageAge")
         editor.remove("$accountUuid.maximumAutoDownloadMessageSize")
+        editor.remove("$accountUuid.prefetchBandwidthBudget")
+        editor.remove("$accountUuid.prefetchStorageBudget")
+        editor.remove("$accountUuid.maximumPrefetchMessageSize")
+        editor.remove("$accountUuid.useServerThreading")
         editor.remove("$accountUuid.messageFormatAuto")
         editor.remove("$accountUuid.quoteStyle")
         editor.remove("$accountUuid.quotePrefix")
@@ -467,6 +502,13 @@ class AccountPreferenceSerializer(
         for (type in NetworkType.values()) {
             editor.remove("$accountUuid.useCompression." + type.name)
         }
+        for (networkClass in NetworkClass.values()) {
+            val prefix = "$accountUuid.downloadProfile.$networkClass"
+            editor.remove("$prefix.maximumAutoDownloadMessageSize")
+            editor.remove("$prefix.fetchWindowSize")
+            editor.remove("$prefix.prefetchEnabled")
+            editor.remove("$prefix.previewOnly")
+        }
         deleteIdentities(account, storage, editor)
         // TODO: Remove preference settings that may exist for individual folders in the account.
     }
@@ -585,6 +627,10 @@ class AccountPreferenceSerializer(
             isSubscribedFoldersOnly = false
             maximumPolledMessageAge = -1
             maximumAutoDownloadMessageSize = 32768
+            prefetchBandwidthBudget = DEFAULT_PREFETCH_BANDWIDTH_BUDGET
+            prefetchStorageBudget = DEFAULT_PREFETCH_STORAGE_BUDGET
+            maximumPrefetchMessageSize = DEFAULT_MAXIMUM_PREFETCH_MESSAGE_SIZE
+            isUseServerThreading = DEFAULT_USE_SERVER_THREADING
             messageFormat = DEFAULT_MESSAGE_FORMAT
             isMessageFormatAuto = DEFAULT_MESSAGE_FORMAT_AUTO
             isMessageReadReceipt = DEFAULT_MESSAGE_READ_RECEIPT
@@ -659,5 +705,9 @@ class AccountPreferenceSerializer(
         const val DEFAULT_REPLY_AFTER_QUOTE = false
         const val DEFAULT_STRIP_SIGNATURE = true
         const val DEFAULT_REMOTE_SEARCH_NUM_RESULTS = 25
+        const val DEFAULT_PREFETCH_BANDWIDTH_BUDGET = 5 * 1024 * 1024
+        const val DEFAULT_PREFETCH_STORAGE_BUDGET = 512L * 1024 * 1024
+        const val DEFAULT_MAXIMUM_PREFETCH_MESSAGE_SIZE = 512 * 1024
+        const val DEFAULT_USE_SERVER_THREADING = true
     }
 }
@@ -0,0 +1,36 @@
+package com.fsck.k9
+
+/**
+ * Controls how much is downloaded while connected to a certain class of network.
+ *
+ * The profile matching the current [NetworkClass] is looked up at the start of each sync.
+ *
+ * @property maximumAutoDownloadMessageSize Messages larger than this are only partially downloaded. `0` means no limit.
+ * @property fetchWindowSize Number of messages to download for folders that don't have their own limit.
+ * @property isPrefetchEnabled Whether skipped message bodies are downloaded in the background after a mail check.
+ * @property isPreviewOnly Whether new messages are only downloaded as far as needed to show a preview.
+ */
+data class DownloadProfile(
+    val maximumAutoDownloadMessageSize: Int,
+    val fetchWindowSize: Int,
+    val isPrefetchEnabled: Boolean,
+    val isPreviewOnly: Boolean
+) {
+    companion object {
+        @JvmStatic
+        fun getDefault(networkClass: NetworkClass, maximumAutoDownloadMessageSize: Int): DownloadProfile {
+            return DownloadProfile(
+                maximumAutoDownloadMessageSize = maximumAutoDownloadMessageSize,
+                fetchWindowSize = K9.DEFAULT_VISIBLE_LIMIT,
+                isPrefetchEnabled = networkClass == NetworkClass.UNMETERED,
+                isPreviewOnly = networkClass == NetworkClass.ROAMING
+            )
+        }
+    }
+}
+
+enum class NetworkClass {
+    UNMETERED,
+    METERED,
+    ROAMING
+}
@@ -0,0 +1,74 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.Account
+import com.fsck.k9.mail.MessagingException
+import com.fsck.k9.mailstore.BodyPrefetchQueue
+import com.fsck.k9.mailstore.LocalStore
+import com.fsck.k9.mailstore.PrefetchMessage
+import timber.log.Timber
+
+/**
+ * Downloads the bodies of partially downloaded messages after a mail check, so they can be read without waiting for
+ * the network.
+ *
+ * Messages are taken from [BodyPrefetchQueue]. A run stops once [Account.getPrefetchBandwidthBudget] bytes have been
+ * downloaded or the local store has grown to [Account.getPrefetchStorageBudget] bytes. Runs are meant to be passed to
+ * [SyncScheduler.runBackgroundSync], so they pause whenever the user is waiting for something else.
+ */
+internal class BodyPrefetcher(private val bodyDownloader: BodyDownloader) {
+    fun newPrefetchRun(account: Account, localStore: LocalStore): SyncScheduler.CancellableSync {
+        return newPrefetchRun(account, localStore, BodyPrefetchQueue(localStore.database))
+    }
+
+    fun newPrefetchRun(
+        account: Account,
+        localStore: LocalStore,
+        queue: BodyPrefetchQueue
+    ): SyncScheduler.CancellableSync {
+        // Kept across runs of the same prefetch so a preempted run continues where it stopped
+        var remainingBytes = account.prefetchBandwidthBudget.toLong()
+        val attemptedMessages = mutableSetOf<PrefetchMessage>()
+
+        return SyncScheduler.CancellableSync { cancellationToken ->
+            while (remainingBytes > 0) {
+                if (localStore.size >= account.prefetchStorageBudget) {
+                    Timber.v("Local store of %s reached prefetch storage budget", account)
+                    return@CancellableSync true
+                }
+
+                val maxMessageSize = minOf(account.maximumPrefetchMessageSize.toLong(), remainingBytes)
+                val messages = queue.getMessages(account.inboxFolderId, maxMessageSize, BATCH_SIZE)
+                    .filter { it !in attemptedMessages && it.estimatedSize <= remainingBytes }
+                if (messages.isEmpty()) break
+
+                for (message in messages) {
+                    if (cancellationToken.isCancelled) return@CancellableSync false
+                    if (message.estimatedSize > remainingBytes) break
+
+                    attemptedMessages.add(message)
+                    try {
+                        val downloadedBytes = bodyDownloader.downloadBody(account, message.folderId,
+                            message.messageServerId)
+                        remainingBytes -= maxOf(downloadedBytes, message.estimatedSize)
+                    } catch (e: Exception) {
+                        Timber.w(e, "Error prefetching message %s", message.messageServerId)
+                    }
+                }
+            }
+
+            true
+        }
+    }
+
+    fun interface BodyDownloader {
+        /**
+         * Downloads the complete message and returns its size in bytes.
+         */
+        @Throws(MessagingException::class)
+        fun downloadBody(account: Account, folderId: Long, messageServerId: String): Long
+    }
+
+    companion object {
+        private const val BATCH_SIZE = 20
+    }
+}
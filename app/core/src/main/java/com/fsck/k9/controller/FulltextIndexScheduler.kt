@@ -0,0 +1,65 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.Account
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Works through the search index queue of an account after messages were saved.
+ *
+ * Each run indexes one batch, limited by the CPU time budget of [com.fsck.k9.mailstore.FulltextIndexer.indexBatch],
+ * via [SyncScheduler.runBackgroundSync]. If messages are left, the next run is scheduled after [pauseMillis], so
+ * indexing a large sync doesn't keep a core busy until it's done. Runs happen on [executor], not on the thread that
+ * saved the messages.
+ */
+internal class FulltextIndexScheduler(
+    private val executor: ScheduledExecutorService,
+    private val syncScheduler: SyncScheduler,
+    private val pauseMillis: Long,
+    private val batchIndexer: BatchIndexer
+) {
+    private val lock = Any()
+
+    // Accounts with a scheduled or running run. The value is set when messages were queued while a run was in progress.
+    private val scheduledAccounts = mutableMapOf<String, Boolean>()
+
+    fun scheduleIndexing(account: Account) {
+        synchronized(lock) {
+            if (account.uuid in scheduledAccounts) {
+                scheduledAccounts[account.uuid] = true
+            } else {
+                scheduledAccounts[account.uuid] = false
+                executor.execute { runBatch(account) }
+            }
+        }
+    }
+
+    private fun runBatch(account: Account) {
+        synchronized(lock) {
+            scheduledAccounts[account.uuid] = false
+        }
+
+        var hasQueuedMessages = false
+        syncScheduler.runBackgroundSync(account) {
+            hasQueuedMessages = batchIndexer.indexBatch(account)
+            true
+        }
+
+        synchronized(lock) {
+            if (hasQueuedMessages || scheduledAccounts[account.uuid] == true) {
+                executor.schedule(Runnable { runBatch(account) }, pauseMillis, TimeUnit.MILLISECONDS)
+            } else {
+                scheduledAccounts.remove(account.uuid)
+            }
+        }
+    }
+
+    fun interface BatchIndexer {
+        /**
+         * Indexes one batch of queued messages of [account].
+         *
+         * Returns `false` if no queued messages were left or indexing failed.
+         */
+        fun indexBatch(account: Account): Boolean
+    }
+}
@@ -3,6 +3,7 @@ package com.fsck.k9.controller
 import android.content.Context
 import com.fsck.k9.Preferences
 import com.fsck.k9.backend.BackendManager
+import com.fsck.k9.controller.push.PushController
 import com.fsck.k9.mailstore.LocalStoreProvider
 import com.fsck.k9.mailstore.MessageStoreManager
 import com.fsck.k9.notification.NotificationController
@@ -25,4 +26,5 @@ val controllerModule = module {
         )
     }
     single<UnreadMessageCountProvider> { DefaultUnreadMessageCountProvider(get(), get(), get(), get()) }
+    single { PushController(get(), get(), get(), get()) }
 }
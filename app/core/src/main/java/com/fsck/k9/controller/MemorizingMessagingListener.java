@@ -45,6 +45,9 @@ class MemorizingMessagingListener extends SimpleMessagingListener {
                             other.synchronizeMailboxFailed(memory.account, memory.folderId,
                                     memory.failureMessage);
                             break;
+                        case CANCELLED:
+                            other.synchronizeMailboxCancelled(memory.account, memory.folderId);
+                            break;
                     }
                 }
             }
@@ -84,6 +87,12 @@ class MemorizingMessagingListener extends SimpleMessagingListener {
         memory.failureMessage = message;
     }
 
+    @Override
+    public synchronized void synchronizeMailboxCancelled(Account account, long folderId) {
+        Memory memory = getMemory(account, folderId);
+        memory.syncingState = MemorizingState.CANCELLED;
+    }
+
     @Override
     public synchronized void synchronizeMailboxProgress(Account account, long folderId, int completed,
             int total) {
@@ -105,7 +114,7 @@ class MemorizingMessagingListener extends SimpleMessagingListener {
         return account.getDescription() + ":" + folderId;
     }
 
-    private enum MemorizingState { STARTED, FINISHED, FAILED }
+    private enum MemorizingState { STARTED, FINISHED, FAILED, CANCELLED }
 
     private static class Memory {
         Account account;
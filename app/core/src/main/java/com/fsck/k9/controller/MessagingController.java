@@ -4,6 +4,7 @@ package com.fsck.k9.controller;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,11 +34,14 @@ import com.fsck.k9.Account;
 import com.fsck.k9.Account.DeletePolicy;
 import com.fsck.k9.Account.Expunge;
 import com.fsck.k9.DI;
+import com.fsck.k9.DownloadProfile;
 import com.fsck.k9.K9;
+import com.fsck.k9.NetworkClass;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.backend.BackendManager;
 import com.fsck.k9.backend.api.Backend;
 import com.fsck.k9.backend.api.BuildConfig;
+import com.fsck.k9.backend.api.SyncCancellationToken;
 import com.fsck.k9.backend.api.SyncConfig;
 import com.fsck.k9.backend.api.SyncListener;
 import com.fsck.k9.cache.EmailProviderCache;
@@ -54,6 +58,7 @@ import com.fsck.k9.controller.MessagingControllerCommands.PendingReplace;
 import com.fsck.k9.controller.MessagingControllerCommands.PendingSetFlag;
 import com.fsck.k9.controller.ProgressBodyFactory.ProgressListener;
 import com.fsck.k9.helper.MutableBoolean;
+import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.FetchProfile;
@@ -64,10 +69,12 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
+import com.fsck.k9.mailstore.FulltextIndexer;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.mailstore.LocalStoreProvider;
+import com.fsck.k9.mailstore.MessagePartCompressor;
 import com.fsck.k9.mailstore.MessageStore;
 import com.fsck.k9.mailstore.MessageStoreManager;
 import com.fsck.k9.mailstore.OutboxState;
@@ -108,6 +115,11 @@ public class MessagingController {
     public static final Set<Flag> SYNC_FLAGS = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED);
 
     private static final long FOLDER_LIST_STALENESS_THRESHOLD = 30 * 60 * 1000L;
+    private static final int MAX_PARALLEL_ACCOUNT_SYNCS = 6;
+    private static final int COMPRESSION_BATCH_SIZE = 50;
+    private static final int FULLTEXT_INDEX_BATCH_SIZE = 20;
+    private static final long FULLTEXT_INDEX_CPU_BUDGET_MILLIS = 200;
+    private static final long FULLTEXT_INDEX_PAUSE_MILLIS = 1000;
 
     private final Context context;
     private final NotificationController notificationController;
@@ -122,6 +134,12 @@ public class MessagingController {
     private final BlockingQueue<Command> queuedCommands = new PriorityBlockingQueue<>();
     private final Set<MessagingListener> listeners = new CopyOnWriteArraySet<>();
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final SyncScheduler syncScheduler = new SyncScheduler(threadPool, MAX_PARALLEL_ACCOUNT_SYNCS);
+    private final FulltextIndexScheduler fulltextIndexScheduler = new FulltextIndexScheduler(
+            Executors.newSingleThreadScheduledExecutor(), syncScheduler, FULLTEXT_INDEX_PAUSE_MILLIS,
+            this::indexMessagesForSearch);
+    private final BodyPrefetcher bodyPrefetcher = new BodyPrefetcher(this::prefetchMessageBody);
+    private final PendingCommandCoalescer pendingCommandCoalescer = new PendingCommandCoalescer();
     private final MemorizingMessagingListener memorizingMessagingListener = new MemorizingMessagingListener();
     private final UnreadMessageCountProvider unreadMessageCountProvider;
     private final DraftOperations draftOperations;
@@ -574,6 +592,8 @@ public class MessagingController {
                 localFolder.appendMessages(Collections.singletonList(message));
             }
         }
+
+        fulltextIndexScheduler.scheduleIndexing(account);
     }
 
 
@@ -607,10 +627,25 @@ public class MessagingController {
      */
     @VisibleForTesting
     void synchronizeMailboxSynchronous(Account account, long folderId, MessagingListener listener) {
-        refreshFolderListIfStale(account);
+        syncScheduler.beginForeground(account);
+        try {
+            synchronizeMailboxSynchronous(account, folderId, listener, new SyncCancellationToken());
+        } finally {
+            syncScheduler.endForeground(account);
+        }
+    }
 
-        Backend backend = getBackend(account);
-        syncFolder(account, folderId, listener, backend);
+    /**
+     * @return {@code false} if the sync was cancelled before it completed.
+     */
+    private boolean synchronizeMailboxSynchronous(Account account, long folderId, MessagingListener listener,
+            SyncCancellationToken cancellationToken) {
+        synchronized (syncScheduler.getFolderLock(account, folderId)) {
+            refreshFolderListIfStale(account);
+
+            Backend backend = getBackend(account);
+            return syncFolder(account, folderId, listener, backend, cancellationToken);
+        }
     }
 
     private void refreshFolderListIfStale(Account account) {
@@ -625,7 +660,8 @@ public class MessagingController {
         }
     }
 
-    private void syncFolder(Account account, long folderId, MessagingListener listener, Backend backend) {
+    private boolean syncFolder(Account account, long folderId, MessagingListener listener, Backend backend,
+            SyncCancellationToken cancellationToken) {
         Exception commandException = null;
         try {
             processPendingCommandsSynchronous(account);
@@ -641,19 +677,20 @@ public class MessagingController {
             localFolder.open();
         } catch (MessagingException e) {
             Timber.e(e, "syncFolder: Couldn't load local folder %d", folderId);
-            return;
+            return true;
         }
 
         // We can't sync local folders
         if (localFolder.isLocalOnly()) {
-            return;
+            return true;
         }
 
         String folderServerId = localFolder.getServerId();
         SyncConfig syncConfig = createSyncConfig(account);
         ControllerSyncListener syncListener = new ControllerSyncListener(account, listener);
 
-        backend.sync(folderServerId, syncConfig, syncListener);
+        backend.sync(folderServerId, syncConfig, syncListener, cancellationToken);
+        fulltextIndexScheduler.scheduleIndexing(account);
 
         if (commandException != null && !syncListener.syncFailed) {
             String rootMessage = getRootCauseMessage(commandException);
@@ -661,16 +698,26 @@ public class MessagingController {
             updateFolderStatus(account, folderServerId, rootMessage);
             listener.synchronizeMailboxFailed(account, folderId, rootMessage);
         }
+
+        return !syncListener.syncCancelled;
     }
 
     private SyncConfig createSyncConfig(Account account) {
+        DownloadProfile downloadProfile = getDownloadProfile(account);
         return new SyncConfig(
                     account.getExpungePolicy().toBackendExpungePolicy(),
                     account.getEarliestPollDate(),
                     account.isSyncRemoteDeletions(),
-                    account.getMaximumAutoDownloadMessageSize(),
-                    K9.DEFAULT_VISIBLE_LIMIT,
-                    SYNC_FLAGS);
+                    downloadProfile.getMaximumAutoDownloadMessageSize(),
+                    downloadProfile.getFetchWindowSize(),
+                    SYNC_FLAGS,
+                    downloadProfile.isPreviewOnly(),
+                    account.isUseServerThreading());
+    }
+
+    private DownloadProfile getDownloadProfile(Account account) {
+        NetworkClass networkClass = Utility.getNetworkClass(context);
+        return account.getDownloadProfile(networkClass);
     }
 
     private void updateFolderStatus(Account account, String folderServerId, String status) {
@@ -719,37 +766,52 @@ public class MessagingController {
     }
 
     public void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        // Folders of an account are synchronized in parallel and each sync starts with processing pending commands
+        synchronized (syncScheduler.getPendingCommandsLock(account)) {
+            processPendingCommandsWithLockHeld(account);
+        }
+    }
+
+    private void processPendingCommandsWithLockHeld(Account account) throws MessagingException {
         LocalStore localStore = localStoreProvider.getInstance(account);
         List<PendingCommand> commands = localStore.getPendingCommands();
+        List<CommandBatch> batches = pendingCommandCoalescer.coalesce(commands);
+        if (batches.size() < commands.size()) {
+            Timber.d("Coalesced %d pending commands into %d batches", commands.size(), batches.size());
+        }
 
         PendingCommand processingCommand = null;
         try {
-            for (PendingCommand command : commands) {
-                processingCommand = command;
-                String commandName = command.getCommandName();
-                Timber.d("Processing pending command '%s'", commandName);
-
+            for (CommandBatch batch : batches) {
                 /*
                  * We specifically do not catch any exceptions here. If a command fails it is
                  * most likely due to a server or IO error and it must be retried before any
                  * other command processes. This maintains the order of the commands.
                  */
                 try {
-                    command.execute(this, account);
+                    for (PendingCommand command : batch.getCommands()) {
+                        processingCommand = command;
+                        String commandName = command.getCommandName();
+                        Timber.d("Processing pending command '%s'", commandName);
 
-                    localStore.removePendingCommand(command);
+                        command.execute(this, account);
+
+                        Timber.d("Done processing pending command '%s'", commandName);
+                    }
 
-                    Timber.d("Done processing pending command '%s'", commandName);
+                    localStore.removePendingCommands(batch.getOriginalCommands());
                 } catch (MessagingException me) {
                     if (me.isPermanentFailure()) {
-                        Timber.e(me, "Failure of command '%s' was permanent, removing command from queue", commandName);
-                        localStore.removePendingCommand(processingCommand);
+                        Timber.e(me, "Failure of command '%s' was permanent, removing command from queue",
+                                processingCommand.getCommandName());
+                        removeFailedBatch(account, localStore, batch);
                     } else {
                         throw me;
                     }
                 } catch (Exception e) {
-                    Timber.e(e, "Unexpected exception with command '%s', removing command from queue", commandName);
-                    localStore.removePendingCommand(processingCommand);
+                    Timber.e(e, "Unexpected exception with command '%s', removing command from queue",
+                            processingCommand.getCommandName());
+                    removeFailedBatch(account, localStore, batch);
 
                     if (K9.DEVELOPER_MODE) {
                         throw new AssertionError("Unexpected exception while processing pending command", e);
@@ -767,6 +829,39 @@ public class MessagingController {
         }
     }
 
+    /**
+     * Removes the commands of a batch that failed permanently from the queue.
+     *
+     * A batch that was merged from several commands is replayed one original command at a time, so only the commands
+     * that fail on their own are dropped.
+     */
+    private void removeFailedBatch(Account account, LocalStore localStore, CommandBatch batch)
+            throws MessagingException {
+        List<PendingCommand> originalCommands = batch.getOriginalCommands();
+        if (originalCommands.size() == 1) {
+            localStore.removePendingCommands(originalCommands);
+            return;
+        }
+
+        Timber.d("Replaying %d merged commands one by one", originalCommands.size());
+        for (PendingCommand command : originalCommands) {
+            String commandName = command.getCommandName();
+            try {
+                command.execute(this, account);
+            } catch (MessagingException me) {
+                if (!me.isPermanentFailure()) {
+                    throw me;
+                }
+
+                Timber.e(me, "Failure of command '%s' was permanent, removing command from queue", commandName);
+            } catch (Exception e) {
+                Timber.e(e, "Unexpected exception with command '%s', removing command from queue", commandName);
+            }
+
+            localStore.removePendingCommand(command);
+        }
+    }
+
     /**
      * Process a pending append message command. This command uploads a local message to the
      * server, first checking to be sure that the server message is not newer than
@@ -1227,6 +1322,16 @@ public class MessagingController {
 
     private void loadMessageRemoteSynchronous(Account account, long folderId, String uid,
             MessagingListener listener, boolean loadPartialFromSearch) {
+        syncScheduler.beginForeground(account);
+        try {
+            loadMessageRemoteWithForegroundPriority(account, folderId, uid, listener, loadPartialFromSearch);
+        } finally {
+            syncScheduler.endForeground(account);
+        }
+    }
+
+    private void loadMessageRemoteWithForegroundPriority(Account account, long folderId, String uid,
+            MessagingListener listener, boolean loadPartialFromSearch) {
         try {
             LocalStore localStore = localStoreProvider.getInstance(account);
             LocalFolder localFolder = localStore.getFolder(folderId);
@@ -1265,6 +1370,8 @@ public class MessagingController {
                 if (!loadPartialFromSearch) {
                     message.setFlag(Flag.X_DOWNLOADED_FULL, true);
                 }
+
+                fulltextIndexScheduler.scheduleIndexing(account);
             }
 
             // now that we have the full message, refresh the headers
@@ -1634,6 +1741,10 @@ public class MessagingController {
 
             Timber.i("Moved sent message to folder '%s' (%d)", sentFolderServerId, sentFolderId);
 
+            // Moving creates a new message entry that isn't part of the search index yet
+            localStore.getFulltextIndexer().queueMessage(destinationMessageId);
+            fulltextIndexScheduler.scheduleIndexing(account);
+
             if (!sentFolder.isLocalOnly()) {
                 String destinationUid = messageStore.getMessageServerId(destinationMessageId);
                 PendingCommand command = PendingAppend.create(sentFolderId, destinationUid);
@@ -1826,6 +1937,7 @@ public class MessagingController {
                     fp.add(Item.BODY);
                     localSrcFolder.fetch(messages, fp, null);
                     uidMap = localSrcFolder.copyMessages(messages, localDestFolder);
+                    fulltextIndexScheduler.scheduleIndexing(account);
 
                     if (unreadCountAffected) {
                         // If this copy operation changes the unread count in the destination
@@ -2299,7 +2411,8 @@ public class MessagingController {
         for (MessagingListener l : getListeners(listener)) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        // Accounts and folders are synchronized in parallel on the thread pool, not on the controller thread
+        putBackground("checkMail", listener, () -> threadPool.execute(new Runnable() {
             @Override
             public void run() {
 
@@ -2314,9 +2427,8 @@ public class MessagingController {
                         accounts = preferences.getAvailableAccounts();
                     }
 
-                    for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, listener);
-                    }
+                    syncScheduler.forEachInParallel(accounts, syncScheduler.getMaxParallelAccounts(),
+                            account -> checkMailForAccount(context, account, ignoreLastCheckedTime, listener));
 
                 } catch (Exception e) {
                     Timber.e(e, "Unable to synchronize mail");
@@ -2338,7 +2450,7 @@ public class MessagingController {
                         }
                 );
             }
-        });
+        }));
     }
 
 
@@ -2363,6 +2475,7 @@ public class MessagingController {
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
             LocalStore localStore = localStoreProvider.getInstance(account);
+            List<LocalFolder> foldersToSync = new ArrayList<>();
             for (final LocalFolder folder : localStore.getPersonalNamespaces(false)) {
                 folder.open();
 
@@ -2392,8 +2505,31 @@ public class MessagingController {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, listener);
+                foldersToSync.add(folder);
+            }
+
+            Set<String> changedFolderServerIds = getChangedFolderServerIds(account, foldersToSync);
+            List<LocalFolder> changedFolders = new ArrayList<>(foldersToSync.size());
+            for (LocalFolder folder : foldersToSync) {
+                if (changedFolderServerIds != null && !changedFolderServerIds.contains(folder.getServerId())) {
+                    Timber.v("Not syncing folder %s, unchanged on server", folder.getServerId());
+                    folder.setLastChecked(System.currentTimeMillis());
+                    continue;
+                }
+
+                changedFolders.add(folder);
             }
+
+            Collections.sort(changedFolders, new SyncPriorityComparator(account));
+
+            int parallelism = getBackend(account).getMaxConcurrentSyncs();
+            syncScheduler.forEachInParallel(changedFolders, parallelism,
+                    folder -> synchronizeFolderInBackground(account, folder, ignoreLastCheckedTime, listener));
+
+            prefetchMessageBodies(account, localStore);
+            // Also picks up messages left in the queue when the app was killed
+            fulltextIndexScheduler.scheduleIndexing(account);
+            compressStoredMessageParts(account, localStore);
         } catch (MessagingException e) {
             Timber.e(e, "Unable to synchronize account %s", account.getName());
         } finally {
@@ -2414,13 +2550,91 @@ public class MessagingController {
 
     }
 
-    private void synchronizeFolder(Account account, LocalFolder folder, boolean ignoreLastCheckedTime,
-            MessagingListener listener) {
-        putBackground("sync" + folder.getServerId(), null, () -> {
-            synchronizeFolderInBackground(account, folder, ignoreLastCheckedTime, listener);
+    private void prefetchMessageBodies(Account account, LocalStore localStore) {
+        if (account.getPrefetchBandwidthBudget() <= 0 || !getDownloadProfile(account).isPrefetchEnabled()) {
+            return;
+        }
+
+        syncScheduler.runBackgroundSync(account, bodyPrefetcher.newPrefetchRun(account, localStore));
+    }
+
+    private boolean indexMessagesForSearch(Account account) {
+        if (preferences.getAccount(account.getUuid()) == null) {
+            return false;
+        }
+
+        try {
+            FulltextIndexer indexer = localStoreProvider.getInstance(account).getFulltextIndexer();
+            return indexer.indexBatch(FULLTEXT_INDEX_BATCH_SIZE, FULLTEXT_INDEX_CPU_BUDGET_MILLIS);
+        } catch (MessagingException e) {
+            Timber.e(e, "Error updating search index of %s", account);
+            return false;
+        }
+    }
+
+    private void compressStoredMessageParts(Account account, LocalStore localStore) {
+        MessagePartCompressor compressor = new MessagePartCompressor(localStore.getDatabase());
+        syncScheduler.runBackgroundSync(account, cancellationToken -> {
+            try {
+                while (compressor.compressBatch(COMPRESSION_BATCH_SIZE)) {
+                    if (cancellationToken.isCancelled()) {
+                        return false;
+                    }
+                }
+            } catch (MessagingException e) {
+                Timber.e(e, "Error compressing message parts of %s", account);
+            }
+
+            return true;
         });
     }
 
+    private long prefetchMessageBody(Account account, long folderId, String uid) throws MessagingException {
+        LocalStore localStore = localStoreProvider.getInstance(account);
+        LocalFolder localFolder = localStore.getFolder(folderId);
+        localFolder.open();
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        fp.add(FetchProfile.Item.FLAGS);
+        int maxDownloadSize = account.getMaximumAutoDownloadMessageSize();
+        Backend backend = getBackend(account);
+        Message remoteMessage = backend.fetchMessage(localFolder.getServerId(), uid, fp, maxDownloadSize);
+        localFolder.appendMessages(Collections.singletonList(remoteMessage));
+
+        LocalMessage message = localFolder.getMessage(uid);
+        message.setFlag(Flag.X_DOWNLOADED_FULL, true);
+        fulltextIndexScheduler.scheduleIndexing(account);
+
+        return remoteMessage.getSize();
+    }
+
+    /**
+     * Asks the backend which of the given folders changed on the server since they were last synchronized, so
+     * unchanged folders don't have to be opened at all.
+     *
+     * @return The server IDs of folders that need to be synchronized, or {@code null} if all folders have to be
+     *         synchronized.
+     */
+    private Set<String> getChangedFolderServerIds(Account account, List<LocalFolder> folders) {
+        if (folders.isEmpty() || account.getExpungePolicy() == Expunge.EXPUNGE_ON_POLL) {
+            // Expunging on poll requires opening every folder
+            return null;
+        }
+
+        List<String> folderServerIds = new ArrayList<>(folders.size());
+        for (LocalFolder folder : folders) {
+            folderServerIds.add(folder.getServerId());
+        }
+
+        try {
+            return getBackend(account).getChangedFolders(folderServerIds);
+        } catch (Exception e) {
+            Timber.w(e, "Unable to get folder status for %s. Synchronizing all folders.", account.getDescription());
+            return null;
+        }
+    }
+
     private void synchronizeFolderInBackground(Account account, LocalFolder folder, boolean ignoreLastCheckedTime,
             MessagingListener listener) {
         Timber.v("Folder %s was last synced @ %tc", folder.getServerId(), folder.getLastChecked());
@@ -2445,10 +2659,14 @@ public class MessagingController {
         try {
             showFetchingMailNotificationIfNecessary(account, folder);
             try {
-                synchronizeMailboxSynchronous(account, folder.getDatabaseId(), listener);
+                // User actions preempt this sync; it's then run again once they're done
+                boolean completed = syncScheduler.runBackgroundSync(account, cancellationToken ->
+                        synchronizeMailboxSynchronous(account, folder.getDatabaseId(), listener, cancellationToken));
 
-                long now = System.currentTimeMillis();
-                folder.setLastChecked(now);
+                if (completed) {
+                    long now = System.currentTimeMillis();
+                    folder.setLastChecked(now);
+                }
             } finally {
                 clearFetchingMailNotificationIfNecessary(account);
             }
@@ -2547,7 +2765,10 @@ public class MessagingController {
      * Save a draft message.
      */
     public Long saveDraft(Account account, Message message, Long existingDraftId, String plaintextSubject) {
-        return draftOperations.saveDraft(account, message, existingDraftId, plaintextSubject);
+        Long draftId = draftOperations.saveDraft(account, message, existingDraftId, plaintextSubject);
+        fulltextIndexScheduler.scheduleIndexing(account);
+
+        return draftId;
     }
 
     public Long getId(Message message) {
@@ -2559,6 +2780,32 @@ public class MessagingController {
         }
     }
 
+    /**
+     * Orders folders so the Inbox is synchronized first, followed by first class folders and then all other folders.
+     */
+    private static class SyncPriorityComparator implements Comparator<LocalFolder> {
+        private final Long inboxFolderId;
+
+        SyncPriorityComparator(Account account) {
+            inboxFolderId = account.getInboxFolderId();
+        }
+
+        @Override
+        public int compare(LocalFolder folder1, LocalFolder folder2) {
+            return Integer.compare(getPriority(folder1), getPriority(folder2));
+        }
+
+        private int getPriority(LocalFolder folder) {
+            if (inboxFolderId != null && inboxFolderId == folder.getDatabaseId()) {
+                return 0;
+            } else if (folder.getDisplayClass() == FolderClass.FIRST_CLASS) {
+                return 1;
+            } else {
+                return 2;
+            }
+        }
+    }
+
     private static AtomicInteger sequencing = new AtomicInteger(0);
 
     private static class Command implements Comparable<Command> {
@@ -2686,6 +2933,7 @@ public class MessagingController {
         private final LocalStore localStore;
         private final int previousUnreadMessageCount;
         boolean syncFailed = false;
+        boolean syncCancelled = false;
 
 
         ControllerSyncListener(Account account, MessagingListener listener) {
@@ -2811,6 +3059,17 @@ public class MessagingController {
             }
         }
 
+        @Override
+        public void syncCancelled(@NotNull String folderServerId) {
+            syncCancelled = true;
+
+            // A cancelled background sync reports a new start when it's run again
+            long folderId = getFolderIdOrThrow(account, folderServerId);
+            for (MessagingListener messagingListener : getListeners(listener)) {
+                messagingListener.synchronizeMailboxCancelled(account, folderId);
+            }
+        }
+
         @Override
         public void folderStatusChanged(@NotNull String folderServerId) {
             long folderId = getFolderIdOrThrow(account, folderServerId);
@@ -28,6 +28,7 @@ public interface MessagingListener {
     void synchronizeMailboxRemovedMessage(Account account, String folderServerId, String messageServerId);
     void synchronizeMailboxFinished(Account account, long folderId);
     void synchronizeMailboxFailed(Account account, long folderId, String message);
+    void synchronizeMailboxCancelled(Account account, long folderId);
 
     void loadMessageRemoteFinished(Account account, long folderId, String uid);
     void loadMessageRemoteFailed(Account account, long folderId, String uid, Throwable t);
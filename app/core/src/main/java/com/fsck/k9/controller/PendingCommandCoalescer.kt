@@ -0,0 +1,219 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.controller.MessagingControllerCommands.PendingAppend
+import com.fsck.k9.controller.MessagingControllerCommands.PendingCommand
+import com.fsck.k9.controller.MessagingControllerCommands.PendingDelete
+import com.fsck.k9.controller.MessagingControllerCommands.PendingExpunge
+import com.fsck.k9.controller.MessagingControllerCommands.PendingMarkAllAsRead
+import com.fsck.k9.controller.MessagingControllerCommands.PendingMoveAndMarkAsRead
+import com.fsck.k9.controller.MessagingControllerCommands.PendingMoveOrCopy
+import com.fsck.k9.controller.MessagingControllerCommands.PendingReplace
+import com.fsck.k9.controller.MessagingControllerCommands.PendingSetFlag
+import com.fsck.k9.mail.Flag
+
+/**
+ * Merges pending commands before they are replayed, so actions queued while offline need fewer server round trips.
+ *
+ * Commands are grouped into batches that are executed in the order of their first command. A command is only merged
+ * into an earlier batch if none of the batches in between touch the same folders. That way the server ends up in the
+ * same state as when replaying the commands one by one.
+ *
+ * - Flag changes in the same folder are merged. If a flag of a message is changed more than once, only the last state
+ *   is sent to the server.
+ * - Flag changes of messages that are deleted afterwards are dropped.
+ * - Deletions in the same folder, and moves or copies between the same two folders, are merged.
+ */
+internal class PendingCommandCoalescer {
+    fun coalesce(commands: List<PendingCommand>): List<CommandBatch> {
+        val batches = mutableListOf<BatchBuilder>()
+
+        for (command in commands) {
+            val folderIds = command.folderIds
+            val merged = folderIds != null && mergeIntoEarlierBatch(batches, command, folderIds)
+            if (!merged) {
+                batches.add(createBatchBuilder(command))
+            }
+        }
+
+        return batches.map { it.build() }
+    }
+
+    private fun mergeIntoEarlierBatch(
+        batches: List<BatchBuilder>,
+        command: PendingCommand,
+        folderIds: Set<Long>
+    ): Boolean {
+        for (batch in batches.asReversed()) {
+            if (batch.merge(command)) return true
+
+            if (batch.touchesAnyOf(folderIds)) {
+                if (command is PendingDelete && batch is SetFlagBatchBuilder) {
+                    batch.removeMessages(command.uids)
+                }
+                return false
+            }
+        }
+
+        return false
+    }
+
+    private fun createBatchBuilder(command: PendingCommand): BatchBuilder {
+        return when {
+            command is PendingSetFlag -> SetFlagBatchBuilder(command)
+            command is PendingDelete -> DeleteBatchBuilder(command)
+            command is PendingMoveOrCopy && command.newUidMap != null -> MoveOrCopyBatchBuilder(command)
+            command is PendingMoveAndMarkAsRead -> MoveAndMarkAsReadBatchBuilder(command)
+            else -> SingleCommandBatchBuilder(command)
+        }
+    }
+
+    private abstract class BatchBuilder(firstCommand: PendingCommand) {
+        private val folderIds = firstCommand.folderIds
+        protected val originalCommands = mutableListOf(firstCommand)
+
+        /**
+         * Adds [command] to this batch if it can be merged. Returns `false` otherwise.
+         */
+        abstract fun merge(command: PendingCommand): Boolean
+
+        abstract fun build(): CommandBatch
+
+        fun touchesAnyOf(otherFolderIds: Set<Long>): Boolean {
+            return folderIds == null || folderIds.any { it in otherFolderIds }
+        }
+    }
+
+    private class SingleCommandBatchBuilder(private val singleCommand: PendingCommand) : BatchBuilder(singleCommand) {
+        override fun merge(command: PendingCommand) = false
+
+        override fun build() = CommandBatch(listOf(singleCommand), originalCommands)
+    }
+
+    private class SetFlagBatchBuilder(firstCommand: PendingSetFlag) : BatchBuilder(firstCommand) {
+        private val folderId = firstCommand.folderId
+        private val flagStates = mutableMapOf<Flag, MutableMap<String, Boolean>>()
+
+        init {
+            addFlagStates(firstCommand)
+        }
+
+        override fun merge(command: PendingCommand): Boolean {
+            if (command !is PendingSetFlag || command.folderId != folderId) return false
+
+            originalCommands.add(command)
+            addFlagStates(command)
+            return true
+        }
+
+        private fun addFlagStates(command: PendingSetFlag) {
+            val states = flagStates.getOrPut(command.flag) { LinkedHashMap() }
+            for (uid in command.uids) {
+                states[uid] = command.newState
+            }
+        }
+
+        fun removeMessages(uids: List<String>) {
+            for (states in flagStates.values) {
+                states.keys.removeAll(uids)
+            }
+        }
+
+        override fun build(): CommandBatch {
+            val commands = flagStates.flatMap { (flag, states) ->
+                states.keys.groupBy { uid -> states.getValue(uid) }.map { (newState, uids) ->
+                    PendingSetFlag.create(folderId, newState, flag, uids)
+                }
+            }
+
+            return CommandBatch(commands, originalCommands)
+        }
+    }
+
+    private class DeleteBatchBuilder(firstCommand: PendingDelete) : BatchBuilder(firstCommand) {
+        private val folderId = firstCommand.folderId
+        private val uids = LinkedHashSet(firstCommand.uids)
+
+        override fun merge(command: PendingCommand): Boolean {
+            if (command !is PendingDelete || command.folderId != folderId) return false
+
+            originalCommands.add(command)
+            uids.addAll(command.uids)
+            return true
+        }
+
+        override fun build(): CommandBatch {
+            return CommandBatch(listOf(PendingDelete.create(folderId, uids.toList())), originalCommands)
+        }
+    }
+
+    private class MoveOrCopyBatchBuilder(firstCommand: PendingMoveOrCopy) : BatchBuilder(firstCommand) {
+        private val srcFolderId = firstCommand.srcFolderId
+        private val destFolderId = firstCommand.destFolderId
+        private val isCopy = firstCommand.isCopy
+        private val uidMap = LinkedHashMap(firstCommand.newUidMap)
+
+        override fun merge(command: PendingCommand): Boolean {
+            if (command !is PendingMoveOrCopy || command.newUidMap == null || command.isCopy != isCopy ||
+                command.srcFolderId != srcFolderId || command.destFolderId != destFolderId
+            ) {
+                return false
+            }
+
+            originalCommands.add(command)
+            uidMap.putAll(command.newUidMap)
+            return true
+        }
+
+        override fun build(): CommandBatch {
+            val command = PendingMoveOrCopy.create(srcFolderId, destFolderId, isCopy, uidMap)
+            return CommandBatch(listOf(command), originalCommands)
+        }
+    }
+
+    private class MoveAndMarkAsReadBatchBuilder(
+        firstCommand: PendingMoveAndMarkAsRead
+    ) : BatchBuilder(firstCommand) {
+        private val srcFolderId = firstCommand.srcFolderId
+        private val destFolderId = firstCommand.destFolderId
+        private val uidMap = LinkedHashMap(firstCommand.newUidMap)
+
+        override fun merge(command: PendingCommand): Boolean {
+            if (command !is PendingMoveAndMarkAsRead ||
+                command.srcFolderId != srcFolderId || command.destFolderId != destFolderId
+            ) {
+                return false
+            }
+
+            originalCommands.add(command)
+            uidMap.putAll(command.newUidMap)
+            return true
+        }
+
+        override fun build(): CommandBatch {
+            val command = PendingMoveAndMarkAsRead.create(srcFolderId, destFolderId, uidMap)
+            return CommandBatch(listOf(command), originalCommands)
+        }
+    }
+}
+
+/**
+ * IDs of the folders a command reads or modifies, or `null` if that isn't known.
+ */
+private val PendingCommand.folderIds: Set<Long>?
+    get() = when (this) {
+        is PendingSetFlag -> setOf(folderId)
+        is PendingDelete -> setOf(folderId)
+        is PendingExpunge -> setOf(folderId)
+        is PendingMarkAllAsRead -> setOf(folderId)
+        is PendingAppend -> setOf(folderId)
+        is PendingReplace -> setOf(folderId)
+        is PendingMoveOrCopy -> setOf(srcFolderId, destFolderId)
+        is PendingMoveAndMarkAsRead -> setOf(srcFolderId, destFolderId)
+        else -> null
+    }
+
+/**
+ * Commands to execute in place of [originalCommands]. Once all of them succeeded, the original commands can be
+ * removed from the queue.
+ */
+internal class CommandBatch(val commands: List<PendingCommand>, val originalCommands: List<PendingCommand>)
@@ -62,6 +62,10 @@ public abstract class SimpleMessagingListener implements MessagingListener {
     public void synchronizeMailboxFailed(Account account, long folderId, String message) {
     }
 
+    @Override
+    public void synchronizeMailboxCancelled(Account account, long folderId) {
+    }
+
     @Override
     public void loadMessageRemoteFinished(Account account, long folderId, String uid) {
     }
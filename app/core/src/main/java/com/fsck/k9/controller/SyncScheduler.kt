@@ -0,0 +1,153 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.Account
+import com.fsck.k9.backend.api.SyncCancellationToken
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Semaphore
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import timber.log.Timber
+
+/**
+ * Runs mail checks of multiple accounts and folders in parallel.
+ *
+ * [forEachInParallel] is used with a limit of [maxParallelAccounts] to check accounts, so one slow server doesn't hold
+ * up every other account. Within an account it's used again with a limit matching the number of connections the
+ * backend may use.
+ *
+ * Since different mail checks can now overlap, the same folder must not be synchronized twice at the same time and
+ * pending commands of an account must not be processed twice. [getFolderLock] and [getPendingCommandsLock] return the
+ * objects to synchronize on.
+ *
+ * Work the user is waiting for is wrapped in [beginForeground]/[endForeground]. This cancels background syncs of the
+ * same account started via [runBackgroundSync] so they free their folder lock and server connection. The cancelled
+ * syncs are run again once no foreground work is left.
+ */
+internal class SyncScheduler(
+    private val executor: Executor,
+    val maxParallelAccounts: Int
+) {
+    private val folderLocks = ConcurrentHashMap<String, Any>()
+    private val pendingCommandsLocks = ConcurrentHashMap<String, Any>()
+    private val foregroundStates = ConcurrentHashMap<String, ForegroundState>()
+
+    /**
+     * Runs [action] for each item using at most [parallelism] threads and waits until all of them are done.
+     *
+     * Items are started in iteration order, so callers can prioritize items by sorting them. Exceptions thrown by
+     * [action] are logged and don't affect the other items.
+     */
+    fun <T> forEachInParallel(items: Collection<T>, parallelism: Int, action: SyncAction<T>) {
+        val permits = Semaphore(parallelism.coerceAtLeast(1))
+        val remaining = CountDownLatch(items.size)
+
+        for (item in items) {
+            permits.acquireUninterruptibly()
+            executor.execute {
+                try {
+                    action.run(item)
+                } catch (e: Exception) {
+                    Timber.e(e, "Error during parallel sync of %s", item)
+                } finally {
+                    permits.release()
+                    remaining.countDown()
+                }
+            }
+        }
+
+        try {
+            remaining.await()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    fun getFolderLock(account: Account, folderId: Long): Any {
+        return folderLocks.getOrPut("${account.uuid}:$folderId") { Any() }
+    }
+
+    fun getPendingCommandsLock(account: Account): Any {
+        return pendingCommandsLocks.getOrPut(account.uuid) { Any() }
+    }
+
+    fun beginForeground(account: Account) {
+        val state = getForegroundState(account)
+        state.lock.withLock {
+            state.foregroundCount++
+            for (cancellationToken in state.backgroundSyncs) {
+                cancellationToken.cancel()
+            }
+        }
+    }
+
+    fun endForeground(account: Account) {
+        val state = getForegroundState(account)
+        state.lock.withLock {
+            state.foregroundCount--
+            if (state.foregroundCount == 0) {
+                state.noForegroundWork.signalAll()
+            }
+        }
+    }
+
+    /**
+     * Runs [sync] once no foreground work of [account] is in progress.
+     *
+     * If [sync] was cancelled because foreground work started, it is run again with a new token after that work is
+     * done.
+     *
+     * @return `false` if the thread was interrupted before [sync] could complete.
+     */
+    fun runBackgroundSync(account: Account, sync: CancellableSync): Boolean {
+        val state = getForegroundState(account)
+        while (true) {
+            val cancellationToken = SyncCancellationToken()
+            state.lock.withLock {
+                try {
+                    while (state.foregroundCount > 0) {
+                        state.noForegroundWork.await()
+                    }
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    return false
+                }
+
+                state.backgroundSyncs.add(cancellationToken)
+            }
+
+            try {
+                if (sync.run(cancellationToken)) return true
+            } finally {
+                state.lock.withLock {
+                    state.backgroundSyncs.remove(cancellationToken)
+                }
+            }
+
+            Timber.d("Background sync of %s was preempted; running it again after foreground work", account)
+        }
+    }
+
+    private fun getForegroundState(account: Account): ForegroundState {
+        return foregroundStates.getOrPut(account.uuid) { ForegroundState() }
+    }
+
+    fun interface SyncAction<T> {
+        fun run(item: T)
+    }
+
+    fun interface CancellableSync {
+        /**
+         * Returns `false` if the sync was cancelled before it completed.
+         */
+        fun run(cancellationToken: SyncCancellationToken): Boolean
+    }
+
+    private class ForegroundState {
+        val lock = ReentrantLock()
+        val noForegroundWork = lock.newCondition()
+        val backgroundSyncs = mutableSetOf<SyncCancellationToken>()
+        var foregroundCount = 0
+    }
+}
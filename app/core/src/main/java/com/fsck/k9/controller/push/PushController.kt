@@ -0,0 +1,128 @@
+package com.fsck.k9.controller.push
+
+import com.fsck.k9.Account
+import com.fsck.k9.Preferences
+import com.fsck.k9.backend.BackendManager
+import com.fsck.k9.backend.api.Backend
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.controller.MessagingController
+import com.fsck.k9.controller.SimpleMessagingListener
+import com.fsck.k9.mail.MessagingException
+import com.fsck.k9.mailstore.LocalFolder
+import com.fsck.k9.mailstore.LocalStoreProvider
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import timber.log.Timber
+
+/**
+ * Starts and stops [BackendPusher]s so that every push-enabled folder of every account with a push-capable backend is
+ * being listened to. Push events trigger a sync of just the folder that changed.
+ */
+class PushController internal constructor(
+    private val preferences: Preferences,
+    private val backendManager: BackendManager,
+    private val localStoreProvider: LocalStoreProvider,
+    private val messagingController: MessagingController,
+    private val executor: Executor = Executors.newSingleThreadExecutor()
+) {
+    private val pushers = mutableMapOf<String, PusherContainer>()
+
+    /**
+     * Re-reads account and folder settings and updates the set of folders being pushed. Safe to call from any thread.
+     */
+    fun updatePushers() {
+        executor.execute {
+            try {
+                updatePushersSynchronous()
+            } catch (e: Exception) {
+                Timber.e(e, "Error updating pushers")
+            }
+        }
+    }
+
+    private fun updatePushersSynchronous() {
+        val pushAccountUuids = mutableSetOf<String>()
+        for (account in preferences.availableAccounts) {
+            val backend = backendManager.getBackend(account)
+            if (!backend.isPushCapable) continue
+
+            val folderServerIds = getPushFolderServerIds(account)
+            if (folderServerIds.isEmpty()) continue
+
+            pushAccountUuids.add(account.uuid)
+
+            val pushConfig = createPushConfig(account)
+            val container = pushers[account.uuid]
+            val pusher = if (container != null && container.backend === backend && container.pushConfig == pushConfig) {
+                container.pusher
+            } else {
+                container?.pusher?.stop()
+                backend.createPusher(createPusherCallback(account), pushConfig).also { pusher ->
+                    pushers[account.uuid] = PusherContainer(backend, pushConfig, pusher)
+                    pusher.start()
+                }
+            }
+
+            pusher.updateFolders(folderServerIds)
+        }
+
+        val stopAccountUuids = pushers.keys - pushAccountUuids
+        for (accountUuid in stopAccountUuids) {
+            Timber.v("Stopping pusher for account %s", accountUuid)
+            pushers.remove(accountUuid)?.pusher?.stop()
+        }
+    }
+
+    private fun createPushConfig(account: Account): PushConfig {
+        return PushConfig(
+            idleRefreshMinutes = account.idleRefreshMinutes,
+            pollOnConnect = account.isPushPollOnConnect
+        )
+    }
+
+    /**
+     * Returns at most [Account.getMaxPushFolders] folders, since each of them uses its own connection. The Inbox is
+     * always included.
+     */
+    private fun getPushFolderServerIds(account: Account): List<String> {
+        val pushMode = account.folderPushMode
+        val displayMode = account.folderDisplayMode
+        val inboxFolderId = account.inboxFolderId
+
+        val localStore = localStoreProvider.getInstance(account)
+        return localStore.getPersonalNamespaces(false)
+            .filter { folder ->
+                !folder.isLocalOnly &&
+                    !LocalFolder.isModeMismatch(displayMode, folder.displayClass) &&
+                    !LocalFolder.isModeMismatch(pushMode, folder.pushClass)
+            }
+            .sortedBy { folder -> folder.databaseId != inboxFolderId }
+            .take(account.maxPushFolders.coerceAtLeast(0))
+            .map { it.serverId }
+    }
+
+    private fun createPusherCallback(account: Account): BackendPusherCallback {
+        return object : BackendPusherCallback {
+            override fun onPushEvent(folderServerId: String) {
+                try {
+                    val folderId = localStoreProvider.getInstance(account).getFolderId(folderServerId)
+                    messagingController.synchronizeMailbox(account, folderId, object : SimpleMessagingListener() {})
+                } catch (e: MessagingException) {
+                    Timber.e(e, "Couldn't find folder %s for push event", folderServerId)
+                }
+            }
+
+            override fun onPushError(exception: Exception) {
+                Timber.w(exception, "Push error for account %s", account.description)
+            }
+
+            override fun onPushNotSupported() {
+                Timber.i("Server for account %s doesn't support push", account.description)
+            }
+        }
+    }
+
+    private class PusherContainer(val backend: Backend, val pushConfig: PushConfig, val pusher: BackendPusher)
+}
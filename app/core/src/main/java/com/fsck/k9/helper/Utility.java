@@ -16,6 +16,7 @@ import android.text.TextUtils;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import com.fsck.k9.NetworkClass;
 import timber.log.Timber;
 
 public class Utility {
@@ -256,6 +257,25 @@ public class Utility {
         }
     }
 
+    /**
+     * Classify the active network for choosing a {@link com.fsck.k9.DownloadProfile}.
+     */
+    public static NetworkClass getNetworkClass(final Context context) {
+        final ConnectivityManager connectivityManager =
+            (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return NetworkClass.METERED;
+        }
+        final NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+        if (netInfo != null && netInfo.isRoaming()) {
+            return NetworkClass.ROAMING;
+        } else if (connectivityManager.isActiveNetworkMetered()) {
+            return NetworkClass.METERED;
+        } else {
+            return NetworkClass.UNMETERED;
+        }
+    }
+
     private static final Pattern MESSAGE_ID = Pattern.compile("<" +
             "(?:" +
                 "[a-zA-Z0-9!#$%&'*+\\-/=?^_`{|}~]+" +
@@ -3,16 +3,19 @@ package com.fsck.k9.job
 import androidx.work.WorkManager
 import com.fsck.k9.Account
 import com.fsck.k9.Preferences
+import com.fsck.k9.controller.push.PushController
 import timber.log.Timber
 
 class K9JobManager(
     private val workManager: WorkManager,
     private val preferences: Preferences,
-    private val mailSyncWorkerManager: MailSyncWorkerManager
+    private val mailSyncWorkerManager: MailSyncWorkerManager,
+    private val pushController: PushController
 ) {
     fun scheduleAllMailJobs() {
         Timber.v("scheduling all jobs")
         scheduleMailSync()
+        schedulePusherRefresh()
     }
 
     fun scheduleMailSync(account: Account) {
@@ -21,7 +24,7 @@ class K9JobManager(
     }
 
     fun schedulePusherRefresh() {
-        // Push is temporarily disabled. See GH-4253
+        pushController.updatePushers()
     }
 
     private fun scheduleMailSync() {
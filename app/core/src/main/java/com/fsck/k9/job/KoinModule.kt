@@ -8,6 +8,6 @@ val jobModule = module {
     single { WorkManagerProvider(get(), get()) }
     single<WorkerFactory> { K9WorkerFactory(get(), get()) }
     single { get<WorkManagerProvider>().getWorkManager() }
-    single { K9JobManager(get(), get(), get()) }
+    single { K9JobManager(get(), get(), get(), get()) }
     factory { MailSyncWorkerManager(get(), Clock.INSTANCE) }
 }
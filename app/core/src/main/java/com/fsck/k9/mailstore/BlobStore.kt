@@ -0,0 +1,130 @@
+package com.fsck.k9.mailstore
+
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import com.fsck.k9.helper.FileHelper
+import com.fsck.k9.mail.filter.Hex
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.security.MessageDigest
+import timber.log.Timber
+
+/**
+ * Content-addressed storage for message part data that is too large to be stored in the database.
+ *
+ * Each file is named after the SHA-256 hash of its decoded content and its transfer encoding, so identical parts
+ * (copies of a message, the same attachment in several folders) share one file even if the server used different line
+ * lengths when encoding them. Message parts reference a file via the `message_parts.blob_hash`
+ * column. Triggers on `message_parts` keep `blobs.ref_count` up to date, including when parts are deleted by the
+ * `delete_message` trigger. Files that are no longer referenced are removed by [collectGarbage].
+ *
+ * Parts saved before the blob store was introduced don't have a `blob_hash` and keep using files named by part ID.
+ */
+internal class BlobStore(private val attachmentFileProvider: (String) -> File) {
+    fun getFile(blobHash: String): File {
+        return attachmentFileProvider(BLOB_FILE_PREFIX + blobHash)
+    }
+
+    /**
+     * Returns the hash of [file] if it is part of this blob store, `null` otherwise.
+     */
+    fun getBlobHash(file: File): String? {
+        val fileName = file.name
+        if (!fileName.startsWith(BLOB_FILE_PREFIX)) return null
+
+        val blobHash = fileName.substring(BLOB_FILE_PREFIX.length)
+        return if (getFile(blobHash) == file) blobHash else null
+    }
+
+    /**
+     * Computes the blob hash from the decoded content of a part and its transfer [encoding].
+     *
+     * Stored files are still transfer-encoded and are decoded using the encoding of the part referencing them. That's
+     * why the encoding is part of the hash.
+     */
+    @Throws(IOException::class)
+    fun computeHash(decodedInputStream: InputStream, encoding: String): String {
+        val messageDigest = MessageDigest.getInstance("SHA-256")
+        messageDigest.update(encoding.toByteArray(Charsets.US_ASCII))
+        messageDigest.update(0)
+
+        val buffer = ByteArray(BUFFER_SIZE)
+        while (true) {
+            val bytesRead = decodedInputStream.read(buffer)
+            if (bytesRead == -1) break
+            messageDigest.update(buffer, 0, bytesRead)
+        }
+
+        return Hex.encodeHex(messageDigest.digest())
+    }
+
+    /**
+     * Moves [tempFile] into the blob store, unless a file with the same content is already stored.
+     *
+     * Must be called inside the transaction that added the reference to [blobHash], so [collectGarbage] can't remove
+     * the file in between. If that transaction is rolled back, the file is left without a `blobs` row and is removed by
+     * [deleteOrphanedFiles].
+     */
+    @Throws(IOException::class)
+    fun storeFile(tempFile: File, blobHash: String) {
+        val blobFile = getFile(blobHash)
+        if (blobFile.exists()) {
+            if (!tempFile.delete()) {
+                Timber.d("Couldn't delete temporary file: %s", tempFile.absolutePath)
+            }
+        } else {
+            FileHelper.renameOrMoveByCopying(tempFile, blobFile)
+        }
+    }
+
+    /**
+     * Deletes the files and `blobs` rows that aren't referenced by any message part anymore.
+     *
+     * Must be called inside a transaction.
+     */
+    fun collectGarbage(db: SQLiteDatabase) {
+        val unreferencedBlobHashes = db.query(
+            "blobs", arrayOf("hash"), "ref_count <= 0", null, null, null, null
+        ).use { cursor ->
+            val blobHashes = mutableListOf<String>()
+            while (cursor.moveToNext()) {
+                blobHashes.add(cursor.getString(0))
+            }
+            blobHashes
+        }
+
+        for (blobHash in unreferencedBlobHashes) {
+            val file = getFile(blobHash)
+            if (file.exists() && !file.delete()) {
+                Timber.d("Couldn't delete blob file: %s", file.absolutePath)
+            }
+
+            db.delete("blobs", "hash = ?", arrayOf(blobHash))
+        }
+    }
+
+    /**
+     * Deletes blob files that don't have a `blobs` row, e.g. because the transaction that moved them into the blob store
+     * was rolled back. This lists the whole attachment directory, so it's only done when compacting the database.
+     *
+     * Must be called inside a transaction.
+     */
+    fun deleteOrphanedFiles(db: SQLiteDatabase) {
+        val blobDirectory = getFile("").parentFile ?: return
+        val blobFiles = blobDirectory.listFiles { file -> file.name.startsWith(BLOB_FILE_PREFIX) } ?: return
+
+        for (file in blobFiles) {
+            val blobHash = file.name.substring(BLOB_FILE_PREFIX.length)
+            val rowCount = DatabaseUtils.queryNumEntries(db, "blobs", "hash = ?", arrayOf(blobHash))
+            if (rowCount == 0L && !file.delete()) {
+                Timber.d("Couldn't delete orphaned blob file: %s", file.absolutePath)
+            }
+        }
+    }
+
+    companion object {
+        private const val BLOB_FILE_PREFIX = "blob-"
+        private const val BUFFER_SIZE = 8192
+    }
+}
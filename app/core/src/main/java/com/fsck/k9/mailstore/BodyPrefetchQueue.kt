@@ -0,0 +1,51 @@
+package com.fsck.k9.mailstore
+
+import com.fsck.k9.K9
+
+/**
+ * Finds messages whose body was skipped during sync because it exceeded the automatic download size.
+ *
+ * The queue isn't stored separately. Partially downloaded messages are already marked with
+ * [com.fsck.k9.mail.Flag.X_DOWNLOADED_PARTIAL], so they are simply looked up in priority order: unread messages first,
+ * then messages in the Inbox, then the most recent ones.
+ */
+internal class BodyPrefetchQueue(private val database: LockableDatabase) {
+    /**
+     * Returns at most [limit] messages whose estimated size doesn't exceed [maxMessageSize].
+     */
+    fun getMessages(inboxFolderId: Long?, maxMessageSize: Long, limit: Int): List<PrefetchMessage> {
+        return database.rawQuery(
+            """
+            SELECT messages.folder_id, messages.uid,
+              COALESCE((
+                SELECT SUM(decoded_body_size) FROM message_parts WHERE root = messages.message_part_id
+              ), 0) AS estimated_size
+            FROM messages
+            JOIN folders ON (folders.id = messages.folder_id AND folders.local_only = 0)
+            WHERE messages.empty = 0 AND messages.deleted = 0
+              AND messages.flags LIKE '%X_DOWNLOADED_PARTIAL%'
+              AND messages.uid NOT LIKE '${K9.LOCAL_UID_PREFIX}%'
+              AND estimated_size <= CAST(? AS INTEGER)
+            ORDER BY messages.read ASC, (messages.folder_id = ?) DESC, messages.date DESC
+            LIMIT ?
+            """.trimIndent(),
+            maxMessageSize.toString(),
+            (inboxFolderId ?: -1L).toString(),
+            limit.toString()
+        ) { cursor ->
+            val messages = mutableListOf<PrefetchMessage>()
+            while (cursor.moveToNext()) {
+                messages.add(
+                    PrefetchMessage(
+                        folderId = cursor.getLong(0),
+                        messageServerId = cursor.getString(1),
+                        estimatedSize = cursor.getLong(2)
+                    )
+                )
+            }
+            messages
+        }
+    }
+}
+
+internal data class PrefetchMessage(val folderId: Long, val messageServerId: String, val estimatedSize: Long)
@@ -0,0 +1,64 @@
+package com.fsck.k9.mailstore
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects how long [LockableDatabase.execute] calls wait before they can access the database and how long their
+ * transactions take.
+ *
+ * The lock wait includes waiting for the storage lock and, for transactional calls, for SQLite to start the
+ * transaction. Nested calls that take part in an existing transaction aren't counted.
+ */
+class DatabaseMetrics {
+    private var lockWaitCount = 0L
+    private var totalLockWaitNanos = 0L
+    private var maxLockWaitNanos = 0L
+    private var transactionCount = 0L
+    private var totalTransactionNanos = 0L
+    private var maxTransactionNanos = 0L
+
+    @Synchronized
+    fun recordLockWait(nanos: Long) {
+        lockWaitCount++
+        totalLockWaitNanos += nanos
+        maxLockWaitNanos = maxOf(maxLockWaitNanos, nanos)
+    }
+
+    @Synchronized
+    fun recordTransaction(nanos: Long) {
+        transactionCount++
+        totalTransactionNanos += nanos
+        maxTransactionNanos = maxOf(maxTransactionNanos, nanos)
+    }
+
+    @Synchronized
+    fun getSnapshot(): Snapshot {
+        return Snapshot(
+            lockWaitCount = lockWaitCount,
+            totalLockWaitMillis = TimeUnit.NANOSECONDS.toMillis(totalLockWaitNanos),
+            maxLockWaitMillis = TimeUnit.NANOSECONDS.toMillis(maxLockWaitNanos),
+            transactionCount = transactionCount,
+            totalTransactionMillis = TimeUnit.NANOSECONDS.toMillis(totalTransactionNanos),
+            maxTransactionMillis = TimeUnit.NANOSECONDS.toMillis(maxTransactionNanos)
+        )
+    }
+
+    @Synchronized
+    fun reset() {
+        lockWaitCount = 0
+        totalLockWaitNanos = 0
+        maxLockWaitNanos = 0
+        transactionCount = 0
+        totalTransactionNanos = 0
+        maxTransactionNanos = 0
+    }
+
+    data class Snapshot(
+        val lockWaitCount: Long,
+        val totalLockWaitMillis: Long,
+        val maxLockWaitMillis: Long,
+        val transactionCount: Long,
+        val totalTransactionMillis: Long,
+        val maxTransactionMillis: Long
+    )
+}
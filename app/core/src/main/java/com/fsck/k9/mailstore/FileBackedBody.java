@@ -48,6 +48,10 @@ public class FileBackedBody implements Body, SizeAware, RawDataBody {
         }
     }
 
+    File getFile() {
+        return file;
+    }
+
     @Override
     public long getSize() {
         return file.length();
@@ -0,0 +1,183 @@
+package com.fsck.k9.mailstore
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import com.fsck.k9.mail.FetchProfile
+import com.fsck.k9.mail.MessagingException
+import com.fsck.k9.message.extractors.MessageFulltextCreator
+import java.util.Collections
+import timber.log.Timber
+
+/**
+ * Creates the search index entries of messages in the background.
+ *
+ * Creating an entry can mean converting up to 200 KB of HTML to text, which is too expensive to do while saving
+ * messages during a sync. [LocalFolder] only adds the IDs of saved messages to `fulltext_queue`. The queue is stored
+ * in the database, so indexing continues where it stopped after the app was killed.
+ *
+ * Message bodies are loaded and converted outside of any transaction. Saving a message again replaces its queue entry
+ * with one that has a new ID, so an index entry created from an outdated version isn't stored.
+ *
+ * If creating an entry fails, the message stays in the queue and is skipped until the app is restarted. That way an
+ * error while reading the database doesn't remove a message from the search index for good, and a message that always
+ * fails doesn't block the rest of the queue.
+ */
+internal class FulltextIndexer(
+    private val localStore: LocalStore,
+    private val database: LockableDatabase,
+    private val fulltextCreator: MessageFulltextCreator,
+    private val cpuTimeProvider: () -> Long
+) {
+    private val failedQueueIds = Collections.synchronizedSet(mutableSetOf<Long>())
+
+    /**
+     * Indexes at most [limit] queued messages. Stops early once indexing used [cpuBudgetMillis] of CPU time, but always
+     * indexes at least one message.
+     *
+     * Returns `false` if no queued messages were left, apart from the ones that failed before.
+     */
+    @Throws(MessagingException::class)
+    fun indexBatch(limit: Int, cpuBudgetMillis: Long): Boolean {
+        val queuedMessages = getQueuedMessages(limit)
+        if (queuedMessages.isEmpty()) return false
+
+        val startTime = cpuTimeProvider()
+        for (queuedMessage in queuedMessages) {
+            indexMessage(queuedMessage)
+
+            if (cpuTimeProvider() - startTime >= cpuBudgetMillis) break
+        }
+
+        return true
+    }
+
+    /**
+     * Adds a message that was created without going through [LocalFolder], e.g. by moving it, to the queue.
+     */
+    @Throws(MessagingException::class)
+    fun queueMessage(messageId: Long) {
+        database.execute(false) { db ->
+            val contentValues = ContentValues().apply {
+                put("message_id", messageId)
+            }
+            localStore.insertStatements.insert(db, InsertStatement.FULLTEXT_QUEUE, contentValues)
+        }
+    }
+
+    @Throws(MessagingException::class)
+    fun getCoverage(): FulltextIndexCoverage {
+        return database.execute(false) { db ->
+            val messageCount = db.queryCount("SELECT COUNT(*) FROM messages WHERE empty = 0 AND deleted = 0")
+            val pendingMessageCount = db.queryCount(
+                "SELECT COUNT(*) FROM fulltext_queue " +
+                    "JOIN messages ON (messages.id = fulltext_queue.message_id) " +
+                    "WHERE messages.empty = 0 AND messages.deleted = 0"
+            )
+
+            FulltextIndexCoverage(messageCount, pendingMessageCount)
+        }
+    }
+
+    private fun getQueuedMessages(limit: Int): List<QueuedMessage> {
+        val skippedQueueIds = failedQueueIds.toSet()
+        val queuedMessages = database.execute(false) { db ->
+            db.rawQuery(
+                "SELECT fulltext_queue.id, fulltext_queue.message_id, messages.folder_id " +
+                    "FROM fulltext_queue " +
+                    "LEFT JOIN messages ON (messages.id = fulltext_queue.message_id AND " +
+                    "messages.empty = 0 AND messages.deleted = 0) " +
+                    "LIMIT ?",
+                arrayOf((limit + skippedQueueIds.size).toString())
+            ).use { cursor ->
+                val queuedMessages = mutableListOf<QueuedMessage>()
+                while (cursor.moveToNext()) {
+                    queuedMessages.add(
+                        QueuedMessage(
+                            queueId = cursor.getLong(0),
+                            messageId = cursor.getLong(1),
+                            folderId = if (cursor.isNull(2)) null else cursor.getLong(2)
+                        )
+                    )
+                }
+                queuedMessages
+            }
+        }
+
+        return queuedMessages.filter { it.queueId !in skippedQueueIds }.take(limit)
+    }
+
+    private fun indexMessage(queuedMessage: QueuedMessage) {
+        if (queuedMessage.folderId == null) {
+            // The message was deleted
+            removeFromQueue(queuedMessage.queueId)
+            return
+        }
+
+        val fulltext = try {
+            createFulltext(queuedMessage.folderId, queuedMessage.messageId)
+        } catch (e: Exception) {
+            Timber.w(e, "Error creating search index entry for message %d; retrying after restart",
+                queuedMessage.messageId)
+            failedQueueIds.add(queuedMessage.queueId)
+            return
+        }
+
+        database.execute(true) { db ->
+            // The queue entry is gone if the message was saved again or deleted while its index entry was created
+            val isCurrentVersion = db.delete("fulltext_queue", "id = ?", arrayOf(queuedMessage.queueId.toString())) > 0
+            if (isCurrentVersion && messageExists(db, queuedMessage.messageId)) {
+                saveFulltext(db, queuedMessage.messageId, fulltext)
+            }
+        }
+    }
+
+    private fun saveFulltext(db: SQLiteDatabase, messageId: Long, fulltext: String?) {
+        if (fulltext != null) {
+            val contentValues = ContentValues().apply {
+                put("docid", messageId)
+                put("fulltext", fulltext)
+            }
+            localStore.insertStatements.insert(db, InsertStatement.MESSAGE_FULLTEXT, contentValues)
+        } else {
+            db.delete("messages_fulltext", "docid = ?", arrayOf(messageId.toString()))
+        }
+    }
+
+    private fun createFulltext(folderId: Long, messageId: Long): String? {
+        val folder = localStore.getFolder(folderId)
+        val message = folder.getMessage(messageId) ?: return null
+
+        val fetchProfile = FetchProfile().apply { add(FetchProfile.Item.BODY) }
+        folder.fetch(listOf(message), fetchProfile, null)
+
+        return fulltextCreator.createFulltext(message)
+    }
+
+    private fun messageExists(db: SQLiteDatabase, messageId: Long): Boolean {
+        return db.rawQuery(
+            "SELECT 1 FROM messages WHERE id = ? AND empty = 0 AND deleted = 0",
+            arrayOf(messageId.toString())
+        ).use { cursor ->
+            cursor.moveToFirst()
+        }
+    }
+
+    private fun removeFromQueue(queueId: Long) {
+        database.execute(false) { db ->
+            db.delete("fulltext_queue", "id = ?", arrayOf(queueId.toString()))
+        }
+    }
+
+    private fun SQLiteDatabase.queryCount(sql: String): Int {
+        return rawQuery(sql, null).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getInt(0) else 0
+        }
+    }
+
+    private class QueuedMessage(val queueId: Long, val messageId: Long, val folderId: Long?)
+}
+
+data class FulltextIndexCoverage(val messageCount: Int, val pendingMessageCount: Int) {
+    val isComplete: Boolean
+        get() = pendingMessageCount == 0
+}
@@ -0,0 +1,106 @@
+package com.fsck.k9.mailstore
+
+import android.content.ContentValues
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteStatement
+
+/**
+ * Compiled `INSERT` statements for the rows written when saving a message.
+ *
+ * [SQLiteDatabase.insert] builds a new SQL string for every row, depending on the columns present in the
+ * [ContentValues]. The statements used here always list the same columns, so they're compiled once per
+ * [SQLiteDatabase] instance and the values are bound directly. Columns missing from the `ContentValues` are bound to
+ * `NULL`, so [InsertStatement] must only contain columns without a default value, or columns that are always set.
+ */
+internal class InsertStatements {
+    private var database: SQLiteDatabase? = null
+    private val statements = mutableMapOf<InsertStatement, SQLiteStatement>()
+
+    /**
+     * Inserts a row and returns its row ID.
+     *
+     * If [values] contains a column that isn't part of [insertStatement], the row is inserted using
+     * [SQLiteDatabase.insertOrThrow] instead.
+     */
+    @Synchronized
+    fun insert(db: SQLiteDatabase, insertStatement: InsertStatement, values: ContentValues): Long {
+        if (!insertStatement.columns.containsAll(values.keySet())) {
+            return db.insertWithOnConflict(insertStatement.table, null, values, insertStatement.conflictAlgorithm)
+        }
+
+        val statement = getStatement(db, insertStatement)
+        try {
+            insertStatement.columns.forEachIndexed { index, column ->
+                DatabaseUtils.bindObjectToProgram(statement, index + 1, values.get(column))
+            }
+
+            return statement.executeInsert()
+        } finally {
+            statement.clearBindings()
+        }
+    }
+
+    private fun getStatement(db: SQLiteDatabase, insertStatement: InsertStatement): SQLiteStatement {
+        if (db !== database) {
+            // The database was reopened; statements compiled for the old instance can't be used anymore
+            close()
+            database = db
+        }
+
+        return statements.getOrPut(insertStatement) { db.compileStatement(insertStatement.sql) }
+    }
+
+    @Synchronized
+    fun close() {
+        statements.values.forEach { it.close() }
+        statements.clear()
+        database = null
+    }
+}
+
+internal enum class InsertStatement(
+    val table: String,
+    val columns: List<String>,
+    val conflictAlgorithm: Int = SQLiteDatabase.CONFLICT_NONE
+) {
+    MESSAGE(
+        table = "messages",
+        columns = listOf(
+            "message_part_id", "uid", "subject", "sender_list", "date", "flags", "deleted", "read", "flagged",
+            "answered", "forwarded", "folder_id", "to_list", "cc_list", "bcc_list", "reply_to_list",
+            "attachment_count", "internal_date", "mime_type", "empty", "encryption_type", "preview_type", "preview",
+            "message_id"
+        )
+    ),
+    THREAD(
+        table = "threads",
+        columns = listOf("message_id", "root", "parent")
+    ),
+    MESSAGE_PART(
+        table = "message_parts",
+        columns = listOf(
+            "type", "root", "parent", "seq", "mime_type", "decoded_body_size", "display_name", "header", "encoding",
+            "charset", "data_location", "data", "preamble", "epilogue", "boundary", "content_id", "server_extra",
+            "blob_hash"
+        )
+    ),
+    MESSAGE_FULLTEXT(
+        table = "messages_fulltext",
+        columns = listOf("docid", "fulltext"),
+        conflictAlgorithm = SQLiteDatabase.CONFLICT_REPLACE
+    ),
+    FULLTEXT_QUEUE(
+        table = "fulltext_queue",
+        columns = listOf("message_id"),
+        conflictAlgorithm = SQLiteDatabase.CONFLICT_REPLACE
+    );
+
+    val sql: String
+        get() {
+            val conflictClause = if (conflictAlgorithm == SQLiteDatabase.CONFLICT_REPLACE) " OR REPLACE" else ""
+            val placeholders = columns.joinToString(separator = ", ") { "?" }
+            return "INSERT$conflictClause INTO $table (${columns.joinToString(separator = ", ")}) " +
+                "VALUES ($placeholders)"
+        }
+}
@@ -13,11 +13,13 @@ import java.util.Date
 
 class K9BackendFolder(
     private val localStore: LocalStore,
+    private val messageStore: MessageStore,
     private val folderServerId: String
 ) : BackendFolder {
     private val database = localStore.database
     private val databaseId: String
     private val localFolder = localStore.getFolder(folderServerId)
+    private var isMessageThreadingEnabled = true
     override val name: String
     override val visibleLimit: Int
 
@@ -89,6 +91,24 @@ class K9BackendFolder(
         }
     }
 
+    override fun forEachNumericMessageServerId(action: (messageServerId: Long, effectiveDate: Long?) -> Unit) {
+        // Messages that were deleted locally but are kept until the server copy is deleted are included, so the sync
+        // doesn't download them again
+        database.rawQuery(
+            "SELECT uid, date FROM messages" +
+                " WHERE empty = 0 AND folder_id = ? AND uid NOT LIKE '${K9.LOCAL_UID_PREFIX}%'" +
+                " ORDER BY CAST(uid AS INTEGER)",
+            databaseId
+        ) { cursor ->
+            while (cursor.moveToNext()) {
+                // Only IMAP uses this. IMAP messages are stored either with the UID the server assigned or, until that
+                // is known, with a K9.LOCAL_UID_PREFIX ID that is excluded above. So non-numeric IDs don't occur here.
+                val messageServerId = cursor.getString(0).toLongOrNull() ?: continue
+                action(messageServerId, cursor.getLongOrNull(1))
+            }
+        }
+    }
+
     // TODO: Move implementation from LocalFolder to this class
     override fun destroyMessages(messageServerIds: List<String>) {
         val localMessages = localFolder.getMessagesByUids(messageServerIds)
@@ -213,24 +233,110 @@ class K9BackendFolder(
         localStore.notifyChange()
     }
 
-    // TODO: Move implementation from LocalFolder to this class
     override fun saveCompleteMessage(message: Message) {
-        requireMessageServerId(message)
+        saveMessages(listOf(message), Flag.X_DOWNLOADED_FULL)
+    }
 
-        localFolder.appendMessages(listOf(message))
+    override fun savePartialMessage(message: Message) {
+        saveMessages(listOf(message), Flag.X_DOWNLOADED_PARTIAL)
+    }
 
-        val localMessage = localFolder.getMessage(message.uid)
-        localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true)
+    override fun saveCompleteMessages(messages: List<Message>) {
+        saveMessages(messages, Flag.X_DOWNLOADED_FULL)
+    }
+
+    override fun savePartialMessages(messages: List<Message>) {
+        saveMessages(messages, Flag.X_DOWNLOADED_PARTIAL)
+    }
+
+    override fun setMessageFlags(messageFlags: Map<String, Set<Flag>>, flags: Set<Flag>) {
+        messageStore.setMessageFlags(databaseId.toLong(), messageFlags, flags)
     }
 
     // TODO: Move implementation from LocalFolder to this class
-    override fun savePartialMessage(message: Message) {
-        requireMessageServerId(message)
+    private fun saveMessages(messages: List<Message>, downloadFlag: Flag) {
+        if (messages.isEmpty()) return
+        messages.forEach { requireMessageServerId(it) }
 
-        localFolder.appendMessages(listOf(message))
+        database.execute(true) {
+            if (isMessageThreadingEnabled) {
+                localFolder.appendMessages(messages)
+            } else {
+                localFolder.appendMessagesWithoutThreading(messages)
+            }
+
+            for (message in messages) {
+                val localMessage = localFolder.getMessage(message.uid)
+                localMessage.setFlag(downloadFlag, true)
+            }
+        }
+    }
 
-        val localMessage = localFolder.getMessage(message.uid)
-        localMessage.setFlag(Flag.X_DOWNLOADED_PARTIAL, true)
+    override fun setMessageThreadingEnabled(enabled: Boolean) {
+        isMessageThreadingEnabled = enabled
+    }
+
+    override fun saveThreadStructure(parentMessageServerIds: Map<String, String?>) {
+        database.execute(true) { db ->
+            val threadIds = mutableMapOf<String, Long>()
+            db.rawQuery(
+                "SELECT messages.uid, threads.id FROM messages JOIN threads ON (threads.message_id = messages.id)" +
+                    " WHERE messages.folder_id = ? AND messages.uid IS NOT NULL",
+                arrayOf(databaseId)
+            ).use { cursor ->
+                while (cursor.moveToNext()) {
+                    threadIds[cursor.getString(0)] = cursor.getLong(1)
+                }
+            }
+
+            val rootIds = mutableMapOf<Long, Long>()
+
+            // Like LocalFolder.doMessageThreading() we create an empty placeholder message for an ancestor that isn't
+            // in the local store. It carries the server ID, so downloading the message later fills in the placeholder.
+            fun getOrCreateThreadId(messageServerId: String): Long {
+                threadIds[messageServerId]?.let { return it }
+
+                val parentThreadId = parentMessageServerIds[messageServerId]?.let { getOrCreateThreadId(it) }
+                val rootId = parentThreadId?.let { rootIds[it] ?: it }
+
+                val messageValues = ContentValues().apply {
+                    put("uid", messageServerId)
+                    put("folder_id", databaseId)
+                    put("empty", 1)
+                }
+                val messageId = db.insert("messages", null, messageValues)
+
+                val threadValues = ContentValues().apply {
+                    put("message_id", messageId)
+                    if (rootId != null) put("root", rootId)
+                    if (parentThreadId != null) put("parent", parentThreadId)
+                }
+                val threadId = db.insert("threads", null, threadValues)
+
+                threadIds[messageServerId] = threadId
+                if (rootId != null) rootIds[threadId] = rootId
+
+                return threadId
+            }
+
+            db.compileStatement("UPDATE threads SET root = ?, parent = ? WHERE id = ?").use { updateStatement ->
+                for ((messageServerId, parentMessageServerId) in parentMessageServerIds) {
+                    val threadId = threadIds[messageServerId] ?: continue
+                    if (parentMessageServerId == null) continue
+
+                    val parentThreadId = getOrCreateThreadId(parentMessageServerId)
+                    val rootId = rootIds[parentThreadId] ?: parentThreadId
+                    rootIds[threadId] = rootId
+
+                    updateStatement.bindLong(1, rootId)
+                    updateStatement.bindLong(2, parentThreadId)
+                    updateStatement.bindLong(3, threadId)
+                    updateStatement.executeUpdateDelete()
+                }
+            }
+        }
+
+        localStore.notifyChange()
     }
 
     override fun getOldestMessageDate(): Date? {
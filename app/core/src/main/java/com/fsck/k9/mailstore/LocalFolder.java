@@ -14,7 +14,6 @@ import com.fsck.k9.K9;
 import com.fsck.k9.controller.MessageReference;
 import com.fsck.k9.crypto.EncryptionExtractor;
 import com.fsck.k9.crypto.EncryptionResult;
-import com.fsck.k9.helper.FileHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Body;
@@ -42,12 +41,12 @@ import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
 import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
 import com.fsck.k9.message.extractors.AttachmentCounter;
 import com.fsck.k9.message.extractors.AttachmentInfoExtractor;
-import com.fsck.k9.message.extractors.MessageFulltextCreator;
 import com.fsck.k9.message.extractors.MessagePreviewCreator;
 import com.fsck.k9.message.extractors.PreviewResult;
 import com.fsck.k9.message.extractors.PreviewResult.PreviewType;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 import java.io.ByteArrayInputStream;
@@ -507,6 +506,7 @@ public class LocalFolder {
                 "boundary",             // 13
                 "content_id",           // 14
                 "server_extra",         // 15
+                "blob_hash",            // 16
         };
         Cursor cursor = db.query("message_parts", columns, "root = ?",
                 new String[] { String.valueOf(message.getMessagePartId()) }, null, null, "seq");
@@ -575,12 +575,20 @@ public class LocalFolder {
             String encoding = cursor.getString(7);
             byte[] data = cursor.getBlob(10);
 
+            Body body = new BinaryMemoryBody(data, encoding);
+            part.setBody(body);
+        } else if (dataLocation == DataLocation.IN_DATABASE_COMPRESSED) {
+            String encoding = cursor.getString(7);
+            byte[] data = MessagePartCompression.decompress(cursor.getBlob(10));
+
             Body body = new BinaryMemoryBody(data, encoding);
             part.setBody(body);
         } else if (dataLocation == DataLocation.ON_DISK) {
             String encoding = cursor.getString(7);
 
-            File file = localStore.getAttachmentFile(Long.toString(id));
+            String blobHash = cursor.getString(16);
+
+            File file = localStore.getMessagePartFile(Long.toString(id), blobHash);
             if (file.exists()) {
                 Body body = new FileBackedBody(file, encoding);
                 part.setBody(body);
@@ -792,7 +800,7 @@ public class LocalFolder {
     }
 
     public Map<String, String> copyMessages(List<LocalMessage> msgs, LocalFolder folder) throws MessagingException {
-        return folder.appendMessages(msgs, true);
+        return folder.appendMessages(msgs, true, true);
     }
 
     /**
@@ -807,7 +815,15 @@ public class LocalFolder {
      * message, retrieve the appropriate local message instance first (if it already exists).
      */
     public Map<String, String> appendMessages(List<Message> messages) throws MessagingException {
-        return appendMessages(messages, false);
+        return appendMessages(messages, false, true);
+    }
+
+    /**
+     * Like {@link #appendMessages(List)}, but new messages are not threaded. Each of them starts a thread of its own
+     * until the thread structure is set in bulk, see {@link K9BackendFolder#saveThreadStructure(Map)}.
+     */
+    public void appendMessagesWithoutThreading(List<Message> messages) throws MessagingException {
+        appendMessages(messages, false, false);
     }
 
     public void destroyMessages(final List<LocalMessage> messages) {
@@ -875,8 +891,8 @@ public class LocalFolder {
      * message, retrieve the appropriate local message instance first (if it already exists).
      * @return uidMap of srcUids -> destUids
      */
-    private Map<String, String> appendMessages(final List<? extends Message> messages, final boolean copy)
-            throws MessagingException {
+    private Map<String, String> appendMessages(final List<? extends Message> messages, final boolean copy,
+            final boolean threadMessages) throws MessagingException {
         open();
         try {
             final Map<String, String> uidMap = new HashMap<>();
@@ -885,8 +901,10 @@ public class LocalFolder {
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
                         for (Message message : messages) {
-                            saveMessage(db, message, copy, uidMap);
+                            saveMessage(db, message, copy, uidMap, threadMessages);
                         }
+
+                        localStore.deleteUnreferencedBlobs();
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
                     }
@@ -902,8 +920,8 @@ public class LocalFolder {
         }
     }
 
-    private void saveMessage(SQLiteDatabase db, Message message, boolean copy, Map<String, String> uidMap)
-            throws MessagingException {
+    private void saveMessage(SQLiteDatabase db, Message message, boolean copy, Map<String, String> uidMap,
+            boolean threadMessage) throws MessagingException {
         if (!(message instanceof MimeMessage)) {
             throw new Error("LocalStore can only store Messages that extend MimeMessage");
         }
@@ -930,8 +948,11 @@ public class LocalFolder {
             if (oldMessage != null) {
                 oldMessageId = oldMessage.getDatabaseId();
 
+                // Unreferenced blobs are only deleted after all messages have been saved. The new version of the
+                // message might reference the same blobs.
                 long oldRootMessagePartId = oldMessage.getMessagePartId();
-                deleteMessagePartsAndDataFromDisk(oldRootMessagePartId);
+                deleteMessageDataFromDisk(oldRootMessagePartId);
+                deleteMessageParts(oldRootMessagePartId);
             }
         }
 
@@ -939,7 +960,7 @@ public class LocalFolder {
         long parentId = -1;
         long msgId;
 
-        if (oldMessageId == -1) {
+        if (oldMessageId == -1 && threadMessage) {
             // This is a new message. Do the message threading.
             ThreadInfo threadInfo = doMessageThreading(db, message);
             oldMessageId = threadInfo.msgId;
@@ -952,6 +973,7 @@ public class LocalFolder {
             PreviewResult previewResult;
             int attachmentCount;
             String fulltext;
+            boolean indexInBackground;
             ContentValues extraContentValues;
 
             EncryptionResult encryptionResult = encryptionExtractor.extractEncryption(message);
@@ -960,16 +982,18 @@ public class LocalFolder {
                 previewResult = encryptionResult.getPreviewResult();
                 attachmentCount = encryptionResult.getAttachmentCount();
                 fulltext = encryptionResult.getTextForSearchIndex();
+                indexInBackground = false;
                 extraContentValues = encryptionResult.getExtraContentValues();
             } else {
                 MessagePreviewCreator previewCreator = localStore.getMessagePreviewCreator();
-                MessageFulltextCreator fulltextCreator = localStore.getMessageFulltextCreator();
                 AttachmentCounter attachmentCounter = localStore.getAttachmentCounter();
 
                 encryptionType = null;
                 previewResult = previewCreator.createPreview(message);
                 attachmentCount = attachmentCounter.getAttachmentCount(message);
-                fulltext = fulltextCreator.createFulltext(message);
+                // Creating the search index entry is expensive; FulltextIndexer does it in the background
+                fulltext = null;
+                indexInBackground = true;
                 extraContentValues = null;
             }
 
@@ -1019,8 +1043,9 @@ public class LocalFolder {
                 cv.putAll(extraContentValues);
             }
 
+            InsertStatements insertStatements = localStore.getInsertStatements();
             if (oldMessageId == -1) {
-                msgId = db.insert("messages", "uid", cv);
+                msgId = insertStatements.insert(db, InsertStatement.MESSAGE, cv);
 
                 // Create entry in 'threads' table
                 cv.clear();
@@ -1033,7 +1058,7 @@ public class LocalFolder {
                     cv.put("parent", parentId);
                 }
 
-                db.insert("threads", null, cv);
+                insertStatements.insert(db, InsertStatement.THREAD, cv);
             } else {
                 msgId = oldMessageId;
                 db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
@@ -1043,7 +1068,11 @@ public class LocalFolder {
                 cv.clear();
                 cv.put("docid", msgId);
                 cv.put("fulltext", fulltext);
-                db.replace("messages_fulltext", null, cv);
+                insertStatements.insert(db, InsertStatement.MESSAGE_FULLTEXT, cv);
+            } else if (indexInBackground) {
+                cv.clear();
+                cv.put("message_id", msgId);
+                insertStatements.insert(db, InsertStatement.FULLTEXT_QUEUE, cv);
             }
         } catch (Exception e) {
             throw new MessagingException("Error appending message: " + message.getSubject(), e);
@@ -1084,11 +1113,6 @@ public class LocalFolder {
         return updateOrInsertMessagePart(db, cv, part, INVALID_MESSAGE_PART_ID);
     }
 
-    private void moveTemporaryFile(File tempFile, String messagePartId) throws IOException {
-        File destinationFile = localStore.getAttachmentFile(messagePartId);
-        FileHelper.renameOrMoveByCopying(tempFile, destinationFile);
-    }
-
     private long updateOrInsertMessagePart(SQLiteDatabase db, ContentValues cv, Part part, long existingMessagePartId)
             throws IOException, MessagingException {
         byte[] headerBytes = getHeaderBytes(part);
@@ -1096,6 +1120,7 @@ public class LocalFolder {
         cv.put("mime_type", part.getMimeType());
         cv.put("header", headerBytes);
         cv.put("type", MessagePartType.UNKNOWN);
+        cv.putNull("blob_hash");
 
         File file = null;
         Body body = part.getBody();
@@ -1114,11 +1139,11 @@ public class LocalFolder {
             messagePartId = existingMessagePartId;
             db.update("message_parts", cv, "id = ?", new String[] { Long.toString(messagePartId) });
         } else {
-            messagePartId = db.insertOrThrow("message_parts", null, cv);
+            messagePartId = localStore.getInsertStatements().insert(db, InsertStatement.MESSAGE_PART, cv);
         }
 
         if (file != null) {
-            moveTemporaryFile(file, Long.toString(messagePartId));
+            localStore.getBlobStore().storeFile(file, cv.getAsString("blob_hash"));
         }
 
         return messagePartId;
@@ -1165,18 +1190,36 @@ public class LocalFolder {
         if (fileSize > MAX_BODY_SIZE_FOR_DATABASE) {
             dataLocation = DataLocation.ON_DISK;
 
-            file = writeBodyToDiskIfNecessary(part);
-
-            long size = decodeAndCountBytes(file, encoding, fileSize);
-            cv.put("decoded_body_size", size);
+            BlobStore blobStore = localStore.getBlobStore();
+            String blobHash = getStoredBlobHash(blobStore, body);
+            if (blobHash != null) {
+                // The data is already in the blob store, e.g. when copying a message. Only add another reference.
+                File dataFile = blobStore.getFile(blobHash);
+                long size = isDecodingRequired(encoding) ?
+                        decodeAndCountBytes(dataFile, encoding, fileSize) : fileSize;
+                cv.put("decoded_body_size", size);
+            } else {
+                file = writeBodyToDiskIfNecessary(part);
+                blobHash = computeBlobHashAndDecodedSize(cv, blobStore, file, encoding);
+            }
+            cv.put("blob_hash", blobHash);
         } else {
             dataLocation = DataLocation.IN_DATABASE;
 
             byte[] bodyData = getBodyBytes(body);
-            cv.put("data", bodyData);
 
-            long size = decodeAndCountBytes(bodyData, encoding, bodyData.length);
+            long size = isDecodingRequired(encoding) ?
+                    decodeAndCountBytes(bodyData, encoding, bodyData.length) : bodyData.length;
             cv.put("decoded_body_size", size);
+
+            byte[] compressedData = MessagePartCompression.isCompressible(part.getMimeType()) ?
+                    MessagePartCompression.compress(bodyData) : null;
+            if (compressedData != null) {
+                dataLocation = DataLocation.IN_DATABASE_COMPRESSED;
+                cv.put("data", compressedData);
+            } else {
+                cv.put("data", bodyData);
+            }
         }
         cv.put("data_location", dataLocation);
         cv.put("encoding", encoding);
@@ -1185,6 +1228,16 @@ public class LocalFolder {
         return file;
     }
 
+    @Nullable
+    private static String getStoredBlobHash(BlobStore blobStore, Body body) {
+        if (!(body instanceof FileBackedBody)) {
+            return null;
+        }
+
+        File file = ((FileBackedBody) body).getFile();
+        return file.exists() ? blobStore.getBlobHash(file) : null;
+    }
+
     private File writeBodyToDiskIfNecessary(Part part) throws MessagingException, IOException {
         Body body = part.getBody();
         if (body instanceof BinaryTempFileBody) {
@@ -1206,6 +1259,14 @@ public class LocalFolder {
         return file;
     }
 
+    /**
+     * Returns {@code false} for encodings where the decoded size equals the raw size.
+     */
+    private static boolean isDecodingRequired(String encoding) {
+        return !MimeUtil.ENC_7BIT.equalsIgnoreCase(encoding) && !MimeUtil.ENC_8BIT.equalsIgnoreCase(encoding) &&
+                !MimeUtil.ENC_BINARY.equalsIgnoreCase(encoding);
+    }
+
     private long decodeAndCountBytes(byte[] bodyData, String encoding, long fallbackValue) {
         ByteArrayInputStream rawInputStream = new ByteArrayInputStream(bodyData);
         return decodeAndCountBytes(rawInputStream, encoding, fallbackValue);
@@ -1239,6 +1300,26 @@ public class LocalFolder {
         }
     }
 
+    /**
+     * Hashes the decoded content of {@code file} and puts the decoded size into {@code cv}, decoding the file only once.
+     */
+    private String computeBlobHashAndDecodedSize(ContentValues cv, BlobStore blobStore, File file, String encoding)
+            throws IOException {
+        InputStream rawInputStream = new FileInputStream(file);
+        try {
+            InputStream decodedInputStream = isDecodingRequired(encoding) ?
+                    localStore.getDecodingInputStream(rawInputStream, encoding) : rawInputStream;
+            CountingInputStream countingInputStream = new CountingInputStream(decodedInputStream);
+
+            String blobHash = blobStore.computeHash(countingInputStream, encoding);
+            cv.put("decoded_body_size", countingInputStream.getByteCount());
+
+            return blobHash;
+        } finally {
+            rawInputStream.close();
+        }
+    }
+
     private byte[] getHeaderBytes(Part part) throws IOException, MessagingException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         part.writeHeaderTo(output);
@@ -1246,6 +1327,10 @@ public class LocalFolder {
     }
 
     private byte[] getBodyBytes(Body body) throws IOException, MessagingException {
+        if (body instanceof BinaryMemoryBody) {
+            return ((BinaryMemoryBody) body).getData();
+        }
+
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         body.writeTo(output);
         return output.toByteArray();
@@ -1399,6 +1484,7 @@ public class LocalFolder {
                         db.execSQL("DELETE FROM threads WHERE message_id IN " +
                                 "(SELECT id FROM messages WHERE folder_id = ?)", folderIdArg);
                         db.execSQL("DELETE FROM messages WHERE folder_id = ?", folderIdArg);
+                        localStore.deleteUnreferencedBlobs();
 
                         setMoreMessages(MoreMessages.UNKNOWN);
 
@@ -1468,6 +1554,11 @@ public class LocalFolder {
                     }
                     db.execSQL("DELETE FROM folders WHERE id = ?", new Object[]
                                { Long.toString(databaseId), });
+                    try {
+                        localStore.deleteUnreferencedBlobs();
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
                     return null;
                 }
             });
@@ -1643,6 +1734,7 @@ public class LocalFolder {
     void deleteMessagePartsAndDataFromDisk(final long rootMessagePartId) throws MessagingException {
         deleteMessageDataFromDisk(rootMessagePartId);
         deleteMessageParts(rootMessagePartId);
+        localStore.deleteUnreferencedBlobs();
     }
 
     private void deleteMessageParts(final long rootMessagePartId) throws MessagingException {
@@ -1666,8 +1758,9 @@ public class LocalFolder {
     }
 
     private void deleteMessagePartsFromDisk(SQLiteDatabase db, long rootMessagePartId) {
+        // Files in the blob store are deleted by LocalStore.deleteUnreferencedBlobs() once they're no longer referenced
         Cursor cursor = db.query("message_parts", new String[] { "id" },
-                "root = ? AND data_location = " + DataLocation.ON_DISK,
+                "root = ? AND data_location = " + DataLocation.ON_DISK + " AND blob_hash IS NULL",
                 new String[] { Long.toString(rootMessagePartId) }, null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -1889,6 +1982,7 @@ public class LocalFolder {
         static final int IN_DATABASE = 1;
         static final int ON_DISK = 2;
         static final int CHILD_PART_CONTAINS_DATA = 3;
+        static final int IN_DATABASE_COMPRESSED = 4;
     }
 
     public enum MoreMessages {
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import android.text.TextUtils;
 
@@ -50,6 +51,7 @@ import com.fsck.k9.mailstore.LocalFolder.DataLocation;
 import com.fsck.k9.mailstore.LocalFolder.MoreMessages;
 import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
 import com.fsck.k9.mailstore.LockableDatabase.SchemaDefinition;
+import com.fsck.k9.mailstore.LockableDatabase.StorageMode;
 import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
 import com.fsck.k9.mailstore.StorageManager.InternalStorageProvider;
 import com.fsck.k9.mailstore.StorageManager.StorageProvider;
@@ -139,13 +141,15 @@ public class LocalStore {
 
     static final String[] UID_CHECK_PROJECTION = { "uid" };
 
-    private static final String[] GET_ATTACHMENT_COLS = new String[] { "id", "root", "data_location", "encoding", "data" };
+    private static final String[] GET_ATTACHMENT_COLS =
+            new String[] { "id", "root", "data_location", "encoding", "data", "blob_hash" };
 
     private static final int ATTACH_PART_ID_INDEX = 0;
     private static final int ATTACH_ROOT_INDEX = 1;
     private static final int ATTACH_LOCATION_INDEX = 2;
     private static final int ATTACH_ENCODING_INDEX = 3;
     private static final int ATTACH_DATA_INDEX = 4;
+    private static final int ATTACH_BLOB_HASH_INDEX = 5;
 
     /**
      * Maximum number of UIDs to check for existence at once.
@@ -172,6 +176,8 @@ public class LocalStore {
     private final ContentResolver contentResolver;
     private final MessagePreviewCreator messagePreviewCreator;
     private final MessageFulltextCreator messageFulltextCreator;
+    private final InsertStatements insertStatements = new InsertStatements();
+    private final BlobStore blobStore = new BlobStore(this::getAttachmentFile);
     private final AttachmentCounter attachmentCounter;
     private final PendingCommandSerializer pendingCommandSerializer;
     private final AttachmentInfoExtractor attachmentInfoExtractor;
@@ -179,6 +185,7 @@ public class LocalStore {
     private final Account account;
     private final LockableDatabase database;
     private final OutboxStateRepository outboxStateRepository;
+    private final FulltextIndexer fulltextIndexer;
 
     static LocalStore createInstance(Account account, Context context) throws MessagingException {
         return new LocalStore(account, context);
@@ -207,10 +214,13 @@ public class LocalStore {
 
         database = new LockableDatabase(context, account.getUuid(), schemaDefinition);
         database.setStorageProviderId(account.getLocalStorageProviderId());
+        database.setStorageMode(StorageMode.WRITE_AHEAD_LOG);
         database.open();
 
         Clock clock = DI.get(Clock.class);
         outboxStateRepository = new OutboxStateRepository(database, clock);
+        fulltextIndexer = new FulltextIndexer(this, database, messageFulltextCreator,
+                SystemClock::currentThreadTimeMillis);
 
         // If "External storage" is selected as storage location, move database to internal storage
         //TODO: Remove this code after 2020-12-31.
@@ -275,6 +285,14 @@ public class LocalStore {
             Timber.i("Before compaction size = %d", getSize());
         }
 
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) {
+                blobStore.deleteOrphanedFiles(db);
+                return null;
+            }
+        });
+
         database.execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
@@ -315,6 +333,7 @@ public class LocalStore {
 
                 // We don't need the search data now either
                 db.delete("messages_fulltext", null, null);
+                db.delete("fulltext_queue", null, null);
 
                 return null;
             }
@@ -427,8 +446,12 @@ public class LocalStore {
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
                 ContentValues cv = new ContentValues();
                 cv.put("data_location", DataLocation.MISSING);
+                cv.putNull("blob_hash");
                 db.update("message_parts", cv, null, null);
 
+                // All files are about to be deleted
+                db.delete("blobs", null, null);
+
                 return null;
             }
         });
@@ -516,6 +539,18 @@ public class LocalStore {
         });
     }
 
+    public void removePendingCommands(final List<PendingCommand> commands) throws MessagingException {
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (PendingCommand command : commands) {
+                    db.delete("pending_commands", "id = ?", new String[] { Long.toString(command.databaseId) });
+                }
+                return null;
+            }
+        });
+    }
+
     public void removePendingCommands() throws MessagingException {
         database.execute(false, new DbCallback<Void>() {
             @Override
@@ -692,7 +727,8 @@ public class LocalStore {
             String partId = cursor.getString(ATTACH_PART_ID_INDEX);
             int location = cursor.getInt(ATTACH_LOCATION_INDEX);
 
-            if (location == DataLocation.IN_DATABASE || location == DataLocation.ON_DISK) {
+            if (location == DataLocation.IN_DATABASE || location == DataLocation.IN_DATABASE_COMPRESSED ||
+                    location == DataLocation.ON_DISK) {
                 writeSimplePartToOutputStream(partId, cursor, outputStream);
             } else if (location == DataLocation.CHILD_PART_CONTAINS_DATA) {
                 writeRawBodyToStream(cursor, db, outputStream);
@@ -821,8 +857,12 @@ public class LocalStore {
                 byte[] data = cursor.getBlob(ATTACH_DATA_INDEX);
                 return new ByteArrayInputStream(data);
             }
+            case DataLocation.IN_DATABASE_COMPRESSED: {
+                byte[] data = cursor.getBlob(ATTACH_DATA_INDEX);
+                return MessagePartCompression.getDecompressingInputStream(data);
+            }
             case DataLocation.ON_DISK: {
-                File file = getAttachmentFile(partId);
+                File file = getMessagePartFile(partId, cursor.getString(ATTACH_BLOB_HASH_INDEX));
                 return new FileInputStream(file);
             }
             default:
@@ -853,6 +893,30 @@ public class LocalStore {
         return rawInputStream;
     }
 
+    /**
+     * Returns the file containing the data of a message part stored {@link DataLocation#ON_DISK}.
+     *
+     * @param blobHash
+     *         The value of the part's {@code blob_hash} column. {@code null} for parts saved before the blob store was
+     *         introduced; their data is stored in a file named after the part ID.
+     */
+    File getMessagePartFile(String messagePartId, @Nullable String blobHash) {
+        return blobHash != null ? blobStore.getFile(blobHash) : getAttachmentFile(messagePartId);
+    }
+
+    /**
+     * Deletes the blob files that are no longer referenced by any message part.
+     */
+    void deleteUnreferencedBlobs() throws MessagingException {
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) {
+                blobStore.collectGarbage(db);
+                return null;
+            }
+        });
+    }
+
     File getAttachmentFile(String attachmentId) {
         final StorageManager storageManager = StorageManager.getInstance(context);
         final File attachmentDirectory = storageManager.getAttachmentDirectory(
@@ -941,8 +1005,20 @@ public class LocalStore {
         return messagePreviewCreator;
     }
 
-    public MessageFulltextCreator getMessageFulltextCreator() {
-        return messageFulltextCreator;
+    public FulltextIndexer getFulltextIndexer() {
+        return fulltextIndexer;
+    }
+
+    public FulltextIndexCoverage getFulltextIndexCoverage() throws MessagingException {
+        return fulltextIndexer.getCoverage();
+    }
+
+    InsertStatements getInsertStatements() {
+        return insertStatements;
+    }
+
+    BlobStore getBlobStore() {
+        return blobStore;
     }
 
     AttachmentCounter getAttachmentCounter() {
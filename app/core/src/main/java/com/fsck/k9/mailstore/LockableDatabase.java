@@ -15,7 +15,7 @@ import com.fsck.k9.helper.FileHelper;
 import com.fsck.k9.mail.MessagingException;
 import timber.log.Timber;
 
-import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 
 public class LockableDatabase {
@@ -40,6 +40,22 @@ public class LockableDatabase {
         T doDbWork(SQLiteDatabase db) throws WrappedException, MessagingException;
     }
 
+    /**
+     * How SQLite journals changes to the database file.
+     */
+    public enum StorageMode {
+        /**
+         * SQLite's default rollback journal. Queries from other threads have to wait while a transaction is active.
+         */
+        ROLLBACK_JOURNAL,
+
+        /**
+         * Write-ahead logging with a pool of read connections. Queries that aren't part of a transaction read a
+         * snapshot of the database while another thread is writing.
+         */
+        WRITE_AHEAD_LOG
+    }
+
     public interface SchemaDefinition {
         int getVersion();
 
@@ -137,6 +153,10 @@ public class LockableDatabase {
 
     private SchemaDefinition mSchemaDefinition;
 
+    private StorageMode storageMode = StorageMode.ROLLBACK_JOURNAL;
+
+    private final DatabaseMetrics metrics = new DatabaseMetrics();
+
     private String uUid;
 
     /**
@@ -161,6 +181,21 @@ public class LockableDatabase {
         return mStorageProviderId;
     }
 
+    /**
+     * Has to be called before {@link #open()}.
+     */
+    public void setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public DatabaseMetrics getMetrics() {
+        return metrics;
+    }
+
     private StorageManager getStorageManager() {
         return StorageManager.getInstance(context);
     }
@@ -261,14 +296,27 @@ public class LockableDatabase {
      * @throws UnavailableStorageException
      */
     public <T> T execute(final boolean transactional, final DbCallback<T> callback) throws MessagingException {
+        final long lockRequestTime = System.nanoTime();
         lockRead();
-        final boolean doTransaction = transactional && inTransaction.get() == null;
+        final boolean nested = inTransaction.get() != null;
+        final boolean doTransaction = transactional && !nested;
         try {
             final boolean debug = K9.isDebugLoggingEnabled();
             if (doTransaction) {
                 inTransaction.set(Boolean.TRUE);
-                mDb.beginTransaction();
+                if (storageMode == StorageMode.WRITE_AHEAD_LOG) {
+                    // Recommended for WAL mode by SQLiteDatabase.enableWriteAheadLogging()
+                    mDb.beginTransactionNonExclusive();
+                } else {
+                    mDb.beginTransaction();
+                }
+            }
+
+            final long startTime = System.nanoTime();
+            if (!nested) {
+                metrics.recordLockWait(startTime - lockRequestTime);
             }
+
             try {
                 final T result = callback.doDbWork(mDb);
                 if (doTransaction) {
@@ -277,17 +325,14 @@ public class LockableDatabase {
                 return result;
             } finally {
                 if (doTransaction) {
-                    final long begin;
-                    if (debug) {
-                        begin = System.currentTimeMillis();
-                    } else {
-                        begin = 0L;
-                    }
                     // not doing endTransaction in the same 'finally' block of unlockRead() because endTransaction() may throw an exception
                     mDb.endTransaction();
+
+                    final long duration = System.nanoTime() - startTime;
+                    metrics.recordTransaction(duration);
                     if (debug) {
                         Timber.v("LockableDatabase: Transaction ended, took %d ms / %s",
-                                currentTimeMillis() - begin,
+                                NANOSECONDS.toMillis(duration),
                                 new Exception().getStackTrace()[1]);
                     }
                 }
@@ -380,6 +425,10 @@ public class LockableDatabase {
                 doOpenOrCreateDb(databaseFile);
             }
 
+            if (storageMode == StorageMode.WRITE_AHEAD_LOG && !mDb.enableWriteAheadLogging()) {
+                Timber.w("LockableDatabase: Unable to enable write-ahead logging for DB %s", uUid);
+            }
+
             mDb.execSQL("PRAGMA foreign_keys = ON;");
 
             if (mDb.getVersion() != mSchemaDefinition.getVersion()) {
@@ -0,0 +1,60 @@
+package com.fsck.k9.mailstore
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.util.zip.Deflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * DEFLATE compression for the data of text parts stored in `message_parts.data`.
+ *
+ * Compressed rows use [LocalFolder.DataLocation.IN_DATABASE_COMPRESSED]. The data is still transfer-encoded, so
+ * decompressing it yields exactly what would have been stored with [LocalFolder.DataLocation.IN_DATABASE].
+ */
+internal object MessagePartCompression {
+    private const val MIN_DATA_SIZE = 256
+    private const val BUFFER_SIZE = 8192
+
+    @JvmStatic
+    fun isCompressible(mimeType: String?): Boolean {
+        return mimeType != null && mimeType.startsWith("text/", ignoreCase = true)
+    }
+
+    /**
+     * Returns the compressed data, or `null` if compressing doesn't make [data] smaller.
+     */
+    @JvmStatic
+    fun compress(data: ByteArray): ByteArray? {
+        if (data.size < MIN_DATA_SIZE) return null
+
+        val deflater = Deflater()
+        try {
+            deflater.setInput(data)
+            deflater.finish()
+
+            val outputStream = ByteArrayOutputStream(data.size / 2)
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (!deflater.finished()) {
+                val count = deflater.deflate(buffer)
+                outputStream.write(buffer, 0, count)
+
+                if (outputStream.size() >= data.size) return null
+            }
+
+            return outputStream.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    @JvmStatic
+    fun decompress(data: ByteArray): ByteArray {
+        return getDecompressingInputStream(data).use { it.readBytes() }
+    }
+
+    @JvmStatic
+    fun getDecompressingInputStream(data: ByteArray): InputStream {
+        return InflaterInputStream(ByteArrayInputStream(data))
+    }
+}
@@ -0,0 +1,57 @@
+package com.fsck.k9.mailstore
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import com.fsck.k9.mail.MessagingException
+import com.fsck.k9.mailstore.LocalFolder.DataLocation
+
+/**
+ * Compresses text parts that were saved before [MessagePartCompression] was introduced.
+ *
+ * The database migration added the IDs of those parts to `compression_queue`. Parts saved since then are compressed
+ * right away. The queue is processed in small batches, each in its own transaction, so other database users don't
+ * have to wait long.
+ */
+internal class MessagePartCompressor(private val database: LockableDatabase) {
+    /**
+     * Compresses at most [limit] queued message parts. Returns `false` if the queue was empty.
+     */
+    @Throws(MessagingException::class)
+    fun compressBatch(limit: Int): Boolean {
+        return database.execute(true) { db ->
+            val messagePartIds = db.rawQuery(
+                "SELECT message_part_id FROM compression_queue LIMIT ?", arrayOf(limit.toString())
+            ).use { cursor ->
+                val messagePartIds = mutableListOf<Long>()
+                while (cursor.moveToNext()) {
+                    messagePartIds.add(cursor.getLong(0))
+                }
+                messagePartIds
+            }
+
+            for (messagePartId in messagePartIds) {
+                compressMessagePart(db, messagePartId)
+                db.delete("compression_queue", "message_part_id = ?", arrayOf(messagePartId.toString()))
+            }
+
+            messagePartIds.isNotEmpty()
+        }
+    }
+
+    private fun compressMessagePart(db: SQLiteDatabase, messagePartId: Long) {
+        val data = db.rawQuery(
+            "SELECT data FROM message_parts WHERE id = ? AND data_location = ${DataLocation.IN_DATABASE}",
+            arrayOf(messagePartId.toString())
+        ).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getBlob(0) else null
+        } ?: return
+
+        val compressedData = MessagePartCompression.compress(data) ?: return
+
+        val contentValues = ContentValues().apply {
+            put("data", compressedData)
+            put("data_location", DataLocation.IN_DATABASE_COMPRESSED)
+        }
+        db.update("message_parts", contentValues, "id = ?", arrayOf(messagePartId.toString()))
+    }
+}
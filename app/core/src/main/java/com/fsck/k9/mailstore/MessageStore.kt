@@ -39,6 +39,16 @@ interface MessageStore {
      */
     fun setFlag(messageIds: Collection<Long>, flag: Flag, set: Boolean)
 
+    /**
+     * Set flags of messages in a folder.
+     *
+     * For each message in [messageFlags] the flags in [flags] that are contained in the message's set are set, all
+     * other flags in [flags] are cleared. Flags not in [flags] are left alone.
+     *
+     * @param messageFlags A mapping of message server IDs to the flags the message should have.
+     */
+    fun setMessageFlags(folderId: Long, messageFlags: Map<String, Set<Flag>>, flags: Set<Flag>)
+
     /**
      * Retrieve the server ID for a given message.
      */
@@ -0,0 +1,98 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.Account
+import com.fsck.k9.backend.api.SyncCancellationToken
+import com.fsck.k9.mail.MessagingException
+import com.fsck.k9.mailstore.BodyPrefetchQueue
+import com.fsck.k9.mailstore.LocalStore
+import com.fsck.k9.mailstore.PrefetchMessage
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.anyOrNull
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Test
+
+class BodyPrefetcherTest {
+    private val account = Account("uuid").apply {
+        prefetchBandwidthBudget = 1000
+        prefetchStorageBudget = 10_000
+        maximumPrefetchMessageSize = 500
+    }
+    private val localStore = mock<LocalStore> { on { size } doReturn 0L }
+    private val queue = mock<BodyPrefetchQueue>()
+    private val downloadedMessages = mutableListOf<String>()
+    private val failingMessages = mutableSetOf<String>()
+    private val bodyPrefetcher = BodyPrefetcher { _, _, messageServerId ->
+        if (messageServerId in failingMessages) throw MessagingException("error")
+        downloadedMessages.add(messageServerId)
+        100L
+    }
+
+    @Test
+    fun `run should download messages in queue order until queue is empty`() {
+        queueReturns(listOf(prefetchMessage("1"), prefetchMessage("2")), emptyList())
+
+        val completed = bodyPrefetcher.newPrefetchRun(account, localStore, queue).run(SyncCancellationToken())
+
+        assertThat(completed).isTrue()
+        assertThat(downloadedMessages).containsExactly("1", "2").inOrder()
+    }
+
+    @Test
+    fun `run should stop when bandwidth budget is used up`() {
+        queueReturns(listOf(prefetchMessage("1", size = 400), prefetchMessage("2", size = 400)))
+        account.prefetchBandwidthBudget = 500
+
+        val completed = bodyPrefetcher.newPrefetchRun(account, localStore, queue).run(SyncCancellationToken())
+
+        assertThat(completed).isTrue()
+        assertThat(downloadedMessages).containsExactly("1")
+    }
+
+    @Test
+    fun `run should not download anything when storage budget is reached`() {
+        queueReturns(listOf(prefetchMessage("1")))
+        whenever(localStore.size).thenReturn(10_000L)
+
+        val completed = bodyPrefetcher.newPrefetchRun(account, localStore, queue).run(SyncCancellationToken())
+
+        assertThat(completed).isTrue()
+        assertThat(downloadedMessages).isEmpty()
+    }
+
+    @Test
+    fun `run should skip messages that failed to download`() {
+        queueReturns(listOf(prefetchMessage("1"), prefetchMessage("2")))
+        failingMessages.add("1")
+
+        val completed = bodyPrefetcher.newPrefetchRun(account, localStore, queue).run(SyncCancellationToken())
+
+        assertThat(completed).isTrue()
+        assertThat(downloadedMessages).containsExactly("2")
+    }
+
+    @Test
+    fun `cancelled run should continue with remaining messages when run again`() {
+        queueReturns(listOf(prefetchMessage("1"), prefetchMessage("2")))
+        val prefetchRun = bodyPrefetcher.newPrefetchRun(account, localStore, queue)
+        val cancellationToken = SyncCancellationToken().apply { cancel() }
+
+        val firstRunCompleted = prefetchRun.run(cancellationToken)
+        val secondRunCompleted = prefetchRun.run(SyncCancellationToken())
+
+        assertThat(firstRunCompleted).isFalse()
+        assertThat(secondRunCompleted).isTrue()
+        assertThat(downloadedMessages).containsExactly("1", "2").inOrder()
+    }
+
+    private fun queueReturns(vararg results: List<PrefetchMessage>) {
+        whenever(queue.getMessages(anyOrNull(), any(), any()))
+            .thenReturn(results.first(), *results.drop(1).toTypedArray())
+    }
+
+    private fun prefetchMessage(messageServerId: String, size: Long = 100): PrefetchMessage {
+        return PrefetchMessage(folderId = 1, messageServerId = messageServerId, estimatedSize = size)
+    }
+}
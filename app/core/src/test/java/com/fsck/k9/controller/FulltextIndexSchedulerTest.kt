@@ -0,0 +1,95 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.Account
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Test
+
+class FulltextIndexSchedulerTest {
+    private val syncExecutor = Executors.newCachedThreadPool()
+    private val executor = mock<ScheduledExecutorService>()
+    private val account = Account("uuid-1")
+    private val batchResults = mutableListOf<Boolean>()
+    private var duringBatch: () -> Unit = {}
+    private val fulltextIndexScheduler = FulltextIndexScheduler(
+        executor,
+        SyncScheduler(syncExecutor, maxParallelAccounts = 1),
+        PAUSE_MILLIS
+    ) {
+        duringBatch()
+        batchResults.removeAt(0)
+    }
+
+    @After
+    fun tearDown() {
+        syncExecutor.shutdownNow()
+    }
+
+    @Test
+    fun `scheduleIndexing() while run is pending should not start another run`() {
+        fulltextIndexScheduler.scheduleIndexing(account)
+        fulltextIndexScheduler.scheduleIndexing(account)
+
+        verify(executor, times(1)).execute(any())
+    }
+
+    @Test
+    fun `run with messages left should schedule next run after pause`() {
+        batchResults.addAll(listOf(true, false))
+        fulltextIndexScheduler.scheduleIndexing(account)
+
+        runExecutedTask()
+
+        val nextRun = argumentCaptor<Runnable>()
+        verify(executor).schedule(nextRun.capture(), eq(PAUSE_MILLIS), eq(TimeUnit.MILLISECONDS))
+
+        nextRun.firstValue.run()
+
+        verify(executor, times(1)).schedule(any<Runnable>(), any(), any())
+        assertThat(batchResults).isEmpty()
+    }
+
+    @Test
+    fun `run with empty queue should not schedule next run`() {
+        batchResults.add(false)
+        fulltextIndexScheduler.scheduleIndexing(account)
+
+        runExecutedTask()
+
+        verify(executor, never()).schedule(any<Runnable>(), any(), any())
+    }
+
+    @Test
+    fun `scheduleIndexing() during run should schedule another run`() {
+        batchResults.add(false)
+        duringBatch = { fulltextIndexScheduler.scheduleIndexing(account) }
+        fulltextIndexScheduler.scheduleIndexing(account)
+
+        runExecutedTask()
+
+        verify(executor, times(1)).execute(any())
+        verify(executor).schedule(any<Runnable>(), eq(PAUSE_MILLIS), eq(TimeUnit.MILLISECONDS))
+    }
+
+    private fun captureExecutedTask(): Runnable {
+        return argumentCaptor<Runnable>().apply { verify(executor).execute(capture()) }.firstValue
+    }
+
+    private fun runExecutedTask() {
+        captureExecutedTask().run()
+    }
+
+    companion object {
+        private const val PAUSE_MILLIS = 1000L
+    }
+}
@@ -0,0 +1,131 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.controller.MessagingControllerCommands.PendingCommand
+import com.fsck.k9.controller.MessagingControllerCommands.PendingDelete
+import com.fsck.k9.controller.MessagingControllerCommands.PendingEmptyTrash
+import com.fsck.k9.controller.MessagingControllerCommands.PendingExpunge
+import com.fsck.k9.controller.MessagingControllerCommands.PendingMoveOrCopy
+import com.fsck.k9.controller.MessagingControllerCommands.PendingSetFlag
+import com.fsck.k9.mail.Flag
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+
+class PendingCommandCoalescerTest {
+    private val coalescer = PendingCommandCoalescer()
+
+    @Test
+    fun `flag changes in the same folder should be merged`() {
+        val commands = listOf(
+            setFlag(FOLDER_A, Flag.SEEN, true, "1"),
+            setFlag(FOLDER_A, Flag.SEEN, true, "2", "3")
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        assertThat(batches).hasSize(1)
+        assertThat(batches[0].originalCommands).isEqualTo(commands)
+        val command = batches[0].commands.single() as PendingSetFlag
+        assertThat(command.folderId).isEqualTo(FOLDER_A)
+        assertThat(command.flag).isEqualTo(Flag.SEEN)
+        assertThat(command.newState).isTrue()
+        assertThat(command.uids).containsExactly("1", "2", "3").inOrder()
+    }
+
+    @Test
+    fun `repeated flag changes should only send last state`() {
+        val commands = listOf(
+            setFlag(FOLDER_A, Flag.SEEN, true, "1"),
+            setFlag(FOLDER_A, Flag.SEEN, false, "1"),
+            setFlag(FOLDER_A, Flag.SEEN, true, "1"),
+            setFlag(FOLDER_A, Flag.SEEN, false, "1")
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        val command = batches.single().commands.single() as PendingSetFlag
+        assertThat(command.newState).isFalse()
+        assertThat(command.uids).containsExactly("1")
+    }
+
+    @Test
+    fun `flag changes should be merged across commands for other folders`() {
+        val commands = listOf(
+            setFlag(FOLDER_A, Flag.SEEN, true, "1"),
+            PendingDelete.create(FOLDER_B, listOf("9")),
+            setFlag(FOLDER_A, Flag.SEEN, true, "2")
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        assertThat(batches).hasSize(2)
+        assertThat((batches[0].commands.single() as PendingSetFlag).uids).containsExactly("1", "2")
+        assertThat(batches[1].originalCommands).containsExactly(commands[1])
+    }
+
+    @Test
+    fun `flag changes should not be merged across commands for the same folder`() {
+        val commands = listOf(
+            setFlag(FOLDER_A, Flag.SEEN, true, "1"),
+            PendingExpunge.create(FOLDER_A),
+            setFlag(FOLDER_A, Flag.SEEN, true, "2")
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        assertThat(batches).hasSize(3)
+    }
+
+    @Test
+    fun `commands should not be merged across commands with unknown folders`() {
+        val commands = listOf(
+            setFlag(FOLDER_A, Flag.SEEN, true, "1"),
+            PendingEmptyTrash.create(),
+            setFlag(FOLDER_A, Flag.SEEN, true, "2")
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        assertThat(batches).hasSize(3)
+    }
+
+    @Test
+    fun `flag changes of messages deleted afterwards should be dropped`() {
+        val commands = listOf(
+            setFlag(FOLDER_A, Flag.SEEN, true, "1", "2"),
+            PendingDelete.create(FOLDER_A, listOf("1"))
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        assertThat(batches).hasSize(2)
+        assertThat((batches[0].commands.single() as PendingSetFlag).uids).containsExactly("2")
+        assertThat(batches[0].originalCommands).containsExactly(commands[0])
+        assertThat((batches[1].commands.single() as PendingDelete).uids).containsExactly("1")
+    }
+
+    @Test
+    fun `moves between the same folders should be merged`() {
+        val commands = listOf(
+            PendingMoveOrCopy.create(FOLDER_A, FOLDER_B, false, mapOf("1" to "K9LOCAL:1")),
+            PendingMoveOrCopy.create(FOLDER_A, FOLDER_B, false, mapOf("2" to "K9LOCAL:2")),
+            PendingMoveOrCopy.create(FOLDER_A, FOLDER_B, true, mapOf("3" to "K9LOCAL:3"))
+        )
+
+        val batches = coalescer.coalesce(commands)
+
+        assertThat(batches).hasSize(2)
+        val command = batches[0].commands.single() as PendingMoveOrCopy
+        assertThat(command.isCopy).isFalse()
+        assertThat(command.newUidMap).containsExactly("1", "K9LOCAL:1", "2", "K9LOCAL:2").inOrder()
+        assertThat(batches[0].originalCommands).containsExactly(commands[0], commands[1]).inOrder()
+    }
+
+    private fun setFlag(folderId: Long, flag: Flag, newState: Boolean, vararg uids: String): PendingCommand {
+        return PendingSetFlag.create(folderId, newState, flag, uids.toList())
+    }
+
+    companion object {
+        private const val FOLDER_A = 1L
+        private const val FOLDER_B = 2L
+    }
+}
@@ -0,0 +1,168 @@
+package com.fsck.k9.controller
+
+import com.fsck.k9.Account
+import com.google.common.truth.Truth.assertThat
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.After
+import org.junit.Test
+
+class SyncSchedulerTest {
+    private val executor = Executors.newCachedThreadPool()
+    private val syncScheduler = SyncScheduler(executor, maxParallelAccounts = 2)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun `forEachInParallel() should not exceed parallelism`() {
+        val running = AtomicInteger(0)
+        val maxRunning = AtomicInteger(0)
+
+        syncScheduler.forEachInParallel((1..20).toList(), 3) {
+            val nowRunning = running.incrementAndGet()
+            maxRunning.accumulateAndGet(nowRunning) { a, b -> maxOf(a, b) }
+            Thread.sleep(10)
+            running.decrementAndGet()
+        }
+
+        assertThat(running.get()).isEqualTo(0)
+        assertThat(maxRunning.get()).isAtMost(3)
+    }
+
+    @Test
+    fun `forEachInParallel() should run items in parallel`() {
+        val running = AtomicInteger(0)
+        val maxRunning = AtomicInteger(0)
+
+        syncScheduler.forEachInParallel((1..4).toList(), 4) {
+            maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+            Thread.sleep(100)
+            running.decrementAndGet()
+        }
+
+        assertThat(maxRunning.get()).isGreaterThan(1)
+    }
+
+    @Test
+    fun `forEachInParallel() with parallelism of 1 should run items in order`() {
+        val processedItems = Collections.synchronizedList(mutableListOf<String>())
+
+        syncScheduler.forEachInParallel(listOf("Inbox", "Sent", "Archive"), 1) { processedItems.add(it) }
+
+        assertThat(processedItems).containsExactly("Inbox", "Sent", "Archive").inOrder()
+    }
+
+    @Test
+    fun `forEachInParallel() should continue after exception`() {
+        val processedItems = Collections.synchronizedList(mutableListOf<Int>())
+
+        syncScheduler.forEachInParallel(listOf(1, 2, 3), 2) { item ->
+            if (item == 2) throw RuntimeException("sync failed")
+            processedItems.add(item)
+        }
+
+        assertThat(processedItems).containsExactly(1, 3)
+    }
+
+    @Test
+    fun `getFolderLock() should return same lock for same folder`() {
+        val account = Account("uuid-1")
+
+        val lock = syncScheduler.getFolderLock(account, 23)
+
+        assertThat(syncScheduler.getFolderLock(Account("uuid-1"), 23)).isSameInstanceAs(lock)
+        assertThat(syncScheduler.getFolderLock(account, 42)).isNotSameInstanceAs(lock)
+        assertThat(syncScheduler.getFolderLock(Account("uuid-2"), 23)).isNotSameInstanceAs(lock)
+    }
+
+    @Test
+    fun `runBackgroundSync() should run sync once when not preempted`() {
+        val runs = AtomicInteger(0)
+
+        syncScheduler.runBackgroundSync(Account("uuid-1")) {
+            runs.incrementAndGet()
+            true
+        }
+
+        assertThat(runs.get()).isEqualTo(1)
+    }
+
+    @Test
+    fun `runBackgroundSync() should return false when interrupted while waiting for foreground work`() {
+        val account = Account("uuid-1")
+        syncScheduler.beginForeground(account)
+        Thread.currentThread().interrupt()
+
+        val result = syncScheduler.runBackgroundSync(account) { true }
+
+        assertThat(result).isFalse()
+        assertThat(Thread.interrupted()).isTrue()
+        syncScheduler.endForeground(account)
+    }
+
+    @Test
+    fun `beginForeground() should cancel background sync and run it again after endForeground()`() {
+        val account = Account("uuid-1")
+        val backgroundSyncStarted = CountDownLatch(1)
+        val runs = AtomicInteger(0)
+        val cancelledRuns = AtomicInteger(0)
+        val backgroundSyncDone = CountDownLatch(1)
+
+        executor.execute {
+            syncScheduler.runBackgroundSync(account) { cancellationToken ->
+                if (runs.incrementAndGet() == 1) {
+                    backgroundSyncStarted.countDown()
+                    while (!cancellationToken.isCancelled) {
+                        Thread.sleep(1)
+                    }
+                    cancelledRuns.incrementAndGet()
+                    false
+                } else {
+                    true
+                }
+            }
+            backgroundSyncDone.countDown()
+        }
+
+        assertThat(backgroundSyncStarted.await(5, TimeUnit.SECONDS)).isTrue()
+        syncScheduler.beginForeground(account)
+        Thread.sleep(50)
+        assertThat(cancelledRuns.get()).isEqualTo(1)
+        assertThat(runs.get()).isEqualTo(1)
+
+        syncScheduler.endForeground(account)
+
+        assertThat(backgroundSyncDone.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(runs.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `beginForeground() should not cancel background syncs of other accounts`() {
+        val otherAccountSyncStarted = CountDownLatch(1)
+        val wasCancelled = AtomicInteger(0)
+        val releaseSync = CountDownLatch(1)
+
+        executor.execute {
+            syncScheduler.runBackgroundSync(Account("uuid-2")) { cancellationToken ->
+                otherAccountSyncStarted.countDown()
+                releaseSync.await()
+                if (cancellationToken.isCancelled) wasCancelled.incrementAndGet()
+                true
+            }
+        }
+
+        assertThat(otherAccountSyncStarted.await(5, TimeUnit.SECONDS)).isTrue()
+        syncScheduler.beginForeground(Account("uuid-1"))
+        releaseSync.countDown()
+        syncScheduler.endForeground(Account("uuid-1"))
+
+        Thread.sleep(50)
+        assertThat(wasCancelled.get()).isEqualTo(0)
+    }
+}
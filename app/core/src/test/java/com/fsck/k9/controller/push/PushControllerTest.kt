@@ -0,0 +1,182 @@
+package com.fsck.k9.controller.push
+
+import com.fsck.k9.Account
+import com.fsck.k9.Account.FolderMode
+import com.fsck.k9.Preferences
+import com.fsck.k9.backend.BackendManager
+import com.fsck.k9.backend.api.Backend
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.controller.MessagingController
+import com.fsck.k9.mail.FolderClass
+import com.fsck.k9.mailstore.LocalFolder
+import com.fsck.k9.mailstore.LocalStore
+import com.fsck.k9.mailstore.LocalStoreProvider
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import java.util.concurrent.Executor
+import org.junit.Test
+
+class PushControllerTest {
+    private val account = mock<Account> {
+        on { uuid } doReturn "account-uuid"
+        on { description } doReturn "Account"
+        on { folderPushMode } doReturn FolderMode.FIRST_CLASS
+        on { folderDisplayMode } doReturn FolderMode.ALL
+        on { maxPushFolders } doReturn 10
+        on { idleRefreshMinutes } doReturn 24
+        on { isPushPollOnConnect } doReturn true
+    }
+    private val pusher = mock<BackendPusher>()
+    private val backend = mock<Backend> {
+        on { isPushCapable } doReturn true
+        on { createPusher(any(), any()) } doReturn pusher
+    }
+    private val localStore = mock<LocalStore>()
+    private val preferences = mock<Preferences> {
+        on { availableAccounts } doReturn listOf(account)
+    }
+    private val backendManager = mock<BackendManager> {
+        on { getBackend(account) } doReturn backend
+    }
+    private val localStoreProvider = mock<LocalStoreProvider> {
+        on { getInstance(account) } doReturn localStore
+    }
+    private val messagingController = mock<MessagingController>()
+    private val pushController = PushController(
+        preferences,
+        backendManager,
+        localStoreProvider,
+        messagingController,
+        Executor { it.run() }
+    )
+
+    @Test
+    fun `updatePushers() should start pusher for folders matching the push mode`() {
+        setFolders(
+            createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS),
+            createFolder("Archive", pushClass = FolderClass.SECOND_CLASS),
+            createFolder("Outbox", pushClass = FolderClass.FIRST_CLASS, isLocalOnly = true)
+        )
+
+        pushController.updatePushers()
+
+        verify(pusher).start()
+        verify(pusher).updateFolders(listOf("INBOX"))
+    }
+
+    @Test
+    fun `updatePushers() should reuse running pusher`() {
+        setFolders(createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS))
+        pushController.updatePushers()
+        setFolders(
+            createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS),
+            createFolder("Work", pushClass = FolderClass.FIRST_CLASS)
+        )
+
+        pushController.updatePushers()
+
+        verify(backend, times(1)).createPusher(any(), any())
+        verify(pusher, times(1)).start()
+        verify(pusher).updateFolders(listOf("INBOX", "Work"))
+        verify(pusher, never()).stop()
+    }
+
+    @Test
+    fun `updatePushers() should limit folders to maxPushFolders and prefer Inbox`() {
+        whenever(account.maxPushFolders).thenReturn(2)
+        whenever(account.inboxFolderId).thenReturn(3L)
+        setFolders(
+            createFolder("Work", pushClass = FolderClass.FIRST_CLASS, databaseId = 1),
+            createFolder("Lists", pushClass = FolderClass.FIRST_CLASS, databaseId = 2),
+            createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS, databaseId = 3)
+        )
+
+        pushController.updatePushers()
+
+        verify(pusher).updateFolders(listOf("INBOX", "Work"))
+    }
+
+    @Test
+    fun `updatePushers() should pass push settings to backend`() {
+        setFolders(createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS))
+
+        pushController.updatePushers()
+
+        verify(backend).createPusher(any(), eq(PushConfig(idleRefreshMinutes = 24, pollOnConnect = true)))
+    }
+
+    @Test
+    fun `updatePushers() with changed push settings should restart pusher`() {
+        setFolders(createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS))
+        pushController.updatePushers()
+        whenever(account.idleRefreshMinutes).thenReturn(12)
+
+        pushController.updatePushers()
+
+        verify(pusher).stop()
+        verify(backend).createPusher(any(), eq(PushConfig(idleRefreshMinutes = 12, pollOnConnect = true)))
+        verify(pusher, times(2)).start()
+    }
+
+    @Test
+    fun `updatePushers() should stop pusher when no folders are left to push`() {
+        setFolders(createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS))
+        pushController.updatePushers()
+        setFolders(createFolder("INBOX", pushClass = FolderClass.SECOND_CLASS))
+
+        pushController.updatePushers()
+
+        verify(pusher).stop()
+    }
+
+    @Test
+    fun `updatePushers() should not create pusher for backend without push support`() {
+        whenever(backend.isPushCapable).thenReturn(false)
+        setFolders(createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS))
+
+        pushController.updatePushers()
+
+        verify(backend, never()).createPusher(any(), any())
+    }
+
+    @Test
+    fun `push event should synchronize folder`() {
+        setFolders(createFolder("INBOX", pushClass = FolderClass.FIRST_CLASS))
+        whenever(localStore.getFolderId("INBOX")).thenReturn(23L)
+        pushController.updatePushers()
+        val callbackCaptor = argumentCaptor<BackendPusherCallback>()
+        verify(backend).createPusher(callbackCaptor.capture(), any())
+
+        callbackCaptor.firstValue.onPushEvent("INBOX")
+
+        verify(messagingController).synchronizeMailbox(eq(account), eq(23L), any())
+    }
+
+    private fun setFolders(vararg folders: LocalFolder) {
+        whenever(localStore.getPersonalNamespaces(false)).thenReturn(folders.toList())
+    }
+
+    private fun createFolder(
+        serverId: String,
+        pushClass: FolderClass,
+        isLocalOnly: Boolean = false,
+        databaseId: Long = 0
+    ): LocalFolder {
+        return mock {
+            on { this.serverId } doReturn serverId
+            on { this.databaseId } doReturn databaseId
+            on { this.isLocalOnly } doReturn isLocalOnly
+            on { displayClass } doReturn FolderClass.FIRST_CLASS
+            on { this.pushClass } doReturn pushClass
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package com.fsck.k9.helper;
 
 
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.fsck.k9.NetworkClass;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class UtilityTest {
 
@@ -79,4 +86,42 @@ public class UtilityTest {
 
         assertFalse(result);
     }
+
+    @Test
+    public void getNetworkClass_withUnmeteredNetwork_returnsUnmetered() {
+        Context context = createContextWithNetwork(false, false);
+
+        NetworkClass result = Utility.getNetworkClass(context);
+
+        assertEquals(NetworkClass.UNMETERED, result);
+    }
+
+    @Test
+    public void getNetworkClass_withMeteredNetwork_returnsMetered() {
+        Context context = createContextWithNetwork(true, false);
+
+        NetworkClass result = Utility.getNetworkClass(context);
+
+        assertEquals(NetworkClass.METERED, result);
+    }
+
+    @Test
+    public void getNetworkClass_whileRoaming_returnsRoaming() {
+        Context context = createContextWithNetwork(true, true);
+
+        NetworkClass result = Utility.getNetworkClass(context);
+
+        assertEquals(NetworkClass.ROAMING, result);
+    }
+
+    private Context createContextWithNetwork(boolean metered, boolean roaming) {
+        NetworkInfo networkInfo = mock(NetworkInfo.class);
+        when(networkInfo.isRoaming()).thenReturn(roaming);
+        ConnectivityManager connectivityManager = mock(ConnectivityManager.class);
+        when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+        when(connectivityManager.isActiveNetworkMetered()).thenReturn(metered);
+        Context context = mock(Context.class);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(connectivityManager);
+        return context;
+    }
 }
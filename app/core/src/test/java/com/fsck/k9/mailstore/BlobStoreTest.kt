@@ -0,0 +1,148 @@
+package com.fsck.k9.mailstore
+
+import android.database.sqlite.SQLiteDatabase
+import androidx.core.content.contentValuesOf
+import com.fsck.k9.RobolectricTest
+import com.fsck.k9.storage.K9SchemaDefinitionFactory
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockitokotlin2.mock
+import java.io.File
+import org.junit.After
+import org.junit.Test
+
+class BlobStoreTest : RobolectricTest() {
+    private val directory = createTempDir()
+    private val blobStore = BlobStore { name -> File(directory, name) }
+    private val db = createDatabase()
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun `storeFile should move file into blob store`() {
+        val tempFile = createBodyFile("content")
+        val blobHash = computeHash("content")
+
+        blobStore.storeFile(tempFile, blobHash)
+
+        assertThat(tempFile.exists()).isFalse()
+        assertThat(blobStore.getFile(blobHash).readText()).isEqualTo("content")
+        assertThat(blobStore.getBlobHash(blobStore.getFile(blobHash))).isEqualTo(blobHash)
+    }
+
+    @Test
+    fun `storeFile with content already in blob store should delete temporary file`() {
+        val firstFile = createBodyFile("content")
+        val secondFile = createBodyFile("content")
+        val blobHash = computeHash("content")
+        blobStore.storeFile(firstFile, blobHash)
+
+        blobStore.storeFile(secondFile, computeHash("content"))
+
+        assertThat(secondFile.exists()).isFalse()
+        assertThat(directory.list()).asList().containsExactly("blob-$blobHash")
+    }
+
+    @Test
+    fun `computeHash with same decoded content and different encoding should return different hashes`() {
+        val base64Hash = blobStore.computeHash("content".byteInputStream(), "base64")
+        val quotedPrintableHash = blobStore.computeHash("content".byteInputStream(), "quoted-printable")
+
+        assertThat(base64Hash).isNotEqualTo(quotedPrintableHash)
+    }
+
+    @Test
+    fun `getBlobHash with file named after part ID should return null`() {
+        assertThat(blobStore.getBlobHash(File(directory, "42"))).isNull()
+    }
+
+    @Test
+    fun `message parts referencing the same blob should be counted`() {
+        insertMessagePart(root = 1, blobHash = "hash")
+        insertMessagePart(root = 2, blobHash = "hash")
+
+        assertThat(getReferenceCount("hash")).isEqualTo(2)
+
+        db.delete("message_parts", "root = 1", null)
+
+        assertThat(getReferenceCount("hash")).isEqualTo(1)
+    }
+
+    @Test
+    fun `changing blob_hash should move reference`() {
+        insertMessagePart(root = 1, blobHash = "old")
+
+        db.update("message_parts", contentValuesOf("blob_hash" to "new"), "root = 1", null)
+
+        assertThat(getReferenceCount("old")).isEqualTo(0)
+        assertThat(getReferenceCount("new")).isEqualTo(1)
+    }
+
+    @Test
+    fun `collectGarbage should only delete blobs that are no longer referenced`() {
+        val unreferencedHash = storeBlob("unreferenced")
+        val referencedHash = storeBlob("referenced")
+        insertMessagePart(root = 1, blobHash = unreferencedHash)
+        insertMessagePart(root = 2, blobHash = referencedHash)
+        db.delete("message_parts", "root = 1", null)
+
+        blobStore.collectGarbage(db)
+
+        assertThat(blobStore.getFile(unreferencedHash).exists()).isFalse()
+        assertThat(getReferenceCount(unreferencedHash)).isNull()
+        assertThat(blobStore.getFile(referencedHash).exists()).isTrue()
+        assertThat(getReferenceCount(referencedHash)).isEqualTo(1)
+    }
+
+    @Test
+    fun `deleteOrphanedFiles should only delete blob files without blobs row`() {
+        val referencedHash = storeBlob("referenced")
+        insertMessagePart(root = 1, blobHash = referencedHash)
+        val orphanedHash = storeBlob("orphaned")
+        val partFile = File(directory, "42").apply { writeText("part") }
+
+        blobStore.deleteOrphanedFiles(db)
+
+        assertThat(blobStore.getFile(orphanedHash).exists()).isFalse()
+        assertThat(blobStore.getFile(referencedHash).exists()).isTrue()
+        assertThat(partFile.exists()).isTrue()
+    }
+
+    private fun computeHash(content: String): String {
+        return blobStore.computeHash(content.byteInputStream(), "7bit")
+    }
+
+    private fun createBodyFile(content: String): File {
+        return File.createTempFile("body", null, directory).apply { writeText(content) }
+    }
+
+    private fun storeBlob(content: String): String {
+        val tempFile = createBodyFile(content)
+        return computeHash(content).also { blobHash -> blobStore.storeFile(tempFile, blobHash) }
+    }
+
+    private fun insertMessagePart(root: Long, blobHash: String) {
+        val values = contentValuesOf(
+            "type" to 0,
+            "root" to root,
+            "parent" to -1L,
+            "seq" to 0,
+            "data_location" to LocalFolder.DataLocation.ON_DISK,
+            "blob_hash" to blobHash
+        )
+        db.insertOrThrow("message_parts", null, values)
+    }
+
+    private fun getReferenceCount(blobHash: String): Int? {
+        return db.rawQuery("SELECT ref_count FROM blobs WHERE hash = ?", arrayOf(blobHash)).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getInt(0) else null
+        }
+    }
+
+    private fun createDatabase(): SQLiteDatabase {
+        val schemaDefinition = K9SchemaDefinitionFactory().createSchemaDefinition(mock<MigrationsHelper>())
+        return SQLiteDatabase.create(null).also { schemaDefinition.doDbUpgrade(it) }
+    }
+}
@@ -0,0 +1,39 @@
+package com.fsck.k9.mailstore
+
+import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.TimeUnit
+import org.junit.Test
+
+class DatabaseMetricsTest {
+    private val metrics = DatabaseMetrics()
+
+    @Test
+    fun `snapshot should contain count, total and maximum`() {
+        metrics.recordLockWait(TimeUnit.MILLISECONDS.toNanos(5))
+        metrics.recordLockWait(TimeUnit.MILLISECONDS.toNanos(20))
+        metrics.recordTransaction(TimeUnit.MILLISECONDS.toNanos(100))
+
+        val snapshot = metrics.getSnapshot()
+
+        assertThat(snapshot).isEqualTo(
+            DatabaseMetrics.Snapshot(
+                lockWaitCount = 2,
+                totalLockWaitMillis = 25,
+                maxLockWaitMillis = 20,
+                transactionCount = 1,
+                totalTransactionMillis = 100,
+                maxTransactionMillis = 100
+            )
+        )
+    }
+
+    @Test
+    fun `reset should clear all values`() {
+        metrics.recordLockWait(TimeUnit.MILLISECONDS.toNanos(5))
+        metrics.recordTransaction(TimeUnit.MILLISECONDS.toNanos(100))
+
+        metrics.reset()
+
+        assertThat(metrics.getSnapshot()).isEqualTo(DatabaseMetrics.Snapshot(0, 0, 0, 0, 0, 0))
+    }
+}
@@ -0,0 +1,173 @@
+package com.fsck.k9.mailstore
+
+import android.net.Uri
+import com.fsck.k9.Account
+import com.fsck.k9.K9RobolectricTest
+import com.fsck.k9.Preferences
+import com.fsck.k9.backend.api.BackendFolder
+import com.fsck.k9.backend.api.FolderInfo
+import com.fsck.k9.backend.api.updateFolders
+import com.fsck.k9.mail.Address
+import com.fsck.k9.mail.FolderType
+import com.fsck.k9.mail.internet.MimeMessage
+import com.fsck.k9.mail.internet.MimeMessageHelper
+import com.fsck.k9.mail.internet.TextBody
+import com.fsck.k9.message.extractors.MessageFulltextCreator
+import com.fsck.k9.provider.EmailProvider
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.doThrow
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.koin.core.inject
+
+class FulltextIndexerTest : K9RobolectricTest() {
+    val preferences: Preferences by inject()
+    val localStoreProvider: LocalStoreProvider by inject()
+    val messageStoreManager: MessageStoreManager by inject()
+
+    lateinit var account: Account
+    lateinit var localStore: LocalStore
+    lateinit var backendFolder: BackendFolder
+
+    private var cpuTime = 0L
+
+    @Before
+    fun setUp() {
+        // Set EmailProvider.CONTENT_URI so LocalStore.notifyChange() won't crash
+        EmailProvider.CONTENT_URI = Uri.parse("content://dummy")
+
+        preferences.clearAccounts()
+        account = preferences.newAccount()
+        localStore = localStoreProvider.getInstance(account)
+        backendFolder = createBackendFolder()
+    }
+
+    @After
+    fun tearDown() {
+        preferences.deleteAccount(account)
+    }
+
+    @Test
+    fun `saving a message should only queue it for indexing`() {
+        saveMessage("1", "Hello Bob")
+
+        assertThat(findMessagesContaining("Bob")).isEmpty()
+        assertThat(localStore.fulltextIndexCoverage).isEqualTo(FulltextIndexCoverage(1, 1))
+        assertThat(localStore.fulltextIndexCoverage.isComplete).isFalse()
+    }
+
+    @Test
+    fun `indexBatch should add queued messages to search index`() {
+        saveMessage("1", "Hello Bob")
+        saveMessage("2", "Hello Alice")
+        val indexer = createFulltextIndexer()
+
+        assertThat(indexer.indexBatch(10, CPU_BUDGET_MILLIS)).isTrue()
+        assertThat(indexer.indexBatch(10, CPU_BUDGET_MILLIS)).isFalse()
+
+        assertThat(findMessagesContaining("Bob")).containsExactly(getMessageId("1"))
+        assertThat(findMessagesContaining("Alice")).containsExactly(getMessageId("2"))
+        assertThat(indexer.getCoverage()).isEqualTo(FulltextIndexCoverage(2, 0))
+    }
+
+    @Test
+    fun `indexBatch should stop when CPU budget is used up`() {
+        saveMessage("1", "Hello Bob")
+        saveMessage("2", "Hello Alice")
+        val indexer = createFulltextIndexer(cpuTimePerMessage = CPU_BUDGET_MILLIS)
+
+        indexer.indexBatch(10, CPU_BUDGET_MILLIS)
+
+        assertThat(indexer.getCoverage()).isEqualTo(FulltextIndexCoverage(2, 1))
+    }
+
+    @Test
+    fun `indexBatch should remove deleted messages from queue`() {
+        saveMessage("1", "Hello Bob")
+        localStore.database.execute(false) { db -> db.delete("messages", null, null) }
+        val indexer = createFulltextIndexer()
+
+        indexer.indexBatch(10, CPU_BUDGET_MILLIS)
+
+        assertThat(indexer.indexBatch(10, CPU_BUDGET_MILLIS)).isFalse()
+        assertThat(findMessagesContaining("Bob")).isEmpty()
+    }
+
+    @Test
+    fun `indexBatch with failing message should keep it queued and continue with other messages`() {
+        saveMessage("1", "Hello Bob")
+        saveMessage("2", "Hello Alice")
+        val fulltextCreator = mock<MessageFulltextCreator> {
+            on { createFulltext(any()) } doThrow RuntimeException() doReturn "Hello Alice"
+        }
+        val indexer = createFulltextIndexer(fulltextCreator = fulltextCreator)
+
+        indexer.indexBatch(10, CPU_BUDGET_MILLIS)
+
+        assertThat(indexer.indexBatch(10, CPU_BUDGET_MILLIS)).isFalse()
+        assertThat(findMessagesContaining("Alice")).containsExactly(getMessageId("2"))
+        assertThat(indexer.getCoverage()).isEqualTo(FulltextIndexCoverage(2, 1))
+    }
+
+    private fun createFulltextIndexer(
+        cpuTimePerMessage: Long = 0,
+        fulltextCreator: MessageFulltextCreator = MessageFulltextCreator.newInstance()
+    ): FulltextIndexer {
+        return FulltextIndexer(localStore, localStore.database, fulltextCreator) {
+            cpuTime.also { cpuTime += cpuTimePerMessage }
+        }
+    }
+
+    private fun createBackendFolder(): BackendFolder {
+        val messageStore = messageStoreManager.getMessageStore(account)
+        val backendStorage = K9BackendStorage(localStore, messageStore, createFolderSettingsProvider(), emptyList())
+        backendStorage.updateFolders {
+            createFolders(listOf(FolderInfo(FOLDER_SERVER_ID, "Folder", FolderType.REGULAR)))
+        }
+
+        return K9BackendFolder(localStore, messageStore, FOLDER_SERVER_ID)
+    }
+
+    private fun saveMessage(uid: String, text: String) {
+        val message = MimeMessage().apply {
+            subject = "Test message"
+            setFrom(Address("alice@domain.example"))
+            setHeader("To", "bob@domain.example")
+            MimeMessageHelper.setBody(this, TextBody(text))
+
+            this.uid = uid
+        }
+
+        backendFolder.saveCompleteMessage(message)
+    }
+
+    private fun getMessageId(uid: String): Long {
+        return localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT id FROM messages WHERE uid = ?", arrayOf(uid)).use { cursor ->
+                cursor.moveToFirst()
+                cursor.getLong(0)
+            }
+        }
+    }
+
+    private fun findMessagesContaining(text: String): List<Long> {
+        return localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT docid FROM messages_fulltext WHERE fulltext MATCH ?", arrayOf(text)).use { cursor ->
+                val messageIds = mutableListOf<Long>()
+                while (cursor.moveToNext()) {
+                    messageIds.add(cursor.getLong(0))
+                }
+                messageIds
+            }
+        }
+    }
+
+    companion object {
+        private const val FOLDER_SERVER_ID = "folder"
+        private const val CPU_BUDGET_MILLIS = 100L
+    }
+}
@@ -0,0 +1,77 @@
+package com.fsck.k9.mailstore
+
+import android.database.sqlite.SQLiteDatabase
+import androidx.core.content.contentValuesOf
+import com.fsck.k9.RobolectricTest
+import com.fsck.k9.storage.K9SchemaDefinitionFactory
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Test
+
+class InsertStatementsTest : RobolectricTest() {
+    private val insertStatements = InsertStatements()
+
+    @Test
+    fun `insert should store given values and NULL for missing columns`() {
+        val db = createDatabase()
+
+        val threadId = insertStatements.insert(db, InsertStatement.THREAD, contentValuesOf("message_id" to 42L))
+
+        db.rawQuery("SELECT message_id, root, parent FROM threads WHERE id = ?", arrayOf(threadId.toString()))
+            .use { cursor ->
+                assertThat(cursor.moveToFirst()).isTrue()
+                assertThat(cursor.getLong(0)).isEqualTo(42L)
+                // Set by the set_thread_root trigger, which only fires if 'root' was NULL
+                assertThat(cursor.getLong(1)).isEqualTo(threadId)
+                assertThat(cursor.isNull(2)).isTrue()
+            }
+    }
+
+    @Test
+    fun `insert with column that isn't part of the statement should still store it`() {
+        val db = createDatabase()
+        val values = contentValuesOf("uid" to "uid1", "folder_id" to 1L, "normalized_subject_hash" to 23L)
+
+        val messageId = insertStatements.insert(db, InsertStatement.MESSAGE, values)
+
+        db.rawQuery("SELECT normalized_subject_hash FROM messages WHERE id = ?", arrayOf(messageId.toString()))
+            .use { cursor ->
+                assertThat(cursor.moveToFirst()).isTrue()
+                assertThat(cursor.getLong(0)).isEqualTo(23L)
+            }
+    }
+
+    @Test
+    fun `insert into fulltext table should replace existing row`() {
+        val db = createDatabase()
+
+        insertStatements.insert(db, InsertStatement.MESSAGE_FULLTEXT, contentValuesOf("docid" to 1L, "fulltext" to "a"))
+        insertStatements.insert(db, InsertStatement.MESSAGE_FULLTEXT, contentValuesOf("docid" to 1L, "fulltext" to "b"))
+
+        db.rawQuery("SELECT fulltext FROM messages_fulltext", null).use { cursor ->
+            assertThat(cursor.count).isEqualTo(1)
+            assertThat(cursor.moveToFirst()).isTrue()
+            assertThat(cursor.getString(0)).isEqualTo("b")
+        }
+    }
+
+    @Test
+    fun `insert should work after switching to another database instance`() {
+        val firstDb = createDatabase()
+        val secondDb = createDatabase()
+
+        insertStatements.insert(firstDb, InsertStatement.THREAD, contentValuesOf("message_id" to 1L))
+        firstDb.close()
+        insertStatements.insert(secondDb, InsertStatement.THREAD, contentValuesOf("message_id" to 2L))
+
+        secondDb.rawQuery("SELECT message_id FROM threads", null).use { cursor ->
+            assertThat(cursor.moveToFirst()).isTrue()
+            assertThat(cursor.getLong(0)).isEqualTo(2L)
+        }
+    }
+
+    private fun createDatabase(): SQLiteDatabase {
+        val schemaDefinition = K9SchemaDefinitionFactory().createSchemaDefinition(mock<MigrationsHelper>())
+        return SQLiteDatabase.create(null).also { schemaDefinition.doDbUpgrade(it) }
+    }
+}
@@ -76,6 +76,20 @@ class K9BackendFolderTest : K9RobolectricTest() {
         assertEquals(flags, messageFlags)
     }
 
+    @Test
+    fun setMessageFlags_shouldOnlyChangeGivenFlags() {
+        createMessageInBackendFolder("1", setOf(Flag.FLAGGED, Flag.ANSWERED))
+        createMessageInBackendFolder("2", setOf(Flag.SEEN))
+
+        backendFolder.setMessageFlags(
+            mapOf("1" to setOf(Flag.SEEN, Flag.ANSWERED), "2" to emptySet()),
+            setOf(Flag.SEEN, Flag.FLAGGED)
+        )
+
+        assertEquals(setOf(Flag.SEEN, Flag.ANSWERED, Flag.X_DOWNLOADED_FULL), backendFolder.getMessageFlags("1"))
+        assertEquals(setOf(Flag.X_DOWNLOADED_FULL), backendFolder.getMessageFlags("2"))
+    }
+
     @Test
     fun getLastUid() {
         createMessageInBackendFolder("200")
@@ -86,6 +100,45 @@ class K9BackendFolderTest : K9RobolectricTest() {
         assertEquals(200L, lastUid)
     }
 
+    @Test
+    fun forEachNumericMessageServerId_shouldReturnServerIdsInNumericOrder() {
+        createMessageInBackendFolder("200")
+        createMessageInBackendFolder("3")
+        createMessageInBackendFolder("123")
+        createMessageInBackendFolder("msg")
+
+        val messageServerIds = mutableListOf<Long>()
+        backendFolder.forEachNumericMessageServerId { messageServerId, _ -> messageServerIds.add(messageServerId) }
+
+        assertEquals(listOf(3L, 123L, 200L), messageServerIds)
+    }
+
+    @Test
+    fun forEachNumericMessageServerId_shouldIncludeMessagesMarkedAsDeleted() {
+        createMessageInBackendFolder("1")
+        createMessageInBackendFolder("2")
+        markMessageAsDeleted("2")
+
+        val messageServerIds = mutableListOf<Long>()
+        backendFolder.forEachNumericMessageServerId { messageServerId, _ -> messageServerIds.add(messageServerId) }
+
+        assertEquals(listOf(1L, 2L), messageServerIds)
+    }
+
+    @Test
+    fun saveThreadStructure_withMissingParent_shouldCreatePlaceholder() {
+        createMessageInBackendFolder("1")
+        createMessageInBackendFolder("3")
+
+        backendFolder.saveThreadStructure(mapOf("1" to null, "2" to "1", "3" to "2"))
+
+        val rootThreadId = getThreadId("1")
+        val placeholderThreadId = getThreadId("2")
+        assertEquals(1, getEmptyColumn("2"))
+        assertEquals(rootThreadId to rootThreadId, getRootAndParent(placeholderThreadId))
+        assertEquals(rootThreadId to placeholderThreadId, getRootAndParent(getThreadId("3")))
+    }
+
     @Test
     fun saveCompleteMessage_withoutServerId_shouldThrow() {
         val message = createMessage(messageServerId = null)
@@ -108,6 +161,28 @@ class K9BackendFolderTest : K9RobolectricTest() {
         }
     }
 
+    @Test
+    fun saveCompleteMessages_shouldSaveAllMessagesAsFullyDownloaded() {
+        val messages = listOf(createMessage("10"), createMessage("11"))
+
+        backendFolder.saveCompleteMessages(messages)
+
+        assertEquals(setOf("10", "11"), backendFolder.getMessageServerIds())
+        assertTrue(Flag.X_DOWNLOADED_FULL in backendFolder.getMessageFlags("10"))
+        assertTrue(Flag.X_DOWNLOADED_FULL in backendFolder.getMessageFlags("11"))
+    }
+
+    @Test
+    fun savePartialMessages_shouldSaveAllMessagesAsPartiallyDownloaded() {
+        val messages = listOf(createMessage("10"), createMessage("11"))
+
+        backendFolder.savePartialMessages(messages)
+
+        assertEquals(setOf("10", "11"), backendFolder.getMessageServerIds())
+        assertTrue(Flag.X_DOWNLOADED_PARTIAL in backendFolder.getMessageFlags("10"))
+        assertTrue(Flag.X_DOWNLOADED_PARTIAL in backendFolder.getMessageFlags("11"))
+    }
+
     fun createAccount(): Account {
         // FIXME: This is a hack to get Preferences into a state where it's safe to call newAccount()
         preferences.clearAccounts()
@@ -126,7 +201,7 @@ class K9BackendFolderTest : K9RobolectricTest() {
         val folderServerIds = backendStorage.getFolderServerIds()
         assertTrue(FOLDER_SERVER_ID in folderServerIds)
 
-        return K9BackendFolder(localStore, FOLDER_SERVER_ID)
+        return K9BackendFolder(localStore, messageStore, FOLDER_SERVER_ID)
     }
 
     fun createMessageInBackendFolder(messageServerId: String, flags: Set<Flag> = emptySet()) {
@@ -161,6 +236,42 @@ class K9BackendFolderTest : K9RobolectricTest() {
         }
     }
 
+    private fun markMessageAsDeleted(messageServerId: String) {
+        dbOperation { db ->
+            val numberOfUpdatedRows = db.update(
+                "messages",
+                contentValuesOf("deleted" to 1),
+                "uid = ?",
+                arrayOf(messageServerId)
+            )
+            assertEquals(1, numberOfUpdatedRows)
+        }
+    }
+
+    private fun getThreadId(messageServerId: String): Long {
+        return database.rawQuery(
+            "SELECT threads.id FROM messages JOIN threads ON (threads.message_id = messages.id) WHERE messages.uid = ?",
+            messageServerId
+        ) { cursor ->
+            assertTrue(cursor.moveToFirst())
+            cursor.getLong(0)
+        }
+    }
+
+    private fun getEmptyColumn(messageServerId: String): Int {
+        return database.rawQuery("SELECT empty FROM messages WHERE uid = ?", messageServerId) { cursor ->
+            assertTrue(cursor.moveToFirst())
+            cursor.getInt(0)
+        }
+    }
+
+    private fun getRootAndParent(threadId: Long): Pair<Long, Long> {
+        return database.rawQuery("SELECT root, parent FROM threads WHERE id = ?", threadId.toString()) { cursor ->
+            assertTrue(cursor.moveToFirst())
+            cursor.getLong(0) to cursor.getLong(1)
+        }
+    }
+
     private fun dbOperation(action: (SQLiteDatabase) -> Unit) = database.execute(false, action)
 
     companion object {
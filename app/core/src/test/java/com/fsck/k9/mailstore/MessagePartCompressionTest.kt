@@ -0,0 +1,38 @@
+package com.fsck.k9.mailstore
+
+import com.google.common.truth.Truth.assertThat
+import kotlin.random.Random
+import org.junit.Test
+
+class MessagePartCompressionTest {
+    @Test
+    fun `compress and decompress should return original data`() {
+        val data = "<p>Newsletter</p>\r\n".repeat(100).toByteArray()
+
+        val compressedData = MessagePartCompression.compress(data)
+
+        assertThat(compressedData).isNotNull()
+        assertThat(compressedData!!.size).isLessThan(data.size)
+        assertThat(MessagePartCompression.decompress(compressedData)).isEqualTo(data)
+    }
+
+    @Test
+    fun `compress with small data should return null`() {
+        assertThat(MessagePartCompression.compress("Hello Bob!".toByteArray())).isNull()
+    }
+
+    @Test
+    fun `compress with incompressible data should return null`() {
+        val data = ByteArray(4096).also { Random(42).nextBytes(it) }
+
+        assertThat(MessagePartCompression.compress(data)).isNull()
+    }
+
+    @Test
+    fun `isCompressible should only accept text parts`() {
+        assertThat(MessagePartCompression.isCompressible("text/plain")).isTrue()
+        assertThat(MessagePartCompression.isCompressible("TEXT/HTML")).isTrue()
+        assertThat(MessagePartCompression.isCompressible("image/png")).isFalse()
+        assertThat(MessagePartCompression.isCompressible(null)).isFalse()
+    }
+}
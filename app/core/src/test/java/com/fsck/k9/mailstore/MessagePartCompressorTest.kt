@@ -0,0 +1,137 @@
+package com.fsck.k9.mailstore
+
+import android.content.ContentValues
+import android.net.Uri
+import com.fsck.k9.Account
+import com.fsck.k9.K9RobolectricTest
+import com.fsck.k9.Preferences
+import com.fsck.k9.backend.api.BackendFolder
+import com.fsck.k9.backend.api.FolderInfo
+import com.fsck.k9.backend.api.updateFolders
+import com.fsck.k9.mail.Address
+import com.fsck.k9.mail.FetchProfile
+import com.fsck.k9.mail.FolderType
+import com.fsck.k9.mail.internet.MessageExtractor
+import com.fsck.k9.mail.internet.MimeMessage
+import com.fsck.k9.mail.internet.MimeMessageHelper
+import com.fsck.k9.mail.internet.TextBody
+import com.fsck.k9.mailstore.LocalFolder.DataLocation
+import com.fsck.k9.provider.EmailProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.koin.core.inject
+
+class MessagePartCompressorTest : K9RobolectricTest() {
+    val preferences: Preferences by inject()
+    val localStoreProvider: LocalStoreProvider by inject()
+    val messageStoreManager: MessageStoreManager by inject()
+
+    lateinit var account: Account
+    lateinit var localStore: LocalStore
+    lateinit var backendFolder: BackendFolder
+
+    @Before
+    fun setUp() {
+        // Set EmailProvider.CONTENT_URI so LocalStore.notifyChange() won't crash
+        EmailProvider.CONTENT_URI = Uri.parse("content://dummy")
+
+        preferences.clearAccounts()
+        account = preferences.newAccount()
+        localStore = localStoreProvider.getInstance(account)
+        backendFolder = createBackendFolder()
+    }
+
+    @After
+    fun tearDown() {
+        preferences.deleteAccount(account)
+    }
+
+    @Test
+    fun `saving a message should compress large text part`() {
+        saveMessage("1", TEXT)
+
+        assertThat(getDataLocations()).containsExactly(DataLocation.IN_DATABASE_COMPRESSED)
+        assertThat(loadMessageText("1")).isEqualTo(TEXT)
+    }
+
+    @Test
+    fun `compressBatch should compress queued parts saved without compression`() {
+        saveMessage("1", TEXT)
+        decompressAndQueueAllParts()
+        val compressor = MessagePartCompressor(localStore.database)
+
+        assertThat(compressor.compressBatch(10)).isTrue()
+        assertThat(compressor.compressBatch(10)).isFalse()
+
+        assertThat(getDataLocations()).containsExactly(DataLocation.IN_DATABASE_COMPRESSED)
+        assertThat(loadMessageText("1")).isEqualTo(TEXT)
+    }
+
+    private fun createBackendFolder(): BackendFolder {
+        val messageStore = messageStoreManager.getMessageStore(account)
+        val backendStorage = K9BackendStorage(localStore, messageStore, createFolderSettingsProvider(), emptyList())
+        backendStorage.updateFolders {
+            createFolders(listOf(FolderInfo(FOLDER_SERVER_ID, "Folder", FolderType.REGULAR)))
+        }
+
+        return K9BackendFolder(localStore, messageStore, FOLDER_SERVER_ID)
+    }
+
+    private fun saveMessage(uid: String, text: String) {
+        val message = MimeMessage().apply {
+            subject = "Newsletter"
+            setFrom(Address("alice@domain.example"))
+            setHeader("To", "bob@domain.example")
+            MimeMessageHelper.setBody(this, TextBody(text))
+
+            this.uid = uid
+        }
+
+        backendFolder.saveCompleteMessage(message)
+    }
+
+    private fun loadMessageText(uid: String): String? {
+        val folder = localStore.getFolder(FOLDER_SERVER_ID)
+        folder.open()
+        val message = folder.getMessage(uid)
+        val fetchProfile = FetchProfile().apply { add(FetchProfile.Item.BODY) }
+        folder.fetch(listOf(message), fetchProfile, null)
+
+        return MessageExtractor.getTextFromPart(message)
+    }
+
+    private fun getDataLocations(): List<Int> {
+        return localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT data_location FROM message_parts", null).use { cursor ->
+                val dataLocations = mutableListOf<Int>()
+                while (cursor.moveToNext()) {
+                    dataLocations.add(cursor.getInt(0))
+                }
+                dataLocations
+            }
+        }
+    }
+
+    private fun decompressAndQueueAllParts() {
+        localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT id, data FROM message_parts", null).use { cursor ->
+                while (cursor.moveToNext()) {
+                    val messagePartId = cursor.getLong(0)
+                    val contentValues = ContentValues().apply {
+                        put("data", MessagePartCompression.decompress(cursor.getBlob(1)))
+                        put("data_location", DataLocation.IN_DATABASE)
+                    }
+                    db.update("message_parts", contentValues, "id = ?", arrayOf(messagePartId.toString()))
+                    db.execSQL("INSERT INTO compression_queue (message_part_id) VALUES (?)", arrayOf(messagePartId))
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val FOLDER_SERVER_ID = "folder"
+        private val TEXT = "Some newsletter text that repeats itself.\r\n".repeat(50)
+    }
+}
@@ -0,0 +1,106 @@
+package com.fsck.k9.mailstore
+
+import android.net.Uri
+import com.fsck.k9.Account
+import com.fsck.k9.K9RobolectricTest
+import com.fsck.k9.Preferences
+import com.fsck.k9.backend.api.BackendFolder
+import com.fsck.k9.backend.api.FolderInfo
+import com.fsck.k9.backend.api.updateFolders
+import com.fsck.k9.mail.Address
+import com.fsck.k9.mail.FolderType
+import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.internet.MimeBodyPart
+import com.fsck.k9.mail.internet.MimeMessage
+import com.fsck.k9.mail.internet.MimeMessageHelper
+import com.fsck.k9.mail.internet.MimeMultipart
+import com.fsck.k9.mail.internet.TextBody
+import com.fsck.k9.provider.EmailProvider
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import org.koin.core.inject
+
+/**
+ * Measures how long it takes to save [MESSAGE_COUNT] synthetic multipart messages the way a sync does, i.e. in batches
+ * via [BackendFolder.saveCompleteMessages].
+ *
+ * Every message results in one row in `messages`, `threads` and `messages_fulltext` and three rows in `message_parts`.
+ * Remove the [Ignore] annotation to run it. The numbers are only meaningful relative to each other, since Robolectric's
+ * SQLite differs from the one on a device.
+ */
+@Ignore("Benchmark")
+class SaveMessagesBenchmark : K9RobolectricTest() {
+    val preferences: Preferences by inject()
+    val localStoreProvider: LocalStoreProvider by inject()
+    val messageStoreManager: MessageStoreManager by inject()
+
+    lateinit var account: Account
+    lateinit var backendFolder: BackendFolder
+
+    @Before
+    fun setUp() {
+        // Set EmailProvider.CONTENT_URI so LocalStore.notifyChange() won't crash
+        EmailProvider.CONTENT_URI = Uri.parse("content://dummy")
+
+        preferences.clearAccounts()
+        account = preferences.newAccount()
+        backendFolder = createBackendFolder()
+    }
+
+    @After
+    fun tearDown() {
+        preferences.deleteAccount(account)
+    }
+
+    @Test
+    fun saveMultipartMessages() {
+        val batches = (1..MESSAGE_COUNT).chunked(BATCH_SIZE) { uids -> uids.map { createMultipartMessage(it) } }
+
+        val startTime = System.nanoTime()
+        for (messages in batches) {
+            backendFolder.saveCompleteMessages(messages)
+        }
+        val duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+
+        println("Saved $MESSAGE_COUNT multipart messages in $duration ms " +
+            "(${MESSAGE_COUNT * 1000L / duration.coerceAtLeast(1)} messages/s)")
+    }
+
+    private fun createBackendFolder(): BackendFolder {
+        val localStore = localStoreProvider.getInstance(account)
+        val messageStore = messageStoreManager.getMessageStore(account)
+        val backendStorage = K9BackendStorage(localStore, messageStore, createFolderSettingsProvider(), emptyList())
+        backendStorage.updateFolders {
+            createFolders(listOf(FolderInfo(FOLDER_SERVER_ID, "Benchmark", FolderType.INBOX)))
+        }
+
+        return K9BackendFolder(localStore, messageStore, FOLDER_SERVER_ID)
+    }
+
+    private fun createMultipartMessage(uid: Int): Message {
+        val alternative = MimeMultipart.newInstance().apply {
+            setSubType("alternative")
+            addBodyPart(MimeBodyPart(TextBody("Plain text of message $uid"), "text/plain"))
+            addBodyPart(MimeBodyPart(TextBody("<p>HTML text of message $uid</p>"), "text/html"))
+        }
+
+        return MimeMessage().apply {
+            subject = "Message $uid"
+            setFrom(Address("alice@domain.example"))
+            setHeader("To", "bob@domain.example")
+            setHeader("Message-ID", "<$uid@domain.example>")
+            MimeMessageHelper.setBody(this, alternative)
+
+            this.uid = uid.toString()
+        }
+    }
+
+    companion object {
+        private const val MESSAGE_COUNT = 10_000
+        private const val BATCH_SIZE = 100
+        private const val FOLDER_SERVER_ID = "benchmark"
+    }
+}
@@ -46,6 +46,8 @@ class ImapBackendFactory(
             override val logLabel
                 get() = account.description
 
+            override val fetchPipelineDepth = IMAP_FETCH_PIPELINE_DEPTH
+
             override fun isSubscribedFoldersOnly() = account.isSubscribedFoldersOnly
 
             override fun useCompression(type: NetworkType) = account.useCompression(type)
@@ -58,3 +60,5 @@ class ImapBackendFactory(
         return SmtpTransport(serverSettings, trustedSocketFactory, oauth2TokenProvider)
     }
 }
+
+private const val IMAP_FETCH_PIPELINE_DEPTH = 4
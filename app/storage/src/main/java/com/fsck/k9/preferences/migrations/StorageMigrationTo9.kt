@@ -3,10 +3,10 @@ package com.fsck.k9.preferences.migrations
 import android.database.sqlite.SQLiteDatabase
 
 /**
- * Temporarily disable Push (see GH-4253)
+ * Disable Push while it wasn't supported (GH-4253)
  *
- * Since the plan is to re-enable Push support in the future, we don't actually touch the Push settings. But we
- * configure "poll folders" so folders that have previously used Push will now be polled.
+ * The Push settings aren't touched, so they take effect again now that Push is supported. But we configure
+ * "poll folders" so folders that have previously used Push were polled in the meantime.
  */
 class StorageMigrationTo9(
     private val db: SQLiteDatabase,
@@ -12,7 +12,7 @@ import timber.log.Timber;
 
 
 class StoreSchemaDefinition implements SchemaDefinition {
-    static final int DB_VERSION = 78;
+    static final int DB_VERSION = 81;
 
     private final MigrationsHelper migrationsHelper;
 
@@ -162,7 +162,8 @@ class StoreSchemaDefinition implements SchemaDefinition {
                 "epilogue TEXT, " +
                 "boundary TEXT, " +
                 "content_id TEXT, " +
-                "server_extra TEXT" +
+                "server_extra TEXT, " +
+                "blob_hash TEXT" +
                 ")");
 
         db.execSQL("CREATE TRIGGER set_message_part_root " +
@@ -247,5 +248,52 @@ class StoreSchemaDefinition implements SchemaDefinition {
 
         db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
         db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+
+        db.execSQL("DROP TABLE IF EXISTS blobs");
+        db.execSQL("CREATE TABLE blobs (" +
+                "hash TEXT PRIMARY KEY NOT NULL, " +
+                "ref_count INTEGER NOT NULL DEFAULT 0" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS blobs_ref_count");
+        db.execSQL("CREATE INDEX IF NOT EXISTS blobs_ref_count ON blobs (ref_count)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS add_blob_reference");
+        db.execSQL("CREATE TRIGGER add_blob_reference " +
+                "AFTER INSERT ON message_parts " +
+                "WHEN NEW.blob_hash IS NOT NULL " +
+                "BEGIN " +
+                "INSERT OR IGNORE INTO blobs (hash) VALUES (NEW.blob_hash); " +
+                "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.blob_hash; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS remove_blob_reference");
+        db.execSQL("CREATE TRIGGER remove_blob_reference " +
+                "AFTER DELETE ON message_parts " +
+                "WHEN OLD.blob_hash IS NOT NULL " +
+                "BEGIN " +
+                "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.blob_hash; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS update_blob_reference");
+        db.execSQL("CREATE TRIGGER update_blob_reference " +
+                "AFTER UPDATE OF blob_hash ON message_parts " +
+                "WHEN OLD.blob_hash IS NOT NEW.blob_hash " +
+                "BEGIN " +
+                "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.blob_hash; " +
+                "INSERT OR IGNORE INTO blobs (hash) SELECT NEW.blob_hash WHERE NEW.blob_hash IS NOT NULL; " +
+                "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.blob_hash; " +
+                "END");
+
+        db.execSQL("DROP TABLE IF EXISTS compression_queue");
+        db.execSQL("CREATE TABLE compression_queue (" +
+                "message_part_id INTEGER PRIMARY KEY" +
+                ")");
+
+        db.execSQL("DROP TABLE IF EXISTS fulltext_queue");
+        db.execSQL("CREATE TABLE fulltext_queue (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "message_id INTEGER NOT NULL UNIQUE" +
+                ")");
     }
 }
@@ -1,6 +1,7 @@
 package com.fsck.k9.storage.messages
 
 import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
 import com.fsck.k9.mail.Flag
 import com.fsck.k9.mailstore.LockableDatabase
 
@@ -18,14 +19,99 @@ internal class FlagMessageOperations(private val lockableDatabase: LockableDatab
         }
     }
 
-    private fun setSpecialFlags(messageIds: Collection<Long>, flag: Flag, set: Boolean) {
-        val columnName = when (flag) {
-            Flag.SEEN -> "read"
-            Flag.FLAGGED -> "flagged"
-            Flag.ANSWERED -> "answered"
-            Flag.FORWARDED -> "forwarded"
-            else -> error("Unsupported flag: $flag")
+    /**
+     * For each message in [messageFlags], sets the flags in [flags] that are contained in the message's flag set and
+     * clears the others.
+     *
+     * Flags stored in their own column are updated with one `UPDATE` per flag, value and chunk of server IDs. Other
+     * flags are stored in the `flags` column, which is rewritten for each affected message.
+     */
+    fun setMessageFlags(folderId: Long, messageFlags: Map<String, Set<Flag>>, flags: Set<Flag>) {
+        if (messageFlags.isEmpty() || flags.isEmpty()) return
+
+        lockableDatabase.execute(true) { database ->
+            for (flag in flags) {
+                val (setServerIds, clearServerIds) = messageFlags.keys.partition { flag in messageFlags.getValue(it) }
+                val columnName = flag.columnName
+                if (columnName != null) {
+                    database.setColumnForServerIds(folderId, setServerIds, columnName, 1)
+                    database.setColumnForServerIds(folderId, clearServerIds, columnName, 0)
+                } else {
+                    database.updateFlagsColumnForServerIds(folderId, setServerIds, flag, true)
+                    database.updateFlagsColumnForServerIds(folderId, clearServerIds, flag, false)
+                }
+            }
+        }
+    }
+
+    private fun SQLiteDatabase.setColumnForServerIds(
+        folderId: Long,
+        messageServerIds: List<String>,
+        columnName: String,
+        columnValue: Int
+    ) {
+        if (messageServerIds.isEmpty()) return
+
+        val contentValues = ContentValues().apply {
+            put(columnName, columnValue)
+        }
+
+        performChunkedOperation(
+            arguments = messageServerIds,
+            argumentTransformation = { it }
+        ) { selectionSet, selectionArguments ->
+            update(
+                "messages",
+                contentValues,
+                "folder_id = ? AND uid $selectionSet",
+                arrayOf(folderId.toString(), *selectionArguments)
+            )
         }
+    }
+
+    private fun SQLiteDatabase.updateFlagsColumnForServerIds(
+        folderId: Long,
+        messageServerIds: List<String>,
+        flag: Flag,
+        set: Boolean
+    ) {
+        if (messageServerIds.isEmpty()) return
+
+        performChunkedOperation(
+            arguments = messageServerIds,
+            argumentTransformation = { it }
+        ) { selectionSet, selectionArguments ->
+            val updatedFlagsColumnValues = mutableMapOf<Long, String>()
+            query(
+                "messages",
+                arrayOf("id", "flags"),
+                "folder_id = ? AND uid $selectionSet",
+                arrayOf(folderId.toString(), *selectionArguments),
+                null,
+                null,
+                null
+            ).use { cursor ->
+                while (cursor.moveToNext()) {
+                    val flagsColumnValue = cursor.getString(1).orEmpty()
+                    val flagNames = flagsColumnValue.split(',').filter { it.isNotEmpty() }.toMutableSet()
+                    val changed = if (set) flagNames.add(flag.name) else flagNames.remove(flag.name)
+                    if (changed) {
+                        updatedFlagsColumnValues[cursor.getLong(0)] = flagNames.joinToString(separator = ",")
+                    }
+                }
+            }
+
+            for ((messageId, flagsColumnValue) in updatedFlagsColumnValues) {
+                val contentValues = ContentValues().apply {
+                    put("flags", flagsColumnValue)
+                }
+                update("messages", contentValues, "id = ?", arrayOf(messageId.toString()))
+            }
+        }
+    }
+
+    private fun setSpecialFlags(messageIds: Collection<Long>, flag: Flag, set: Boolean) {
+        val columnName = flag.columnName ?: error("Unsupported flag: $flag")
         val columnValue = if (set) 1 else 0
 
         val contentValues = ContentValues().apply {
@@ -45,4 +131,14 @@ internal class FlagMessageOperations(private val lockableDatabase: LockableDatab
     private fun rebuildFlagsColumnValue(messageIds: Collection<Long>, flag: Flag, set: Boolean) {
         throw UnsupportedOperationException("not implemented")
     }
+
+    private val Flag.columnName: String?
+        get() = when (this) {
+            Flag.DELETED -> "deleted"
+            Flag.SEEN -> "read"
+            Flag.FLAGGED -> "flagged"
+            Flag.ANSWERED -> "answered"
+            Flag.FORWARDED -> "forwarded"
+            else -> null
+        }
 }
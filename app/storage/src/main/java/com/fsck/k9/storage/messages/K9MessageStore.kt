@@ -35,6 +35,11 @@ class K9MessageStore(private val localStore: LocalStore) : MessageStore {
         localStore.notifyChange()
     }
 
+    override fun setMessageFlags(folderId: Long, messageFlags: Map<String, Set<Flag>>, flags: Set<Flag>) {
+        flagMessageOperations.setMessageFlags(folderId, messageFlags, flags)
+        localStore.notifyChange()
+    }
+
     override fun getMessageServerId(messageId: Long): String {
         return retrieveMessageOperations.getMessageServerId(messageId)
     }
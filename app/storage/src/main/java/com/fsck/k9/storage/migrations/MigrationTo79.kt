@@ -0,0 +1,51 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+/**
+ * Add 'blob_hash' to 'message_parts' and the 'blobs' table that counts references to content-addressed files
+ */
+internal class MigrationTo79(private val db: SQLiteDatabase) {
+    fun createBlobStore() {
+        db.execSQL("ALTER TABLE message_parts ADD blob_hash TEXT")
+
+        db.execSQL("DROP TABLE IF EXISTS blobs")
+        db.execSQL("CREATE TABLE blobs (hash TEXT PRIMARY KEY NOT NULL, ref_count INTEGER NOT NULL DEFAULT 0)")
+
+        db.execSQL("DROP INDEX IF EXISTS blobs_ref_count")
+        db.execSQL("CREATE INDEX IF NOT EXISTS blobs_ref_count ON blobs (ref_count)")
+
+        db.execSQL("DROP TRIGGER IF EXISTS add_blob_reference")
+        db.execSQL(
+            "CREATE TRIGGER add_blob_reference " +
+                "AFTER INSERT ON message_parts " +
+                "WHEN NEW.blob_hash IS NOT NULL " +
+                "BEGIN " +
+                "INSERT OR IGNORE INTO blobs (hash) VALUES (NEW.blob_hash); " +
+                "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.blob_hash; " +
+                "END"
+        )
+
+        db.execSQL("DROP TRIGGER IF EXISTS remove_blob_reference")
+        db.execSQL(
+            "CREATE TRIGGER remove_blob_reference " +
+                "AFTER DELETE ON message_parts " +
+                "WHEN OLD.blob_hash IS NOT NULL " +
+                "BEGIN " +
+                "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.blob_hash; " +
+                "END"
+        )
+
+        db.execSQL("DROP TRIGGER IF EXISTS update_blob_reference")
+        db.execSQL(
+            "CREATE TRIGGER update_blob_reference " +
+                "AFTER UPDATE OF blob_hash ON message_parts " +
+                "WHEN OLD.blob_hash IS NOT NEW.blob_hash " +
+                "BEGIN " +
+                "UPDATE blobs SET ref_count = ref_count - 1 WHERE hash = OLD.blob_hash; " +
+                "INSERT OR IGNORE INTO blobs (hash) SELECT NEW.blob_hash WHERE NEW.blob_hash IS NOT NULL; " +
+                "UPDATE blobs SET ref_count = ref_count + 1 WHERE hash = NEW.blob_hash; " +
+                "END"
+        )
+    }
+}
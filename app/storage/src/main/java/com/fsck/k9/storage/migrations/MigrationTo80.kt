@@ -0,0 +1,25 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+/**
+ * Queue text parts stored in the database so they are compressed in the background.
+ *
+ * Only the IDs are collected here. Compressing the data of all parts would make this migration take too long.
+ */
+internal class MigrationTo80(private val db: SQLiteDatabase) {
+    fun queueTextPartsForCompression() {
+        db.execSQL("DROP TABLE IF EXISTS compression_queue")
+        db.execSQL("CREATE TABLE compression_queue (message_part_id INTEGER PRIMARY KEY)")
+
+        db.execSQL(
+            "INSERT INTO compression_queue (message_part_id) " +
+                "SELECT id FROM message_parts " +
+                "WHERE data_location = $DATA_LOCATION_IN_DATABASE AND mime_type LIKE 'text/%'"
+        )
+    }
+
+    companion object {
+        private const val DATA_LOCATION_IN_DATABASE = 1
+    }
+}
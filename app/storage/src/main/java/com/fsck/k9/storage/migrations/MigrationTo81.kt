@@ -0,0 +1,18 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+/**
+ * Add 'fulltext_queue' containing the messages that still need to be added to the search index
+ */
+internal class MigrationTo81(private val db: SQLiteDatabase) {
+    fun createFulltextQueue() {
+        db.execSQL("DROP TABLE IF EXISTS fulltext_queue")
+        db.execSQL(
+            "CREATE TABLE fulltext_queue (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "message_id INTEGER NOT NULL UNIQUE" +
+                ")"
+        )
+    }
+}
@@ -53,4 +53,44 @@ class FlagMessageOperationsTest : RobolectricTest() {
         assertThat(otherMessages).hasSize(1)
         assertThat(otherMessages.all { it.read == 0 }).isTrue()
     }
+
+    @Test
+    fun `set flags of messages by server ID`() {
+        sqliteDatabase.createMessage(folderId = 1, uid = "uid1", read = false, flagged = true)
+        sqliteDatabase.createMessage(folderId = 1, uid = "uid2", read = true, flagged = true)
+        sqliteDatabase.createMessage(folderId = 1, uid = "uid3", read = false, flagged = false)
+        sqliteDatabase.createMessage(folderId = 2, uid = "uid1", read = false, flagged = false)
+        val messageFlags = mapOf(
+            "uid1" to setOf(Flag.SEEN),
+            "uid2" to emptySet(),
+            "uid3" to setOf(Flag.SEEN, Flag.FLAGGED)
+        )
+
+        flagMessageOperations.setMessageFlags(folderId = 1, messageFlags, setOf(Flag.SEEN, Flag.FLAGGED))
+
+        val messages = sqliteDatabase.readMessages().associateBy { "${it.folderId}:${it.uid}" }
+        assertThat(messages.getValue("1:uid1").read).isEqualTo(1)
+        assertThat(messages.getValue("1:uid1").flagged).isEqualTo(0)
+        assertThat(messages.getValue("1:uid2").read).isEqualTo(0)
+        assertThat(messages.getValue("1:uid2").flagged).isEqualTo(0)
+        assertThat(messages.getValue("1:uid3").read).isEqualTo(1)
+        assertThat(messages.getValue("1:uid3").flagged).isEqualTo(1)
+        assertThat(messages.getValue("2:uid1").read).isEqualTo(0)
+    }
+
+    @Test
+    fun `set flag stored in flags column by server ID`() {
+        sqliteDatabase.createMessage(folderId = 1, uid = "uid1", flags = "X_DOWNLOADED_FULL")
+        sqliteDatabase.createMessage(folderId = 1, uid = "uid2", flags = "X_DOWNLOADED_FULL,DRAFT,\$JUNK")
+        val messageFlags = mapOf(
+            "uid1" to setOf(Flag.DRAFT),
+            "uid2" to emptySet()
+        )
+
+        flagMessageOperations.setMessageFlags(folderId = 1, messageFlags, setOf(Flag.DRAFT))
+
+        val messages = sqliteDatabase.readMessages().associateBy { it.uid }
+        assertThat(messages.getValue("uid1").flags).isEqualTo("X_DOWNLOADED_FULL,DRAFT")
+        assertThat(messages.getValue("uid2").flags).isEqualTo("X_DOWNLOADED_FULL,\$JUNK")
+    }
 }
@@ -81,6 +81,7 @@ public class AccountSetupIncoming extends K9Activity implements OnClickListener
     private int mCurrentAuthTypeViewPosition;
     private CheckBox mImapAutoDetectNamespaceView;
     private TextInputEditText mImapPathPrefixView;
+    private TextInputEditText mImapMaxConnectionsView;
     private TextInputEditText mWebdavPathPrefixView;
     private TextInputEditText mWebdavAuthPathView;
     private TextInputEditText mWebdavMailboxPathView;
@@ -132,6 +133,7 @@ public class AccountSetupIncoming extends K9Activity implements OnClickListener
         mAuthTypeView = findViewById(R.id.account_auth_type);
         mImapAutoDetectNamespaceView = findViewById(R.id.imap_autodetect_namespace);
         mImapPathPrefixView = findViewById(R.id.imap_path_prefix);
+        mImapMaxConnectionsView = findViewById(R.id.imap_max_connections);
         mWebdavPathPrefixView = findViewById(R.id.webdav_path_prefix);
         mWebdavAuthPathView = findViewById(R.id.webdav_auth_path);
         mWebdavMailboxPathView = findViewById(R.id.webdav_mailbox_path);
@@ -225,6 +227,11 @@ public class AccountSetupIncoming extends K9Activity implements OnClickListener
                     mImapPathPrefixView.setText(pathPrefix);
                 }
 
+                Integer maxConnections = ImapStoreSettings.getMaxConnections(settings);
+                if (maxConnections != null) {
+                    mImapMaxConnectionsView.setText(String.valueOf(maxConnections));
+                }
+
                 findViewById(R.id.webdav_advanced_header).setVisibility(View.GONE);
                 findViewById(R.id.webdav_mailbox_alias_section).setVisibility(View.GONE);
                 findViewById(R.id.webdav_owa_path_section).setVisibility(View.GONE);
@@ -593,7 +600,8 @@ public class AccountSetupIncoming extends K9Activity implements OnClickListener
             if (mStoreType.equals(Protocols.IMAP)) {
                 boolean autoDetectNamespace = mImapAutoDetectNamespaceView.isChecked();
                 String pathPrefix = mImapPathPrefixView.getText().toString();
-                extra = ImapStoreSettings.createExtra(autoDetectNamespace, pathPrefix);
+                Integer maxConnections = getImapMaxConnections();
+                extra = ImapStoreSettings.createExtra(autoDetectNamespace, pathPrefix, maxConnections);
             } else if (mStoreType.equals(Protocols.WEBDAV)) {
                 String path = mWebdavPathPrefixView.getText().toString();
                 String authPath = mWebdavAuthPathView.getText().toString();
@@ -672,4 +680,13 @@ public class AccountSetupIncoming extends K9Activity implements OnClickListener
         ConnectionSecurityHolder holder = (ConnectionSecurityHolder) mSecurityTypeView.getSelectedItem();
         return holder.connectionSecurity;
     }
+
+    private Integer getImapMaxConnections() {
+        try {
+            int maxConnections = Integer.parseInt(mImapMaxConnectionsView.getText().toString());
+            return maxConnections > 0 ? maxConnections : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
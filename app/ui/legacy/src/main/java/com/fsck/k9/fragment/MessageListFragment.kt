@@ -102,6 +102,7 @@ class MessageListFragment :
     private var selected: MutableSet<Long> = HashSet()
     private var actionMode: ActionMode? = null
     private var hasConnectivity: Boolean? = null
+    private var isSearchIndexWarningShown = false
 
     /**
      * Relevant messages for the current context when we have to remember the chosen messages
@@ -1460,6 +1461,11 @@ class MessageListFragment :
 
         fragmentListener.updateMenu()
 
+        if (messageListInfo.isSearchIndexIncomplete && !isSearchIndexWarningShown) {
+            isSearchIndexWarningShown = true
+            Toast.makeText(activity, R.string.search_index_incomplete, Toast.LENGTH_LONG).show()
+        }
+
         currentFolder?.let { currentFolder ->
             currentFolder.moreMessages = messageListInfo.hasMoreMessages
             updateFooterView()
@@ -1682,6 +1688,13 @@ class MessageListFragment :
             }
         }
 
+        override fun synchronizeMailboxCancelled(account: Account, folderId: Long) {
+            if (updateForMe(account, folderId)) {
+                handler.progress(false)
+                handler.folderLoading(folderId, false)
+            }
+        }
+
         override fun checkMailFinished(context: Context?, account: Account?) {
             handler.progress(false)
         }
@@ -8,6 +8,7 @@ import com.fsck.k9.Account
 import com.fsck.k9.Preferences
 import com.fsck.k9.controller.MessagingController
 import com.fsck.k9.helper.SingleLiveEvent
+import com.fsck.k9.job.K9JobManager
 import com.fsck.k9.mailstore.Folder
 import com.fsck.k9.mailstore.FolderDetails
 import com.fsck.k9.mailstore.FolderRepository
@@ -21,7 +22,8 @@ private const val NO_FOLDER_ID = 0L
 class FolderSettingsViewModel(
     private val preferences: Preferences,
     private val folderRepositoryManager: FolderRepositoryManager,
-    private val messagingController: MessagingController
+    private val messagingController: MessagingController,
+    private val jobManager: K9JobManager
 ) : ViewModel() {
     private val actionLiveData = SingleLiveEvent<Action>()
     private var folderSettingsLiveData: LiveData<FolderSettingsResult>? = null
@@ -57,7 +59,7 @@ class FolderSettingsViewModel(
 
             val folderSettingsData = FolderSettingsData(
                 folder = folderDetails.folder,
-                dataStore = FolderSettingsDataStore(folderRepository, folderDetails)
+                dataStore = FolderSettingsDataStore(folderRepository, jobManager, folderDetails)
             )
             emit(folderSettingsData)
         }
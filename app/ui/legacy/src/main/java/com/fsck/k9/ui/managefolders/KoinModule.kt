@@ -5,5 +5,12 @@ import org.koin.dsl.module
 
 val manageFoldersUiModule = module {
     viewModel { ManageFoldersViewModel(foldersLiveDataFactory = get()) }
-    viewModel { FolderSettingsViewModel(preferences = get(), folderRepositoryManager = get(), messagingController = get()) }
+    viewModel {
+        FolderSettingsViewModel(
+            preferences = get(),
+            folderRepositoryManager = get(),
+            messagingController = get(),
+            jobManager = get()
+        )
+    }
 }
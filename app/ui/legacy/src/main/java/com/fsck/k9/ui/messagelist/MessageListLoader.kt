@@ -47,7 +47,11 @@ class MessageListLoader(
 
         if (cursors.isEmpty()) {
             Timber.w("Couldn't get message list")
-            return MessageListInfo(messageListItems = emptyList(), hasMoreMessages = false)
+            return MessageListInfo(
+                messageListItems = emptyList(),
+                hasMoreMessages = false,
+                isSearchIndexIncomplete = false
+            )
         }
 
         val cursor: Cursor
@@ -68,8 +72,9 @@ class MessageListLoader(
             )
         }
         val hasMoreMessages = loadHasMoreMessages(accounts, config.search.folderIds)
+        val isSearchIndexIncomplete = loadIsSearchIndexIncomplete(accounts, config.search)
 
-        return MessageListInfo(messageListItems, hasMoreMessages)
+        return MessageListInfo(messageListItems, hasMoreMessages, isSearchIndexIncomplete)
     }
 
     @SuppressLint("Recycle")
@@ -205,6 +210,14 @@ class MessageListLoader(
         }
     }
 
+    private fun loadIsSearchIndexIncomplete(accounts: List<Account>, search: LocalSearch): Boolean {
+        val isMessageContentsSearch = search.leafSet.any { it.condition.field == SearchField.MESSAGE_CONTENTS }
+        return isMessageContentsSearch && accounts.any { account ->
+            val localStore = localStoreProvider.getInstance(account)
+            !localStore.fulltextIndexCoverage.isComplete
+        }
+    }
+
     companion object {
         private val SORT_COMPARATORS = mapOf(
             SortType.SORT_ATTACHMENT to AttachmentComparator(),
@@ -218,4 +231,8 @@ class MessageListLoader(
     }
 }
 
-data class MessageListInfo(val messageListItems: List<MessageListItem>, val hasMoreMessages: Boolean)
+data class MessageListInfo(
+    val messageListItems: List<MessageListItem>,
+    val hasMoreMessages: Boolean,
+    val isSearchIndexIncomplete: Boolean
+)
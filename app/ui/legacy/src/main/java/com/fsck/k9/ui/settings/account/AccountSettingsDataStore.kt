@@ -54,7 +54,12 @@ class AccountSettingsDataStore(
             "mark_message_as_read_on_view" -> account.isMarkMessageAsReadOnView = value
             "mark_message_as_read_on_delete" -> account.isMarkMessageAsReadOnDelete = value
             "account_sync_remote_deletetions" -> account.isSyncRemoteDeletions = value
-            "push_poll_on_connect" -> account.isPushPollOnConnect = value
+            "push_poll_on_connect" -> {
+                if (account.isPushPollOnConnect != value) {
+                    account.isPushPollOnConnect = value
+                    restartPushers()
+                }
+            }
             "always_show_cc_bcc" -> account.isAlwaysShowCcBcc = value
             "message_read_receipt" -> account.isMessageReadReceipt = value
             "default_quoted_text_shown" -> account.isDefaultQuotedTextShown = value
@@ -176,8 +181,17 @@ class AccountSettingsDataStore(
             }
             "delete_policy" -> account.deletePolicy = Account.DeletePolicy.valueOf(value)
             "expunge_policy" -> account.expungePolicy = Account.Expunge.valueOf(value)
-            "max_push_folders" -> account.maxPushFolders = value.toInt()
-            "idle_refresh_period" -> account.idleRefreshMinutes = value.toInt()
+            "max_push_folders" -> {
+                if (account.setMaxPushFolders(value.toInt())) {
+                    restartPushers()
+                }
+            }
+            "idle_refresh_period" -> {
+                if (account.idleRefreshMinutes != value.toInt()) {
+                    account.idleRefreshMinutes = value.toInt()
+                    restartPushers()
+                }
+            }
             "message_format" -> account.messageFormat = Account.MessageFormat.valueOf(value)
             "quote_style" -> account.quoteStyle = Account.QuoteStyle.valueOf(value)
             "account_quote_prefix" -> account.quotePrefix = value
@@ -18,11 +18,27 @@ interface Backend {
     val isPushCapable: Boolean
     val isDeleteMoveToTrash: Boolean
 
+    /**
+     * The number of folders that may be synchronized at the same time.
+     */
+    val maxConcurrentSyncs: Int
+
     @Throws(MessagingException::class)
     fun refreshFolderList()
 
-    // TODO: Add a way to cancel the sync process
-    fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener)
+    /**
+     * Returns the subset of [folderServerIds] that might have changed on the server since they were last synchronized,
+     * or `null` if the backend can't tell and all folders have to be synchronized.
+     */
+    @Throws(MessagingException::class)
+    fun getChangedFolders(folderServerIds: List<String>): Set<String>?
+
+    /**
+     * Synchronizes [folder] with the server.
+     *
+     * The sync stops early with [SyncListener.syncCancelled] once [cancellationToken] has been cancelled.
+     */
+    fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener, cancellationToken: SyncCancellationToken)
 
     @Throws(MessagingException::class)
     fun downloadMessage(syncConfig: SyncConfig, folderServerId: String, messageServerId: String)
@@ -100,4 +116,6 @@ interface Backend {
 
     @Throws(MessagingException::class)
     fun checkOutgoingServerSettings()
+
+    fun createPusher(callback: BackendPusherCallback, pushConfig: PushConfig): BackendPusher
 }
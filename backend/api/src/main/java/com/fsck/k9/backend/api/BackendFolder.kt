@@ -11,6 +11,16 @@ interface BackendFolder {
 
     fun getMessageServerIds(): Set<String>
     fun getAllMessagesAndEffectiveDates(): Map<String, Long?>
+
+    /**
+     * Calls [action] for each message whose server ID is a number (e.g. an IMAP UID), in ascending order of that number.
+     * This includes messages that are marked as [Flag.DELETED] locally but haven't been removed from the server yet.
+     * Other server IDs are skipped.
+     *
+     * Unlike [getAllMessagesAndEffectiveDates] this doesn't need to hold all server IDs in memory at the same time.
+     */
+    fun forEachNumericMessageServerId(action: (messageServerId: Long, effectiveDate: Long?) -> Unit)
+
     fun destroyMessages(messageServerIds: List<String>)
     fun clearAllMessages()
     fun getLastUid(): Long?
@@ -21,8 +31,45 @@ interface BackendFolder {
     fun isMessagePresent(messageServerId: String): Boolean
     fun getMessageFlags(messageServerId: String): Set<Flag>
     fun setMessageFlag(messageServerId: String, flag: Flag, value: Boolean)
+
+    /**
+     * Updates the flags of many messages at once.
+     *
+     * For each message in [messageFlags] every flag in [flags] is set if the message's set contains it and cleared
+     * otherwise. Flags not in [flags] are left alone.
+     */
+    fun setMessageFlags(messageFlags: Map<String, Set<Flag>>, flags: Set<Flag>)
     fun savePartialMessage(message: Message)
     fun saveCompleteMessage(message: Message)
+
+    /**
+     * Saves [messages] like [savePartialMessage], but in a single transaction.
+     */
+    fun savePartialMessages(messages: List<Message>)
+
+    /**
+     * Saves [messages] like [saveCompleteMessage], but in a single transaction.
+     */
+    fun saveCompleteMessages(messages: List<Message>)
+
+    /**
+     * Controls whether new messages are threaded one by one when they are saved.
+     *
+     * Backends that can get the thread structure of a folder from the server disable this while saving many messages
+     * and then pass the structure to [saveThreadStructure].
+     */
+    fun setMessageThreadingEnabled(enabled: Boolean)
+
+    /**
+     * Sets the threads of the messages in this folder in bulk.
+     *
+     * [parentMessageServerIds] maps the server ID of each message to the server ID of its parent, or `null` for the
+     * root of a thread. Parents must come before their children. Messages that aren't in the local store are skipped,
+     * unless they are an ancestor of a stored message. Those get an empty placeholder that is filled in once the
+     * message is downloaded.
+     */
+    fun saveThreadStructure(parentMessageServerIds: Map<String, String?>)
+
     fun getOldestMessageDate(): Date?
     fun getFolderExtraString(name: String): String?
     fun setFolderExtraString(name: String, value: String?)
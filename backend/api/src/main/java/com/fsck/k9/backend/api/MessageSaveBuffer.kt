@@ -0,0 +1,107 @@
+package com.fsck.k9.backend.api
+
+import com.fsck.k9.mail.Message
+
+/**
+ * Write-behind buffer for downloaded messages.
+ *
+ * Saving every message in its own transaction makes the initial sync of a large folder spend most of its time
+ * committing transactions. This class collects messages and passes them to [BackendFolder.saveCompleteMessages] and
+ * [BackendFolder.savePartialMessages] in groups. A group is written once it contains [maxMessages] messages or
+ * [maxBytes] bytes, or when a message is added more than [maxDelayMillis] after the oldest buffered message. Callers
+ * must call [flush] when they're done adding messages.
+ *
+ * The [MessageSavedCallback] passed with a message is only invoked after the message has been written. So anything
+ * that expects to find the message in the local store, e.g. [SyncListener.syncNewMessage], belongs there.
+ *
+ * This class is not thread-safe.
+ */
+class MessageSaveBuffer @JvmOverloads constructor(
+    private val backendFolder: BackendFolder,
+    private val maxMessages: Int = DEFAULT_MAX_MESSAGES,
+    private val maxBytes: Long = DEFAULT_MAX_BYTES,
+    private val maxDelayMillis: Long = DEFAULT_MAX_DELAY_MILLIS,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private val completeMessages = mutableListOf<PendingMessage>()
+    private val partialMessages = mutableListOf<PendingMessage>()
+    private var bufferedBytes = 0L
+    private var oldestMessageTimestamp = 0L
+
+    val size: Int
+        get() = completeMessages.size + partialMessages.size
+
+    fun saveCompleteMessage(message: Message, callback: MessageSavedCallback?) {
+        add(completeMessages, message, callback)
+    }
+
+    fun savePartialMessage(message: Message, callback: MessageSavedCallback?) {
+        add(partialMessages, message, callback)
+    }
+
+    /**
+     * Writes all buffered messages and invokes their callbacks.
+     *
+     * If writing a group fails, none of its messages are saved and their callbacks aren't invoked. Saving a message
+     * consumes its temporary body files, so the group can't be retried message by message. The messages are missing
+     * from the local store and will be downloaded again by the next sync. The first exception is rethrown after the
+     * other group has been written.
+     */
+    fun flush() {
+        if (size == 0) return
+
+        val complete = completeMessages.toList()
+        val partial = partialMessages.toList()
+        completeMessages.clear()
+        partialMessages.clear()
+        bufferedBytes = 0L
+
+        val completeException = save(complete, backendFolder::saveCompleteMessages)
+        val partialException = save(partial, backendFolder::savePartialMessages)
+
+        val firstException = completeException ?: partialException
+        if (firstException != null) throw firstException
+    }
+
+    private fun add(buffer: MutableList<PendingMessage>, message: Message, callback: MessageSavedCallback?) {
+        val now = clock()
+        if (size == 0) {
+            oldestMessageTimestamp = now
+        }
+
+        buffer.add(PendingMessage(message, callback))
+        bufferedBytes += message.size.coerceAtLeast(0L)
+
+        if (size >= maxMessages || bufferedBytes >= maxBytes || now - oldestMessageTimestamp >= maxDelayMillis) {
+            flush()
+        }
+    }
+
+    private fun save(pendingMessages: List<PendingMessage>, saveMessages: (List<Message>) -> Unit): Exception? {
+        if (pendingMessages.isEmpty()) return null
+
+        try {
+            saveMessages(pendingMessages.map { it.message })
+        } catch (e: Exception) {
+            return e
+        }
+
+        for (pendingMessage in pendingMessages) {
+            pendingMessage.callback?.onMessageSaved(pendingMessage.message)
+        }
+
+        return null
+    }
+
+    private class PendingMessage(val message: Message, val callback: MessageSavedCallback?)
+
+    fun interface MessageSavedCallback {
+        fun onMessageSaved(message: Message)
+    }
+
+    companion object {
+        const val DEFAULT_MAX_MESSAGES = 50
+        const val DEFAULT_MAX_BYTES = 2L * 1024 * 1024
+        const val DEFAULT_MAX_DELAY_MILLIS = 2000L
+    }
+}
@@ -0,0 +1,6 @@
+package com.fsck.k9.backend.api
+
+data class PushConfig(
+    val idleRefreshMinutes: Int,
+    val pollOnConnect: Boolean
+)
@@ -0,0 +1,25 @@
+package com.fsck.k9.backend.api
+
+/**
+ * Used to stop a running [Backend.sync] early.
+ *
+ * Backends check the token between batches of work and report a cancelled sync via [SyncListener.syncCancelled].
+ * Messages that were already saved are kept, so the next sync of the folder continues where the cancelled one stopped.
+ */
+class SyncCancellationToken {
+    @Volatile
+    var isCancelled: Boolean = false
+        private set
+
+    fun cancel() {
+        isCancelled = true
+    }
+
+    fun throwIfCancelled() {
+        if (isCancelled) {
+            throw SyncCancelledException()
+        }
+    }
+}
+
+class SyncCancelledException : RuntimeException("Synchronization was cancelled")
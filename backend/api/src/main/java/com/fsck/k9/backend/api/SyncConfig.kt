@@ -9,7 +9,9 @@ data class SyncConfig(
     val syncRemoteDeletions: Boolean,
     val maximumAutoDownloadMessageSize: Int,
     val defaultVisibleLimit: Int,
-    val syncFlags: Set<Flag>
+    val syncFlags: Set<Flag>,
+    val previewOnly: Boolean,
+    val useServerThreading: Boolean
 ) {
     enum class ExpungePolicy {
         IMMEDIATELY,
@@ -16,6 +16,7 @@ interface SyncListener {
 
     fun syncFinished(folderServerId: String)
     fun syncFailed(folderServerId: String, message: String, exception: Exception?)
+    fun syncCancelled(folderServerId: String)
 
     fun folderStatusChanged(folderServerId: String)
 }
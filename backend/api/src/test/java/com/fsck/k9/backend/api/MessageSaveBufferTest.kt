@@ -0,0 +1,121 @@
+package com.fsck.k9.backend.api
+
+import com.fsck.k9.mail.Message
+import com.google.common.truth.Truth.assertThat
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.doThrow
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Assert.fail
+import org.junit.Test
+
+class MessageSaveBufferTest {
+    private val backendFolder = mock<BackendFolder>()
+    private var now = 0L
+    private val savedMessages = mutableListOf<Message>()
+    private val callback = MessageSaveBuffer.MessageSavedCallback { savedMessages.add(it) }
+
+    @Test
+    fun `saveCompleteMessage() should not write before flush()`() {
+        val buffer = createBuffer()
+        val message = createMessage()
+
+        buffer.saveCompleteMessage(message, callback)
+
+        verify(backendFolder, never()).saveCompleteMessages(any())
+        assertThat(savedMessages).isEmpty()
+        assertThat(buffer.size).isEqualTo(1)
+    }
+
+    @Test
+    fun `flush() should write complete and partial messages in one call each and then invoke callbacks`() {
+        val buffer = createBuffer()
+        val completeMessages = listOf(createMessage(), createMessage())
+        val partialMessage = createMessage()
+        completeMessages.forEach { buffer.saveCompleteMessage(it, callback) }
+        buffer.savePartialMessage(partialMessage, callback)
+
+        buffer.flush()
+
+        verify(backendFolder).saveCompleteMessages(completeMessages)
+        verify(backendFolder).savePartialMessages(listOf(partialMessage))
+        assertThat(savedMessages).containsExactly(completeMessages[0], completeMessages[1], partialMessage).inOrder()
+        assertThat(buffer.size).isEqualTo(0)
+    }
+
+    @Test
+    fun `should flush when message limit is reached`() {
+        val buffer = createBuffer(maxMessages = 2)
+        val messages = listOf(createMessage(), createMessage())
+
+        messages.forEach { buffer.saveCompleteMessage(it, callback) }
+
+        verify(backendFolder).saveCompleteMessages(messages)
+        assertThat(savedMessages).isEqualTo(messages)
+    }
+
+    @Test
+    fun `should flush when byte limit is reached`() {
+        val buffer = createBuffer(maxBytes = 1000)
+        val smallMessage = createMessage(size = 400)
+        val largeMessage = createMessage(size = 600)
+
+        buffer.saveCompleteMessage(smallMessage, callback)
+        verify(backendFolder, never()).saveCompleteMessages(any())
+
+        buffer.saveCompleteMessage(largeMessage, callback)
+        verify(backendFolder).saveCompleteMessages(listOf(smallMessage, largeMessage))
+    }
+
+    @Test
+    fun `should flush when oldest buffered message exceeds max delay`() {
+        val buffer = createBuffer(maxDelayMillis = 100)
+        val firstMessage = createMessage()
+        val secondMessage = createMessage()
+
+        buffer.saveCompleteMessage(firstMessage, callback)
+        now += 100
+        buffer.saveCompleteMessage(secondMessage, callback)
+
+        verify(backendFolder).saveCompleteMessages(listOf(firstMessage, secondMessage))
+    }
+
+    @Test
+    fun `flush() with failing batch should save other batch and rethrow`() {
+        val buffer = createBuffer()
+        val batch = listOf(createMessage(), createMessage())
+        val partialMessage = createMessage()
+        val exception = IllegalStateException("broken message")
+        doThrow(exception).whenever(backendFolder).saveCompleteMessages(batch)
+        batch.forEach { buffer.saveCompleteMessage(it, callback) }
+        buffer.savePartialMessage(partialMessage, callback)
+
+        try {
+            buffer.flush()
+            fail("Expected exception")
+        } catch (e: IllegalStateException) {
+            assertThat(e).isSameInstanceAs(exception)
+        }
+
+        verify(backendFolder, times(1)).saveCompleteMessages(any())
+        verify(backendFolder).savePartialMessages(listOf(partialMessage))
+        assertThat(savedMessages).containsExactly(partialMessage)
+        assertThat(buffer.size).isEqualTo(0)
+    }
+
+    private fun createBuffer(
+        maxMessages: Int = 100,
+        maxBytes: Long = Long.MAX_VALUE,
+        maxDelayMillis: Long = Long.MAX_VALUE
+    ): MessageSaveBuffer {
+        return MessageSaveBuffer(backendFolder, maxMessages, maxBytes, maxDelayMillis) { now }
+    }
+
+    private fun createMessage(size: Long = 100): Message {
+        return mock { on { this.size } doReturn size }
+    }
+}
@@ -0,0 +1,82 @@
+package com.fsck.k9.backend.imap
+
+import com.fsck.k9.backend.api.BackendFolder
+import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.SyncListener
+import com.fsck.k9.mail.store.imap.FolderStatus
+import com.fsck.k9.mail.store.imap.ImapStore
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Finds folders that need to be synchronized by comparing the `STATUS` of each folder with the value recorded after
+ * the last successful sync.
+ *
+ * The status is only recorded once a sync that was started after retrieving it has finished successfully. That way a
+ * failed sync or changes happening during a sync are picked up the next time. The recorded value also contains the
+ * visible limit and the highest local UID, so clearing local messages or changing the number of messages to sync
+ * isn't mistaken for an unchanged folder.
+ *
+ * Flag changes only show up in `HIGHESTMODSEQ`. Folders on servers that don't support CONDSTORE are therefore always
+ * considered changed.
+ */
+internal class CommandGetChangedFolders(
+    private val backendStorage: BackendStorage,
+    private val imapStore: ImapStore
+) {
+    private val pendingFolderStatus = ConcurrentHashMap<String, FolderStatus>()
+
+    fun getChangedFolders(folderServerIds: List<String>): Set<String> {
+        val folderStatusMap = imapStore.getFolderStatus(folderServerIds)
+
+        return folderServerIds.filterTo(mutableSetOf()) { folderServerId ->
+            val folderStatus = folderStatusMap[folderServerId]
+            if (folderStatus?.highestModSeq == null) {
+                true
+            } else {
+                val backendFolder = backendStorage.getFolder(folderServerId)
+                val recordedStatus = backendFolder.getFolderExtraString(EXTRA_FOLDER_STATUS)
+                if (recordedStatus == serializeStatus(folderStatus, backendFolder)) {
+                    false
+                } else {
+                    pendingFolderStatus[folderServerId] = folderStatus
+                    true
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a [SyncListener] that records the status retrieved by [getChangedFolders] once the sync finished.
+     *
+     * Needs to be called right before the sync of [folderServerId] is started. Only a status that was retrieved
+     * before that point is recorded. A status retrieved while the sync is running is left for the next sync.
+     */
+    fun recordFolderStatusOnSuccess(folderServerId: String, listener: SyncListener): SyncListener {
+        val folderStatus = pendingFolderStatus.remove(folderServerId) ?: return listener
+        return StatusRecordingSyncListener(listener, folderServerId, folderStatus)
+    }
+
+    private fun serializeStatus(folderStatus: FolderStatus, backendFolder: BackendFolder): String {
+        val localState = "${backendFolder.visibleLimit} ${backendFolder.getLastUid()}"
+        return with(folderStatus) { "$messageCount $uidNext $unseenCount $highestModSeq $localState" }
+    }
+
+    private inner class StatusRecordingSyncListener(
+        private val listener: SyncListener,
+        private val syncFolderServerId: String,
+        private val folderStatus: FolderStatus
+    ) : SyncListener by listener {
+        override fun syncFinished(folderServerId: String) {
+            if (folderServerId == syncFolderServerId) {
+                val backendFolder = backendStorage.getFolder(folderServerId)
+                backendFolder.setFolderExtraString(EXTRA_FOLDER_STATUS, serializeStatus(folderStatus, backendFolder))
+            }
+
+            listener.syncFinished(folderServerId)
+        }
+    }
+
+    companion object {
+        private const val EXTRA_FOLDER_STATUS = "imapFolderStatus"
+    }
+}
@@ -1,7 +1,11 @@
 package com.fsck.k9.backend.imap
 
 import com.fsck.k9.backend.api.Backend
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
 import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.backend.api.SyncCancellationToken
 import com.fsck.k9.backend.api.SyncConfig
 import com.fsck.k9.backend.api.SyncListener
 import com.fsck.k9.mail.BodyFactory
@@ -14,7 +18,7 @@ import com.fsck.k9.mail.store.imap.ImapStore
 import com.fsck.k9.mail.transport.smtp.SmtpTransport
 
 class ImapBackend(
-    accountName: String,
+    private val accountName: String,
     backendStorage: BackendStorage,
     private val imapStore: ImapStore,
     private val powerManager: PowerManager,
@@ -22,6 +26,7 @@ class ImapBackend(
 ) : Backend {
     private val imapSync = ImapSync(accountName, backendStorage, imapStore)
     private val commandRefreshFolderList = CommandRefreshFolderList(backendStorage, imapStore)
+    private val commandGetChangedFolders = CommandGetChangedFolders(backendStorage, imapStore)
     private val commandSetFlag = CommandSetFlag(imapStore)
     private val commandMarkAllAsRead = CommandMarkAllAsRead(imapStore)
     private val commandExpunge = CommandExpunge(imapStore)
@@ -42,12 +47,26 @@ class ImapBackend(
     override val isPushCapable = true
     override val isDeleteMoveToTrash = true
 
+    // Leave one connection for operations the user is waiting for
+    override val maxConcurrentSyncs: Int
+        get() = (imapStore.maxConnections - 1).coerceAtLeast(1)
+
     override fun refreshFolderList() {
         commandRefreshFolderList.refreshFolderList()
     }
 
-    override fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener) {
-        imapSync.sync(folder, syncConfig, listener)
+    override fun getChangedFolders(folderServerIds: List<String>): Set<String>? {
+        return commandGetChangedFolders.getChangedFolders(folderServerIds)
+    }
+
+    override fun sync(
+        folder: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
+        val statusRecordingListener = commandGetChangedFolders.recordFolderStatusOnSuccess(folder, listener)
+        imapSync.sync(folder, syncConfig, statusRecordingListener, cancellationToken)
     }
 
     override fun downloadMessage(syncConfig: SyncConfig, folderServerId: String, messageServerId: String) {
@@ -152,4 +171,8 @@ class ImapBackend(
     override fun checkOutgoingServerSettings() {
         smtpTransport.checkSettings()
     }
+
+    override fun createPusher(callback: BackendPusherCallback, pushConfig: PushConfig): BackendPusher {
+        return ImapBackendPusher(accountName, imapStore, powerManager, callback, pushConfig)
+    }
 }
@@ -0,0 +1,91 @@
+package com.fsck.k9.backend.imap
+
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.mail.power.PowerManager
+import com.fsck.k9.mail.store.imap.ImapStore
+import java.util.Timer
+import timber.log.Timber
+
+/**
+ * Manages one [ImapFolderPusher] (and with it one dedicated IMAP connection) per push-enabled folder.
+ */
+internal class ImapBackendPusher(
+    private val accountName: String,
+    private val folderPusherFactory: (folderServerId: String, refreshTimer: Timer) -> ImapFolderPusher
+) : BackendPusher {
+    constructor(
+        accountName: String,
+        imapStore: ImapStore,
+        powerManager: PowerManager,
+        callback: BackendPusherCallback,
+        pushConfig: PushConfig
+    ) : this(
+        accountName,
+        { folderServerId, refreshTimer ->
+            ImapFolderPusher(
+                accountName,
+                imapStore,
+                powerManager,
+                refreshTimer,
+                callback,
+                folderServerId,
+                pushConfig.idleRefreshMinutes * 60 * 1000L,
+                pushConfig.pollOnConnect
+            )
+        }
+    )
+
+    private val lock = Any()
+    private val pushFolders = mutableMapOf<String, ImapFolderPusher>()
+    private var refreshTimer: Timer? = null
+    private var started = false
+
+    override fun start() {
+        synchronized(lock) {
+            if (started) return
+
+            Timber.v("ImapBackendPusher.start() for %s", accountName)
+            started = true
+            refreshTimer = Timer("ImapBackendPusher-$accountName", true)
+        }
+    }
+
+    override fun updateFolders(folderServerIds: Collection<String>) {
+        Timber.v("ImapBackendPusher.updateFolders(): %s", folderServerIds)
+
+        synchronized(lock) {
+            check(started) { "Pusher not started" }
+
+            val stopFolderServerIds = pushFolders.keys - folderServerIds
+            for (folderServerId in stopFolderServerIds) {
+                pushFolders.remove(folderServerId)?.stop()
+            }
+
+            for (folderServerId in folderServerIds) {
+                if (folderServerId !in pushFolders) {
+                    val folderPusher = folderPusherFactory(folderServerId, refreshTimer!!)
+                    pushFolders[folderServerId] = folderPusher
+                    folderPusher.start()
+                }
+            }
+        }
+    }
+
+    override fun stop() {
+        synchronized(lock) {
+            if (!started) return
+
+            Timber.v("ImapBackendPusher.stop() for %s", accountName)
+            for (folderPusher in pushFolders.values) {
+                folderPusher.stop()
+            }
+            pushFolders.clear()
+
+            refreshTimer?.cancel()
+            refreshTimer = null
+            started = false
+        }
+    }
+}
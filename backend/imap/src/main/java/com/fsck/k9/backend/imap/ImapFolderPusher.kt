@@ -0,0 +1,109 @@
+package com.fsck.k9.backend.imap
+
+import com.fsck.k9.backend.api.BackendPusherCallback
+import com.fsck.k9.mail.power.PowerManager
+import com.fsck.k9.mail.store.imap.IdleResult
+import com.fsck.k9.mail.store.imap.ImapFolderIdler
+import com.fsck.k9.mail.store.imap.ImapStore
+import java.util.Timer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.schedule
+import kotlin.concurrent.thread
+import timber.log.Timber
+
+private const val MIN_RETRY_DELAY_MS = 5 * 1000L
+private const val MAX_RETRY_DELAY_MS = 30 * 60 * 1000L
+private const val WAKE_LOCK_TIMEOUT_MS = 60 * 1000L
+
+/**
+ * Listens for changes to a single folder using IDLE and reports them via [BackendPusherCallback.onPushEvent].
+ *
+ * Connection errors are retried with exponential backoff until [stop] is called. With [pollOnConnect] a push event is
+ * also reported when starting and after reconnecting, so changes made while not connected are picked up.
+ */
+internal class ImapFolderPusher(
+    private val accountName: String,
+    imapStore: ImapStore,
+    powerManager: PowerManager,
+    private val refreshTimer: Timer,
+    private val callback: BackendPusherCallback,
+    private val folderServerId: String,
+    private val idleRefreshTimeoutMs: Long,
+    private val pollOnConnect: Boolean
+) {
+    private val logTag = "ImapFolderPusher[$accountName:$folderServerId]"
+    private val wakeLock = powerManager.newWakeLock(logTag).apply {
+        setReferenceCounted(false)
+    }
+    private val idler = ImapFolderIdler(imapStore, wakeLock, folderServerId, idleRefreshTimeoutMs)
+    private val stopLatch = CountDownLatch(1)
+
+    @Volatile
+    private var stopped = false
+
+    fun start() {
+        thread(name = logTag) {
+            run()
+        }
+    }
+
+    fun stop() {
+        Timber.v("%s.stop()", logTag)
+        stopped = true
+        stopLatch.countDown()
+        idler.stop()
+    }
+
+    private fun run() {
+        Timber.v("%s: Starting", logTag)
+
+        var retryDelayMs = MIN_RETRY_DELAY_MS
+        var syncRequired = pollOnConnect
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS)
+        try {
+            while (!stopped) {
+                if (syncRequired) {
+                    syncRequired = false
+                    callback.onPushEvent(folderServerId)
+                }
+
+                val refreshTask = refreshTimer.schedule(idleRefreshTimeoutMs, idleRefreshTimeoutMs) {
+                    idler.refresh()
+                }
+
+                try {
+                    when (idler.idle()) {
+                        IdleResult.SYNC -> callback.onPushEvent(folderServerId)
+                        IdleResult.STOPPED -> Unit
+                        IdleResult.NOT_SUPPORTED -> {
+                            stopped = true
+                            callback.onPushNotSupported()
+                        }
+                    }
+
+                    retryDelayMs = MIN_RETRY_DELAY_MS
+                } catch (e: Exception) {
+                    if (stopped) break
+
+                    Timber.w(e, "%s: Error while idling. Retrying in %d ms", logTag, retryDelayMs)
+                    callback.onPushError(e)
+
+                    wakeLock.release()
+                    stopLatch.await(retryDelayMs, TimeUnit.MILLISECONDS)
+                    wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS)
+
+                    retryDelayMs = (retryDelayMs * 2).coerceAtMost(MAX_RETRY_DELAY_MS)
+                    syncRequired = pollOnConnect
+                } finally {
+                    refreshTask.cancel()
+                }
+            }
+        } finally {
+            idler.stop()
+            wakeLock.release()
+        }
+
+        Timber.v("%s: Stopped", logTag)
+    }
+}
@@ -3,7 +3,10 @@ package com.fsck.k9.backend.imap
 import com.fsck.k9.backend.api.BackendFolder
 import com.fsck.k9.backend.api.BackendFolder.MoreMessages
 import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.MessageSaveBuffer
 import com.fsck.k9.backend.api.SyncConfig
+import com.fsck.k9.backend.api.SyncCancellationToken
+import com.fsck.k9.backend.api.SyncCancelledException
 import com.fsck.k9.backend.api.SyncConfig.ExpungePolicy
 import com.fsck.k9.backend.api.SyncListener
 import com.fsck.k9.helper.ExceptionHelper
@@ -13,11 +16,11 @@ import com.fsck.k9.mail.DefaultBodyFactory
 import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Flag
 import com.fsck.k9.mail.MessageRetrievalListener
+import com.fsck.k9.mail.MessagingException
 import com.fsck.k9.mail.internet.MessageExtractor
 import com.fsck.k9.mail.store.imap.ImapFolder
 import com.fsck.k9.mail.store.imap.ImapMessage
 import com.fsck.k9.mail.store.imap.ImapStore
-import java.util.Collections
 import java.util.Date
 import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.max
@@ -28,11 +31,21 @@ internal class ImapSync(
     private val backendStorage: BackendStorage,
     private val imapStore: ImapStore
 ) {
-    fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener) {
-        synchronizeMailboxSynchronous(folder, syncConfig, listener)
+    fun sync(
+        folder: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
+        synchronizeMailboxSynchronous(folder, syncConfig, listener, cancellationToken)
     }
 
-    private fun synchronizeMailboxSynchronous(folder: String, syncConfig: SyncConfig, listener: SyncListener) {
+    private fun synchronizeMailboxSynchronous(
+        folder: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
         Timber.i("Synchronizing folder %s:%s", accountName, folder)
 
         var remoteFolder: ImapFolder? = null
@@ -81,6 +94,7 @@ internal class ImapSync(
 
             val uidValidity = remoteFolder.getUidValidity()
             val oldUidValidity = backendFolder.getFolderExtraNumber(EXTRA_UID_VALIDITY)
+            var uidValidityChanged = false
             if (oldUidValidity == null && uidValidity != null) {
                 Timber.d("SYNC: Saving UIDVALIDITY for %s", folder)
                 backendFolder.setFolderExtraNumber(EXTRA_UID_VALIDITY, uidValidity)
@@ -88,15 +102,26 @@ internal class ImapSync(
                 Timber.d("SYNC: UIDVALIDITY for %s changed; clearing local message cache", folder)
                 backendFolder.clearAllMessages()
                 backendFolder.setFolderExtraNumber(EXTRA_UID_VALIDITY, uidValidity!!)
+                uidValidityChanged = true
             }
 
             /*
-             * Get the message list from the local store and create an index of
-             * the uids within the list.
+             * If the server supports CONDSTORE we only need to ask for flag changes that happened after the last
+             * successful sync. A stored mod-sequence is only valid as long as UIDVALIDITY didn't change.
              */
+            val highestModSeq = if (remoteFolder.supportsModSeq) remoteFolder.getHighestModSeq() else null
+            val lastHighestModSeq = if (highestModSeq != null && !uidValidityChanged) {
+                backendFolder.getFolderExtraNumber(EXTRA_HIGHEST_MOD_SEQ)
+            } else {
+                null
+            }
+            val flagSyncModSeq = if (lastHighestModSeq != null && lastHighestModSeq <= highestModSeq!!) {
+                FlagSyncModSeq(changedSince = lastHighestModSeq, highestModSeq = highestModSeq)
+            } else {
+                null
+            }
 
             val lastUid = backendFolder.getLastUid()
-            var localUidMap: Map<String, Long?>? = backendFolder.getAllMessagesAndEffectiveDates()
 
             /*
              * Get the remote message count.
@@ -108,15 +133,13 @@ internal class ImapSync(
                 visibleLimit = syncConfig.defaultVisibleLimit
             }
 
-            val remoteMessages = mutableListOf<ImapMessage>()
-            val remoteUidMap = mutableMapOf<String, ImapMessage>()
-
             Timber.v("SYNC: Remote message count for folder %s is %d", folder, remoteMessageCount)
 
             val earliestDate = syncConfig.earliestPollDate
             val earliestTimestamp = earliestDate?.time ?: 0L
 
             var remoteStart = 1
+            var remoteUids = LongArray(0)
             if (remoteMessageCount > 0) {
                 /* Message numbers start at 1.  */
                 remoteStart = if (visibleLimit > 0) {
@@ -130,71 +153,83 @@ internal class ImapSync(
                     remoteStart, remoteMessageCount, folder
                 )
 
-                val headerProgress = AtomicInteger(0)
                 listener.syncHeadersStarted(folder)
 
-                val remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteMessageCount, earliestDate, null)
-
-                val messageCount = remoteMessageArray.size
+                remoteUids = remoteFolder.getMessageUids(remoteStart, remoteMessageCount, earliestDate)
 
-                for (thisMess in remoteMessageArray) {
-                    headerProgress.incrementAndGet()
-                    listener.syncHeadersProgress(folder, headerProgress.get(), messageCount)
+                listener.syncHeadersProgress(folder, remoteUids.size, remoteUids.size)
+            } else if (remoteMessageCount < 0) {
+                throw Exception("Message count $remoteMessageCount for folder $folder")
+            }
 
-                    val localMessageTimestamp = localUidMap!![thisMess.uid]
-                    if (localMessageTimestamp == null || localMessageTimestamp >= earliestTimestamp) {
-                        remoteMessages.add(thisMess)
-                        remoteUidMap[thisMess.uid] = thisMess
-                    }
-                }
+            /*
+             * Compare the UIDs on the server with the UIDs in the local store. Message objects are only created later
+             * for the messages that actually need to be fetched.
+             */
+            val reconciliation = UidReconciliation.reconcile(backendFolder, remoteUids, earliestTimestamp)
+            val remoteMessagesToSync = reconciliation.newUids.size + reconciliation.existingUids.size
 
-                Timber.v("SYNC: Got %d messages for folder %s", remoteUidMap.size, folder)
+            if (remoteMessageCount > 0) {
+                Timber.v("SYNC: Got %d messages for folder %s", remoteMessagesToSync, folder)
 
-                listener.syncHeadersFinished(folder, headerProgress.get(), remoteUidMap.size)
-            } else if (remoteMessageCount < 0) {
-                throw Exception("Message count $remoteMessageCount for folder $folder")
+                listener.syncHeadersFinished(folder, remoteUids.size, remoteMessagesToSync)
             }
 
             /*
              * Remove any messages that are in the local store but no longer on the remote store or are too old
              */
             var moreMessages = backendFolder.getMoreMessages()
-            if (syncConfig.syncRemoteDeletions) {
-                val destroyMessageUids = mutableListOf<String>()
-                for (localMessageUid in localUidMap!!.keys) {
-                    if (remoteUidMap[localMessageUid] == null) {
-                        destroyMessageUids.add(localMessageUid)
-                    }
-                }
-
-                if (destroyMessageUids.isNotEmpty()) {
-                    moreMessages = MoreMessages.UNKNOWN
-                    backendFolder.destroyMessages(destroyMessageUids)
-                    for (uid in destroyMessageUids) {
-                        listener.syncRemovedMessage(folder, uid)
-                    }
-                }
+            if (syncConfig.syncRemoteDeletions && reconciliation.localOnlyUids.isNotEmpty()) {
+                moreMessages = MoreMessages.UNKNOWN
+                destroyLocalMessages(backendFolder, folder, reconciliation.localOnlyUids, listener)
             }
 
-            @Suppress("UNUSED_VALUE") // free memory early? (better break up the method!)
-            localUidMap = null
+            cancellationToken.throwIfCancelled()
 
             if (moreMessages === MoreMessages.UNKNOWN) {
                 updateMoreMessages(remoteFolder, backendFolder, earliestDate, remoteStart)
             }
 
+            /*
+             * On the initial sync of a folder, get the thread structure from the server in one command instead of
+             * threading every message while it is saved. Messages added later are threaded one by one again.
+             */
+            val threadStructure = if (syncConfig.useServerThreading && lastUid == null &&
+                reconciliation.newUids.isNotEmpty() && remoteFolder.supportsThreadReferences
+            ) {
+                fetchThreadStructure(remoteFolder, reconciliation.newUids, backendFolder.visibleLimit)
+            } else {
+                null
+            }
+
             /*
              * Now we download the actual content of messages.
              */
-            val newMessages = downloadMessages(
-                syncConfig,
-                remoteFolder,
-                backendFolder,
-                remoteMessages,
-                false,
-                lastUid,
-                listener
-            )
+            if (threadStructure != null) {
+                backendFolder.setMessageThreadingEnabled(false)
+            }
+            val newMessages = try {
+                downloadMessages(
+                    syncConfig,
+                    remoteFolder,
+                    backendFolder,
+                    reconciliation.newUids,
+                    reconciliation.existingUids,
+                    lastUid,
+                    listener,
+                    cancellationToken,
+                    flagSyncModSeq
+                )
+            } finally {
+                if (threadStructure != null) {
+                    backendFolder.setMessageThreadingEnabled(true)
+                    backendFolder.saveThreadStructure(threadStructure)
+                }
+            }
+
+            if (highestModSeq != null) {
+                backendFolder.setFolderExtraNumber(EXTRA_HIGHEST_MOD_SEQ, highestModSeq)
+            }
 
             listener.folderStatusChanged(folder)
 
@@ -214,6 +249,11 @@ internal class ImapSync(
             listener.syncFinished(folder)
 
             Timber.i("Done synchronizing folder %s:%s", accountName, folder)
+        } catch (e: SyncCancelledException) {
+            Timber.i("Cancelled synchronizing folder %s:%s", accountName, folder)
+
+            // Don't update the last checked time so the folder is synchronized again soon
+            listener.syncCancelled(folder)
         } catch (e: AuthenticationFailedException) {
             listener.syncFailed(folder, "Authentication failure", e)
         } catch (e: Exception) {
@@ -246,16 +286,19 @@ internal class ImapSync(
         val remoteFolder = imapStore.getFolder(folderServerId)
         try {
             remoteFolder.open(ImapFolder.OPEN_MODE_RO)
-            val remoteMessage = remoteFolder.getMessage(messageServerId)
+            val uids = longArrayOf(messageServerId.toLong())
+            val noUids = LongArray(0)
+            val messagePresentLocally = backendFolder.isMessagePresent(messageServerId)
 
             downloadMessages(
                 syncConfig,
                 remoteFolder,
                 backendFolder,
-                listOf(remoteMessage),
-                false,
-                null,
-                SimpleSyncListener()
+                newUids = if (messagePresentLocally) noUids else uids,
+                existingUids = if (messagePresentLocally) uids else noUids,
+                lastUid = null,
+                listener = SimpleSyncListener(),
+                cancellationToken = SyncCancellationToken()
             )
         } finally {
             remoteFolder.close()
@@ -263,62 +306,61 @@ internal class ImapSync(
     }
 
     /**
-     * Fetches the messages described by inputMessages from the remote store and writes them to local storage.
+     * Fetches the messages with the given UIDs from the remote store and writes them to local storage.
      *
      * @param remoteFolder
      * The remote folder to download messages from.
      * @param backendFolder
      * The [BackendFolder] instance corresponding to the remote folder.
-     * @param inputMessages
-     * A list of messages objects that store the UIDs of which messages to download.
-     * @param flagSyncOnly
-     * Only flags will be fetched from the remote store if this is `true`.
+     * @param newUids
+     * UIDs of messages that are not in the local store yet, in ascending order.
+     * @param existingUids
+     * UIDs of messages that are in the local store. Their flags are refreshed, or they are downloaded again if no
+     * content was downloaded before.
+     * @param cancellationToken
+     * Checked before each pipelined `UID FETCH` window, between the download steps, before each large message, and
+     * between batches of flag updates.
+     * @param flagSyncModSeq
+     * If not `null` only flag changes after the stored mod-sequence are requested from the server.
      * @return The number of downloaded messages that are not flagged as [Flag.SEEN].
      */
     private fun downloadMessages(
         syncConfig: SyncConfig,
         remoteFolder: ImapFolder,
         backendFolder: BackendFolder,
-        inputMessages: List<ImapMessage>,
-        flagSyncOnly: Boolean,
+        newUids: LongArray,
+        existingUids: LongArray,
         lastUid: Long?,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken,
+        flagSyncModSeq: FlagSyncModSeq? = null
     ): Int {
         val folder = remoteFolder.serverId
 
-        val syncFlagMessages = mutableListOf<ImapMessage>()
-        var unsyncedMessages = mutableListOf<ImapMessage>()
+        val unsyncedUids = UidBuffer()
+        val syncFlagUids = UidBuffer()
         val newMessages = AtomicInteger(0)
 
-        val messages = inputMessages.toMutableList()
-        for (message in messages) {
-            evaluateMessageForDownload(
-                message,
-                backendFolder,
-                remoteFolder,
-                unsyncedMessages,
-                syncFlagMessages,
-                flagSyncOnly
-            )
+        for (uid in newUids) {
+            Timber.v("Message with uid %d has not yet been downloaded", uid)
+            unsyncedUids.add(uid)
+        }
+
+        for (uid in existingUids) {
+            evaluateLocalMessageForDownload(uid, backendFolder, unsyncedUids, syncFlagUids)
         }
 
         val progress = AtomicInteger(0)
-        val todo = unsyncedMessages.size + syncFlagMessages.size
+        val todo = unsyncedUids.size + syncFlagUids.size
         listener.syncProgress(folder, progress.get(), todo)
 
-        Timber.d("SYNC: Have %d unsynced messages", unsyncedMessages.size)
+        Timber.d("SYNC: Have %d unsynced messages", unsyncedUids.size)
 
-        messages.clear()
         val largeMessages = mutableListOf<ImapMessage>()
         val smallMessages = mutableListOf<ImapMessage>()
-        if (unsyncedMessages.isNotEmpty()) {
-            Collections.sort(unsyncedMessages, UidReverseComparator())
+        if (unsyncedUids.size > 0) {
             val visibleLimit = backendFolder.visibleLimit
-            val listSize = unsyncedMessages.size
-
-            if (visibleLimit in 1 until listSize) {
-                unsyncedMessages = unsyncedMessages.subList(0, visibleLimit)
-            }
+            val unsyncedMessages = createMessagesNewestFirst(remoteFolder, unsyncedUids.toArray(), visibleLimit)
 
             val fp = FetchProfile()
             fp.add(FetchProfile.Item.FLAGS)
@@ -326,6 +368,8 @@ internal class ImapSync(
 
             Timber.d("SYNC: About to fetch %d unsynced messages for folder %s", unsyncedMessages.size, folder)
 
+            cancellationToken.throwIfCancelled()
+
             fetchUnsyncedMessages(
                 syncConfig,
                 remoteFolder,
@@ -335,7 +379,8 @@ internal class ImapSync(
                 progress,
                 todo,
                 fp,
-                listener
+                listener,
+                cancellationToken
             )
 
             Timber.d("SYNC: Synced unsynced messages for folder %s", folder)
@@ -343,10 +388,10 @@ internal class ImapSync(
 
         Timber.d(
             "SYNC: Have %d large messages and %d small messages out of %d unsynced messages",
-            largeMessages.size, smallMessages.size, unsyncedMessages.size
+            largeMessages.size, smallMessages.size, unsyncedUids.size
         )
 
-        unsyncedMessages.clear()
+        cancellationToken.throwIfCancelled()
 
         /*
          * Grab the content of the small messages first. This is going to
@@ -368,10 +413,13 @@ internal class ImapSync(
             todo,
             fp,
             lastUid,
-            listener
+            listener,
+            cancellationToken
         )
         smallMessages.clear()
 
+        cancellationToken.throwIfCancelled()
+
         /*
          * Now do the large messages that require more round trips.
          */
@@ -387,56 +435,79 @@ internal class ImapSync(
             fp,
             lastUid,
             listener,
-            maxDownloadSize
+            cancellationToken,
+            maxDownloadSize,
+            syncConfig.previewOnly
         )
         largeMessages.clear()
 
+        cancellationToken.throwIfCancelled()
+
         /*
          * Refresh the flags for any messages in the local store that we didn't just
          * download.
          */
-        refreshLocalMessageFlags(syncConfig, remoteFolder, backendFolder, syncFlagMessages, progress, todo, listener)
+        refreshLocalMessageFlags(
+            syncConfig,
+            remoteFolder,
+            backendFolder,
+            syncFlagUids.toArray(),
+            progress,
+            todo,
+            listener,
+            cancellationToken,
+            flagSyncModSeq
+        )
 
         Timber.d("SYNC: Synced remote messages for folder %s, %d new messages", folder, newMessages.get())
 
         return newMessages.get()
     }
 
-    private fun evaluateMessageForDownload(
-        message: ImapMessage,
+    private fun evaluateLocalMessageForDownload(
+        uid: Long,
         backendFolder: BackendFolder,
-        remoteFolder: ImapFolder,
-        unsyncedMessages: MutableList<ImapMessage>,
-        syncFlagMessages: MutableList<ImapMessage>,
-        flagSyncOnly: Boolean
+        unsyncedUids: UidBuffer,
+        syncFlagUids: UidBuffer
     ) {
-        val messageServerId = message.uid
-        if (message.isSet(Flag.DELETED)) {
-            Timber.v("Message with uid %s is marked as deleted", messageServerId)
-            syncFlagMessages.add(message)
-            return
-        }
-
-        val messagePresentLocally = backendFolder.isMessagePresent(messageServerId)
-        if (!messagePresentLocally) {
-            if (!flagSyncOnly) {
-                Timber.v("Message with uid %s has not yet been downloaded", messageServerId)
-                unsyncedMessages.add(message)
-            }
-            return
-        }
-
-        val messageFlags = backendFolder.getMessageFlags(messageServerId)
+        val messageFlags = backendFolder.getMessageFlags(uid.toString())
         if (!messageFlags.contains(Flag.DELETED)) {
-            Timber.v("Message with uid %s is present in the local store", messageServerId)
+            Timber.v("Message with uid %d is present in the local store", uid)
             if (!messageFlags.contains(Flag.X_DOWNLOADED_FULL) && !messageFlags.contains(Flag.X_DOWNLOADED_PARTIAL)) {
-                Timber.v("Message with uid %s is not downloaded, even partially; trying again", messageServerId)
-                unsyncedMessages.add(message)
+                Timber.v("Message with uid %d is not downloaded, even partially; trying again", uid)
+                unsyncedUids.add(uid)
             } else {
-                syncFlagMessages.add(message)
+                syncFlagUids.add(uid)
             }
         } else {
-            Timber.v("Local copy of message with uid %s is marked as deleted", messageServerId)
+            Timber.v("Local copy of message with uid %d is marked as deleted", uid)
+        }
+    }
+
+    /**
+     * Creates message objects for the [limit] highest [uids], highest UID first. A [limit] of 0 or less means all of
+     * them.
+     */
+    private fun createMessagesNewestFirst(remoteFolder: ImapFolder, uids: LongArray, limit: Int): List<ImapMessage> {
+        uids.sort()
+        val count = if (limit > 0) minOf(limit, uids.size) else uids.size
+        return List(count) { index -> remoteFolder.getMessage(uids[uids.size - 1 - index].toString()) }
+    }
+
+    private fun destroyLocalMessages(
+        backendFolder: BackendFolder,
+        folder: String,
+        uids: LongArray,
+        listener: SyncListener
+    ) {
+        for (batchStart in uids.indices step BATCH_SIZE) {
+            val batchEnd = minOf(batchStart + BATCH_SIZE, uids.size)
+            val destroyMessageUids = (batchStart until batchEnd).map { index -> uids[index].toString() }
+
+            backendFolder.destroyMessages(destroyMessageUids)
+            for (uid in destroyMessageUids) {
+                listener.syncRemovedMessage(folder, uid)
+            }
         }
     }
 
@@ -462,7 +533,8 @@ internal class ImapSync(
         progress: AtomicInteger,
         todo: Int,
         fetchProfile: FetchProfile,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
     ) {
         val folder = remoteFolder.serverId
 
@@ -485,9 +557,9 @@ internal class ImapSync(
                             return
                         }
 
-                        if (syncConfig.maximumAutoDownloadMessageSize > 0 &&
-                            message.size > syncConfig.maximumAutoDownloadMessageSize
-                        ) {
+                        val maxDownloadSize = syncConfig.maximumAutoDownloadMessageSize
+                        val isLargeMessage = maxDownloadSize > 0 && message.size > maxDownloadSize
+                        if (syncConfig.previewOnly || isLargeMessage) {
                             largeMessages.add(message)
                         } else {
                             smallMessages.add(message)
@@ -501,7 +573,7 @@ internal class ImapSync(
                 override fun messagesFinished(total: Int) = Unit
             },
             syncConfig.maximumAutoDownloadMessageSize
-        )
+        ) { cancellationToken.isCancelled }
     }
 
     private fun downloadSmallMessages(
@@ -513,48 +585,61 @@ internal class ImapSync(
         todo: Int,
         fetchProfile: FetchProfile,
         lastUid: Long?,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
     ) {
         val folder = remoteFolder.serverId
 
         Timber.d("SYNC: Fetching %d small messages for folder %s", smallMessages.size, folder)
 
-        remoteFolder.fetch(
-            smallMessages,
-            fetchProfile,
-            object : MessageRetrievalListener<ImapMessage> {
-                override fun messageFinished(message: ImapMessage, number: Int, ofTotal: Int) {
-                    try {
-                        // Store the updated message locally
-                        backendFolder.saveCompleteMessage(message)
-                        progress.incrementAndGet()
+        val messageSaveBuffer = MessageSaveBuffer(backendFolder)
+        val messageSavedCallback = MessageSaveBuffer.MessageSavedCallback { message ->
+            progress.incrementAndGet()
 
-                        // Increment the number of "new messages" if the newly downloaded message is not marked as read.
-                        if (!message.isSet(Flag.SEEN)) {
-                            newMessages.incrementAndGet()
-                        }
+            // Increment the number of "new messages" if the newly downloaded message is not marked as read.
+            if (!message.isSet(Flag.SEEN)) {
+                newMessages.incrementAndGet()
+            }
+
+            val messageServerId = message.uid
+            Timber.v(
+                "About to notify listeners that we got a new small message %s:%s:%s",
+                accountName, folder, messageServerId
+            )
 
-                        val messageServerId = message.uid
-                        Timber.v(
-                            "About to notify listeners that we got a new small message %s:%s:%s",
-                            accountName, folder, messageServerId
-                        )
+            // Update the listener with what we've found
+            listener.syncProgress(folder, progress.get(), todo)
 
-                        // Update the listener with what we've found
-                        listener.syncProgress(folder, progress.get(), todo)
+            val isOldMessage = isOldMessage(messageServerId, lastUid)
+            listener.syncNewMessage(folder, messageServerId, isOldMessage)
+        }
 
-                        val isOldMessage = isOldMessage(messageServerId, lastUid)
-                        listener.syncNewMessage(folder, messageServerId, isOldMessage)
-                    } catch (e: Exception) {
-                        Timber.e(e, "SYNC: fetch small messages")
+        try {
+            remoteFolder.fetch(
+                smallMessages,
+                fetchProfile,
+                object : MessageRetrievalListener<ImapMessage> {
+                    override fun messageFinished(message: ImapMessage, number: Int, ofTotal: Int) {
+                        try {
+                            // Store the updated message locally
+                            messageSaveBuffer.saveCompleteMessage(message, messageSavedCallback)
+                        } catch (e: Exception) {
+                            Timber.e(e, "SYNC: fetch small messages")
+                        }
                     }
-                }
 
-                override fun messageStarted(uid: String, number: Int, ofTotal: Int) = Unit
-                override fun messagesFinished(total: Int) = Unit
-            },
-            -1
-        )
+                    override fun messageStarted(uid: String, number: Int, ofTotal: Int) = Unit
+                    override fun messagesFinished(total: Int) = Unit
+                },
+                -1
+            ) { cancellationToken.isCancelled }
+        } finally {
+            try {
+                messageSaveBuffer.flush()
+            } catch (e: Exception) {
+                Timber.e(e, "SYNC: fetch small messages")
+            }
+        }
 
         Timber.d("SYNC: Done fetching small messages for folder %s", folder)
     }
@@ -569,15 +654,21 @@ internal class ImapSync(
         fetchProfile: FetchProfile,
         lastUid: Long?,
         listener: SyncListener,
-        maxDownloadSize: Int
+        cancellationToken: SyncCancellationToken,
+        maxDownloadSize: Int,
+        previewOnly: Boolean
     ) {
         val folder = remoteFolder.serverId
         Timber.d("SYNC: Fetching large messages for folder %s", folder)
 
-        remoteFolder.fetch(largeMessages, fetchProfile, null, maxDownloadSize)
+        remoteFolder.fetch(largeMessages, fetchProfile, null, maxDownloadSize) { cancellationToken.isCancelled }
         for (message in largeMessages) {
+            cancellationToken.throwIfCancelled()
+
             if (message.body == null) {
                 downloadSaneBody(remoteFolder, backendFolder, message, maxDownloadSize)
+            } else if (previewOnly) {
+                downloadPreview(remoteFolder, backendFolder, message)
             } else {
                 downloadPartial(remoteFolder, backendFolder, message, maxDownloadSize)
             }
@@ -608,38 +699,128 @@ internal class ImapSync(
         Timber.d("SYNC: Done fetching large messages for folder %s", folder)
     }
 
+    /**
+     * Refreshes the flags of [syncFlagUids] in batches of [BATCH_SIZE], so only one batch of message objects is kept in
+     * memory at a time.
+     */
     private fun refreshLocalMessageFlags(
+        syncConfig: SyncConfig,
+        remoteFolder: ImapFolder,
+        backendFolder: BackendFolder,
+        syncFlagUids: LongArray,
+        progress: AtomicInteger,
+        todo: Int,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken,
+        flagSyncModSeq: FlagSyncModSeq?
+    ) {
+        val folder = remoteFolder.serverId
+        Timber.d("SYNC: About to sync flags for %d remote messages for folder %s", syncFlagUids.size, folder)
+
+        if (flagSyncModSeq != null && flagSyncModSeq.changedSince == flagSyncModSeq.highestModSeq) {
+            Timber.d("SYNC: HIGHESTMODSEQ of folder %s unchanged; skipping flag sync", folder)
+            progress.addAndGet(syncFlagUids.size)
+            listener.syncProgress(folder, progress.get(), todo)
+            return
+        }
+
+        for (batchStart in syncFlagUids.indices step BATCH_SIZE) {
+            cancellationToken.throwIfCancelled()
+
+            val batchEnd = minOf(batchStart + BATCH_SIZE, syncFlagUids.size)
+            val syncFlagMessages = (batchStart until batchEnd).map { index ->
+                remoteFolder.getMessage(syncFlagUids[index].toString())
+            }
+
+            if (flagSyncModSeq != null) {
+                refreshChangedLocalMessageFlags(
+                    syncConfig,
+                    remoteFolder,
+                    backendFolder,
+                    syncFlagMessages,
+                    progress,
+                    todo,
+                    listener,
+                    flagSyncModSeq
+                )
+            } else {
+                refreshAllLocalMessageFlags(
+                    syncConfig,
+                    remoteFolder,
+                    backendFolder,
+                    syncFlagMessages,
+                    progress,
+                    todo,
+                    listener,
+                    cancellationToken
+                )
+            }
+        }
+    }
+
+    private fun refreshAllLocalMessageFlags(
         syncConfig: SyncConfig,
         remoteFolder: ImapFolder,
         backendFolder: BackendFolder,
         syncFlagMessages: List<ImapMessage>,
         progress: AtomicInteger,
         todo: Int,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
     ) {
         val folder = remoteFolder.serverId
-        Timber.d("SYNC: About to sync flags for %d remote messages for folder %s", syncFlagMessages.size, folder)
 
         val fetchProfile = FetchProfile()
         fetchProfile.add(FetchProfile.Item.FLAGS)
 
-        val undeletedMessages = mutableListOf<ImapMessage>()
-        for (message in syncFlagMessages) {
-            if (!message.isSet(Flag.DELETED)) {
-                undeletedMessages.add(message)
-            }
+        val maxDownloadSize = syncConfig.maximumAutoDownloadMessageSize
+        remoteFolder.fetch(syncFlagMessages, fetchProfile, null, maxDownloadSize) { cancellationToken.isCancelled }
+        cancellationToken.throwIfCancelled()
+
+        val changedMessageServerIds = syncFlags(syncConfig, backendFolder, syncFlagMessages)
+        for (messageServerId in changedMessageServerIds) {
+            listener.syncFlagChanged(folder, messageServerId)
         }
 
-        val maxDownloadSize = syncConfig.maximumAutoDownloadMessageSize
-        remoteFolder.fetch(undeletedMessages, fetchProfile, null, maxDownloadSize)
-        for (remoteMessage in syncFlagMessages) {
-            val messageChanged = syncFlags(syncConfig, backendFolder, remoteMessage)
-            if (messageChanged) {
-                listener.syncFlagChanged(folder, remoteMessage.uid)
+        progress.addAndGet(syncFlagMessages.size)
+        listener.syncProgress(folder, progress.get(), todo)
+    }
+
+    private fun refreshChangedLocalMessageFlags(
+        syncConfig: SyncConfig,
+        remoteFolder: ImapFolder,
+        backendFolder: BackendFolder,
+        syncFlagMessages: List<ImapMessage>,
+        progress: AtomicInteger,
+        todo: Int,
+        listener: SyncListener,
+        flagSyncModSeq: FlagSyncModSeq
+    ) {
+        val folder = remoteFolder.serverId
+
+        Timber.d(
+            "SYNC: Fetching flags changed since mod-sequence %d for folder %s",
+            flagSyncModSeq.changedSince, folder
+        )
+        val flagChanges = remoteFolder.fetchChangedFlags(syncFlagMessages, flagSyncModSeq.changedSince)
+        val changedMessages = flagChanges.changedMessages
+        val vanishedUids = flagChanges.vanishedUids
+
+        val changedMessageServerIds = syncFlags(syncConfig, backendFolder, changedMessages)
+        for (messageServerId in changedMessageServerIds) {
+            listener.syncFlagChanged(folder, messageServerId)
+        }
+
+        if (syncConfig.syncRemoteDeletions && vanishedUids.isNotEmpty()) {
+            Timber.d("SYNC: Removing %d vanished messages from folder %s", vanishedUids.size, folder)
+            backendFolder.destroyMessages(vanishedUids)
+            for (uid in vanishedUids) {
+                listener.syncRemovedMessage(folder, uid)
             }
-            progress.incrementAndGet()
-            listener.syncProgress(folder, progress.get(), todo)
         }
+
+        progress.addAndGet(syncFlagMessages.size)
+        listener.syncProgress(folder, progress.get(), todo)
     }
 
     private fun downloadSaneBody(
@@ -693,29 +874,83 @@ internal class ImapSync(
         backendFolder.savePartialMessage(message)
     }
 
-    private fun syncFlags(syncConfig: SyncConfig, backendFolder: BackendFolder, remoteMessage: ImapMessage): Boolean {
-        val messageServerId = remoteMessage.uid
-        if (!backendFolder.isMessagePresent(messageServerId)) return false
+    /**
+     * Gets the thread structure of the messages this sync downloads, i.e. the [visibleLimit] highest of [newUids].
+     * [newUids] must be sorted in ascending order.
+     */
+    private fun fetchThreadStructure(
+        remoteFolder: ImapFolder,
+        newUids: LongArray,
+        visibleLimit: Int
+    ): Map<String, String?>? {
+        val count = if (visibleLimit > 0) minOf(visibleLimit, newUids.size) else newUids.size
+        val firstUid = newUids[newUids.size - count]
+        val lastUid = newUids.last()
+
+        return try {
+            remoteFolder.fetchThreadParentUids(firstUid, lastUid)
+        } catch (e: MessagingException) {
+            Timber.w(e, "SYNC: Couldn't get thread structure of %s; threading messages locally", remoteFolder.serverId)
+            null
+        }
+    }
 
-        val localMessageFlags = backendFolder.getMessageFlags(messageServerId)
-        if (localMessageFlags.contains(Flag.DELETED)) return false
+    private fun downloadPreview(remoteFolder: ImapFolder, backendFolder: BackendFolder, message: ImapMessage) {
+        /*
+         * Only download the beginning of the first text part. That's enough for the preview shown in the message
+         * list. The message stays partially downloaded, so the rest is fetched when the user opens it.
+         */
+        val textPart = MessageExtractor.collectTextParts(message).firstOrNull()
+        if (textPart != null) {
+            remoteFolder.fetchPartPrefix(message, textPart, DefaultBodyFactory(), PREVIEW_DOWNLOAD_SIZE)
+        }
 
-        var messageChanged = false
-        if (remoteMessage.isSet(Flag.DELETED)) {
-            if (syncConfig.syncRemoteDeletions) {
-                backendFolder.setMessageFlag(messageServerId, Flag.DELETED, true)
-                messageChanged = true
-            }
-        } else {
-            for (flag in syncConfig.syncFlags) {
-                if (remoteMessage.isSet(flag) != localMessageFlags.contains(flag)) {
-                    backendFolder.setMessageFlag(messageServerId, flag, remoteMessage.isSet(flag))
-                    messageChanged = true
+        backendFolder.savePartialMessage(message)
+    }
+
+    /**
+     * Applies the flags of [remoteMessages] to the local copies using at most two bulk updates.
+     *
+     * @return The server IDs of the messages whose local flags were changed.
+     */
+    private fun syncFlags(
+        syncConfig: SyncConfig,
+        backendFolder: BackendFolder,
+        remoteMessages: List<ImapMessage>
+    ): List<String> {
+        val deletedMessages = mutableMapOf<String, Set<Flag>>()
+        val changedMessageFlags = mutableMapOf<String, Set<Flag>>()
+
+        for (remoteMessage in remoteMessages) {
+            val messageServerId = remoteMessage.uid
+            if (!backendFolder.isMessagePresent(messageServerId)) continue
+
+            val localMessageFlags = backendFolder.getMessageFlags(messageServerId)
+            if (localMessageFlags.contains(Flag.DELETED)) continue
+
+            if (remoteMessage.isSet(Flag.DELETED)) {
+                if (syncConfig.syncRemoteDeletions) {
+                    deletedMessages[messageServerId] = setOf(Flag.DELETED)
+                }
+            } else {
+                val flagsChanged = syncConfig.syncFlags.any { flag ->
+                    remoteMessage.isSet(flag) != localMessageFlags.contains(flag)
+                }
+                if (flagsChanged) {
+                    val remoteFlags = syncConfig.syncFlags.filter { remoteMessage.isSet(it) }.toSet()
+                    changedMessageFlags[messageServerId] = remoteFlags
                 }
             }
         }
 
-        return messageChanged
+        if (deletedMessages.isNotEmpty()) {
+            backendFolder.setMessageFlags(deletedMessages, setOf(Flag.DELETED))
+        }
+        if (changedMessageFlags.isNotEmpty()) {
+            backendFolder.setMessageFlags(changedMessageFlags, syncConfig.syncFlags)
+        }
+
+        return deletedMessages.keys + changedMessageFlags.keys
     }
 
     private fun updateMoreMessages(
@@ -733,7 +968,12 @@ internal class ImapSync(
         }
     }
 
+    private class FlagSyncModSeq(val changedSince: Long, val highestModSeq: Long)
+
     companion object {
         private const val EXTRA_UID_VALIDITY = "imapUidValidity"
+        private const val EXTRA_HIGHEST_MOD_SEQ = "imapHighestModSeq"
+        private const val BATCH_SIZE = 500
+        private const val PREVIEW_DOWNLOAD_SIZE = 4096
     }
 }
@@ -14,5 +14,6 @@ class SimpleSyncListener : SyncListener {
     override fun syncFlagChanged(folderServerId: String, messageServerId: String) = Unit
     override fun syncFinished(folderServerId: String) = Unit
     override fun syncFailed(folderServerId: String, message: String, exception: Exception?) = Unit
+    override fun syncCancelled(folderServerId: String) = Unit
     override fun folderStatusChanged(folderServerId: String) = Unit
 }
@@ -0,0 +1,95 @@
+package com.fsck.k9.backend.imap
+
+import com.fsck.k9.backend.api.BackendFolder
+
+/**
+ * Result of comparing the UIDs of the messages in the local store with the UIDs found on the server.
+ *
+ * All UIDs are kept in sorted `long[]` buffers. A sync of a folder with hundreds of thousands of messages therefore
+ * doesn't need a map of server ID strings or an [com.fsck.k9.mail.store.imap.ImapMessage] per remote message.
+ *
+ * @property newUids UIDs of messages that are on the server but not in the local store.
+ * @property existingUids UIDs of messages that are both on the server and in the local store.
+ * @property localOnlyUids UIDs of messages in the local store that are no longer on the server, or that are older
+ * than the earliest poll date.
+ */
+internal class UidReconciliation(
+    val newUids: LongArray,
+    val existingUids: LongArray,
+    val localOnlyUids: LongArray
+) {
+    companion object {
+        /**
+         * Merge-joins the local messages of [backendFolder] with [remoteUids], which must be sorted in ascending
+         * order.
+         *
+         * Local messages with an effective date before [earliestTimestamp] are treated as if they weren't on the
+         * server.
+         */
+        fun reconcile(backendFolder: BackendFolder, remoteUids: LongArray, earliestTimestamp: Long): UidReconciliation {
+            val localUids = UidBuffer()
+            val localDates = UidBuffer()
+            backendFolder.forEachNumericMessageServerId { uid, effectiveDate ->
+                localUids.add(uid)
+                localDates.add(effectiveDate ?: Long.MAX_VALUE)
+            }
+
+            return reconcile(localUids.toArray(), localDates.toArray(), remoteUids, earliestTimestamp)
+        }
+
+        fun reconcile(
+            localUids: LongArray,
+            localDates: LongArray,
+            remoteUids: LongArray,
+            earliestTimestamp: Long
+        ): UidReconciliation {
+            val newUids = UidBuffer()
+            val existingUids = UidBuffer()
+            val localOnlyUids = UidBuffer()
+
+            var localIndex = 0
+            var remoteIndex = 0
+            while (localIndex < localUids.size || remoteIndex < remoteUids.size) {
+                val localUid = if (localIndex < localUids.size) localUids[localIndex] else Long.MAX_VALUE
+                val remoteUid = if (remoteIndex < remoteUids.size) remoteUids[remoteIndex] else Long.MAX_VALUE
+
+                if (remoteIndex == remoteUids.size || (localIndex < localUids.size && localUid < remoteUid)) {
+                    localOnlyUids.add(localUid)
+                    localIndex++
+                } else if (localIndex == localUids.size || remoteUid < localUid) {
+                    newUids.add(remoteUid)
+                    remoteIndex++
+                } else {
+                    if (localDates[localIndex] >= earliestTimestamp) {
+                        existingUids.add(localUid)
+                    } else {
+                        localOnlyUids.add(localUid)
+                    }
+                    localIndex++
+                    remoteIndex++
+                }
+            }
+
+            return UidReconciliation(newUids.toArray(), existingUids.toArray(), localOnlyUids.toArray())
+        }
+    }
+}
+
+/**
+ * Growable `long[]` used to collect UIDs without boxing them.
+ */
+internal class UidBuffer {
+    private var values = LongArray(16)
+
+    var size = 0
+        private set
+
+    fun add(value: Long) {
+        if (size == values.size) {
+            values = values.copyOf(size * 2)
+        }
+        values[size++] = value
+    }
+
+    fun toArray(): LongArray = values.copyOf(size)
+}
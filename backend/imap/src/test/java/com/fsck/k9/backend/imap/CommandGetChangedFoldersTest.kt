@@ -0,0 +1,95 @@
+package com.fsck.k9.backend.imap
+
+import com.fsck.k9.backend.api.BackendFolder
+import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.SyncListener
+import com.fsck.k9.mail.store.imap.FolderStatus
+import com.fsck.k9.mail.store.imap.ImapStore
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+private const val FOLDER = "INBOX"
+private const val EXTRA_FOLDER_STATUS = "imapFolderStatus"
+
+class CommandGetChangedFoldersTest {
+    private val backendFolder = mock<BackendFolder> {
+        on { visibleLimit } doReturn 25
+        on { getLastUid() } doReturn 100L
+    }
+    private val backendStorage = mock<BackendStorage> {
+        on { getFolder(FOLDER) } doReturn backendFolder
+    }
+    private val imapStore = mock<ImapStore>()
+    private val listener = mock<SyncListener>()
+    private val command = CommandGetChangedFolders(backendStorage, imapStore)
+
+    @Test
+    fun getChangedFolders_withUnchangedStatus_shouldNotReturnFolder() {
+        val folderStatus = FolderStatus(messageCount = 10, uidNext = 101, unseenCount = 2, highestModSeq = 5000)
+        setFolderStatus(folderStatus)
+        recordStatusOfSuccessfulSync()
+        whenever(backendFolder.getFolderExtraString(EXTRA_FOLDER_STATUS)).thenReturn(recordedStatus())
+
+        val changedFolders = command.getChangedFolders(listOf(FOLDER))
+
+        assertEquals(emptySet<String>(), changedFolders)
+    }
+
+    @Test
+    fun getChangedFolders_withoutHighestModSeq_shouldAlwaysReturnFolder() {
+        setFolderStatus(FolderStatus(messageCount = 10, uidNext = 101, unseenCount = 2, highestModSeq = null))
+
+        val changedFolders = command.getChangedFolders(listOf(FOLDER))
+        val syncListener = command.recordFolderStatusOnSuccess(FOLDER, listener)
+        syncListener.syncFinished(FOLDER)
+
+        assertEquals(setOf(FOLDER), changedFolders)
+        verify(backendFolder, never()).setFolderExtraString(eq(EXTRA_FOLDER_STATUS), any())
+    }
+
+    @Test
+    fun syncFinished_forSyncStartedBeforeStatusWasRetrieved_shouldNotRecordStatus() {
+        setFolderStatus(FolderStatus(messageCount = 10, uidNext = 101, unseenCount = 2, highestModSeq = 5000))
+        val runningSyncListener = command.recordFolderStatusOnSuccess(FOLDER, listener)
+        command.getChangedFolders(listOf(FOLDER))
+
+        runningSyncListener.syncFinished(FOLDER)
+
+        verify(backendFolder, never()).setFolderExtraString(eq(EXTRA_FOLDER_STATUS), any())
+        verify(listener).syncFinished(FOLDER)
+    }
+
+    @Test
+    fun syncFailed_shouldNotRecordStatus() {
+        setFolderStatus(FolderStatus(messageCount = 10, uidNext = 101, unseenCount = 2, highestModSeq = 5000))
+        command.getChangedFolders(listOf(FOLDER))
+        val syncListener = command.recordFolderStatusOnSuccess(FOLDER, listener)
+
+        syncListener.syncFailed(FOLDER, "error", null)
+
+        verify(backendFolder, never()).setFolderExtraString(eq(EXTRA_FOLDER_STATUS), any())
+    }
+
+    private fun setFolderStatus(folderStatus: FolderStatus) {
+        whenever(imapStore.getFolderStatus(listOf(FOLDER))).thenReturn(mapOf(FOLDER to folderStatus))
+    }
+
+    private fun recordStatusOfSuccessfulSync() {
+        command.getChangedFolders(listOf(FOLDER))
+        command.recordFolderStatusOnSuccess(FOLDER, listener).syncFinished(FOLDER)
+    }
+
+    private fun recordedStatus(): String {
+        val statusCaptor = argumentCaptor<String>()
+        verify(backendFolder).setFolderExtraString(eq(EXTRA_FOLDER_STATUS), statusCaptor.capture())
+        return statusCaptor.firstValue
+    }
+}
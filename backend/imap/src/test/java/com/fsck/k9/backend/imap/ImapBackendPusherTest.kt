@@ -0,0 +1,70 @@
+package com.fsck.k9.backend.imap
+
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class ImapBackendPusherTest {
+    private val folderPushers = mutableMapOf<String, ImapFolderPusher>()
+    private val createdFolderServerIds = mutableListOf<String>()
+    private val backendPusher = ImapBackendPusher("Account") { folderServerId, _ ->
+        createdFolderServerIds.add(folderServerId)
+        mock<ImapFolderPusher>().also { folderPushers[folderServerId] = it }
+    }
+
+    @Test
+    fun updateFolders_shouldStartOnePusherPerFolder() {
+        backendPusher.start()
+
+        backendPusher.updateFolders(listOf("INBOX", "Work"))
+
+        assertEquals(listOf("INBOX", "Work"), createdFolderServerIds)
+        verify(folderPushers.getValue("INBOX")).start()
+        verify(folderPushers.getValue("Work")).start()
+    }
+
+    @Test
+    fun updateFolders_shouldKeepExistingPushersAndStopRemovedOnes() {
+        backendPusher.start()
+        backendPusher.updateFolders(listOf("INBOX", "Work"))
+        val inboxPusher = folderPushers.getValue("INBOX")
+        val workPusher = folderPushers.getValue("Work")
+
+        backendPusher.updateFolders(listOf("INBOX", "Lists"))
+
+        assertEquals(listOf("INBOX", "Work", "Lists"), createdFolderServerIds)
+        verify(inboxPusher, never()).stop()
+        verify(workPusher).stop()
+        verify(folderPushers.getValue("Lists")).start()
+    }
+
+    @Test
+    fun stop_shouldStopAllFolderPushers() {
+        backendPusher.start()
+        backendPusher.updateFolders(listOf("INBOX", "Work"))
+
+        backendPusher.stop()
+
+        verify(folderPushers.getValue("INBOX")).stop()
+        verify(folderPushers.getValue("Work")).stop()
+    }
+
+    @Test
+    fun start_afterStop_shouldCreateNewPushers() {
+        backendPusher.start()
+        backendPusher.updateFolders(listOf("INBOX"))
+        backendPusher.stop()
+
+        backendPusher.start()
+        backendPusher.updateFolders(listOf("INBOX"))
+
+        assertEquals(listOf("INBOX", "INBOX"), createdFolderServerIds)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun updateFolders_withoutStart_shouldThrow() {
+        backendPusher.updateFolders(listOf("INBOX"))
+    }
+}
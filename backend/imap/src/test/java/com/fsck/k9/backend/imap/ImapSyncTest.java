@@ -5,38 +5,51 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.fsck.k9.backend.api.BackendFolder;
 import com.fsck.k9.backend.api.BackendStorage;
+import com.fsck.k9.backend.api.SyncCancellationToken;
 import com.fsck.k9.backend.api.SyncConfig;
 import com.fsck.k9.backend.api.SyncConfig.ExpungePolicy;
 import com.fsck.k9.backend.api.SyncListener;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.FlagChanges;
 import com.fsck.k9.mail.store.imap.ImapFolder;
 import com.fsck.k9.mail.store.imap.ImapMessage;
 import com.fsck.k9.mail.store.imap.ImapStore;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function0;
+import kotlin.jvm.functions.Function2;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -46,11 +59,13 @@ import static org.mockito.Mockito.when;
 @SuppressWarnings("unchecked")
 public class ImapSyncTest {
     private static final String EXTRA_UID_VALIDITY = "imapUidValidity";
+    private static final String EXTRA_HIGHEST_MOD_SEQ = "imapHighestModSeq";
     private static final String ACCOUNT_NAME = "Account";
     private static final String FOLDER_NAME = "Folder";
     private static final Long FOLDER_UID_VALIDITY = 42L;
+    private static final Long FOLDER_HIGHEST_MOD_SEQ = 1000L;
     private static final int MAXIMUM_SMALL_MESSAGE_SIZE = 1000;
-    private static final String MESSAGE_UID1 = "message-uid1";
+    private static final String MESSAGE_UID1 = "1";
     private static final int DEFAULT_VISIBLE_LIMIT = 25;
     private static final Set<Flag> SYNC_FLAGS = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED);
 
@@ -72,6 +87,7 @@ public class ImapSyncTest {
     private ArgumentCaptor<FetchProfile> fetchProfileCaptor;
 
     private SyncConfig syncConfig;
+    private SyncCancellationToken cancellationToken;
 
 
     @Before
@@ -79,6 +95,7 @@ public class ImapSyncTest {
         MockitoAnnotations.initMocks(this);
 
         imapSync = new ImapSync(ACCOUNT_NAME, backendStorage, remoteStore);
+        cancellationToken = new SyncCancellationToken();
 
         configureSyncConfig();
         configureBackendStorage();
@@ -89,7 +106,7 @@ public class ImapSyncTest {
     public void sync_withOneMessageInRemoteFolder_shouldFinishWithoutError() {
         messageCountInRemoteFolder(1);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(listener).syncFinished(FOLDER_NAME);
     }
@@ -98,7 +115,7 @@ public class ImapSyncTest {
     public void sync_withEmptyRemoteFolder_shouldFinishWithoutError() {
         messageCountInRemoteFolder(0);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(listener).syncFinished(FOLDER_NAME);
     }
@@ -107,7 +124,7 @@ public class ImapSyncTest {
     public void sync_withNegativeMessageCountInRemoteFolder_shouldFinishWithError() {
         messageCountInRemoteFolder(-1);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(listener).syncFailed(eq(FOLDER_NAME), eq("Exception: Message count -1 for folder Folder"),
                 any(Exception.class));
@@ -117,7 +134,7 @@ public class ImapSyncTest {
     public void sync_shouldOpenRemoteFolder() throws Exception {
         messageCountInRemoteFolder(1);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(remoteFolder).open(ImapFolder.OPEN_MODE_RO);
     }
@@ -126,7 +143,7 @@ public class ImapSyncTest {
     public void sync_shouldCloseRemoteFolder() {
         messageCountInRemoteFolder(1);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(remoteFolder).close();
     }
@@ -136,7 +153,7 @@ public class ImapSyncTest {
         messageCountInRemoteFolder(1);
         configureSyncConfigWithExpungePolicy(ExpungePolicy.ON_POLL);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(remoteFolder).expunge();
     }
@@ -146,7 +163,7 @@ public class ImapSyncTest {
         messageCountInRemoteFolder(1);
         configureSyncConfigWithExpungePolicy(ExpungePolicy.MANUALLY);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(remoteFolder, never()).expunge();
     }
@@ -155,9 +172,9 @@ public class ImapSyncTest {
     public void sync_withAccountSetToSyncRemoteDeletions_shouldDeleteLocalCopiesOfDeletedMessages() {
         messageCountInRemoteFolder(0);
         configureSyncConfigWithSyncRemoteDeletions(true);
-        when(backendFolder.getAllMessagesAndEffectiveDates()).thenReturn(Collections.singletonMap(MESSAGE_UID1, 0L));
+        hasLocalMessage(MESSAGE_UID1);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder).destroyMessages(messageListCaptor.capture());
         assertEquals(MESSAGE_UID1, messageListCaptor.getValue().get(0));
@@ -172,7 +189,7 @@ public class ImapSyncTest {
         configureSyncConfigWithSyncRemoteDeletionsAndEarliestPollDate(dateOfEarliestPoll);
         when(remoteMessage.olderThan(dateOfEarliestPoll)).thenReturn(false);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder, never()).destroyMessages(messageListCaptor.capture());
     }
@@ -185,9 +202,9 @@ public class ImapSyncTest {
         Date dateOfEarliestPoll = new Date();
         configureSyncConfigWithSyncRemoteDeletionsAndEarliestPollDate(dateOfEarliestPoll);
         when(remoteMessage.olderThan(dateOfEarliestPoll)).thenReturn(true);
-        when(backendFolder.getAllMessagesAndEffectiveDates()).thenReturn(Collections.singletonMap(MESSAGE_UID1, 0L));
+        hasLocalMessage(MESSAGE_UID1);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder).destroyMessages(messageListCaptor.capture());
         assertEquals(MESSAGE_UID1, messageListCaptor.getValue().get(0));
@@ -198,7 +215,7 @@ public class ImapSyncTest {
         messageCountInRemoteFolder(0);
         configureSyncConfigWithSyncRemoteDeletions(false);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder, never()).destroyMessages(messageListCaptor.capture());
     }
@@ -208,10 +225,10 @@ public class ImapSyncTest {
         messageCountInRemoteFolder(1);
         hasUnsyncedRemoteMessage();
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(remoteFolder, atLeastOnce()).fetch(any(List.class), fetchProfileCaptor.capture(),
-                nullable(MessageRetrievalListener.class), anyInt());
+                nullable(MessageRetrievalListener.class), anyInt(), any());
         assertTrue(fetchProfileCaptor.getAllValues().get(0).contains(FetchProfile.Item.FLAGS));
         assertTrue(fetchProfileCaptor.getAllValues().get(0).contains(FetchProfile.Item.ENVELOPE));
         assertEquals(2, fetchProfileCaptor.getAllValues().get(0).size());
@@ -224,14 +241,39 @@ public class ImapSyncTest {
         hasUnsyncedRemoteMessage();
         respondToFetchEnvelopesWithMessage(smallMessage);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(remoteFolder, atLeast(2)).fetch(any(List.class), fetchProfileCaptor.capture(),
-                nullable(MessageRetrievalListener.class), anyInt());
+                nullable(MessageRetrievalListener.class), anyInt(), any());
         assertEquals(1, fetchProfileCaptor.getAllValues().get(1).size());
         assertTrue(fetchProfileCaptor.getAllValues().get(1).contains(FetchProfile.Item.BODY));
     }
 
+    @Test
+    public void sync_withUnsyncedNewSmallMessage_shouldSaveMessageBeforeNotifyingListener() throws Exception {
+        final ImapMessage smallMessage = buildSmallNewMessage();
+        when(smallMessage.getUid()).thenReturn(MESSAGE_UID1);
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        doAnswer(new Answer() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                if (invocation.getArguments()[2] != null) {
+                    MessageRetrievalListener listener = (MessageRetrievalListener) invocation.getArguments()[2];
+                    listener.messageFinished(smallMessage, 1, 1);
+                }
+                return null;
+            }
+        }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), nullable(MessageRetrievalListener.class),
+                anyInt(), any());
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        InOrder inOrder = inOrder(backendFolder, listener);
+        inOrder.verify(backendFolder).saveCompleteMessages(Collections.<Message>singletonList(smallMessage));
+        inOrder.verify(listener).syncNewMessage(eq(FOLDER_NAME), eq(MESSAGE_UID1), anyBoolean());
+    }
+
     @Test
     public void sync_withUnsyncedNewSmallMessage_shouldFetchStructureAndLimitedBodyOfLargeMessage() throws Exception {
         ImapMessage largeMessage = buildLargeNewMessage();
@@ -239,22 +281,90 @@ public class ImapSyncTest {
         hasUnsyncedRemoteMessage();
         respondToFetchEnvelopesWithMessage(largeMessage);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         //TODO: Don't bother fetching messages of a size we don't have
         verify(remoteFolder, atLeast(4)).fetch(any(List.class), fetchProfileCaptor.capture(),
-                nullable(MessageRetrievalListener.class), anyInt());
+                nullable(MessageRetrievalListener.class), anyInt(), any());
         assertEquals(1, fetchProfileCaptor.getAllValues().get(2).size());
         assertEquals(FetchProfile.Item.STRUCTURE, fetchProfileCaptor.getAllValues().get(2).get(0));
         assertEquals(1, fetchProfileCaptor.getAllValues().get(3).size());
         assertEquals(FetchProfile.Item.BODY_SANE, fetchProfileCaptor.getAllValues().get(3).get(0));
     }
 
+    @Test
+    public void sync_withPreviewOnlyAndUnsyncedNewSmallMessage_shouldFetchStructureInsteadOfBody() throws Exception {
+        configureSyncConfigWithPreviewOnly();
+        ImapMessage smallMessage = buildSmallNewMessage();
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        respondToFetchEnvelopesWithMessage(smallMessage);
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(remoteFolder, atLeast(3)).fetch(any(List.class), fetchProfileCaptor.capture(),
+                nullable(MessageRetrievalListener.class), anyInt(), any());
+        assertEquals(1, fetchProfileCaptor.getAllValues().get(2).size());
+        assertEquals(FetchProfile.Item.STRUCTURE, fetchProfileCaptor.getAllValues().get(2).get(0));
+        verify(backendFolder, never()).saveCompleteMessages(any(List.class));
+        verify(backendFolder).savePartialMessage(smallMessage);
+    }
+
+    @Test
+    public void sync_withServerThreadingOnInitialSync_shouldSaveThreadStructureFromServer() throws Exception {
+        configureSyncConfigWithServerThreading();
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        when(remoteFolder.getSupportsThreadReferences()).thenReturn(true);
+        Map<String, String> threadStructure = Collections.singletonMap(MESSAGE_UID1, null);
+        when(remoteFolder.fetchThreadParentUids(1L, 1L)).thenReturn(threadStructure);
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        InOrder inOrder = inOrder(backendFolder);
+        inOrder.verify(backendFolder).setMessageThreadingEnabled(false);
+        inOrder.verify(backendFolder).setMessageThreadingEnabled(true);
+        inOrder.verify(backendFolder).saveThreadStructure(threadStructure);
+    }
+
+    @Test
+    public void sync_withServerThreadingOnInitialSync_shouldOnlyThreadMessagesWithinVisibleLimit() throws Exception {
+        configureSyncConfigWithServerThreading();
+        messageCountInRemoteFolder(30);
+        long[] remoteUids = new long[30];
+        for (int i = 0; i < remoteUids.length; i++) {
+            remoteUids[i] = i + 1;
+        }
+        when(remoteFolder.getMessageUids(anyInt(), anyInt(), nullable(Date.class))).thenReturn(remoteUids);
+        when(remoteFolder.getMessage(anyString())).thenReturn(mock(ImapMessage.class));
+        when(backendFolder.getVisibleLimit()).thenReturn(DEFAULT_VISIBLE_LIMIT);
+        when(remoteFolder.getSupportsThreadReferences()).thenReturn(true);
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(remoteFolder).fetchThreadParentUids(30L - DEFAULT_VISIBLE_LIMIT + 1, 30L);
+    }
+
+    @Test
+    public void sync_withServerThreadingAndThreadCommandFailing_shouldThreadMessagesLocally() throws Exception {
+        configureSyncConfigWithServerThreading();
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        when(remoteFolder.getSupportsThreadReferences()).thenReturn(true);
+        when(remoteFolder.fetchThreadParentUids(anyLong(), anyLong()))
+                .thenThrow(new MessagingException("THREAD failed"));
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(backendFolder, never()).setMessageThreadingEnabled(anyBoolean());
+        verify(backendFolder, never()).saveThreadStructure(any(Map.class));
+    }
+
     @Test
     public void sync_withUidValidityChange_shouldClearAllMessages() {
         when(backendFolder.getFolderExtraNumber(EXTRA_UID_VALIDITY)).thenReturn(23L);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder).clearAllMessages();
         verify(backendFolder).setFolderExtraNumber(EXTRA_UID_VALIDITY, FOLDER_UID_VALIDITY);
@@ -264,7 +374,7 @@ public class ImapSyncTest {
     public void sync_withoutUidValidityChange_shouldNotClearAllMessages() {
         when(backendFolder.getFolderExtraNumber(EXTRA_UID_VALIDITY)).thenReturn(FOLDER_UID_VALIDITY);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder, never()).clearAllMessages();
     }
@@ -273,12 +383,124 @@ public class ImapSyncTest {
     public void sync_withFirstUidValidityValue_shouldNotClearAllMessages() {
         when(backendFolder.getFolderExtraNumber(EXTRA_UID_VALIDITY)).thenReturn(null);
 
-        imapSync.sync(FOLDER_NAME, syncConfig, listener);
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
 
         verify(backendFolder, never()).clearAllMessages();
         verify(backendFolder).setFolderExtraNumber(EXTRA_UID_VALIDITY, FOLDER_UID_VALIDITY);
     }
 
+    @Test
+    public void sync_withChangedRemoteFlags_shouldUpdateLocalFlagsInBulk() throws Exception {
+        messageCountInRemoteFolder(1);
+        ImapMessage remoteMessage = messageOnServer();
+        hasLocalCopyOfMessage(remoteMessage);
+        when(remoteMessage.isSet(Flag.SEEN)).thenReturn(true);
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(backendFolder).setMessageFlags(
+                Collections.<String, Set<Flag>>singletonMap(MESSAGE_UID1, EnumSet.of(Flag.SEEN)), SYNC_FLAGS);
+        verify(backendFolder, never()).setMessageFlag(anyString(), any(Flag.class), anyBoolean());
+        verify(listener).syncFlagChanged(FOLDER_NAME, MESSAGE_UID1);
+    }
+
+    @Test
+    public void sync_withUnchangedHighestModSeq_shouldNotFetchFlags() throws Exception {
+        messageCountInRemoteFolder(1);
+        ImapMessage remoteMessage = messageOnServer();
+        hasLocalCopyOfMessage(remoteMessage);
+        configureHighestModSeq(FOLDER_HIGHEST_MOD_SEQ, FOLDER_HIGHEST_MOD_SEQ);
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(remoteFolder, atLeastOnce()).fetch(any(List.class), fetchProfileCaptor.capture(),
+                nullable(MessageRetrievalListener.class), anyInt(), any());
+        for (FetchProfile fetchProfile : fetchProfileCaptor.getAllValues()) {
+            assertFalse(fetchProfile.contains(FetchProfile.Item.FLAGS));
+        }
+        verify(remoteFolder, never()).fetchChangedFlags(any(List.class), anyLong());
+    }
+
+    @Test
+    public void sync_withChangedHighestModSeq_shouldFetchChangedFlagsOnly() throws Exception {
+        messageCountInRemoteFolder(1);
+        ImapMessage remoteMessage = messageOnServer();
+        hasLocalCopyOfMessage(remoteMessage);
+        configureHighestModSeq(FOLDER_HIGHEST_MOD_SEQ, FOLDER_HIGHEST_MOD_SEQ + 1);
+        when(remoteFolder.fetchChangedFlags(any(List.class), anyLong())).thenReturn(
+                new FlagChanges(Collections.<ImapMessage>emptyList(), Collections.<String>emptyList()));
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(remoteFolder).fetchChangedFlags(Collections.singletonList(remoteMessage), FOLDER_HIGHEST_MOD_SEQ);
+        verify(backendFolder).setFolderExtraNumber(EXTRA_HIGHEST_MOD_SEQ, FOLDER_HIGHEST_MOD_SEQ + 1);
+    }
+
+    @Test
+    public void sync_withCancelledToken_shouldReportCancellationWithoutUpdatingLastChecked() throws Exception {
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        cancellationToken.cancel();
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(listener).syncCancelled(FOLDER_NAME);
+        verify(listener, never()).syncFinished(FOLDER_NAME);
+        verify(listener, never()).syncFailed(eq(FOLDER_NAME), anyString(), nullable(Exception.class));
+        verify(backendFolder, never()).setLastChecked(anyLong());
+        verify(remoteFolder, never()).fetch(any(List.class), any(FetchProfile.class),
+                nullable(MessageRetrievalListener.class), anyInt(), any());
+        verify(remoteFolder).close();
+    }
+
+    @Test
+    public void sync_cancelledWhileFetchingEnvelopes_shouldNotDownloadMessageBodies() throws Exception {
+        final ImapMessage smallMessage = buildSmallNewMessage();
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        doAnswer(new Answer() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                cancellationToken.cancel();
+                MessageRetrievalListener listener = (MessageRetrievalListener) invocation.getArguments()[2];
+                listener.messageFinished(smallMessage, 1, 1);
+                return null;
+            }
+        }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), nullable(MessageRetrievalListener.class),
+                anyInt(), any());
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(remoteFolder).fetch(any(List.class), fetchProfileCaptor.capture(),
+                nullable(MessageRetrievalListener.class), anyInt(), any());
+        assertTrue(fetchProfileCaptor.getValue().contains(FetchProfile.Item.ENVELOPE));
+        verify(backendFolder, never()).saveCompleteMessages(any(List.class));
+        verify(listener).syncCancelled(FOLDER_NAME);
+    }
+
+    @Test
+    public void sync_cancelledDuringFetch_shouldStopRequestingFetchWindows() throws Exception {
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        doAnswer(new Answer() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Function0<Boolean> isCancelled = (Function0<Boolean>) invocation.getArguments()[4];
+                assertFalse(isCancelled.invoke());
+                cancellationToken.cancel();
+                assertTrue(isCancelled.invoke());
+                return null;
+            }
+        }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), nullable(MessageRetrievalListener.class),
+                anyInt(), any());
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, cancellationToken);
+
+        verify(remoteFolder).fetch(any(List.class), any(FetchProfile.class), nullable(MessageRetrievalListener.class),
+                anyInt(), any());
+        verify(listener).syncCancelled(FOLDER_NAME);
+    }
+
     private void respondToFetchEnvelopesWithMessage(final ImapMessage message) throws MessagingException {
         doAnswer(new Answer() {
             @Override
@@ -295,7 +517,7 @@ public class ImapSyncTest {
                 return null;
             }
         }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), nullable(MessageRetrievalListener.class),
-                anyInt());
+                anyInt(), any());
     }
 
     private ImapMessage buildSmallNewMessage() {
@@ -317,21 +539,43 @@ public class ImapSyncTest {
     }
 
     private ImapMessage messageOnServer() throws MessagingException {
-        String messageUid = "UID";
         ImapMessage remoteMessage = mock(ImapMessage.class);
 
-        when(remoteMessage.getUid()).thenReturn(messageUid);
-        when(remoteFolder.getMessages(anyInt(), anyInt(), nullable(Date.class),
-                nullable(MessageRetrievalListener.class))).thenReturn(Collections.singletonList(remoteMessage));
+        when(remoteMessage.getUid()).thenReturn(MESSAGE_UID1);
+        when(remoteFolder.getMessageUids(anyInt(), anyInt(), nullable(Date.class)))
+                .thenReturn(new long[] { Long.parseLong(MESSAGE_UID1) });
+        when(remoteFolder.getMessage(MESSAGE_UID1)).thenReturn(remoteMessage);
         return remoteMessage;
     }
 
+    private void hasLocalCopyOfMessage(ImapMessage remoteMessage) {
+        String messageUid = remoteMessage.getUid();
+        when(backendFolder.getFolderExtraNumber(EXTRA_UID_VALIDITY)).thenReturn(FOLDER_UID_VALIDITY);
+        hasLocalMessage(messageUid);
+        when(backendFolder.isMessagePresent(messageUid)).thenReturn(true);
+        when(backendFolder.getMessageFlags(messageUid)).thenReturn(EnumSet.of(Flag.X_DOWNLOADED_FULL));
+    }
+
+    private void configureHighestModSeq(long localHighestModSeq, long remoteHighestModSeq) {
+        when(remoteFolder.getSupportsModSeq()).thenReturn(true);
+        when(remoteFolder.getHighestModSeq()).thenReturn(remoteHighestModSeq);
+        when(backendFolder.getFolderExtraNumber(EXTRA_HIGHEST_MOD_SEQ)).thenReturn(localHighestModSeq);
+    }
+
     private void hasUnsyncedRemoteMessage() throws MessagingException {
-        String messageUid = "UID";
-        ImapMessage remoteMessage = mock(ImapMessage.class);
-        when(remoteMessage.getUid()).thenReturn(messageUid);
-        when(remoteFolder.getMessages(anyInt(), anyInt(), nullable(Date.class),
-                nullable(MessageRetrievalListener.class))).thenReturn(Collections.singletonList(remoteMessage));
+        messageOnServer();
+    }
+
+    private void hasLocalMessage(final String messageUid) {
+        doAnswer(new Answer() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                Function2<Long, Long, Unit> action = (Function2<Long, Long, Unit>) invocation.getArguments()[0];
+                action.invoke(Long.parseLong(messageUid), 0L);
+                return null;
+            }
+        }).when(backendFolder).forEachNumericMessageServerId(any(Function2.class));
     }
 
     private void configureSyncConfig() {
@@ -341,13 +585,16 @@ public class ImapSyncTest {
                 true,
                 MAXIMUM_SMALL_MESSAGE_SIZE,
                 DEFAULT_VISIBLE_LIMIT,
-                SYNC_FLAGS);
+                SYNC_FLAGS,
+                false,
+                false);
     }
 
     private void configureRemoteStoreWithFolder() {
         when(remoteStore.getFolder(FOLDER_NAME)).thenReturn(remoteFolder);
         when(remoteFolder.getServerId()).thenReturn(FOLDER_NAME);
         when(remoteFolder.getUidValidity()).thenReturn(FOLDER_UID_VALIDITY);
+        when(remoteFolder.getMessageUids(anyInt(), anyInt(), nullable(Date.class))).thenReturn(new long[0]);
     }
 
     private void configureBackendStorage() {
@@ -361,7 +608,9 @@ public class ImapSyncTest {
                 syncConfig.getSyncRemoteDeletions(),
                 syncConfig.getMaximumAutoDownloadMessageSize(),
                 syncConfig.getDefaultVisibleLimit(),
-                syncConfig.getSyncFlags());
+                syncConfig.getSyncFlags(),
+                syncConfig.getPreviewOnly(),
+                syncConfig.getUseServerThreading());
     }
 
     private void configureSyncConfigWithSyncRemoteDeletions(boolean syncRemoteDeletions) {
@@ -371,7 +620,33 @@ public class ImapSyncTest {
                 syncRemoteDeletions,
                 syncConfig.getMaximumAutoDownloadMessageSize(),
                 syncConfig.getDefaultVisibleLimit(),
-                syncConfig.getSyncFlags());
+                syncConfig.getSyncFlags(),
+                syncConfig.getPreviewOnly(),
+                syncConfig.getUseServerThreading());
+    }
+
+    private void configureSyncConfigWithPreviewOnly() {
+        syncConfig = syncConfig.copy(
+                syncConfig.getExpungePolicy(),
+                syncConfig.getEarliestPollDate(),
+                syncConfig.getSyncRemoteDeletions(),
+                syncConfig.getMaximumAutoDownloadMessageSize(),
+                syncConfig.getDefaultVisibleLimit(),
+                syncConfig.getSyncFlags(),
+                true,
+                syncConfig.getUseServerThreading());
+    }
+
+    private void configureSyncConfigWithServerThreading() {
+        syncConfig = syncConfig.copy(
+                syncConfig.getExpungePolicy(),
+                syncConfig.getEarliestPollDate(),
+                syncConfig.getSyncRemoteDeletions(),
+                syncConfig.getMaximumAutoDownloadMessageSize(),
+                syncConfig.getDefaultVisibleLimit(),
+                syncConfig.getSyncFlags(),
+                syncConfig.getPreviewOnly(),
+                true);
     }
 
     private void configureSyncConfigWithSyncRemoteDeletionsAndEarliestPollDate(Date earliestPollDate) {
@@ -381,6 +656,8 @@ public class ImapSyncTest {
                 true,
                 syncConfig.getMaximumAutoDownloadMessageSize(),
                 syncConfig.getDefaultVisibleLimit(),
-                syncConfig.getSyncFlags());
+                syncConfig.getSyncFlags(),
+                syncConfig.getPreviewOnly(),
+                syncConfig.getUseServerThreading());
     }
 }
@@ -0,0 +1,48 @@
+package com.fsck.k9.backend.imap
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+
+class UidReconciliationTest {
+    @Test
+    fun reconcile_shouldSplitUidsIntoNewExistingAndLocalOnly() {
+        val reconciliation = UidReconciliation.reconcile(
+            localUids = longArrayOf(1, 3, 5, 9),
+            localDates = longArrayOf(100, 100, 100, 100),
+            remoteUids = longArrayOf(3, 4, 5, 10, 11),
+            earliestTimestamp = 0
+        )
+
+        assertArrayEquals(longArrayOf(4, 10, 11), reconciliation.newUids)
+        assertArrayEquals(longArrayOf(3, 5), reconciliation.existingUids)
+        assertArrayEquals(longArrayOf(1, 9), reconciliation.localOnlyUids)
+    }
+
+    @Test
+    fun reconcile_withLocalMessageOlderThanEarliestTimestamp_shouldTreatItAsLocalOnly() {
+        val reconciliation = UidReconciliation.reconcile(
+            localUids = longArrayOf(1, 2),
+            localDates = longArrayOf(50, 150),
+            remoteUids = longArrayOf(1, 2),
+            earliestTimestamp = 100
+        )
+
+        assertArrayEquals(longArrayOf(), reconciliation.newUids)
+        assertArrayEquals(longArrayOf(2), reconciliation.existingUids)
+        assertArrayEquals(longArrayOf(1), reconciliation.localOnlyUids)
+    }
+
+    @Test
+    fun reconcile_withEmptyLocalStore_shouldReturnAllRemoteUidsAsNew() {
+        val reconciliation = UidReconciliation.reconcile(
+            localUids = longArrayOf(),
+            localDates = longArrayOf(),
+            remoteUids = longArrayOf(7, 8),
+            earliestTimestamp = 0
+        )
+
+        assertArrayEquals(longArrayOf(7, 8), reconciliation.newUids)
+        assertArrayEquals(longArrayOf(), reconciliation.existingUids)
+        assertArrayEquals(longArrayOf(), reconciliation.localOnlyUids)
+    }
+}
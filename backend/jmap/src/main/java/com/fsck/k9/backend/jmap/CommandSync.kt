@@ -2,6 +2,9 @@ package com.fsck.k9.backend.jmap
 
 import com.fsck.k9.backend.api.BackendFolder
 import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.MessageSaveBuffer
+import com.fsck.k9.backend.api.SyncCancellationToken
+import com.fsck.k9.backend.api.SyncCancelledException
 import com.fsck.k9.backend.api.SyncConfig
 import com.fsck.k9.backend.api.SyncListener
 import com.fsck.k9.mail.AuthenticationFailedException
@@ -35,7 +38,12 @@ class CommandSync(
     private val httpAuthentication: HttpAuthentication
 ) {
 
-    fun sync(folderServerId: String, syncConfig: SyncConfig, listener: SyncListener) {
+    fun sync(
+        folderServerId: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
         try {
             val backendFolder = backendStorage.getFolder(folderServerId)
             listener.syncStarted(folderServerId)
@@ -44,12 +52,16 @@ class CommandSync(
 
             val queryState = backendFolder.getFolderExtraString(EXTRA_QUERY_STATE)
             if (queryState == null) {
-                fullSync(backendFolder, folderServerId, syncConfig, limit, listener)
+                fullSync(backendFolder, folderServerId, syncConfig, limit, listener, cancellationToken)
             } else {
-                deltaSync(backendFolder, folderServerId, syncConfig, limit, queryState, listener)
+                deltaSync(backendFolder, folderServerId, syncConfig, limit, queryState, listener, cancellationToken)
             }
 
             listener.syncFinished(folderServerId)
+        } catch (e: SyncCancelledException) {
+            Timber.d("Sync of %s was cancelled", folderServerId)
+
+            listener.syncCancelled(folderServerId)
         } catch (e: UnauthorizedException) {
             Timber.e(e, "Authentication failure during sync")
 
@@ -67,7 +79,8 @@ class CommandSync(
         folderServerId: String,
         syncConfig: SyncConfig,
         limit: Long?,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
     ) {
         val cachedServerIds: Set<String> = backendFolder.getMessageServerIds()
 
@@ -91,7 +104,17 @@ class CommandSync(
         val destroyServerIds = (cachedServerIds - remoteServerIds).toList()
         val newServerIds = remoteServerIds - cachedServerIds
 
-        handleFolderUpdates(backendFolder, folderServerId, destroyServerIds, newServerIds, queryState, listener)
+        handleFolderUpdates(
+            backendFolder,
+            folderServerId,
+            destroyServerIds,
+            newServerIds,
+            queryState,
+            listener,
+            cancellationToken
+        )
+
+        cancellationToken.throwIfCancelled()
 
         val refreshServerIds = cachedServerIds.intersect(remoteServerIds)
         refreshMessageFlags(backendFolder, syncConfig, refreshServerIds)
@@ -112,7 +135,8 @@ class CommandSync(
         syncConfig: SyncConfig,
         limit: Long?,
         queryState: String,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
     ) {
         Timber.d("Updating messages in %s (%s)", backendFolder.name, folderServerId)
 
@@ -132,7 +156,7 @@ class CommandSync(
                 Timber.d("Server responded with '$ERROR_CANNOT_CALCULATE_CHANGES'; switching to full sync")
 
                 backendFolder.saveQueryState(null)
-                fullSync(backendFolder, folderServerId, syncConfig, limit, listener)
+                fullSync(backendFolder, folderServerId, syncConfig, limit, listener, cancellationToken)
                 return
             }
 
@@ -151,7 +175,17 @@ class CommandSync(
         val destroyServerIds = (removedServerIds - retainedServerIds).toList()
         val newServerIds = addedServerIds - retainedServerIds
 
-        handleFolderUpdates(backendFolder, folderServerId, destroyServerIds, newServerIds, newQueryState, listener)
+        handleFolderUpdates(
+            backendFolder,
+            folderServerId,
+            destroyServerIds,
+            newServerIds,
+            newQueryState,
+            listener,
+            cancellationToken
+        )
+
+        cancellationToken.throwIfCancelled()
 
         val refreshServerIds = cachedServerIds - destroyServerIds
         refreshMessageFlags(backendFolder, syncConfig, refreshServerIds)
@@ -163,7 +197,8 @@ class CommandSync(
         destroyServerIds: List<String>,
         newServerIds: Set<String>,
         newQueryState: String?,
-        listener: SyncListener
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
     ) {
         if (destroyServerIds.isNotEmpty()) {
             Timber.d("Removing messages no longer on server: %s", destroyServerIds)
@@ -182,24 +217,44 @@ class CommandSync(
         val messageInfoList = fetchMessageInfo(session, maxObjectsInGet, newServerIds)
 
         val total = messageInfoList.size
-        messageInfoList.forEachIndexed { index, messageInfo ->
-            Timber.v("Downloading message %s (%s)", messageInfo.serverId, messageInfo.downloadUrl)
-            val message = downloadMessage(messageInfo.downloadUrl)
-            if (message != null) {
-                message.apply {
-                    uid = messageInfo.serverId
-                    setInternalSentDate(messageInfo.receivedAt)
-                    setFlags(messageInfo.flags, true)
-                }
+        var progress = 0
+        val messageSaveBuffer = MessageSaveBuffer(backendFolder)
+        val messageSavedCallback = MessageSaveBuffer.MessageSavedCallback {
+            listener.syncProgress(folderServerId, ++progress, total)
+        }
 
-                backendFolder.saveCompleteMessage(message)
-            } else {
-                Timber.d("Failed to download message: %s", messageInfo.serverId)
+        try {
+            for (messageInfo in messageInfoList) {
+                // The query state is only saved once all new messages have been downloaded
+                cancellationToken.throwIfCancelled()
+
+                Timber.v("Downloading message %s (%s)", messageInfo.serverId, messageInfo.downloadUrl)
+                val message = downloadMessage(messageInfo.downloadUrl)
+                if (message != null) {
+                    message.apply {
+                        uid = messageInfo.serverId
+                        setInternalSentDate(messageInfo.receivedAt)
+                        setFlags(messageInfo.flags, true)
+                    }
+
+                    messageSaveBuffer.saveCompleteMessage(message, messageSavedCallback)
+                } else {
+                    Timber.d("Failed to download message: %s", messageInfo.serverId)
+                    listener.syncProgress(folderServerId, ++progress, total)
+                }
             }
-
-            listener.syncProgress(folderServerId, index + 1, total)
+        } catch (e: Exception) {
+            // Keep the messages downloaded so far, but don't let a failing flush hide the original exception
+            try {
+                messageSaveBuffer.flush()
+            } catch (flushException: Exception) {
+                e.addSuppressed(flushException)
+            }
+            throw e
         }
 
+        messageSaveBuffer.flush()
+
         backendFolder.saveQueryState(newQueryState)
     }
 
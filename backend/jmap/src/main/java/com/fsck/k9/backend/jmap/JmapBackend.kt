@@ -1,7 +1,11 @@
 package com.fsck.k9.backend.jmap
 
 import com.fsck.k9.backend.api.Backend
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
 import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.backend.api.SyncCancellationToken
 import com.fsck.k9.backend.api.SyncConfig
 import com.fsck.k9.backend.api.SyncListener
 import com.fsck.k9.mail.BodyFactory
@@ -39,13 +43,21 @@ class JmapBackend(
     override val supportsSearchByDate = true
     override val isPushCapable = false // FIXME
     override val isDeleteMoveToTrash = true
+    override val maxConcurrentSyncs = 1
 
     override fun refreshFolderList() {
         commandRefreshFolderList.refreshFolderList()
     }
 
-    override fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener) {
-        commandSync.sync(folder, syncConfig, listener)
+    override fun getChangedFolders(folderServerIds: List<String>): Set<String>? = null
+
+    override fun sync(
+        folder: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
+        commandSync.sync(folder, syncConfig, listener, cancellationToken)
     }
 
     override fun downloadMessage(syncConfig: SyncConfig, folderServerId: String, messageServerId: String) {
@@ -142,6 +154,10 @@ class JmapBackend(
         checkIncomingServerSettings()
     }
 
+    override fun createPusher(callback: BackendPusherCallback, pushConfig: PushConfig): BackendPusher {
+        throw UnsupportedOperationException("not supported")
+    }
+
     private fun JmapConfig.toHttpAuthentication(): HttpAuthentication {
         return BasicAuthHttpAuthentication(username, password)
     }
@@ -1,6 +1,7 @@
 package com.fsck.k9.backend.jmap
 
 import com.fsck.k9.backend.api.FolderInfo
+import com.fsck.k9.backend.api.SyncCancellationToken
 import com.fsck.k9.backend.api.SyncConfig
 import com.fsck.k9.backend.api.SyncConfig.ExpungePolicy
 import com.fsck.k9.backend.api.updateFolders
@@ -30,7 +31,9 @@ class CommandSyncTest {
         syncRemoteDeletions = true,
         maximumAutoDownloadMessageSize = 1000,
         defaultVisibleLimit = 25,
-        syncFlags = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED)
+        syncFlags = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED),
+        previewOnly = false,
+        useServerThreading = false
     )
 
     @Before
@@ -45,7 +48,7 @@ class CommandSyncTest {
             MockResponse().setResponseCode(401)
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         assertEquals(SyncListenerEvent.SyncStarted(FOLDER_SERVER_ID), syncListener.getNextEvent())
         val failedEvent = syncListener.getNextEvent() as SyncListenerEvent.SyncFailed
@@ -64,7 +67,7 @@ class CommandSyncTest {
         val baseUrl = server.url("/jmap/")
         val command = createCommandSync(baseUrl)
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         val backendFolder = backendStorage.getFolder(FOLDER_SERVER_ID)
         backendFolder.assertMessages(
@@ -98,7 +101,7 @@ class CommandSyncTest {
             responseBodyFromResource("/jmap_responses/blob/email/email_3.eml")
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         val backendFolder = backendStorage.getFolder(FOLDER_SERVER_ID)
         assertEquals(setOf("M001", "M002", "M003", "M004", "M005"), backendFolder.getMessageServerIds())
@@ -120,7 +123,7 @@ class CommandSyncTest {
             responseBodyFromResource("/jmap_responses/email/email_get_keywords_M002.json")
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         backendFolder.assertMessages(
             "M002" to "/jmap_responses/blob/email/email_2.eml",
@@ -141,7 +144,7 @@ class CommandSyncTest {
             responseBodyFromResource("/jmap_responses/email/email_query_empty_result.json")
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         assertEquals(emptySet<String>(), backendFolder.getMessageServerIds())
         syncListener.assertSyncEvents(
@@ -164,7 +167,7 @@ class CommandSyncTest {
             responseBodyFromResource("/jmap_responses/email/email_get_keywords_M001_and_M002.json")
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         assertEquals(setOf("M001", "M002"), backendFolder.getMessageServerIds())
         assertEquals(emptySet<Flag>(), backendFolder.getMessageFlags("M001"))
@@ -192,7 +195,7 @@ class CommandSyncTest {
             responseBodyFromResource("/jmap_responses/email/email_get_keywords_M002.json")
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         assertEquals(setOf("M002", "M003"), backendFolder.getMessageServerIds())
         backendFolder.assertQueryState("51:0")
@@ -216,7 +219,7 @@ class CommandSyncTest {
             responseBodyFromResource("/jmap_responses/email/email_get_keywords_M002.json")
         )
 
-        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener)
+        command.sync(FOLDER_SERVER_ID, syncConfig, syncListener, SyncCancellationToken())
 
         assertEquals(setOf("M002", "M003"), backendFolder.getMessageServerIds())
         backendFolder.assertQueryState("50:0")
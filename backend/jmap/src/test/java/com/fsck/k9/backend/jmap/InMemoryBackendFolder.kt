@@ -60,6 +60,10 @@ class InMemoryBackendFolder(override var name: String, var type: FolderType) : B
         throw UnsupportedOperationException("not implemented")
     }
 
+    override fun forEachNumericMessageServerId(action: (messageServerId: Long, effectiveDate: Long?) -> Unit) {
+        throw UnsupportedOperationException("not implemented")
+    }
+
     override fun destroyMessages(messageServerIds: List<String>) {
         for (messageServerId in messageServerIds) {
             messages.remove(messageServerId)
@@ -108,6 +112,14 @@ class InMemoryBackendFolder(override var name: String, var type: FolderType) : B
         }
     }
 
+    override fun setMessageFlags(messageFlags: Map<String, Set<Flag>>, flags: Set<Flag>) {
+        for ((messageServerId, newFlags) in messageFlags) {
+            for (flag in flags) {
+                setMessageFlag(messageServerId, flag, flag in newFlags)
+            }
+        }
+    }
+
     override fun savePartialMessage(message: Message) {
         val messageServerId = checkNotNull(message.uid)
         messages[messageServerId] = message
@@ -120,6 +132,22 @@ class InMemoryBackendFolder(override var name: String, var type: FolderType) : B
         messageFlags[messageServerId] = message.flags.toMutableSet()
     }
 
+    override fun savePartialMessages(messages: List<Message>) {
+        messages.forEach { savePartialMessage(it) }
+    }
+
+    override fun saveCompleteMessages(messages: List<Message>) {
+        messages.forEach { saveCompleteMessage(it) }
+    }
+
+    override fun setMessageThreadingEnabled(enabled: Boolean) {
+        throw UnsupportedOperationException("not implemented")
+    }
+
+    override fun saveThreadStructure(parentMessageServerIds: Map<String, String?>) {
+        throw UnsupportedOperationException("not implemented")
+    }
+
     override fun getOldestMessageDate(): Date? {
         throw UnsupportedOperationException("not implemented")
     }
@@ -78,6 +78,10 @@ class LoggingSyncListener : SyncListener {
         events.add(SyncListenerEvent.SyncFailed(folderServerId, message, exception))
     }
 
+    override fun syncCancelled(folderServerId: String) {
+        events.add(SyncListenerEvent.SyncCancelled(folderServerId))
+    }
+
     override fun folderStatusChanged(folderServerId: String) {
         throw UnsupportedOperationException("not implemented")
     }
@@ -86,6 +90,7 @@ class LoggingSyncListener : SyncListener {
 sealed class SyncListenerEvent {
     data class SyncStarted(val folderServerId: String) : SyncListenerEvent()
     data class SyncFinished(val folderServerId: String) : SyncListenerEvent()
+    data class SyncCancelled(val folderServerId: String) : SyncListenerEvent()
     data class SyncFailed(
         val folderServerId: String,
         val message: String,
@@ -1,7 +1,11 @@
 package com.fsck.k9.backend.pop3
 
 import com.fsck.k9.backend.api.Backend
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
 import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.backend.api.SyncCancellationToken
 import com.fsck.k9.backend.api.SyncConfig
 import com.fsck.k9.backend.api.SyncListener
 import com.fsck.k9.mail.BodyFactory
@@ -32,13 +36,21 @@ class Pop3Backend(
     override val supportsSearchByDate = false
     override val isPushCapable = false
     override val isDeleteMoveToTrash = false
+    override val maxConcurrentSyncs = 1
 
     override fun refreshFolderList() {
         commandRefreshFolderList.refreshFolderList()
     }
 
-    override fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener) {
-        pop3Sync.sync(folder, syncConfig, listener)
+    override fun getChangedFolders(folderServerIds: List<String>): Set<String>? = null
+
+    override fun sync(
+        folder: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
+        pop3Sync.sync(folder, syncConfig, listener, cancellationToken)
     }
 
     override fun downloadMessage(syncConfig: SyncConfig, folderServerId: String, messageServerId: String) {
@@ -135,4 +147,8 @@ class Pop3Backend(
     override fun checkOutgoingServerSettings() {
         smtpTransport.checkSettings()
     }
+
+    override fun createPusher(callback: BackendPusherCallback, pushConfig: PushConfig): BackendPusher {
+        throw UnsupportedOperationException("not supported")
+    }
 }
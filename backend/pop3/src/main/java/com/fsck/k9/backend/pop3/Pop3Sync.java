@@ -4,6 +4,9 @@ package com.fsck.k9.backend.pop3;
 import com.fsck.k9.backend.api.BackendFolder;
 import com.fsck.k9.backend.api.BackendFolder.MoreMessages;
 import com.fsck.k9.backend.api.BackendStorage;
+import com.fsck.k9.backend.api.MessageSaveBuffer;
+import com.fsck.k9.backend.api.SyncCancellationToken;
+import com.fsck.k9.backend.api.SyncCancelledException;
 import com.fsck.k9.backend.api.SyncConfig;
 import com.fsck.k9.backend.api.SyncListener;
 import com.fsck.k9.helper.ExceptionHelper;
@@ -42,11 +45,12 @@ class Pop3Sync {
         this.remoteStore = pop3Store;
     }
 
-    void sync(String folder, SyncConfig syncConfig, SyncListener listener) {
-        synchronizeMailboxSynchronous(folder, syncConfig, listener);
+    void sync(String folder, SyncConfig syncConfig, SyncListener listener, SyncCancellationToken cancellationToken) {
+        synchronizeMailboxSynchronous(folder, syncConfig, listener, cancellationToken);
     }
 
-    void synchronizeMailboxSynchronous(String folder, SyncConfig syncConfig, SyncListener listener) {
+    void synchronizeMailboxSynchronous(String folder, SyncConfig syncConfig, SyncListener listener,
+            SyncCancellationToken cancellationToken) {
         Pop3Folder remoteFolder = null;
 
         Timber.i("Synchronizing folder %s:%s", accountName, folder);
@@ -188,8 +192,10 @@ class Pop3Sync {
             /*
              * Now we download the actual content of messages.
              */
+            cancellationToken.throwIfCancelled();
+
             int newMessages = downloadMessages(syncConfig, remoteFolder, backendFolder, remoteMessages,
-                    listener);
+                    listener, cancellationToken);
 
             listener.folderStatusChanged(folder);
 
@@ -208,6 +214,11 @@ class Pop3Sync {
 
             Timber.i("Done synchronizing folder %s:%s", accountName, folder);
 
+        } catch (SyncCancelledException e) {
+            Timber.i("Cancelled synchronizing folder %s:%s", accountName, folder);
+
+            // Don't update the last checked time so the folder is synchronized again soon
+            listener.syncCancelled(folder);
         } catch (AuthenticationFailedException e) {
             listener.syncFailed(folder, "Authentication failure", e);
         } catch (Exception e) {
@@ -251,7 +262,7 @@ class Pop3Sync {
 
     private int downloadMessages(final SyncConfig syncConfig, final Pop3Folder remoteFolder,
             final BackendFolder backendFolder, List<Pop3Message> inputMessages,
-            final SyncListener listener) throws MessagingException {
+            final SyncListener listener, SyncCancellationToken cancellationToken) throws MessagingException {
 
         final Date earliestDate = syncConfig.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -303,6 +314,8 @@ class Pop3Sync {
                 largeMessages.size(), smallMessages.size(), unsyncedMessages.size());
 
         unsyncedMessages.clear();
+
+        cancellationToken.throwIfCancelled();
         /*
          * Grab the content of the small messages first. This is going to
          * be very fast and at very worst will be a single up of a few bytes and a single
@@ -313,14 +326,16 @@ class Pop3Sync {
         fp.add(FetchProfile.Item.BODY);
         //        fp.add(FetchProfile.Item.FLAGS);
         //        fp.add(FetchProfile.Item.ENVELOPE);
-        downloadSmallMessages(remoteFolder, backendFolder, smallMessages, progress, newMessages, todo, fp, listener);
+        downloadSmallMessages(remoteFolder, backendFolder, smallMessages, progress, newMessages, todo, fp, listener,
+                cancellationToken);
         smallMessages.clear();
         /*
          * Now do the large messages that require more round trips.
          */
         fp = new FetchProfile();
         fp.add(FetchProfile.Item.STRUCTURE);
-        downloadLargeMessages(syncConfig, remoteFolder, backendFolder, largeMessages, progress, newMessages, todo, fp, listener);
+        downloadLargeMessages(syncConfig, remoteFolder, backendFolder, largeMessages, progress, newMessages, todo, fp,
+                listener, cancellationToken);
         largeMessages.clear();
 
         Timber.d("SYNC: Synced remote messages for folder %s, %d new messages", folder, newMessages.get());
@@ -468,50 +483,65 @@ class Pop3Sync {
             final AtomicInteger newMessages,
             final int todo,
             FetchProfile fp,
-            final SyncListener listener) throws MessagingException {
+            final SyncListener listener,
+            SyncCancellationToken cancellationToken) throws MessagingException {
         final String folder = remoteFolder.getServerId();
 
         Timber.d("SYNC: Fetching %d small messages for folder %s", smallMessages.size(), folder);
 
-        remoteFolder.fetch(smallMessages,
-                fp, new MessageRetrievalListener<Pop3Message>() {
-                    @Override
-                    public void messageFinished(final Pop3Message message, int number, int ofTotal) {
-                        try {
-
-                            // Store the updated message locally
-                            backendFolder.saveCompleteMessage(message);
-                            progress.incrementAndGet();
+        final MessageSaveBuffer messageSaveBuffer = new MessageSaveBuffer(backendFolder);
+        MessageRetrievalListener<Pop3Message> retrievalListener = new MessageRetrievalListener<Pop3Message>() {
+            @Override
+            public void messageFinished(final Pop3Message message, int number, int ofTotal) {
+                try {
+                    // Store the updated message locally. Listeners are notified once it has been written.
+                    messageSaveBuffer.saveCompleteMessage(message, savedMessage -> {
+                        progress.incrementAndGet();
+
+                        // Increment the number of "new messages" if the newly downloaded message is
+                        // not marked as read.
+                        if (!message.isSet(Flag.SEEN)) {
+                            newMessages.incrementAndGet();
+                        }
 
-                            // Increment the number of "new messages" if the newly downloaded message is
-                            // not marked as read.
-                            if (!message.isSet(Flag.SEEN)) {
-                                newMessages.incrementAndGet();
-                            }
+                        String messageServerId = message.getUid();
+                        Timber.v("About to notify listeners that we got a new small message %s:%s:%s",
+                                accountName, folder, messageServerId);
 
-                            String messageServerId = message.getUid();
-                            Timber.v("About to notify listeners that we got a new small message %s:%s:%s",
-                                    accountName, folder, messageServerId);
+                        // Update the listener with what we've found
+                        listener.syncProgress(folder, progress.get(), todo);
 
-                            // Update the listener with what we've found
-                            listener.syncProgress(folder, progress.get(), todo);
+                        boolean isOldMessage = isOldMessage(backendFolder, message);
+                        listener.syncNewMessage(folder, messageServerId, isOldMessage);
+                    });
+                } catch (Exception e) {
+                    Timber.e(e, "SYNC: fetch small messages");
+                }
+            }
 
-                            boolean isOldMessage = isOldMessage(backendFolder, message);
-                            listener.syncNewMessage(folder, messageServerId, isOldMessage);
-                        } catch (Exception e) {
-                            Timber.e(e, "SYNC: fetch small messages");
-                        }
-                    }
+            @Override
+            public void messageStarted(String uid, int number, int ofTotal) {
+            }
 
-                    @Override
-                    public void messageStarted(String uid, int number, int ofTotal) {
-                    }
+            @Override
+            public void messagesFinished(int total) {
+            }
+        };
 
-                    @Override
-                    public void messagesFinished(int total) {
-                    }
-                },
-                -1);
+        // POP3 retrieves one message per command anyway, so fetching them one by one costs nothing and allows the
+        // sync to be cancelled between messages.
+        try {
+            for (Pop3Message message : smallMessages) {
+                cancellationToken.throwIfCancelled();
+                remoteFolder.fetch(Collections.singletonList(message), fp, retrievalListener, -1);
+            }
+        } finally {
+            try {
+                messageSaveBuffer.flush();
+            } catch (Exception e) {
+                Timber.e(e, "SYNC: fetch small messages");
+            }
+        }
 
         Timber.d("SYNC: Done fetching small messages for folder %s", folder);
     }
@@ -529,7 +559,8 @@ class Pop3Sync {
             final AtomicInteger newMessages,
             final int todo,
             FetchProfile fp,
-            SyncListener listener) throws MessagingException {
+            SyncListener listener,
+            SyncCancellationToken cancellationToken) throws MessagingException {
         final String folder = remoteFolder.getServerId();
 
         Timber.d("SYNC: Fetching large messages for folder %s", folder);
@@ -537,6 +568,7 @@ class Pop3Sync {
         int maxDownloadSize = syncConfig.getMaximumAutoDownloadMessageSize();
         remoteFolder.fetch(largeMessages, fp, null, maxDownloadSize);
         for (Pop3Message message : largeMessages) {
+            cancellationToken.throwIfCancelled();
 
             downloadSaneBody(syncConfig, remoteFolder, backendFolder, message);
 
@@ -1,7 +1,11 @@
 package com.fsck.k9.backend.webdav
 
 import com.fsck.k9.backend.api.Backend
+import com.fsck.k9.backend.api.BackendPusher
+import com.fsck.k9.backend.api.BackendPusherCallback
 import com.fsck.k9.backend.api.BackendStorage
+import com.fsck.k9.backend.api.PushConfig
+import com.fsck.k9.backend.api.SyncCancellationToken
 import com.fsck.k9.backend.api.SyncConfig
 import com.fsck.k9.backend.api.SyncListener
 import com.fsck.k9.mail.BodyFactory
@@ -36,13 +40,21 @@ class WebDavBackend(
     override val supportsSearchByDate = false
     override val isPushCapable = false
     override val isDeleteMoveToTrash = true
+    override val maxConcurrentSyncs = 1
 
     override fun refreshFolderList() {
         commandGetFolders.refreshFolderList()
     }
 
-    override fun sync(folder: String, syncConfig: SyncConfig, listener: SyncListener) {
-        webDavSync.sync(folder, syncConfig, listener)
+    override fun getChangedFolders(folderServerIds: List<String>): Set<String>? = null
+
+    override fun sync(
+        folder: String,
+        syncConfig: SyncConfig,
+        listener: SyncListener,
+        cancellationToken: SyncCancellationToken
+    ) {
+        webDavSync.sync(folder, syncConfig, listener, cancellationToken)
     }
 
     override fun downloadMessage(syncConfig: SyncConfig, folderServerId: String, messageServerId: String) {
@@ -145,4 +157,8 @@ class WebDavBackend(
     override fun checkOutgoingServerSettings() {
         webDavTransport.checkSettings()
     }
+
+    override fun createPusher(callback: BackendPusherCallback, pushConfig: PushConfig): BackendPusher {
+        throw UnsupportedOperationException("not supported")
+    }
 }
@@ -4,6 +4,9 @@ package com.fsck.k9.backend.webdav;
 import com.fsck.k9.backend.api.BackendFolder;
 import com.fsck.k9.backend.api.BackendFolder.MoreMessages;
 import com.fsck.k9.backend.api.BackendStorage;
+import com.fsck.k9.backend.api.MessageSaveBuffer;
+import com.fsck.k9.backend.api.SyncCancellationToken;
+import com.fsck.k9.backend.api.SyncCancelledException;
 import com.fsck.k9.backend.api.SyncConfig;
 import com.fsck.k9.backend.api.SyncListener;
 import com.fsck.k9.helper.ExceptionHelper;
@@ -41,11 +44,12 @@ class WebDavSync {
         this.remoteStore = webDavStore;
     }
 
-    void sync(String folder, SyncConfig syncConfig, SyncListener listener) {
-        synchronizeMailboxSynchronous(folder, syncConfig, listener);
+    void sync(String folder, SyncConfig syncConfig, SyncListener listener, SyncCancellationToken cancellationToken) {
+        synchronizeMailboxSynchronous(folder, syncConfig, listener, cancellationToken);
     }
 
-    void synchronizeMailboxSynchronous(String folder, SyncConfig syncConfig, SyncListener listener) {
+    void synchronizeMailboxSynchronous(String folder, SyncConfig syncConfig, SyncListener listener,
+            SyncCancellationToken cancellationToken) {
         WebDavFolder remoteFolder = null;
 
         Timber.i("Synchronizing folder %s:%s", accountName, folder);
@@ -187,8 +191,10 @@ class WebDavSync {
             /*
              * Now we download the actual content of messages.
              */
+            cancellationToken.throwIfCancelled();
+
             int newMessages = downloadMessages(syncConfig, remoteFolder, backendFolder, remoteMessages,
-                    listener);
+                    listener, cancellationToken);
 
             listener.folderStatusChanged(folder);
 
@@ -207,6 +213,11 @@ class WebDavSync {
 
             Timber.i("Done synchronizing folder %s:%s", accountName, folder);
 
+        } catch (SyncCancelledException e) {
+            Timber.i("Cancelled synchronizing folder %s:%s", accountName, folder);
+
+            // Don't update the last checked time so the folder is synchronized again soon
+            listener.syncCancelled(folder);
         } catch (AuthenticationFailedException e) {
             listener.syncFailed(folder, "Authentication failure", e);
         } catch (Exception e) {
@@ -250,7 +261,7 @@ class WebDavSync {
 
     private int downloadMessages(final SyncConfig syncConfig, final WebDavFolder remoteFolder,
             final BackendFolder backendFolder, List<WebDavMessage> inputMessages,
-            final SyncListener listener) throws MessagingException {
+            final SyncListener listener, SyncCancellationToken cancellationToken) throws MessagingException {
 
         final Date earliestDate = syncConfig.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -303,6 +314,8 @@ class WebDavSync {
                 largeMessages.size(), smallMessages.size(), unsyncedMessages.size());
 
         unsyncedMessages.clear();
+
+        cancellationToken.throwIfCancelled();
         /*
          * Grab the content of the small messages first. This is going to
          * be very fast and at very worst will be a single up of a few bytes and a single
@@ -315,14 +328,19 @@ class WebDavSync {
         //        fp.add(FetchProfile.Item.ENVELOPE);
         downloadSmallMessages(remoteFolder, backendFolder, smallMessages, progress, newMessages, todo, fp, listener);
         smallMessages.clear();
+
+        cancellationToken.throwIfCancelled();
         /*
          * Now do the large messages that require more round trips.
          */
         fp = new FetchProfile();
         fp.add(FetchProfile.Item.STRUCTURE);
-        downloadLargeMessages(syncConfig, remoteFolder, backendFolder, largeMessages, progress, newMessages, todo, fp, listener);
+        downloadLargeMessages(syncConfig, remoteFolder, backendFolder, largeMessages, progress, newMessages, todo, fp,
+                listener, cancellationToken);
         largeMessages.clear();
 
+        cancellationToken.throwIfCancelled();
+
         /*
          * Refresh the flags for any messages in the local store that we didn't just
          * download.
@@ -459,44 +477,55 @@ class WebDavSync {
 
         Timber.d("SYNC: Fetching %d small messages for folder %s", smallMessages.size(), folder);
 
-        remoteFolder.fetch(smallMessages,
-                fp, new MessageRetrievalListener<WebDavMessage>() {
-                    @Override
-                    public void messageFinished(final WebDavMessage message, int number, int ofTotal) {
-                        try {
+        final MessageSaveBuffer messageSaveBuffer = new MessageSaveBuffer(backendFolder);
+        final MessageSaveBuffer.MessageSavedCallback messageSavedCallback = message -> {
+            progress.incrementAndGet();
 
-                            // Store the updated message locally
-                            backendFolder.saveCompleteMessage(message);
-                            progress.incrementAndGet();
+            // Increment the number of "new messages" if the newly downloaded message is
+            // not marked as read.
+            if (!message.isSet(Flag.SEEN)) {
+                newMessages.incrementAndGet();
+            }
 
-                            // Increment the number of "new messages" if the newly downloaded message is
-                            // not marked as read.
-                            if (!message.isSet(Flag.SEEN)) {
-                                newMessages.incrementAndGet();
-                            }
+            String messageServerId = message.getUid();
+            Timber.v("About to notify listeners that we got a new small message %s:%s:%s",
+                    accountName, folder, messageServerId);
 
-                            String messageServerId = message.getUid();
-                            Timber.v("About to notify listeners that we got a new small message %s:%s:%s",
-                                    accountName, folder, messageServerId);
+            // Update the listener with what we've found
+            listener.syncProgress(folder, progress.get(), todo);
 
-                            // Update the listener with what we've found
-                            listener.syncProgress(folder, progress.get(), todo);
+            listener.syncNewMessage(folder, messageServerId, false);
+        };
 
-                            listener.syncNewMessage(folder, messageServerId, false);
-                        } catch (Exception e) {
-                            Timber.e(e, "SYNC: fetch small messages");
+        try {
+            remoteFolder.fetch(smallMessages,
+                    fp, new MessageRetrievalListener<WebDavMessage>() {
+                        @Override
+                        public void messageFinished(final WebDavMessage message, int number, int ofTotal) {
+                            try {
+                                // Store the updated message locally
+                                messageSaveBuffer.saveCompleteMessage(message, messageSavedCallback);
+                            } catch (Exception e) {
+                                Timber.e(e, "SYNC: fetch small messages");
+                            }
                         }
-                    }
 
-                    @Override
-                    public void messageStarted(String uid, int number, int ofTotal) {
-                    }
+                        @Override
+                        public void messageStarted(String uid, int number, int ofTotal) {
+                        }
 
-                    @Override
-                    public void messagesFinished(int total) {
-                    }
-                },
-                -1);
+                        @Override
+                        public void messagesFinished(int total) {
+                        }
+                    },
+                    -1);
+        } finally {
+            try {
+                messageSaveBuffer.flush();
+            } catch (Exception e) {
+                Timber.e(e, "SYNC: fetch small messages");
+            }
+        }
 
         Timber.d("SYNC: Done fetching small messages for folder %s", folder);
     }
@@ -510,7 +539,8 @@ class WebDavSync {
             final AtomicInteger newMessages,
             final int todo,
             FetchProfile fp,
-            SyncListener listener) throws MessagingException {
+            SyncListener listener,
+            SyncCancellationToken cancellationToken) throws MessagingException {
         final String folder = remoteFolder.getServerId();
 
         Timber.d("SYNC: Fetching large messages for folder %s", folder);
@@ -518,6 +548,8 @@ class WebDavSync {
         int maxDownloadSize = syncConfig.getMaximumAutoDownloadMessageSize();
         remoteFolder.fetch(largeMessages, fp, null, maxDownloadSize);
         for (WebDavMessage message : largeMessages) {
+            cancellationToken.throwIfCancelled();
+
             downloadSaneBody(syncConfig, remoteFolder, backendFolder, message);
 
             String messageServerId = message.getUid();
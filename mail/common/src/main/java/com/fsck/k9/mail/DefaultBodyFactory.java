@@ -1,6 +1,7 @@
 package com.fsck.k9.mail;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,11 +9,19 @@ import java.io.OutputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.BinaryTempFileMessageBody;
 import com.fsck.k9.mail.internet.MimeUtility;
+import com.fsck.k9.mailstore.BinaryMemoryBody;
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.util.MimeUtil;
 
 
 public class DefaultBodyFactory implements BodyFactory {
+    /**
+     * Bodies up to this size are kept in memory instead of being written to a temporary file. This matches the size
+     * up to which the message store saves bodies in the database, so small bodies are never written to disk.
+     */
+    private static final int MAX_MEMORY_BODY_SIZE = 16 * 1024;
+
+
     public Body createBody(String contentTransferEncoding, String contentType, InputStream inputStream)
             throws IOException {
 
@@ -20,24 +29,95 @@ public class DefaultBodyFactory implements BodyFactory {
             contentTransferEncoding = MimeUtility.getHeaderParameter(contentTransferEncoding, null);
         }
 
-        final BinaryTempFileBody tempBody;
         if (MimeUtil.isMessage(contentType)) {
-            tempBody = new BinaryTempFileMessageBody(contentTransferEncoding);
-        } else {
-            tempBody = new BinaryTempFileBody(contentTransferEncoding);
+            BinaryTempFileBody tempBody = new BinaryTempFileMessageBody(contentTransferEncoding);
+            OutputStream outputStream = tempBody.getOutputStream();
+            try {
+                copyData(inputStream, outputStream);
+            } finally {
+                outputStream.close();
+            }
+
+            return tempBody;
         }
 
-        OutputStream outputStream = tempBody.getOutputStream();
+        MemoryOrTempFileOutputStream outputStream = new MemoryOrTempFileOutputStream(contentTransferEncoding);
         try {
             copyData(inputStream, outputStream);
         } finally {
             outputStream.close();
         }
 
-        return tempBody;
+        return outputStream.getBody();
     }
 
     protected void copyData(InputStream inputStream, OutputStream outputStream) throws IOException {
         IOUtils.copy(inputStream, outputStream);
     }
+
+
+    /**
+     * Buffers data in memory and only switches to a {@link BinaryTempFileBody} once more than
+     * {@link #MAX_MEMORY_BODY_SIZE} bytes have been written.
+     */
+    private static class MemoryOrTempFileOutputStream extends OutputStream {
+        private final String encoding;
+        private ByteArrayOutputStream memoryOutputStream = new ByteArrayOutputStream();
+        private BinaryTempFileBody tempBody;
+        private OutputStream tempFileOutputStream;
+
+
+        MemoryOrTempFileOutputStream(String encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getOutputStreamFor(1).write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            getOutputStreamFor(len).write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (tempFileOutputStream != null) {
+                tempFileOutputStream.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (tempFileOutputStream != null) {
+                tempFileOutputStream.close();
+            }
+        }
+
+        Body getBody() {
+            if (tempBody != null) {
+                return tempBody;
+            }
+
+            return new BinaryMemoryBody(memoryOutputStream.toByteArray(), encoding);
+        }
+
+        private OutputStream getOutputStreamFor(int length) throws IOException {
+            if (tempFileOutputStream != null) {
+                return tempFileOutputStream;
+            }
+
+            if (memoryOutputStream.size() + length <= MAX_MEMORY_BODY_SIZE) {
+                return memoryOutputStream;
+            }
+
+            tempBody = new BinaryTempFileBody(encoding);
+            tempFileOutputStream = tempBody.getOutputStream();
+            memoryOutputStream.writeTo(tempFileOutputStream);
+            memoryOutputStream = null;
+
+            return tempFileOutputStream;
+        }
+    }
 }
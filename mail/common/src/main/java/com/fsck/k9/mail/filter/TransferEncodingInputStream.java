@@ -0,0 +1,107 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.internet.MimeUtility;
+import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
+import org.apache.james.mime4j.util.MimeUtil;
+
+
+/**
+ * Reads decoded data and returns it encoded with the given content transfer encoding.
+ * <p>
+ * Used to encode data an IMAP server decoded for us ({@code BINARY[…]}, RFC 3516) to the encoding in the part's
+ * {@code Content-Transfer-Encoding} header again. That keeps the part 7-bit safe, e.g. when the message is forwarded as
+ * attachment or uploaded to another folder.
+ * </p>
+ */
+public class TransferEncodingInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream decodedInputStream;
+    private final ByteArrayOutputStream encodedOutputStream = new ByteArrayOutputStream();
+    private final OutputStream encoderOutputStream;
+    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    private byte[] encodedData = new byte[0];
+    private int position = 0;
+    private boolean endOfInput = false;
+
+
+    /**
+     * @param contentTransferEncoding The value of the part's {@code Content-Transfer-Encoding} header. Must be
+     *         {@code base64} or {@code quoted-printable}.
+     */
+    public TransferEncodingInputStream(InputStream decodedInputStream, String contentTransferEncoding) {
+        this.decodedInputStream = decodedInputStream;
+
+        String encoding = MimeUtility.getHeaderParameter(contentTransferEncoding, null);
+        if (MimeUtil.ENC_BASE64.equalsIgnoreCase(encoding)) {
+            encoderOutputStream = new Base64OutputStream(encodedOutputStream);
+        } else if (MimeUtil.ENC_QUOTED_PRINTABLE.equalsIgnoreCase(encoding)) {
+            encoderOutputStream = new QuotedPrintableOutputStream(encodedOutputStream, false);
+        } else {
+            throw new IllegalArgumentException("Unsupported content transfer encoding: " + contentTransferEncoding);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
+        }
+
+        return encodedData[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!fillBuffer()) {
+            return -1;
+        }
+
+        int count = Math.min(length, encodedData.length - position);
+        System.arraycopy(encodedData, position, buffer, offset, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        decodedInputStream.close();
+    }
+
+    /**
+     * @return {@code false} if all encoded data has been read.
+     */
+    private boolean fillBuffer() throws IOException {
+        while (position == encodedData.length) {
+            if (endOfInput) {
+                return false;
+            }
+
+            int bytesRead = decodedInputStream.read(readBuffer);
+            if (bytesRead == -1) {
+                // Flushes the remaining encoder state, e.g. base64 padding
+                encoderOutputStream.close();
+                endOfInput = true;
+            } else {
+                encoderOutputStream.write(readBuffer, 0, bytesRead);
+            }
+
+            encodedData = encodedOutputStream.toByteArray();
+            encodedOutputStream.reset();
+            position = 0;
+        }
+
+        return true;
+    }
+}
@@ -2,19 +2,23 @@ package com.fsck.k9.mailstore;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.Base64OutputStream;
 import com.fsck.k9.mail.internet.RawDataBody;
 import com.fsck.k9.mail.internet.SizeAware;
+import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
+import org.apache.james.mime4j.util.MimeUtil;
 
 
 public class BinaryMemoryBody implements Body, RawDataBody, SizeAware {
-    private final byte[] data;
-    private final String encoding;
+    private byte[] data;
+    private String encoding;
 
     public BinaryMemoryBody(byte[] data, String encoding) {
         this.data = data;
@@ -33,7 +37,34 @@ public class BinaryMemoryBody implements Body, RawDataBody, SizeAware {
 
     @Override
     public void setEncoding(String encoding) throws MessagingException {
-        throw new RuntimeException("nope"); //FIXME
+        if (this.encoding != null && this.encoding.equalsIgnoreCase(encoding)) {
+            return;
+        }
+
+        // The encoding changed, so we need to convert the body
+        if (!MimeUtil.ENC_8BIT.equalsIgnoreCase(this.encoding)) {
+            throw new RuntimeException("Can't convert from encoding: " + this.encoding);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            OutputStream wrappedOut;
+            if (MimeUtil.ENC_QUOTED_PRINTABLE.equals(encoding)) {
+                wrappedOut = new QuotedPrintableOutputStream(out, false);
+            } else if (MimeUtil.ENC_BASE64.equals(encoding)) {
+                wrappedOut = new Base64OutputStream(out);
+            } else {
+                throw new RuntimeException("Target encoding not supported: " + encoding);
+            }
+
+            wrappedOut.write(data);
+            wrappedOut.close();
+        } catch (IOException e) {
+            throw new MessagingException("Unable to convert body", e);
+        }
+
+        data = out.toByteArray();
+        this.encoding = encoding;
     }
 
     @Override
@@ -45,4 +76,8 @@ public class BinaryMemoryBody implements Body, RawDataBody, SizeAware {
     public long getSize() {
         return data.length;
     }
+
+    public byte[] getData() {
+        return data;
+    }
 }
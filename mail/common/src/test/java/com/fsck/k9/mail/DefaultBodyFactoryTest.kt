@@ -0,0 +1,48 @@
+package com.fsck.k9.mail
+
+import com.fsck.k9.mail.internet.BinaryTempFileBody
+import com.fsck.k9.mail.internet.BinaryTempFileMessageBody
+import com.fsck.k9.mailstore.BinaryMemoryBody
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(K9LibRobolectricTestRunner::class)
+class DefaultBodyFactoryTest {
+    private val bodyFactory = DefaultBodyFactory()
+
+    @Before
+    fun setUp() {
+        BinaryTempFileBody.setTempDirectory(RuntimeEnvironment.application.cacheDir)
+    }
+
+    @Test
+    fun createBody_withSmallBody_shouldKeepBodyInMemory() {
+        val data = ByteArray(16 * 1024) { 'a'.toByte() }
+
+        val body = bodyFactory.createBody("7bit", "text/plain", data.inputStream())
+
+        assertThat(body).isInstanceOf(BinaryMemoryBody::class.java)
+        assertThat((body as BinaryMemoryBody).data).isEqualTo(data)
+        assertThat(body.encoding).isEqualTo("7bit")
+    }
+
+    @Test
+    fun createBody_withLargeBody_shouldWriteBodyToTemporaryFile() {
+        val data = ByteArray(16 * 1024 + 1) { 'a'.toByte() }
+
+        val body = bodyFactory.createBody("7bit", "text/plain", data.inputStream())
+
+        assertThat(body).isInstanceOf(BinaryTempFileBody::class.java)
+        assertThat((body as BinaryTempFileBody).file.readBytes()).isEqualTo(data)
+    }
+
+    @Test
+    fun createBody_withMessage_shouldAlwaysUseTemporaryFile() {
+        val body = bodyFactory.createBody("7bit", "message/rfc822", "Subject: test\r\n\r\n".byteInputStream())
+
+        assertThat(body).isInstanceOf(BinaryTempFileMessageBody::class.java)
+    }
+}
@@ -0,0 +1,65 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import okio.Buffer;
+import okio.ByteString;
+import okio.Okio;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class TransferEncodingInputStreamTest {
+    @Test
+    public void readingStream_withBase64_shouldReturnBase64EncodedData() throws Exception {
+        TransferEncodingInputStream inputStream = new TransferEncodingInputStream(inputStream("Hello world"), "base64");
+
+        String readString = readStreamAsUtf8String(inputStream);
+
+        assertEquals("SGVsbG8gd29ybGQ=", readString.trim());
+    }
+
+    @Test
+    public void readingStream_withQuotedPrintable_shouldReturnQuotedPrintableEncodedData() throws Exception {
+        TransferEncodingInputStream inputStream =
+                new TransferEncodingInputStream(inputStream("a=b"), "Quoted-Printable");
+
+        String readString = readStreamAsUtf8String(inputStream);
+
+        assertEquals("a=3Db", readString.trim());
+    }
+
+    @Test
+    public void readingStream_withDataLargerThanBuffer_shouldEncodeAllData() throws Exception {
+        Buffer decodedData = new Buffer();
+        for (int i = 0; i < 10000; i++) {
+            decodedData.writeByte(i);
+        }
+        ByteString expected = decodedData.snapshot();
+        TransferEncodingInputStream inputStream = new TransferEncodingInputStream(decodedData.inputStream(), "base64");
+
+        byte[] encoded = Okio.buffer(Okio.source(inputStream)).readByteArray();
+
+        assertEquals(expected, decodeBase64(encoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_withUnsupportedEncoding_shouldThrow() {
+        new TransferEncodingInputStream(inputStream("data"), "8bit");
+    }
+
+    private ByteString decodeBase64(byte[] encoded) {
+        return ByteString.decodeBase64(new String(encoded).replace("\r\n", ""));
+    }
+
+    private String readStreamAsUtf8String(InputStream inputStream) throws IOException {
+        return Okio.buffer(Okio.source(inputStream)).readUtf8();
+    }
+
+    private InputStream inputStream(String data) {
+        return new Buffer().writeUtf8(data).inputStream();
+    }
+}
@@ -0,0 +1,44 @@
+package com.fsck.k9.mailstore
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+
+class BinaryMemoryBodyTest {
+    @Test
+    fun setEncoding_withSameEncoding_shouldNotChangeData() {
+        val body = BinaryMemoryBody("Grüße".toByteArray(), "8bit")
+
+        body.setEncoding("8bit")
+
+        assertThat(body.encoding).isEqualTo("8bit")
+        assertThat(String(body.data)).isEqualTo("Grüße")
+    }
+
+    @Test
+    fun setEncoding_from8bitToQuotedPrintable_shouldEncodeData() {
+        val body = BinaryMemoryBody("Grüße".toByteArray(), "8bit")
+
+        body.setEncoding("quoted-printable")
+
+        assertThat(body.encoding).isEqualTo("quoted-printable")
+        assertThat(String(body.data)).isEqualTo("Gr=C3=BC=C3=9Fe")
+        assertThat(body.size).isEqualTo(body.data.size.toLong())
+    }
+
+    @Test
+    fun setEncoding_from8bitToBase64_shouldEncodeData() {
+        val body = BinaryMemoryBody("Grüße".toByteArray(), "8bit")
+
+        body.setEncoding("base64")
+
+        assertThat(body.encoding).isEqualTo("base64")
+        assertThat(String(body.data).trim()).isEqualTo("R3LDvMOfZQ==")
+    }
+
+    @Test(expected = RuntimeException::class)
+    fun setEncoding_fromBase64_shouldThrow() {
+        val body = BinaryMemoryBody("R3LDvMOfZQ==".toByteArray(), "base64")
+
+        body.setEncoding("quoted-printable")
+    }
+}
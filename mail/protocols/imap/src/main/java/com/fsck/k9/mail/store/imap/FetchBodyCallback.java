@@ -8,6 +8,10 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 
 
+/**
+ * Parses {@code BODY[…]} literals of {@code FETCH} responses straight from the network stream into the matching
+ * message, so the literal is never buffered as a {@code String}.
+ */
 class FetchBodyCallback implements ImapResponseCallback {
     private Map<String, ImapMessage> mMessageMap;
 
@@ -21,9 +25,18 @@ class FetchBodyCallback implements ImapResponseCallback {
         if (response.getTag() == null &&
                 ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
             ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-            String uid = fetchList.getKeyedString("UID");
+            if (!isBodySectionLiteral(fetchList)) {
+                // e.g. a literal inside BODYSTRUCTURE. Let the parser return it as string.
+                return null;
+            }
 
+            String uid = fetchList.getKeyedString("UID");
             ImapMessage message = mMessageMap.get(uid);
+            if (message == null) {
+                // The UID is unknown or will only be sent after the literal
+                return null;
+            }
+
             message.parse(literal);
 
             // Return placeholder object
@@ -31,4 +44,21 @@ class FetchBodyCallback implements ImapResponseCallback {
         }
         return null;
     }
+
+    /**
+     * Checks whether the literal currently being read is the value of a {@code BODY[<section>]<<origin>>} item, i.e.
+     * the last elements of the (incomplete) fetch list are {@code "BODY"}, the section list, and optionally the origin.
+     */
+    private static boolean isBodySectionLiteral(ImapList fetchList) {
+        int size = fetchList.size();
+        if (size >= 1 && fetchList.get(size - 1) instanceof String) {
+            String last = (String) fetchList.get(size - 1);
+            if (last.startsWith("<")) {
+                size--;
+            }
+        }
+
+        return size >= 2 && fetchList.get(size - 1) instanceof ImapList &&
+                ImapResponseParser.equalsIgnoreCase(fetchList.get(size - 2), "BODY");
+    }
 }
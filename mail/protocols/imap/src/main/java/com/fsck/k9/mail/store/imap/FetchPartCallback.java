@@ -2,21 +2,25 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import com.fsck.k9.mail.BodyFactory;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
+import com.fsck.k9.mail.filter.TransferEncodingInputStream;
 import com.fsck.k9.mail.internet.MimeHeader;
 
 
 class FetchPartCallback implements ImapResponseCallback {
     private final Part part;
     private final BodyFactory bodyFactory;
+    private final boolean decoded;
 
 
-    FetchPartCallback(Part part, BodyFactory bodyFactory) {
+    FetchPartCallback(Part part, BodyFactory bodyFactory, boolean decoded) {
         this.part = part;
         this.bodyFactory = bodyFactory;
+        this.decoded = decoded;
     }
 
     @Override
@@ -27,7 +31,12 @@ class FetchPartCallback implements ImapResponseCallback {
             String contentTransferEncoding = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
             String contentType = part.getHeader(MimeHeader.HEADER_CONTENT_TYPE)[0];
 
-            return bodyFactory.createBody(contentTransferEncoding, contentType, literal);
+            // Data fetched via BINARY[…] has already been decoded by the server. Encode it again, so the body matches
+            // the part's Content-Transfer-Encoding header.
+            InputStream bodyInputStream = decoded ?
+                    new TransferEncodingInputStream(literal, contentTransferEncoding) : literal;
+
+            return bodyFactory.createBody(contentTransferEncoding, contentType, bodyInputStream);
         }
         return null;
     }
@@ -0,0 +1,12 @@
+package com.fsck.k9.mail.store.imap
+
+/**
+ * Result of [ImapFolder.fetchChangedFlags].
+ *
+ * @param changedMessages Messages whose flags changed since the supplied mod-sequence. Their flags have been updated.
+ * @param vanishedUids UIDs of requested messages that have been expunged. Only reported when QRESYNC is enabled.
+ */
+class FlagChanges(
+    val changedMessages: List<ImapMessage>,
+    val vanishedUids: List<String>
+)
@@ -0,0 +1,16 @@
+package com.fsck.k9.mail.store.imap
+
+/**
+ * Values returned by the `STATUS` command for a folder that hasn't been selected.
+ *
+ * @property messageCount Value of `MESSAGES`.
+ * @property uidNext Value of `UIDNEXT`.
+ * @property unseenCount Value of `UNSEEN`.
+ * @property highestModSeq Value of `HIGHESTMODSEQ`, or `null` if the server doesn't support CONDSTORE.
+ */
+data class FolderStatus(
+    val messageCount: Long?,
+    val uidNext: Long?,
+    val unseenCount: Long?,
+    val highestModSeq: Long?
+)
@@ -0,0 +1,34 @@
+package com.fsck.k9.mail.store.imap
+
+import com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase
+
+/**
+ * Extracts the `HIGHESTMODSEQ` response code (RFC 7162) sent by CONDSTORE-capable servers when selecting a folder.
+ *
+ * A `NOMODSEQ` response code means the folder doesn't support persistent mod-sequences.
+ */
+internal class HighestModSeqResponse private constructor(val highestModSeq: Long?) {
+    val isModSeqSupported: Boolean
+        get() = highestModSeq != null
+
+    companion object {
+        @JvmStatic
+        fun parse(response: ImapResponse): HighestModSeqResponse? {
+            if (response.isTagged || !equalsIgnoreCase(response[0], Responses.OK) || !response.isList(1)) return null
+
+            val responseTextList = response.getList(1)
+            if (responseTextList.size == 1 && equalsIgnoreCase(responseTextList[0], Responses.NOMODSEQ)) {
+                return HighestModSeqResponse(null)
+            }
+
+            if (responseTextList.size < 2 || !equalsIgnoreCase(responseTextList[0], Responses.HIGHESTMODSEQ) ||
+                !responseTextList.isLong(1)
+            ) return null
+
+            val highestModSeq = responseTextList.getLong(1)
+            if (highestModSeq < 1L) return null
+
+            return HighestModSeqResponse(highestModSeq)
+        }
+    }
+}
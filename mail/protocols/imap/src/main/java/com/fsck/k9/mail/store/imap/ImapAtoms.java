@@ -0,0 +1,116 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Table of atoms that occur in almost every server response.
+ *
+ * <p>
+ * {@link ImapResponseParser} uses this to return shared {@code String} instances for these atoms instead of allocating
+ * a new {@code String} each time. This matters when parsing {@code FETCH} responses for thousands of messages.
+ * </p>
+ */
+class ImapAtoms {
+    private static final String[] ATOMS = {
+            Responses.OK,
+            Responses.NO,
+            Responses.BAD,
+            Responses.BYE,
+            Responses.EXISTS,
+            Responses.EXPUNGE,
+            Responses.FETCH,
+            Responses.SEARCH,
+            Responses.VANISHED,
+            Responses.EARLIER,
+            Responses.HIGHESTMODSEQ,
+            "NIL",
+            "UID",
+            "FLAGS",
+            "MODSEQ",
+            "RECENT",
+            "INTERNALDATE",
+            "RFC822.SIZE",
+            "BODY",
+            "BODYSTRUCTURE",
+            "HEADER.FIELDS",
+            "TEXT",
+            "PLAIN",
+            "HTML",
+            "\\Seen",
+            "\\Answered",
+            "\\Flagged",
+            "\\Deleted",
+            "\\Draft",
+            "\\Recent",
+            "$Forwarded",
+            "NonJunk",
+            "$NotJunk",
+    };
+
+    private static final int MAX_ATOM_LENGTH;
+    private static final byte[][][] ATOM_BYTES_BY_LENGTH;
+    private static final String[][] ATOMS_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (String atom : ATOMS) {
+            maxLength = Math.max(maxLength, atom.length());
+        }
+        MAX_ATOM_LENGTH = maxLength;
+
+        int[] counts = new int[maxLength + 1];
+        for (String atom : ATOMS) {
+            counts[atom.length()]++;
+        }
+
+        ATOM_BYTES_BY_LENGTH = new byte[maxLength + 1][][];
+        ATOMS_BY_LENGTH = new String[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            ATOM_BYTES_BY_LENGTH[length] = new byte[counts[length]][];
+            ATOMS_BY_LENGTH[length] = new String[counts[length]];
+            counts[length] = 0;
+        }
+
+        for (String atom : ATOMS) {
+            int length = atom.length();
+            int index = counts[length]++;
+            ATOM_BYTES_BY_LENGTH[length][index] = atom.getBytes(StandardCharsets.US_ASCII);
+            ATOMS_BY_LENGTH[length][index] = atom;
+        }
+    }
+
+
+    private ImapAtoms() {
+    }
+
+    /**
+     * Returns the shared {@code String} instance for the atom stored in {@code buffer[0..length)}, or {@code null} if
+     * it's not a known atom. Matching is case-sensitive so the returned value is always identical to the input.
+     */
+    static String lookup(byte[] buffer, int length) {
+        if (length == 0 || length > MAX_ATOM_LENGTH) {
+            return null;
+        }
+
+        byte[][] candidates = ATOM_BYTES_BY_LENGTH[length];
+        for (int i = 0; i < candidates.length; i++) {
+            if (regionEquals(candidates[i], buffer, length)) {
+                return ATOMS_BY_LENGTH[length][i];
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean regionEquals(byte[] atom, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            if (atom[i] != buffer[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -91,6 +91,11 @@ class ImapConnection {
     private Exception stacktraceForClose;
     private boolean open = false;
     private boolean retryXoauth2WithNewToken = true;
+    private boolean qresyncEnabled = false;
+    private String selectedFolderServerId;
+    private int selectedFolderMode;
+    private int selectedFolderMessageCount;
+    private boolean selectedFolderCanCreateKeywords;
 
 
     public ImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
@@ -144,6 +149,7 @@ class ImapConnection {
             extractOrRequestCapabilities(responses);
 
             enableCompressionIfRequested();
+            enableQresyncIfAvailable();
 
             retrievePathPrefixIfNecessary();
             retrievePathDelimiterIfNecessary();
@@ -246,6 +252,22 @@ class ImapConnection {
         socket.setSoTimeout(socketReadTimeout);
     }
 
+    /**
+     * Changes the socket read timeout while the connection is idling. IDLE (RFC 2177) keeps a command outstanding for
+     * a long time without the server sending anything, so the regular read timeout would tear down the connection.
+     */
+    void setSocketIdleReadTimeout(int timeout) throws SocketException {
+        if (socket != null) {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    void setSocketDefaultReadTimeout() throws SocketException {
+        if (socket != null) {
+            socket.setSoTimeout(socketReadTimeout);
+        }
+    }
+
     private void setUpStreamsAndParserFromSocket() throws IOException {
         setUpStreamsAndParser(socket.getInputStream(), socket.getOutputStream());
     }
@@ -709,12 +731,118 @@ class ImapConnection {
         return capabilities.contains(Capabilities.UID_PLUS);
     }
 
+    boolean isBinaryCapable() {
+        return capabilities.contains(Capabilities.BINARY);
+    }
+
+    boolean isEsearchCapable() {
+        return capabilities.contains(Capabilities.ESEARCH);
+    }
+
+    boolean isThreadReferencesCapable() {
+        return capabilities.contains(Capabilities.THREAD_REFERENCES);
+    }
+
+    boolean isQresyncEnabled() {
+        return qresyncEnabled;
+    }
+
+    /**
+     * Enables the QRESYNC extension (RFC 7162) if the server supports it.
+     *
+     * <p>
+     * Once enabled, the server reports expunged messages using {@code VANISHED} instead of {@code EXPUNGE} responses
+     * and accepts the {@code VANISHED} modifier for {@code UID FETCH}. Enabling QRESYNC implicitly enables CONDSTORE.
+     * </p>
+     *
+     * <p>
+     * RFC 5161 doesn't allow {@code ENABLE} once a mailbox has been selected, so this is only done once right after
+     * authentication. If the server refuses, we don't try again for the lifetime of this connection.
+     * </p>
+     */
+    private void enableQresyncIfAvailable() throws IOException, MessagingException {
+        if (!hasCapability(Capabilities.QRESYNC) || !hasCapability(Capabilities.ENABLE)) {
+            return;
+        }
+
+        List<ImapResponse> responses;
+        try {
+            responses = executeSimpleCommand(Commands.ENABLE_QRESYNC);
+        } catch (NegativeImapResponseException e) {
+            Timber.d(e, "Unable to enable QRESYNC for %s", getLogId());
+            return;
+        }
+
+        for (ImapResponse response : responses) {
+            if (response.isTagged() || response.size() < 2 || !equalsIgnoreCase(response.get(0), Responses.ENABLED)) {
+                continue;
+            }
+
+            for (int i = 1, end = response.size(); i < end; i++) {
+                if (equalsIgnoreCase(response.get(i), Capabilities.QRESYNC)) {
+                    qresyncEnabled = true;
+                }
+            }
+        }
+
+        if (K9MailLib.isDebug()) {
+            Timber.d("QRESYNC enabled: %b for %s", qresyncEnabled, getLogId());
+        }
+    }
+
+    /**
+     * Remembers which folder was last selected on this connection, so that {@link ImapStore} can hand the connection
+     * back to the same folder and the folder can skip issuing another SELECT/EXAMINE.
+     *
+     * @param messageCount
+     *         The number of messages in the folder as known by the last user of this connection.
+     * @param canCreateKeywords
+     *         Whether the {@code PERMANENTFLAGS} response of the folder allowed creating keywords.
+     */
+    void setSelectedFolder(String folderServerId, int mode, int messageCount, boolean canCreateKeywords) {
+        selectedFolderServerId = folderServerId;
+        selectedFolderMode = mode;
+        selectedFolderMessageCount = messageCount;
+        selectedFolderCanCreateKeywords = canCreateKeywords;
+    }
+
+    /**
+     * Forgets the selected folder. Needs to be called whenever untagged responses for the selected folder might have
+     * been dropped.
+     */
+    void clearSelectedFolder() {
+        selectedFolderServerId = null;
+    }
+
+    String getSelectedFolderServerId() {
+        return selectedFolderServerId;
+    }
+
+    int getSelectedFolderMessageCount() {
+        return selectedFolderMessageCount;
+    }
+
+    boolean canSelectedFolderCreateKeywords() {
+        return selectedFolderCanCreateKeywords;
+    }
+
+    boolean isFolderSelected(String folderServerId, int mode) {
+        return folderServerId != null && folderServerId.equals(selectedFolderServerId) && selectedFolderMode == mode;
+    }
+
+    boolean isClosed() {
+        return stacktraceForClose != null;
+    }
+
     public void close() {
+        selectedFolderServerId = null;
+
         if (!open) {
             return;
         }
 
         open = false;
+        qresyncEnabled = false;
         stacktraceForClose = new Exception();
 
         IOUtils.closeQuietly(inputStream);
@@ -0,0 +1,309 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import timber.log.Timber;
+
+
+/**
+ * Pool of {@link ImapConnection}s for a single account.
+ *
+ * <p>
+ * The number of connections (in use and idle) is capped at {@code maxConnections}. Callers asking for a connection
+ * while the pool is exhausted have to wait until another connection is released. When asking for a connection for a
+ * specific folder, idle connections that already have this folder selected are preferred.
+ * </p>
+ * <p>
+ * A thread that already holds a connection never waits. Otherwise an operation that needs a second connection while
+ * holding one (e.g. a pending command replayed during a folder sync) could deadlock with other threads doing the same.
+ * Such nested acquisitions may exceed {@code maxConnections}.
+ * </p>
+ * <p>
+ * Idle connections are kept alive using {@code NOOP} and closed after they haven't been used for a while. Every pool
+ * uses its own keep-alive thread, so a slow server doesn't delay keep-alive of other accounts.
+ * </p>
+ */
+class ImapConnectionPool {
+    private static final long WAIT_TIMEOUT_MS = 60 * 1000L;
+    private static final long KEEP_ALIVE_INTERVAL_MS = 5 * 60 * 1000L;
+    private static final long MAX_IDLE_TIME_MS = 15 * 60 * 1000L;
+    private static final long KEEP_ALIVE_THREAD_TIMEOUT_MS = 60 * 1000L;
+
+
+    private final ConnectionFactory connectionFactory;
+    private final int maxConnections;
+    private final String logLabel;
+    private final ScheduledThreadPoolExecutor keepAliveExecutor;
+
+    private final Object lock = new Object();
+    private final LinkedList<PooledConnection> idleConnections = new LinkedList<>();
+    private final Map<ImapConnection, Thread> activeConnections = new HashMap<>();
+    private ScheduledFuture<?> keepAliveFuture;
+    private int keepAliveConnectionCount;
+
+    private long hits;
+    private long affinityHits;
+    private long misses;
+    private long reconnects;
+    private long waits;
+    private long evictions;
+
+
+    ImapConnectionPool(ConnectionFactory connectionFactory, int maxConnections, String logLabel) {
+        this.connectionFactory = connectionFactory;
+        this.maxConnections = maxConnections > 0 ? maxConnections : ImapStoreSettings.DEFAULT_MAX_CONNECTIONS;
+        this.logLabel = logLabel;
+
+        keepAliveExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ImapConnectionPool-" + logLabel);
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepAliveExecutor.setKeepAliveTime(KEEP_ALIVE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        keepAliveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a connection from the pool or creates a new one.
+     *
+     * @param folderServerId
+     *         The folder the connection will be used for, or {@code null} if the connection isn't used to select a
+     *         folder. Idle connections that have this folder selected are preferred.
+     */
+    ImapConnection acquire(@Nullable String folderServerId) throws MessagingException {
+        while (true) {
+            PooledConnection pooledConnection = takeIdleConnectionOrCreate(folderServerId);
+            ImapConnection connection = pooledConnection.connection;
+            if (pooledConnection.isNew) {
+                // The connection will be opened on first use
+                return connection;
+            }
+
+            if (isHealthy(connection)) {
+                return connection;
+            }
+
+            connection.close();
+            synchronized (lock) {
+                activeConnections.remove(connection);
+                reconnects++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    void release(@Nullable ImapConnection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        synchronized (lock) {
+            boolean wasActive = activeConnections.remove(connection) != null;
+            if (connection.isConnected()) {
+                if (wasActive) {
+                    idleConnections.addFirst(new PooledConnection(connection, false, System.currentTimeMillis()));
+                    scheduleKeepAliveIfNecessary();
+                }
+            }
+
+            lock.notifyAll();
+        }
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    ImapConnectionPoolStats getStats() {
+        synchronized (lock) {
+            return new ImapConnectionPoolStats(hits, affinityHits, misses, reconnects, waits, evictions,
+                    activeConnections.size(), idleConnections.size(), maxConnections);
+        }
+    }
+
+    private PooledConnection takeIdleConnectionOrCreate(@Nullable String folderServerId)
+            throws MessagingException {
+        synchronized (lock) {
+            boolean waited = false;
+            long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+            while (true) {
+                PooledConnection idleConnection = takeIdleConnection(folderServerId);
+                if (idleConnection != null) {
+                    ImapConnection connection = idleConnection.connection;
+                    if (folderServerId == null || !folderServerId.equals(connection.getSelectedFolderServerId())) {
+                        // Untagged responses for the previously selected folder could get lost
+                        connection.clearSelectedFolder();
+                    } else {
+                        affinityHits++;
+                    }
+
+                    hits++;
+                    activeConnections.put(connection, Thread.currentThread());
+                    return idleConnection;
+                }
+
+                removeClosedActiveConnections();
+                boolean nestedAcquisition = activeConnections.containsValue(Thread.currentThread());
+                if (activeConnections.size() + keepAliveConnectionCount < maxConnections || nestedAcquisition) {
+                    if (nestedAcquisition && K9MailLib.isDebug()) {
+                        Timber.d("Nested IMAP connection request for %s. Not waiting for a free connection.",
+                                logLabel);
+                    }
+
+                    ImapConnection connection = connectionFactory.createConnection();
+                    misses++;
+                    activeConnections.put(connection, Thread.currentThread());
+                    return new PooledConnection(connection, true, 0L);
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new MessagingException("Timed out waiting for a free IMAP connection");
+                }
+
+                if (!waited) {
+                    waited = true;
+                    waits++;
+                    if (K9MailLib.isDebug()) {
+                        Timber.d("All %d IMAP connections of %s in use. Waiting…", maxConnections, logLabel);
+                    }
+                }
+
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("Interrupted while waiting for a free IMAP connection", e);
+                }
+            }
+        }
+    }
+
+    private PooledConnection takeIdleConnection(@Nullable String folderServerId) {
+        if (folderServerId != null) {
+            Iterator<PooledConnection> iterator = idleConnections.iterator();
+            while (iterator.hasNext()) {
+                PooledConnection idleConnection = iterator.next();
+                if (folderServerId.equals(idleConnection.connection.getSelectedFolderServerId())) {
+                    iterator.remove();
+                    return idleConnection;
+                }
+            }
+        }
+
+        return idleConnections.pollFirst();
+    }
+
+    /**
+     * Drops connections that were closed by their users (e.g. after an I/O error) without being released.
+     */
+    private void removeClosedActiveConnections() {
+        Iterator<ImapConnection> iterator = activeConnections.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isClosed()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private boolean isHealthy(ImapConnection connection) {
+        try {
+            List<ImapResponse> responses = connection.executeSimpleCommand(Commands.NOOP);
+            if (containsUntaggedResponses(responses)) {
+                // The selected folder changed. Its users have to select it again to find out what happened.
+                connection.clearSelectedFolder();
+            }
+
+            return true;
+        } catch (IOException | MessagingException e) {
+            Timber.d(e, "Pooled IMAP connection of %s is broken", logLabel);
+            return false;
+        }
+    }
+
+    private static boolean containsUntaggedResponses(List<ImapResponse> responses) {
+        for (ImapResponse response : responses) {
+            if (!response.isTagged()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void scheduleKeepAliveIfNecessary() {
+        if (keepAliveFuture == null && !idleConnections.isEmpty()) {
+            keepAliveFuture = keepAliveExecutor.schedule(this::performKeepAlive, KEEP_ALIVE_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends {@code NOOP} on idle connections, closes broken connections and connections that have been idle for too
+     * long.
+     */
+    @VisibleForTesting
+    void performKeepAlive() {
+        List<PooledConnection> connectionsToCheck;
+        synchronized (lock) {
+            keepAliveFuture = null;
+            connectionsToCheck = new ArrayList<>(idleConnections);
+            keepAliveConnectionCount = connectionsToCheck.size();
+            idleConnections.clear();
+        }
+
+        long now = System.currentTimeMillis();
+        List<PooledConnection> healthyConnections = new ArrayList<>();
+        for (PooledConnection idleConnection : connectionsToCheck) {
+            ImapConnection connection = idleConnection.connection;
+            if (now - idleConnection.idleSince >= MAX_IDLE_TIME_MS || !isHealthy(connection)) {
+                connection.close();
+                synchronized (lock) {
+                    evictions++;
+                }
+            } else {
+                healthyConnections.add(idleConnection);
+            }
+        }
+
+        synchronized (lock) {
+            // Connections released in the meantime are more recent and stay at the front
+            idleConnections.addAll(healthyConnections);
+            keepAliveConnectionCount = 0;
+            scheduleKeepAliveIfNecessary();
+            lock.notifyAll();
+        }
+    }
+
+
+    interface ConnectionFactory {
+        ImapConnection createConnection();
+    }
+
+    private static class PooledConnection {
+        final ImapConnection connection;
+        final boolean isNew;
+        final long idleSince;
+
+        PooledConnection(ImapConnection connection, boolean isNew, long idleSince) {
+            this.connection = connection;
+            this.isNew = isNew;
+            this.idleSince = idleSince;
+        }
+    }
+}
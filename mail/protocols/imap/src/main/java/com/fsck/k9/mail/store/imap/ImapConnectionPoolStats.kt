@@ -0,0 +1,23 @@
+package com.fsck.k9.mail.store.imap
+
+/**
+ * Snapshot of the connection pool counters of an [ImapStore].
+ *
+ * @property hits Requests served by an idle pooled connection.
+ * @property affinityHits The subset of [hits] where the pooled connection already had the requested folder selected.
+ * @property misses Requests that required creating a new connection.
+ * @property reconnects Pooled connections that failed the health check when handed out and had to be replaced.
+ * @property waits Requests that had to wait because all connections were in use.
+ * @property evictions Idle connections closed by the keep-alive task because they were broken or unused for too long.
+ */
+data class ImapConnectionPoolStats(
+    val hits: Long,
+    val affinityHits: Long,
+    val misses: Long,
+    val reconnects: Long,
+    val waits: Long,
+    val evictions: Long,
+    val activeConnections: Int,
+    val idleConnections: Int,
+    val maxConnections: Int
+)
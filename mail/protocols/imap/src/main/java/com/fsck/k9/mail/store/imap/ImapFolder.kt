@@ -11,6 +11,7 @@ import com.fsck.k9.mail.MessageRetrievalListener
 import com.fsck.k9.mail.MessagingException
 import com.fsck.k9.mail.Part
 import com.fsck.k9.mail.filter.EOLConvertingOutputStream
+import com.fsck.k9.mail.filter.TransferEncodingInputStream
 import com.fsck.k9.mail.internet.MimeBodyPart
 import com.fsck.k9.mail.internet.MimeHeader
 import com.fsck.k9.mail.internet.MimeMessageHelper
@@ -25,7 +26,6 @@ import java.util.LinkedHashSet
 import java.util.Locale
 import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.max
-import kotlin.math.min
 import timber.log.Timber
 
 class ImapFolder internal constructor(
@@ -45,11 +45,18 @@ class ImapFolder internal constructor(
     private var inSearch = false
     private var canCreateKeywords = false
     private var uidValidity: Long? = null
+    private var highestModSeq: Long? = null
 
     @Volatile
     var messageCount = -1
         private set
 
+    /**
+     * `true` if the folder was opened on a connection that still had it selected, without issuing SELECT/EXAMINE.
+     * In that case [uidValidity] and [highestModSeq] may be outdated and need to be read again before they're used.
+     */
+    private var selectStateOutdated = false
+
     var type = FolderType.REGULAR
 
     var mode = 0
@@ -60,11 +67,31 @@ class ImapFolder internal constructor(
 
     constructor(store: ImapStore, name: String) : this(store, name, store.folderNameCodec)
 
+    @Throws(MessagingException::class)
     fun getUidValidity(): Long? {
         check(isOpen) { "ImapFolder needs to be open" }
+        refreshSelectStateIfOutdated()
         return uidValidity
     }
 
+    /**
+     * Returns the `HIGHESTMODSEQ` value reported when the folder was opened, or `null` if the server doesn't support
+     * CONDSTORE or doesn't maintain mod-sequences for this folder.
+     */
+    @Throws(MessagingException::class)
+    fun getHighestModSeq(): Long? {
+        check(isOpen) { "ImapFolder needs to be open" }
+        refreshSelectStateIfOutdated()
+        return highestModSeq
+    }
+
+    @get:Throws(MessagingException::class)
+    val supportsModSeq: Boolean
+        get() = isOpen && getHighestModSeq() != null
+
+    val supportsThreadReferences: Boolean
+        get() = isOpen && connection!!.isThreadReferencesCapable
+
     @get:Throws(MessagingException::class)
     private val prefixedName: String
         get() {
@@ -118,34 +145,24 @@ class ImapFolder internal constructor(
         store.releaseConnection(connection)
 
         synchronized(this) {
-            connection = store.connection
+            connection = store.getConnection(serverId)
         }
 
         try {
-            msgSeqUidMap.clear()
-
-            val openCommand = if (mode == OPEN_MODE_RW) "SELECT" else "EXAMINE"
-            val encodedFolderName = folderNameCodec.encode(prefixedName)
-            val escapedFolderName = ImapUtility.encodeString(encodedFolderName)
-            val command = String.format("%s %s", openCommand, escapedFolderName)
-            val responses = executeSimpleCommand(command)
-
-            /*
-             * If the command succeeds we expect the folder has been opened read-write unless we
-             * are notified otherwise in the responses.
-             */
-            this.mode = mode
-
-            for (response in responses) {
-                extractUidValidity(response)
-                handlePermanentFlags(response)
+            val connection = connection!!
+            val selectedMessageCount = connection.selectedFolderMessageCount
+            if (connection.isFolderSelected(serverId, mode) && selectedMessageCount != -1) {
+                // The pool only keeps this folder selected if no untagged responses were received in the meantime
+                Timber.v("Reusing connection with selected folder for %s", logId)
+                this.mode = mode
+                messageCount = selectedMessageCount
+                canCreateKeywords = connection.canSelectedFolderCreateKeywords()
+                selectStateOutdated = true
+                exists = true
+                return emptyList()
             }
 
-            handleSelectOrExamineOkResponse(ImapUtility.getLastResponse(responses))
-
-            exists = true
-
-            return responses
+            return selectFolder(connection, mode)
         } catch (ioe: IOException) {
             throw ioExceptionHandler(connection, ioe)
         } catch (me: MessagingException) {
@@ -154,6 +171,55 @@ class ImapFolder internal constructor(
         }
     }
 
+    @Throws(MessagingException::class)
+    private fun refreshSelectStateIfOutdated() {
+        if (!selectStateOutdated) return
+
+        Timber.v("Selecting %s again to read UIDVALIDITY and HIGHESTMODSEQ", logId)
+        try {
+            selectFolder(connection!!, mode)
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
+        }
+    }
+
+    @Throws(MessagingException::class, IOException::class)
+    private fun selectFolder(connection: ImapConnection, mode: Int): List<ImapResponse> {
+        msgSeqUidMap.clear()
+        highestModSeq = null
+        selectStateOutdated = false
+        connection.clearSelectedFolder()
+
+        val openCommand = if (mode == OPEN_MODE_RW) "SELECT" else "EXAMINE"
+        val encodedFolderName = folderNameCodec.encode(prefixedName)
+        val escapedFolderName = ImapUtility.encodeString(encodedFolderName)
+        val command = if (!connection.isQresyncEnabled && connection.isCondstoreCapable) {
+            String.format("%s %s (CONDSTORE)", openCommand, escapedFolderName)
+        } else {
+            String.format("%s %s", openCommand, escapedFolderName)
+        }
+        val responses = executeSimpleCommand(command)
+
+        /*
+         * If the command succeeds we expect the folder has been opened read-write unless we
+         * are notified otherwise in the responses.
+         */
+        this.mode = mode
+
+        for (response in responses) {
+            extractUidValidity(response)
+            extractHighestModSeq(response)
+            handlePermanentFlags(response)
+        }
+
+        handleSelectOrExamineOkResponse(ImapUtility.getLastResponse(responses))
+        connection.setSelectedFolder(serverId, this.mode, messageCount, canCreateKeywords)
+
+        exists = true
+
+        return responses
+    }
+
     private fun extractUidValidity(response: ImapResponse) {
         val uidValidityResponse = UidValidityResponse.parse(response)
         if (uidValidityResponse != null) {
@@ -161,6 +227,13 @@ class ImapFolder internal constructor(
         }
     }
 
+    private fun extractHighestModSeq(response: ImapResponse) {
+        val highestModSeqResponse = HighestModSeqResponse.parse(response)
+        if (highestModSeqResponse != null) {
+            highestModSeq = highestModSeqResponse.highestModSeq
+        }
+    }
+
     private fun handlePermanentFlags(response: ImapResponse) {
         val permanentFlagsResponse = PermanentFlagsResponse.parse(response) ?: return
 
@@ -177,13 +250,22 @@ class ImapFolder internal constructor(
     }
 
     fun close() {
-        messageCount = -1
+        val messageCount = this.messageCount
+        this.messageCount = -1
+        selectStateOutdated = false
 
         if (!isOpen) {
             return
         }
 
         synchronized(this) {
+            connection?.let { connection ->
+                if (connection.isFolderSelected(serverId, mode)) {
+                    // Let the next user of this connection know about changes to the message count
+                    connection.setSelectedFolder(serverId, mode, messageCount, canCreateKeywords)
+                }
+            }
+
             // If we are mid-search and we get a close request, we gotta trash the connection.
             if (inSearch && connection != null) {
                 Timber.i("IMAP search was aborted, shutting down connection.")
@@ -340,6 +422,12 @@ class ImapFolder internal constructor(
         checkOpen()
 
         try {
+            if (connection!!.isEsearchCapable) {
+                val command = String.format(Locale.US, "SEARCH RETURN (COUNT) 1:* %s", criteria)
+                val searchResponse = SearchResponse.parse(executeSimpleCommand(command))
+                return searchResponse.count?.toInt() ?: 0
+            }
+
             val command = String.format(Locale.US, "SEARCH 1:* %s", criteria)
             val responses = executeSimpleCommand(command)
 
@@ -366,10 +454,15 @@ class ImapFolder internal constructor(
     @get:Throws(MessagingException::class)
     internal val highestUid: Long
         get() = try {
-            val responses = executeSimpleCommand("UID SEARCH *:*")
-            val searchResponse = SearchResponse.parse(responses)
+            if (connection!!.isEsearchCapable) {
+                val responses = executeSimpleCommand("UID SEARCH RETURN (MAX) *:*")
+                SearchResponse.parse(responses).max ?: -1L
+            } else {
+                val responses = executeSimpleCommand("UID SEARCH *:*")
+                val searchResponse = SearchResponse.parse(responses)
 
-            extractHighestUid(searchResponse)
+                extractHighestUid(searchResponse)
+            }
         } catch (e: NegativeImapResponseException) {
             -1L
         } catch (ioe: IOException) {
@@ -426,6 +519,60 @@ class ImapFolder internal constructor(
         }
     }
 
+    /**
+     * Returns the UIDs of the non-deleted messages with sequence numbers [start] to [end] in ascending order.
+     *
+     * Unlike [getMessages] this doesn't create an [ImapMessage] instance per message. If the server supports ESEARCH
+     * the UIDs are returned as a compact sequence set instead of one number per message.
+     */
+    @Throws(MessagingException::class)
+    fun getMessageUids(start: Int, end: Int, earliestDate: Date?): LongArray {
+        if (start < 1 || end < 1 || end < start) {
+            throw MessagingException(String.format(Locale.US, "Invalid message set %d %d", start, end))
+        }
+
+        checkOpen()
+
+        val returnOptions = if (connection!!.isEsearchCapable) " RETURN (ALL)" else ""
+        val command = String.format(
+            Locale.US, "UID SEARCH%s %d:%d%s NOT DELETED",
+            returnOptions,
+            start,
+            end,
+            getDateSearchString(earliestDate)
+        )
+
+        try {
+            val imapResponses = connection!!.executeSimpleCommand(command)
+            return SearchResponse.parse(imapResponses).sortedNumbers
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
+        }
+    }
+
+    /**
+     * Asks the server to thread the messages with UIDs from [firstUid] to [lastUid] using the `REFERENCES` algorithm
+     * (RFC 5256). Messages outside that range aren't considered, so they don't show up as parents either.
+     *
+     * The search criteria only contain a UID range, so `US-ASCII` is used. It's the only charset servers have to
+     * support.
+     *
+     * @return A map from each UID to the UID of its parent, or `null` for thread roots. Parents come before their
+     * children.
+     */
+    @Throws(MessagingException::class)
+    fun fetchThreadParentUids(firstUid: Long, lastUid: Long): Map<String, String?> {
+        checkOpen()
+
+        try {
+            val command = String.format(Locale.US, "UID THREAD REFERENCES US-ASCII UID %d:%d", firstUid, lastUid)
+            val imapResponses = connection!!.executeSimpleCommand(command)
+            return ThreadResponse.parse(imapResponses).parentUids
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
+        }
+    }
+
     private fun getDateSearchString(earliestDate: Date?): String {
         return if (earliestDate == null) {
             ""
@@ -445,6 +592,11 @@ class ImapFolder internal constructor(
         var endIndex = indexOfOldestMessage - 1
         val dateSearchString = getDateSearchString(earliestDate)
 
+        if (connection!!.isEsearchCapable) {
+            // The server only returns the lowest match, so there's no need to search in windows
+            return existsNonDeletedMessageInRange(1, endIndex, dateSearchString)
+        }
+
         while (endIndex > 0) {
             val startIndex = max(0, endIndex - MORE_MESSAGES_WINDOW_SIZE) + 1
             if (existsNonDeletedMessageInRange(startIndex, endIndex, dateSearchString)) {
@@ -458,14 +610,16 @@ class ImapFolder internal constructor(
 
     @Throws(MessagingException::class, IOException::class)
     private fun existsNonDeletedMessageInRange(startIndex: Int, endIndex: Int, dateSearchString: String): Boolean {
+        val esearch = connection!!.isEsearchCapable
         val command = String.format(
-            Locale.US, "SEARCH %d:%d%s NOT DELETED",
+            Locale.US, "SEARCH %s%d:%d%s NOT DELETED",
+            if (esearch) "RETURN (MIN) " else "",
             startIndex, endIndex, dateSearchString
         )
         val imapResponses = executeSimpleCommand(command)
 
         val response = SearchResponse.parse(imapResponses)
-        return response.numbers.size > 0
+        return if (esearch) response.min != null else response.numbers.size > 0
     }
 
     @Throws(MessagingException::class)
@@ -524,12 +678,19 @@ class ImapFolder internal constructor(
         }
     }
 
+    /**
+     * Fetches the items in [fetchProfile] for [messages].
+     *
+     * [isCancelled] is checked before each `UID FETCH` window is sent. Once it returns `true` no more windows are
+     * requested and the method returns after reading the responses to the windows that are already in flight.
+     */
     @Throws(MessagingException::class)
     fun fetch(
         messages: List<ImapMessage>?,
         fetchProfile: FetchProfile,
         listener: MessageRetrievalListener<ImapMessage>?,
-        maxDownloadSize: Int
+        maxDownloadSize: Int,
+        isCancelled: () -> Boolean = { false }
     ) {
         if (messages == null || messages.isEmpty()) {
             return
@@ -538,7 +699,6 @@ class ImapFolder internal constructor(
         checkOpen()
 
         val messageMap = messages.associateBy { it.uid }
-        val uids = messages.map { it.uid }
 
         val fetchFields: MutableSet<String> = LinkedHashSet()
         fetchFields.add("UID")
@@ -572,80 +732,227 @@ class ImapFolder internal constructor(
         }
 
         val spaceSeparatedFetchFields = ImapUtility.join(" ", fetchFields)
-        var windowStart = 0
-        while (windowStart < messages.size) {
-            val windowEnd = min(windowStart + FETCH_WINDOW_SIZE, messages.size)
-            val uidWindow = uids.subList(windowStart, windowEnd)
+        val pipelineDepth = store.fetchPipelineDepth.coerceAtLeast(1)
 
-            try {
-                val commaSeparatedUids = ImapUtility.join(",", uidWindow)
-                val command = String.format("UID FETCH %s (%s)", commaSeparatedUids, spaceSeparatedFetchFields)
-                connection!!.sendCommand(command, false)
+        // Header and body literals are parsed straight from the network stream
+        val callback = FetchBodyCallback(messageMap)
 
-                var messageNumber = 0
-                var callback: ImapResponseCallback? = null
-                if (fetchProfile.contains(FetchProfile.Item.BODY) ||
-                    fetchProfile.contains(FetchProfile.Item.BODY_SANE)
-                ) {
-                    callback = FetchBodyCallback(messageMap)
+        // Keep up to pipelineDepth UID FETCH commands in flight so windows don't each cost a full round trip
+        val pendingTags = ArrayDeque<String?>()
+        var nextCommand = 0
+        try {
+            val commands = buildFetchCommands(messages, fetchProfile, maxDownloadSize, spaceSeparatedFetchFields)
+            while (nextCommand < commands.size || pendingTags.isNotEmpty()) {
+                while (nextCommand < commands.size && pendingTags.size < pipelineDepth && !isCancelled()) {
+                    pendingTags.addLast(connection!!.sendCommand(commands[nextCommand], false))
+                    nextCommand++
                 }
 
-                var response: ImapResponse
-                do {
-                    response = connection!!.readResponse(callback)
-                    if (response.tag == null && ImapResponseParser.equalsIgnoreCase(response[1], "FETCH")) {
-                        val fetchList = response.getKeyedValue("FETCH") as ImapList
-                        val uid = fetchList.getKeyedString("UID")
-                        val msgSeq = response.getLong(0)
-                        if (uid != null) {
-                            try {
-                                msgSeqUidMap[msgSeq] = uid
-                                if (K9MailLib.isDebug()) {
-                                    Timber.v("Stored uid '%s' for msgSeq %d into map", uid, msgSeq)
-                                }
-                            } catch (e: Exception) {
-                                Timber.e("Unable to store uid '%s' for msgSeq %d", uid, msgSeq)
-                            }
-                        }
+                if (pendingTags.isEmpty()) {
+                    Timber.d("Fetch for %s cancelled after %d of %d windows", logId, nextCommand, commands.size)
+                    break
+                }
 
-                        val message = messageMap[uid]
-                        if (message == null) {
-                            if (K9MailLib.isDebug()) {
-                                Timber.d("Do not have message in messageMap for UID %s for %s", uid, logId)
-                            }
-                            handleUntaggedResponse(response)
-                            continue
+                val completedTag = readFetchResponses(messageMap, callback, listener)
+                if (!pendingTags.remove(completedTag)) {
+                    pendingTags.removeFirst()
+                }
+            }
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
+        }
+    }
+
+    /**
+     * Splits the messages to fetch into `UID FETCH` commands.
+     *
+     * Windows that download message bodies are limited to [FETCH_WINDOW_BYTE_BUDGET] using the sizes already known from
+     * fetching the envelope, so a window of large messages doesn't block the connection for minutes. Flag-only
+     * fetches produce very little data per message and are only limited by the maximum command length. Contiguous
+     * UIDs are collapsed into ranges.
+     */
+    @Throws(IOException::class, MessagingException::class)
+    private fun buildFetchCommands(
+        messages: List<ImapMessage>,
+        fetchProfile: FetchProfile,
+        maxDownloadSize: Int,
+        spaceSeparatedFetchFields: String
+    ): List<String> {
+        val commandSuffix = "($spaceSeparatedFetchFields)"
+        val lineLengthLimit = connection!!.lineLengthLimit
+        if (fetchProfile.all { it == FetchProfile.Item.FLAGS }) {
+            return splitFetchCommand(messages, commandSuffix, lineLengthLimit)
+        }
+
+        val fetchesBody = fetchProfile.contains(FetchProfile.Item.BODY) ||
+            fetchProfile.contains(FetchProfile.Item.BODY_SANE)
+
+        val commands = mutableListOf<String>()
+        val window = mutableListOf<ImapMessage>()
+        var windowSize = 0L
+        for (message in messages) {
+            val downloadSize = if (fetchesBody) estimateDownloadSize(message, fetchProfile, maxDownloadSize) else 0L
+            if (window.isNotEmpty() &&
+                (window.size >= FETCH_WINDOW_SIZE || windowSize + downloadSize > FETCH_WINDOW_BYTE_BUDGET)
+            ) {
+                commands.addAll(splitFetchCommand(window, commandSuffix, lineLengthLimit))
+                window.clear()
+                windowSize = 0L
+            }
+
+            window.add(message)
+            windowSize += downloadSize
+        }
+
+        if (window.isNotEmpty()) {
+            commands.addAll(splitFetchCommand(window, commandSuffix, lineLengthLimit))
+        }
+
+        return commands
+    }
+
+    private fun estimateDownloadSize(message: ImapMessage, fetchProfile: FetchProfile, maxDownloadSize: Int): Long {
+        val messageSize = message.size.takeIf { it > 0 } ?: UNKNOWN_MESSAGE_SIZE_ESTIMATE
+        return if (!fetchProfile.contains(FetchProfile.Item.BODY) && maxDownloadSize > 0) {
+            messageSize.coerceAtMost(maxDownloadSize.toLong())
+        } else {
+            messageSize
+        }
+    }
+
+    private fun splitFetchCommand(
+        messages: List<ImapMessage>,
+        commandSuffix: String,
+        lineLengthLimit: Int
+    ): List<String> {
+        val uids = messages.mapTo(HashSet()) { it.uid.toLong() }
+        val groupedIds = IdGrouper.groupIds(uids)
+        return ImapCommandSplitter.splitCommand("UID FETCH", commandSuffix, groupedIds, lineLengthLimit)
+    }
+
+    /**
+     * Processes responses to a `UID FETCH` command until a tagged response is received.
+     *
+     * @return The tag of the completed command.
+     */
+    @Throws(IOException::class, MessagingException::class)
+    private fun readFetchResponses(
+        messageMap: Map<String, ImapMessage>,
+        callback: ImapResponseCallback,
+        listener: MessageRetrievalListener<ImapMessage>?
+    ): String? {
+        var messageNumber = 0
+        var response: ImapResponse
+        do {
+            response = connection!!.readResponse(callback)
+            if (response.tag == null && ImapResponseParser.equalsIgnoreCase(response[1], "FETCH")) {
+                val fetchList = response.getKeyedValue("FETCH") as ImapList
+                val uid = fetchList.getKeyedString("UID")
+                val msgSeq = response.getLong(0)
+                if (uid != null) {
+                    try {
+                        msgSeqUidMap[msgSeq] = uid
+                        if (K9MailLib.isDebug()) {
+                            Timber.v("Stored uid '%s' for msgSeq %d into map", uid, msgSeq)
                         }
+                    } catch (e: Exception) {
+                        Timber.e("Unable to store uid '%s' for msgSeq %d", uid, msgSeq)
+                    }
+                }
 
-                        listener?.messageStarted(uid, messageNumber++, messageMap.size)
-
-                        val literal = handleFetchResponse(message, fetchList)
-                        if (literal != null) {
-                            when (literal) {
-                                is String -> {
-                                    val bodyStream: InputStream = literal.toByteArray().inputStream()
-                                    message.parse(bodyStream)
-                                }
-                                is Int -> {
-                                    // All the work was done in FetchBodyCallback.foundLiteral()
-                                }
-                                else -> {
-                                    // This shouldn't happen
-                                    throw MessagingException("Got FETCH response with bogus parameters")
-                                }
-                            }
+                val message = messageMap[uid]
+                if (message == null) {
+                    if (K9MailLib.isDebug()) {
+                        Timber.d("Do not have message in messageMap for UID %s for %s", uid, logId)
+                    }
+                    handleUntaggedResponse(response)
+                    continue
+                }
+
+                listener?.messageStarted(uid, messageNumber++, messageMap.size)
+
+                val literal = handleFetchResponse(message, fetchList)
+                if (literal != null) {
+                    when (literal) {
+                        is String -> {
+                            // The literal was sent before the UID, so FetchBodyCallback couldn't handle it
+                            val bodyStream: InputStream = literal.toByteArray().inputStream()
+                            message.parse(bodyStream)
+                        }
+                        is Int -> {
+                            // All the work was done in FetchBodyCallback.foundLiteral()
                         }
+                        else -> {
+                            // This shouldn't happen
+                            throw MessagingException("Got FETCH response with bogus parameters")
+                        }
+                    }
+                }
+
+                listener?.messageFinished(message, messageNumber, messageMap.size)
+            } else {
+                handleUntaggedResponse(response)
+            }
+        } while (response.tag == null)
+
+        return response.tag
+    }
 
-                        listener?.messageFinished(message, messageNumber, messageMap.size)
+    /**
+     * Fetches the flags of those of the given messages that were modified after the mod-sequence [changedSince]
+     * (RFC 7162, `CHANGEDSINCE` modifier).
+     *
+     * If QRESYNC is enabled for the connection the `VANISHED` modifier is added so the server also reports which of
+     * the given messages have been expunged.
+     */
+    @Throws(MessagingException::class)
+    fun fetchChangedFlags(messages: List<ImapMessage>, changedSince: Long): FlagChanges {
+        if (messages.isEmpty()) {
+            return FlagChanges(emptyList(), emptyList())
+        }
+
+        checkOpen()
+
+        val messageMap = messages.associateBy { it.uid }
+        val uids = messages.map { it.uid.toLong() }.toSet()
+        val commandSuffix = if (connection!!.isQresyncEnabled) {
+            String.format(Locale.US, "(UID FLAGS) (CHANGEDSINCE %d VANISHED)", changedSince)
+        } else {
+            String.format(Locale.US, "(UID FLAGS) (CHANGEDSINCE %d)", changedSince)
+        }
+
+        try {
+            val imapResponses = connection!!.executeCommandWithIdSet(Commands.UID_FETCH, commandSuffix, uids)
+
+            val changedMessages = mutableListOf<ImapMessage>()
+            val vanishedUids = mutableListOf<String>()
+            for (response in imapResponses) {
+                if (response.tag != null) continue
+
+                if (response.size > 1 && ImapResponseParser.equalsIgnoreCase(response[1], "FETCH")) {
+                    val fetchList = response.getKeyedValue("FETCH") as ImapList
+                    val uid = fetchList.getKeyedString("UID")
+                    val message = messageMap[uid]
+                    if (message == null) {
+                        handleUntaggedResponse(response)
+                        continue
+                    }
+
+                    handleFetchResponse(message, fetchList)
+                    changedMessages.add(message)
+                } else {
+                    val vanishedResponse = VanishedResponse.parse(response)
+                    if (vanishedResponse != null && vanishedResponse.isEarlier) {
+                        vanishedResponse.uids.mapTo(vanishedUids) { it.toString() }
                     } else {
                         handleUntaggedResponse(response)
                     }
-                } while (response.tag == null)
-            } catch (ioe: IOException) {
-                throw ioExceptionHandler(connection, ioe)
+                }
             }
 
-            windowStart += FETCH_WINDOW_SIZE
+            return FlagChanges(changedMessages, vanishedUids)
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
         }
     }
 
@@ -661,66 +968,140 @@ class ImapFolder internal constructor(
 
         val partId = part.serverExtra
 
-        val fetch = if ("TEXT".equals(partId, ignoreCase = true)) {
-            String.format(Locale.US, "BODY.PEEK[TEXT]<0.%d>", maxDownloadSize)
-        } else {
-            String.format("BODY.PEEK[%s]", partId)
+        try {
+            if (!"TEXT".equals(partId, ignoreCase = true) && connection!!.isBinaryCapable && isEncoded(part)) {
+                // Let the server decode the part (RFC 3516). This saves the base64/quoted-printable overhead on the
+                // wire. The body is encoded again locally, so it still matches the part's Content-Transfer-Encoding.
+                val fetch = String.format("BINARY.PEEK[%s]", partId)
+                val response = fetchPart(message, part, listener, bodyFactory, fetch, decoded = true)
+                if (ImapResponseParser.equalsIgnoreCase(response[0], Responses.OK)) {
+                    return
+                }
+
+                // e.g. NO [UNKNOWN-CTE] when the server can't decode the part
+                Timber.d("Fetching decoded part %s failed for %s. Falling back to BODY.PEEK", partId, logId)
+            }
+
+            val fetch = if ("TEXT".equals(partId, ignoreCase = true)) {
+                String.format(Locale.US, "BODY.PEEK[TEXT]<0.%d>", maxDownloadSize)
+            } else {
+                String.format("BODY.PEEK[%s]", partId)
+            }
+
+            fetchPart(message, part, listener, bodyFactory, fetch, decoded = false)
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
         }
+    }
+
+    /**
+     * Downloads only the first [maxBytes] bytes of [part], e.g. to create a preview of a long text part.
+     *
+     * The body set on [part] is truncated, so the message must not be treated as completely downloaded.
+     */
+    @Throws(MessagingException::class)
+    fun fetchPartPrefix(message: ImapMessage, part: Part, bodyFactory: BodyFactory, maxBytes: Int) {
+        checkOpen()
+
+        val partId = part.serverExtra
 
         try {
-            val command = String.format("UID FETCH %s (UID %s)", message.uid, fetch)
-            connection!!.sendCommand(command, false)
+            // RFC 3516 doesn't allow BINARY with the TEXT section
+            if (!"TEXT".equals(partId, ignoreCase = true) && connection!!.isBinaryCapable && isEncoded(part)) {
+                val fetch = String.format(Locale.US, "BINARY.PEEK[%s]<0.%d>", partId, maxBytes)
+                val response = fetchPart(message, part, null, bodyFactory, fetch, decoded = true)
+                if (ImapResponseParser.equalsIgnoreCase(response[0], Responses.OK)) {
+                    return
+                }
 
-            var messageNumber = 0
-            val callback: ImapResponseCallback = FetchPartCallback(part, bodyFactory)
+                Timber.d("Fetching decoded part %s failed for %s. Falling back to BODY.PEEK", partId, logId)
+            }
 
-            var response: ImapResponse
-            do {
-                response = connection!!.readResponse(callback)
+            val fetch = String.format(Locale.US, "BODY.PEEK[%s]<0.%d>", partId, maxBytes)
+            fetchPart(message, part, null, bodyFactory, fetch, decoded = false)
+        } catch (ioe: IOException) {
+            throw ioExceptionHandler(connection, ioe)
+        }
+    }
 
-                if (response.tag == null && ImapResponseParser.equalsIgnoreCase(response[1], "FETCH")) {
-                    val fetchList = response.getKeyedValue("FETCH") as ImapList
-                    val uid = fetchList.getKeyedString("UID")
-                    if (message.uid != uid) {
-                        if (K9MailLib.isDebug()) {
-                            Timber.d("Did not ask for UID %s for %s", uid, logId)
-                        }
-                        handleUntaggedResponse(response)
-                        continue
+    /**
+     * Issues a `UID FETCH` command for a single part and stores the result in [part].
+     *
+     * @return The tagged response to the command.
+     */
+    @Throws(IOException::class, MessagingException::class)
+    private fun fetchPart(
+        message: ImapMessage,
+        part: Part,
+        listener: MessageRetrievalListener<ImapMessage?>?,
+        bodyFactory: BodyFactory,
+        fetch: String,
+        decoded: Boolean
+    ): ImapResponse {
+        val command = String.format("UID FETCH %s (UID %s)", message.uid, fetch)
+        connection!!.sendCommand(command, false)
+
+        var messageNumber = 0
+        val callback: ImapResponseCallback = FetchPartCallback(part, bodyFactory, decoded)
+
+        var response: ImapResponse
+        do {
+            response = connection!!.readResponse(callback)
+
+            if (response.tag == null && ImapResponseParser.equalsIgnoreCase(response[1], "FETCH")) {
+                val fetchList = response.getKeyedValue("FETCH") as ImapList
+                val uid = fetchList.getKeyedString("UID")
+                if (message.uid != uid) {
+                    if (K9MailLib.isDebug()) {
+                        Timber.d("Did not ask for UID %s for %s", uid, logId)
                     }
+                    handleUntaggedResponse(response)
+                    continue
+                }
 
-                    listener?.messageStarted(uid, messageNumber++, 1)
+                listener?.messageStarted(uid, messageNumber++, 1)
 
-                    val literal = handleFetchResponse(message, fetchList)
-                    if (literal != null) {
-                        when (literal) {
-                            is Body -> {
-                                // Most of the work was done in FetchAttachmentCallback.foundLiteral()
-                                MimeMessageHelper.setBody(part, literal as Body?)
-                            }
-                            is String -> {
-                                val bodyStream: InputStream = literal.toByteArray().inputStream()
-                                val contentTransferEncoding =
-                                    part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0]
-                                val contentType = part.getHeader(MimeHeader.HEADER_CONTENT_TYPE)[0]
-                                val body = bodyFactory.createBody(contentTransferEncoding, contentType, bodyStream)
-                                MimeMessageHelper.setBody(part, body)
-                            }
-                            else -> {
-                                // This shouldn't happen
-                                throw MessagingException("Got FETCH response with bogus parameters")
+                val literal = handleFetchResponse(message, fetchList)
+                if (literal != null) {
+                    when (literal) {
+                        is Body -> {
+                            // Most of the work was done in FetchAttachmentCallback.foundLiteral()
+                            MimeMessageHelper.setBody(part, literal as Body?)
+                        }
+                        is String -> {
+                            val contentTransferEncoding = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0]
+                            val literalStream = literal.toByteArray().inputStream()
+                            val bodyStream: InputStream = if (decoded) {
+                                TransferEncodingInputStream(literalStream, contentTransferEncoding)
+                            } else {
+                                literalStream
                             }
+                            val contentType = part.getHeader(MimeHeader.HEADER_CONTENT_TYPE)[0]
+                            val body = bodyFactory.createBody(contentTransferEncoding, contentType, bodyStream)
+                            MimeMessageHelper.setBody(part, body)
+                        }
+                        else -> {
+                            // This shouldn't happen
+                            throw MessagingException("Got FETCH response with bogus parameters")
                         }
                     }
-
-                    listener?.messageFinished(message, messageNumber, 1)
-                } else {
-                    handleUntaggedResponse(response)
                 }
-            } while (response.tag == null)
-        } catch (ioe: IOException) {
-            throw ioExceptionHandler(connection, ioe)
-        }
+
+                listener?.messageFinished(message, messageNumber, 1)
+            } else {
+                handleUntaggedResponse(response)
+            }
+        } while (response.tag == null)
+
+        return response
+    }
+
+    private fun isEncoded(part: Part): Boolean {
+        val contentTransferEncoding = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)?.firstOrNull()
+            ?: return false
+
+        val encoding = MimeUtility.getHeaderParameter(contentTransferEncoding, null)
+        return "base64".equals(encoding, ignoreCase = true) || "quoted-printable".equals(encoding, ignoreCase = true)
     }
 
     // Returns value of body field
@@ -781,8 +1162,14 @@ class ImapFolder internal constructor(
             }
         }
 
-        if (fetchList.containsKey("BODY")) {
-            val index = fetchList.getKeyIndex("BODY") + 2
+        val bodyKey = when {
+            fetchList.containsKey("BODY") -> "BODY"
+            fetchList.containsKey("BINARY") -> "BINARY"
+            else -> null
+        }
+
+        if (bodyKey != null) {
+            val index = fetchList.getKeyIndex(bodyKey) + 2
             val size = fetchList.size
             if (index < size) {
                 result = fetchList.getObject(index)
@@ -839,6 +1226,14 @@ class ImapFolder internal constructor(
                     Timber.d("Got untagged EXPUNGE with messageCount %d for %s", messageCount, logId)
                 }
             }
+
+            val vanishedResponse = VanishedResponse.parse(response)
+            if (vanishedResponse != null && !vanishedResponse.isEarlier && messageCount > 0) {
+                messageCount = max(0, messageCount - vanishedResponse.uids.size)
+                if (K9MailLib.isDebug()) {
+                    Timber.d("Got untagged VANISHED with messageCount %d for %s", messageCount, logId)
+                }
+            }
         }
     }
 
@@ -1223,6 +1618,8 @@ class ImapFolder internal constructor(
     companion object {
         private const val MORE_MESSAGES_WINDOW_SIZE = 500
         private const val FETCH_WINDOW_SIZE = 100
+        private const val FETCH_WINDOW_BYTE_BUDGET = 2 * 1024 * 1024L
+        private const val UNKNOWN_MESSAGE_SIZE_ESTIMATE = 64 * 1024L
 
         const val OPEN_MODE_RW = 0
         const val OPEN_MODE_RO = 1
@@ -0,0 +1,222 @@
+package com.fsck.k9.mail.store.imap
+
+import com.fsck.k9.mail.K9MailLib
+import com.fsck.k9.mail.MessagingException
+import com.fsck.k9.mail.power.WakeLock
+import com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase
+import java.io.IOException
+import timber.log.Timber
+
+private const val SOCKET_EXTRA_TIMEOUT_MS = 2 * 60 * 1000L
+private const val WAKE_LOCK_TIMEOUT_MS = 60 * 1000L
+
+/**
+ * Keeps a dedicated connection to a single folder in IDLE state (RFC 2177) until the server reports a change.
+ *
+ * The connection is not taken from the [ImapStore] connection pool because it is blocked for as long as the folder is
+ * being idled on. It stays open (and the folder selected) between calls to [idle] so that changes happening while the
+ * caller was synchronizing the folder are reported as soon as the next IDLE command is issued.
+ *
+ * [idle] is expected to be called from a single thread. [refresh] and [stop] may be called from any thread.
+ */
+class ImapFolderIdler(
+    private val imapStore: ImapStore,
+    private val wakeLock: WakeLock,
+    private val folderServerId: String,
+    private val idleRefreshTimeoutMs: Long
+) {
+    private val logTag = "ImapFolderIdler[$folderServerId]"
+    private val lock = Any()
+
+    private var connection: ImapConnection? = null
+    private var folderSelected = false
+    private var idling = false
+    private var doneSent = false
+    private var refreshRequested = false
+
+    @Volatile
+    private var stopped = false
+
+    /**
+     * Issues IDLE commands on the folder until the server reports new, removed, or changed messages, or until [stop]
+     * is called.
+     *
+     * The caller is expected to hold [wakeLock] when calling this method. The wake lock is released while waiting for
+     * the server and re-acquired (with a timeout) as soon as the server sends something.
+     */
+    @Throws(MessagingException::class, IOException::class)
+    fun idle(): IdleResult {
+        val connection = getOrOpenConnection()
+        if (!connection.isIdleCapable) {
+            Timber.w("%s: IDLE not supported by server", logTag)
+            close()
+            return IdleResult.NOT_SUPPORTED
+        }
+
+        if (!folderSelected) {
+            examineFolder(connection)
+        }
+
+        connection.setSocketIdleReadTimeout((idleRefreshTimeoutMs + SOCKET_EXTRA_TIMEOUT_MS).toInt())
+        try {
+            while (true) {
+                val tag = synchronized(lock) {
+                    if (stopped) {
+                        close()
+                        return IdleResult.STOPPED
+                    }
+
+                    idling = false
+                    doneSent = false
+                    refreshRequested = false
+                    connection.sendCommand(Commands.IDLE, false)
+                }
+
+                val syncRequired = readIdleResponses(connection, tag)
+                if (stopped) {
+                    close()
+                    return IdleResult.STOPPED
+                } else if (syncRequired) {
+                    return IdleResult.SYNC
+                }
+
+                if (K9MailLib.isDebug()) {
+                    Timber.v("%s: Refreshing IDLE", logTag)
+                }
+            }
+        } catch (e: MessagingException) {
+            close()
+            throw e
+        } finally {
+            if (connection.isConnected) {
+                connection.setSocketDefaultReadTimeout()
+            }
+        }
+    }
+
+    /**
+     * Ends the current IDLE command and issues a new one. Servers may drop connections that have been idle for more
+     * than 30 minutes, so this needs to be called periodically.
+     */
+    fun refresh() {
+        synchronized(lock) {
+            refreshRequested = true
+            sendDoneIfIdling()
+        }
+    }
+
+    /**
+     * Makes [idle] return [IdleResult.STOPPED] as soon as possible and closes the connection.
+     */
+    fun stop() {
+        synchronized(lock) {
+            stopped = true
+            if (idling && !doneSent) {
+                sendDoneIfIdling()
+            } else if (!idling) {
+                close()
+            }
+        }
+    }
+
+    private fun readIdleResponses(connection: ImapConnection, tag: String): Boolean {
+        var syncRequired = false
+        while (true) {
+            val response = connection.readResponse()
+            wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS)
+
+            if (response.isContinuationRequested) {
+                synchronized(lock) {
+                    idling = true
+                    if (stopped || refreshRequested || syncRequired) {
+                        sendDoneIfIdling()
+                    }
+                }
+            } else if (response.tag == tag) {
+                if (!equalsIgnoreCase(response[0], Responses.OK)) {
+                    throw NegativeImapResponseException("IDLE failed", listOf(response))
+                }
+
+                return syncRequired
+            } else if (!response.isTagged && isChangeNotification(response)) {
+                if (K9MailLib.isDebug()) {
+                    Timber.v("%s: Server reported change: %s", logTag, response)
+                }
+
+                syncRequired = true
+                synchronized(lock) {
+                    sendDoneIfIdling()
+                }
+            }
+
+            synchronized(lock) {
+                if (idling && !doneSent) {
+                    wakeLock.release()
+                }
+            }
+        }
+    }
+
+    private fun sendDoneIfIdling() {
+        if (!idling || doneSent) return
+
+        val connection = this.connection ?: return
+        try {
+            doneSent = true
+            connection.sendContinuation("DONE")
+        } catch (e: IOException) {
+            Timber.w(e, "%s: Error sending DONE", logTag)
+            connection.close()
+        }
+    }
+
+    private fun isChangeNotification(response: ImapResponse): Boolean {
+        if (response.size < 1) return false
+
+        return equalsIgnoreCase(response[0], Responses.VANISHED) || response.size >= 2 && (
+            equalsIgnoreCase(response[1], Responses.EXISTS) ||
+                equalsIgnoreCase(response[1], Responses.EXPUNGE) ||
+                equalsIgnoreCase(response[1], Responses.FETCH)
+            )
+    }
+
+    private fun getOrOpenConnection(): ImapConnection {
+        val connection = synchronized(lock) {
+            this.connection?.takeIf { it.isConnected } ?: imapStore.createImapConnection().also {
+                this.connection = it
+                folderSelected = false
+            }
+        }
+
+        connection.open()
+        return connection
+    }
+
+    private fun examineFolder(connection: ImapConnection) {
+        val prefixedName = if (ImapFolder.INBOX.equals(folderServerId, ignoreCase = true)) {
+            folderServerId
+        } else {
+            imapStore.combinedPrefix + folderServerId
+        }
+
+        val encodedFolderName = imapStore.folderNameCodec.encode(prefixedName)
+        val escapedFolderName = ImapUtility.encodeString(encodedFolderName)
+        connection.executeSimpleCommand(String.format("EXAMINE %s", escapedFolderName))
+        folderSelected = true
+    }
+
+    private fun close() {
+        synchronized(lock) {
+            connection?.close()
+            connection = null
+            folderSelected = false
+            idling = false
+        }
+    }
+}
+
+enum class IdleResult {
+    SYNC,
+    STOPPED,
+    NOT_SUPPORTED
+}
@@ -2,7 +2,9 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -15,10 +17,16 @@ import static com.fsck.k9.mail.K9MailLib.DEBUG_PROTOCOL_IMAP;
 
 
 class ImapResponseParser {
+    private static final int INITIAL_TOKEN_BUFFER_SIZE = 128;
+
     private PeekableInputStream inputStream;
     private ImapResponse response;
     private Exception exception;
 
+    // Reused for every string token so reading a token doesn't allocate anything but the resulting String
+    private byte[] tokenBuffer = new byte[INITIAL_TOKEN_BUFFER_SIZE];
+    private int tokenLength;
+
 
     public ImapResponseParser(PeekableInputStream in) {
         this.inputStream = in;
@@ -135,6 +143,8 @@ class ImapResponseParser {
             parseResponseText(response);
         } else if (equalsIgnoreCase(symbol, Responses.LIST) || equalsIgnoreCase(symbol, Responses.LSUB)) {
             parseListResponse(response);
+        } else if (equalsIgnoreCase(symbol, Responses.STATUS)) {
+            parseStatusResponse(response);
         } else {
             Object token;
             while ((token = readToken(response)) != null) {
@@ -199,6 +209,17 @@ class ImapResponseParser {
         expect('\n');
     }
 
+    private void parseStatusResponse(ImapResponse response) throws IOException {
+        expect(' ');
+        String name = parseString();
+        response.add(name);
+        expect(' ');
+        parseList(response, '(', ')');
+        skipIfSpace();
+        expect('\r');
+        expect('\n');
+    }
+
     private void skipIfSpace() throws IOException {
         if (inputStream.peek() == ' ') {
             expect(' ');
@@ -308,7 +329,7 @@ class ImapResponseParser {
     }
 
     private String parseBareString(boolean allowBrackets) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        tokenLength = 0;
 
         int ch;
         while (true) {
@@ -321,13 +342,14 @@ class ImapResponseParser {
                     ch == '{' || ch == ' ' || ch == '"' ||
                     (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
 
-                if (sb.length() == 0) {
+                if (tokenLength == 0) {
                     throw new IOException(String.format("parseBareString(): (%04x %c)", ch, ch));
                 }
 
-                return sb.toString();
+                String atom = ImapAtoms.lookup(tokenBuffer, tokenLength);
+                return atom != null ? atom : tokenToString();
             } else {
-                sb.append((char) inputStream.read());
+                appendToToken(inputStream.read());
             }
         }
     }
@@ -338,7 +360,7 @@ class ImapResponseParser {
      */
     private Object parseLiteral() throws IOException {
         expect('{');
-        int size = Integer.parseInt(readStringUntil('}'));
+        int size = readNumberUntil('}');
         expect('\r');
         expect('\n');
 
@@ -396,7 +418,7 @@ class ImapResponseParser {
     private String parseQuoted() throws IOException {
         expect('"');
 
-        StringBuilder sb = new StringBuilder();
+        tokenLength = 0;
         int ch;
         boolean escape = false;
         while ((ch = inputStream.read()) != -1) {
@@ -404,9 +426,9 @@ class ImapResponseParser {
                 // Found the escape character
                 escape = true;
             } else if (!escape && ch == '"') {
-                return sb.toString();
+                return tokenToString();
             } else {
-                sb.append((char) ch);
+                appendToToken(ch);
                 escape = false;
             }
         }
@@ -430,19 +452,58 @@ class ImapResponseParser {
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        tokenLength = 0;
 
         int ch;
         while ((ch = inputStream.read()) != -1) {
             if (ch == end) {
-                return sb.toString();
+                return tokenToString();
             } else {
-                sb.append((char) ch);
+                appendToToken(ch);
             }
         }
 
         throw new IOException("readStringUntil(): end of stream reached. " +
-                "Read: \"" + sb.toString() + "\" while waiting for " + formatChar(end));
+                "Read: \"" + tokenToString() + "\" while waiting for " + formatChar(end));
+    }
+
+    private int readNumberUntil(char end) throws IOException {
+        long number = 0;
+        int digits = 0;
+
+        int ch;
+        while ((ch = inputStream.read()) != -1) {
+            if (ch == end && digits > 0) {
+                return (int) number;
+            } else if (ch >= '0' && ch <= '9' && digits < 10) {
+                number = number * 10 + (ch - '0');
+                if (number > Integer.MAX_VALUE) {
+                    break;
+                }
+                digits++;
+            } else {
+                break;
+            }
+        }
+
+        if (ch == -1) {
+            throw new IOException("readNumberUntil(): end of stream reached while waiting for " + formatChar(end));
+        }
+
+        throw new NumberFormatException("Invalid number ending with " + formatChar((char) ch));
+    }
+
+    private void appendToToken(int ch) {
+        if (tokenLength == tokenBuffer.length) {
+            tokenBuffer = Arrays.copyOf(tokenBuffer, tokenLength * 2);
+        }
+
+        tokenBuffer[tokenLength++] = (byte) ch;
+    }
+
+    private String tokenToString() {
+        // ISO-8859-1 maps every byte to the char with the same value
+        return new String(tokenBuffer, 0, tokenLength, StandardCharsets.ISO_8859_1);
     }
 
     private String formatChar(char value) {
@@ -4,11 +4,11 @@ package com.fsck.k9.mail.store.imap;
 import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +34,8 @@ import timber.log.Timber;
  * </pre>
  */
 public class ImapStore {
+    private static final int STATUS_PIPELINE_DEPTH = 32;
+
     private final ImapStoreConfig config;
     private final TrustedSocketFactory trustedSocketFactory;
     private Set<Flag> permanentFlagsIndex = EnumSet.noneOf(Flag.class);
@@ -50,17 +52,9 @@ public class ImapStore {
     private String pathPrefix;
     private String combinedPrefix = null;
     private String pathDelimiter = null;
-    private final Deque<ImapConnection> connections = new LinkedList<>();
+    private final ImapConnectionPool connectionPool;
     private FolderNameCodec folderNameCodec;
 
-    /**
-     * Cache of ImapFolder objects. ImapFolders are attached to a given folder on the server
-     * and as long as their associated connection remains open they are reusable between
-     * requests. This cache lets us make sure we always reuse, if possible, for a given
-     * folder name.
-     */
-    private final Map<String, ImapFolder> folderCache = new HashMap<>();
-
 
     public ImapStore(ServerSettings serverSettings, ImapStoreConfig config,
             TrustedSocketFactory trustedSocketFactory, ConnectivityManager connectivityManager,
@@ -87,19 +81,23 @@ public class ImapStore {
         pathPrefix = autoDetectNamespace ? null : pathPrefixSetting;
 
         folderNameCodec = FolderNameCodec.newInstance();
+        Integer maxConnections = ImapStoreSettings.getMaxConnections(serverSettings);
+        connectionPool = new ImapConnectionPool(this::createImapConnection,
+                maxConnections != null ? maxConnections : ImapStoreSettings.DEFAULT_MAX_CONNECTIONS,
+                config.getLogLabel());
     }
 
+    /**
+     * Returns a new {@link ImapFolder} instance.
+     *
+     * <p>
+     * {@code ImapFolder} instances hold the connection used while the folder is open and are not thread-safe. So every
+     * operation has to use its own instance. Connections are pooled, and a pooled connection that still has the folder
+     * selected is handed back to new instances of the same folder.
+     * </p>
+     */
     public ImapFolder getFolder(String name) {
-        ImapFolder folder;
-        synchronized (folderCache) {
-            folder = folderCache.get(name);
-            if (folder == null) {
-                folder = new ImapFolder(this, name);
-                folderCache.put(name, folder);
-            }
-        }
-
-        return folder;
+        return new ImapFolder(this, name);
     }
 
     String getCombinedPrefix() {
@@ -270,6 +268,99 @@ public class ImapStore {
         return folderName.substring(prefixLength);
     }
 
+    /**
+     * Retrieves {@code MESSAGES}, {@code UIDNEXT}, {@code UNSEEN} and (if supported) {@code HIGHESTMODSEQ} for the
+     * given folders without selecting them.
+     *
+     * <p>
+     * If the server supports LIST-STATUS (RFC 5819) this takes a single {@code LIST ... RETURN (STATUS (...))} command.
+     * Otherwise {@code STATUS} commands are pipelined. Folders the server didn't return a status for are missing from
+     * the result.
+     * </p>
+     */
+    public Map<String, FolderStatus> getFolderStatus(Collection<String> folderServerIds) throws MessagingException {
+        ImapConnection connection = getConnection();
+
+        try {
+            connection.open();
+
+            String statusItems = connection.isCondstoreCapable() ?
+                    "MESSAGES UIDNEXT UNSEEN HIGHESTMODSEQ" : "MESSAGES UIDNEXT UNSEEN";
+
+            Map<String, String> serverIdsByMailboxName = new HashMap<>(folderServerIds.size());
+            for (String serverId : folderServerIds) {
+                serverIdsByMailboxName.put(getMailboxName(serverId), serverId);
+            }
+
+            List<StatusResponse> statusResponses;
+            if (connection.hasCapability(Capabilities.LIST_STATUS)) {
+                String encodedListPrefix = ImapUtility.encodeString(getCombinedPrefix() + "*");
+                String command = String.format("LIST \"\" %s RETURN (STATUS (%s))", encodedListPrefix, statusItems);
+                statusResponses = StatusResponse.parse(connection.executeSimpleCommand(command));
+            } else {
+                statusResponses = pipelineStatusCommands(connection, serverIdsByMailboxName.keySet(), statusItems);
+            }
+
+            Map<String, FolderStatus> folderStatusMap = new HashMap<>(statusResponses.size());
+            for (StatusResponse statusResponse : statusResponses) {
+                String serverId = serverIdsByMailboxName.get(normalizeInbox(statusResponse.getName()));
+                if (serverId != null) {
+                    folderStatusMap.put(serverId, statusResponse.getFolderStatus());
+                }
+            }
+
+            return folderStatusMap;
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException("Unable to get folder status.", ioe);
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    private List<StatusResponse> pipelineStatusCommands(ImapConnection connection, Collection<String> mailboxNames,
+            String statusItems) throws IOException, MessagingException {
+
+        List<StatusResponse> statusResponses = new ArrayList<>(mailboxNames.size());
+        Iterator<String> mailboxNameIterator = mailboxNames.iterator();
+        int pendingCommands = 0;
+        while (mailboxNameIterator.hasNext() || pendingCommands > 0) {
+            while (mailboxNameIterator.hasNext() && pendingCommands < STATUS_PIPELINE_DEPTH) {
+                String escapedMailboxName = ImapUtility.encodeString(mailboxNameIterator.next());
+                connection.sendCommand(String.format("STATUS %s (%s)", escapedMailboxName, statusItems), false);
+                pendingCommands++;
+            }
+
+            ImapResponse response = connection.readResponse();
+            if (response.isTagged()) {
+                // A negative response only affects this one folder. It will be synchronized the usual way.
+                pendingCommands--;
+            } else {
+                StatusResponse statusResponse = StatusResponse.parse(response);
+                if (statusResponse != null) {
+                    statusResponses.add(statusResponse);
+                }
+            }
+        }
+
+        return statusResponses;
+    }
+
+    /**
+     * Returns the mailbox name {@link ImapFolder} uses when selecting the folder with the given server ID.
+     */
+    private String getMailboxName(String serverId) {
+        if (ImapFolder.INBOX.equalsIgnoreCase(serverId)) {
+            return ImapFolder.INBOX;
+        }
+
+        return folderNameCodec.encode(getCombinedPrefix() + serverId);
+    }
+
+    private static String normalizeInbox(String mailboxName) {
+        return ImapFolder.INBOX.equalsIgnoreCase(mailboxName) ? ImapFolder.INBOX : mailboxName;
+    }
+
     public void checkSettings() throws MessagingException {
         try {
             ImapConnection connection = createImapConnection();
@@ -282,35 +373,30 @@ public class ImapStore {
     }
 
     ImapConnection getConnection() throws MessagingException {
-        ImapConnection connection;
-        while ((connection = pollConnection()) != null) {
-            try {
-                connection.executeSimpleCommand(Commands.NOOP);
-                break;
-            } catch (IOException ioe) {
-                connection.close();
-            }
-        }
+        return connectionPool.acquire(null);
+    }
 
-        if (connection == null) {
-            connection = createImapConnection();
-        }
+    /**
+     * Returns a connection that will be used to select the given folder. Prefers a pooled connection that already has
+     * the folder selected.
+     */
+    ImapConnection getConnection(String folderServerId) throws MessagingException {
+        return connectionPool.acquire(folderServerId);
+    }
 
-        return connection;
+    void releaseConnection(ImapConnection connection) {
+        connectionPool.release(connection);
     }
 
-    private ImapConnection pollConnection() {
-        synchronized (connections) {
-            return connections.poll();
-        }
+    /**
+     * Returns the maximum number of connections this store keeps open at the same time.
+     */
+    public int getMaxConnections() {
+        return connectionPool.getMaxConnections();
     }
 
-    void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isConnected()) {
-            synchronized (connections) {
-                connections.offer(connection);
-            }
-        }
+    public ImapConnectionPoolStats getConnectionPoolStats() {
+        return connectionPool.getStats();
     }
 
     ImapConnection createImapConnection() {
@@ -329,6 +415,13 @@ public class ImapStore {
         return config.getLogLabel();
     }
 
+    /**
+     * Returns the number of {@code UID FETCH} commands that may be in flight at the same time.
+     */
+    int getFetchPipelineDepth() {
+        return config.getFetchPipelineDepth();
+    }
+
     Set<Flag> getPermanentFlagsIndex() {
         return permanentFlagsIndex;
     }
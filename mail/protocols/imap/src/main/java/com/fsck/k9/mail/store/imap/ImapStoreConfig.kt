@@ -4,6 +4,7 @@ import com.fsck.k9.mail.NetworkType
 
 interface ImapStoreConfig {
     val logLabel: String
+    val fetchPipelineDepth: Int
     fun isSubscribedFoldersOnly(): Boolean
     fun useCompression(type: NetworkType): Boolean
 }
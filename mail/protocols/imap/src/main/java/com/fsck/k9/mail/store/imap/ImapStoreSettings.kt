@@ -8,6 +8,13 @@ import com.fsck.k9.mail.ServerSettings
 object ImapStoreSettings {
     private const val AUTODETECT_NAMESPACE_KEY = "autoDetectNamespace"
     private const val PATH_PREFIX_KEY = "pathPrefix"
+    private const val MAX_CONNECTIONS_KEY = "maxConnections"
+
+    /**
+     * Number of connections used if the user didn't configure a limit. Many providers allow more, but some only allow
+     * a handful of simultaneous connections per user (including the ones of other clients).
+     */
+    const val DEFAULT_MAX_CONNECTIONS = 5
 
     @JvmStatic
     val ServerSettings.autoDetectNamespace: Boolean
@@ -17,11 +24,24 @@ object ImapStoreSettings {
     val ServerSettings.pathPrefix: String?
         get() = extra[PATH_PREFIX_KEY]
 
+    /**
+     * Maximum number of simultaneous connections to the server, or `null` if the user didn't configure a limit.
+     */
+    @JvmStatic
+    val ServerSettings.maxConnections: Int?
+        get() = extra[MAX_CONNECTIONS_KEY]?.toIntOrNull()?.takeIf { it > 0 }
+
     @JvmStatic
-    fun createExtra(autoDetectNamespace: Boolean, pathPrefix: String?): Map<String, String?> {
+    @JvmOverloads
+    fun createExtra(
+        autoDetectNamespace: Boolean,
+        pathPrefix: String?,
+        maxConnections: Int? = null
+    ): Map<String, String?> {
         return mapOf(
             AUTODETECT_NAMESPACE_KEY to autoDetectNamespace.toString(),
-            PATH_PREFIX_KEY to pathPrefix
+            PATH_PREFIX_KEY to pathPrefix,
+            MAX_CONNECTIONS_KEY to maxConnections?.toString()
         )
     }
 }
@@ -2,30 +2,59 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import androidx.annotation.Nullable;
+
 import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
 
 
+/**
+ * Result of a {@code SEARCH} command.
+ *
+ * <p>
+ * Handles both plain {@code SEARCH} responses and {@code ESEARCH} responses (RFC 4731) to {@code SEARCH RETURN (...)}.
+ * The numbers of an {@code ESEARCH ALL} result are returned by {@link #getNumbers()}.
+ * </p>
+ * <p>
+ * Numbers are stored in a primitive array. {@link #getSortedNumbers()} returns them without boxing, which matters for
+ * searches returning the UIDs of every message in a large folder.
+ * </p>
+ */
 class SearchResponse {
-    private final List<Long> numbers;
+    private static final String RETURN_MIN = "MIN";
+    private static final String RETURN_MAX = "MAX";
+    private static final String RETURN_COUNT = "COUNT";
+    private static final String RETURN_ALL = "ALL";
+
+
+    private final NumberBuffer numbers;
+    private final Long min;
+    private final Long max;
+    private final Long count;
 
 
-    private SearchResponse(List<Long> numbers) {
+    private SearchResponse(NumberBuffer numbers, Long min, Long max, Long count) {
         this.numbers = numbers;
+        this.min = min;
+        this.max = max;
+        this.count = count;
     }
 
     public static SearchResponse parse(List<ImapResponse> responses) {
-        List<Long> numbers = new ArrayList<>();
+        NumberBuffer numbers = new NumberBuffer();
+        EsearchResult esearchResult = new EsearchResult();
 
         for (ImapResponse response : responses) {
             parseSingleLine(response, numbers);
+            parseEsearchLine(response, numbers, esearchResult);
         }
 
-        return new SearchResponse(numbers);
+        return new SearchResponse(numbers, esearchResult.min, esearchResult.max, esearchResult.count);
     }
 
-    private static void parseSingleLine(ImapResponse response, List<Long> numbers) {
+    private static void parseSingleLine(ImapResponse response, NumberBuffer numbers) {
         if (response.isTagged() || response.size() < 2 || !equalsIgnoreCase(response.get(0), Responses.SEARCH)) {
             return;
         }
@@ -41,10 +70,119 @@ class SearchResponse {
         }
     }
 
+    /**
+     * Parses {@code * ESEARCH [(TAG "tag")] [UID] *(return-data-name SP return-data-value)}.
+     */
+    private static void parseEsearchLine(ImapResponse response, NumberBuffer numbers, EsearchResult result) {
+        if (response.isTagged() || response.size() < 1 || !equalsIgnoreCase(response.get(0), Responses.ESEARCH)) {
+            return;
+        }
+
+        int index = 1;
+        if (index < response.size() && response.get(index) instanceof ImapList) {
+            // Skip search correlator
+            index++;
+        }
+
+        if (index < response.size() && equalsIgnoreCase(response.get(index), "UID")) {
+            index++;
+        }
+
+        try {
+            for (; index + 1 < response.size(); index += 2) {
+                Object name = response.get(index);
+                if (equalsIgnoreCase(name, RETURN_MIN)) {
+                    result.min = response.getLong(index + 1);
+                } else if (equalsIgnoreCase(name, RETURN_MAX)) {
+                    result.max = response.getLong(index + 1);
+                } else if (equalsIgnoreCase(name, RETURN_COUNT)) {
+                    result.count = response.getLong(index + 1);
+                } else if (equalsIgnoreCase(name, RETURN_ALL)) {
+                    addSequenceSet(response.getString(index + 1), numbers);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Ignore the rest of a malformed response
+        }
+    }
+
+    private static void addSequenceSet(String sequenceSet, NumberBuffer numbers) {
+        for (String element : sequenceSet.split(",")) {
+            int colonIndex = element.indexOf(':');
+            if (colonIndex == -1) {
+                numbers.add(Long.parseLong(element));
+            } else {
+                long first = Long.parseLong(element.substring(0, colonIndex));
+                long second = Long.parseLong(element.substring(colonIndex + 1));
+                for (long number = Math.min(first, second); number <= Math.max(first, second); number++) {
+                    numbers.add(number);
+                }
+            }
+        }
+    }
+
     /**
      * @return A mutable list of numbers from the SEARCH response(s).
      */
     public List<Long> getNumbers() {
-        return numbers;
+        List<Long> result = new ArrayList<>(numbers.size);
+        for (int i = 0; i < numbers.size; i++) {
+            result.add(numbers.values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return The numbers from the SEARCH response(s) in ascending order.
+     */
+    public long[] getSortedNumbers() {
+        long[] result = Arrays.copyOf(numbers.values, numbers.size);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @return The value of {@code MIN} from an {@code ESEARCH} response, or {@code null} if there was none (e.g. because
+     *         no message matched).
+     */
+    @Nullable
+    public Long getMin() {
+        return min;
+    }
+
+    /**
+     * @return The value of {@code MAX} from an {@code ESEARCH} response, or {@code null} if there was none (e.g. because
+     *         no message matched).
+     */
+    @Nullable
+    public Long getMax() {
+        return max;
+    }
+
+    /**
+     * @return The value of {@code COUNT} from an {@code ESEARCH} response, or {@code null} if there was none.
+     */
+    @Nullable
+    public Long getCount() {
+        return count;
+    }
+
+
+    private static class NumberBuffer {
+        long[] values = new long[16];
+        int size;
+
+        void add(long number) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = number;
+        }
+    }
+
+    private static class EsearchResult {
+        Long min;
+        Long max;
+        Long count;
     }
 }
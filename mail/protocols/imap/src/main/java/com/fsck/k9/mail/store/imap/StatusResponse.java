@@ -0,0 +1,79 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * An untagged {@code STATUS} response, either in reply to the {@code STATUS} command or as part of a
+ * {@code LIST ... RETURN (STATUS (...))} response (RFC 5819).
+ */
+class StatusResponse {
+    private final String name;
+    private final FolderStatus folderStatus;
+
+
+    private StatusResponse(String name, FolderStatus folderStatus) {
+        this.name = name;
+        this.folderStatus = folderStatus;
+    }
+
+    public static List<StatusResponse> parse(List<ImapResponse> responses) {
+        List<StatusResponse> statusResponses = new ArrayList<>();
+
+        for (ImapResponse response : responses) {
+            StatusResponse statusResponse = parse(response);
+            if (statusResponse != null) {
+                statusResponses.add(statusResponse);
+            }
+        }
+
+        return Collections.unmodifiableList(statusResponses);
+    }
+
+    public static StatusResponse parse(ImapResponse response) {
+        if (response.isTagged() || response.size() < 3 || !equalsIgnoreCase(response.get(0), Responses.STATUS) ||
+                !response.isString(1) || !response.isList(2)) {
+            return null;
+        }
+
+        String name = response.getString(1);
+        ImapList attributes = response.getList(2);
+
+        Long messageCount = null;
+        Long uidNext = null;
+        Long unseenCount = null;
+        Long highestModSeq = null;
+        for (int i = 0, end = attributes.size() - 1; i < end; i += 2) {
+            if (!attributes.isLong(i + 1)) {
+                return null;
+            }
+
+            Object key = attributes.get(i);
+            long value = attributes.getLong(i + 1);
+            if (equalsIgnoreCase(key, "MESSAGES")) {
+                messageCount = value;
+            } else if (equalsIgnoreCase(key, "UIDNEXT")) {
+                uidNext = value;
+            } else if (equalsIgnoreCase(key, "UNSEEN")) {
+                unseenCount = value;
+            } else if (equalsIgnoreCase(key, Responses.HIGHESTMODSEQ)) {
+                highestModSeq = value;
+            }
+        }
+
+        return new StatusResponse(name, new FolderStatus(messageCount, uidNext, unseenCount, highestModSeq));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FolderStatus getFolderStatus() {
+        return folderStatus;
+    }
+}
@@ -0,0 +1,88 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * Result of a {@code UID THREAD} command (RFC 5256).
+ *
+ * <p>
+ * The thread tree is flattened into a map from each UID to the UID of its parent, or {@code null} for the root of a
+ * thread. Parents are always added before their children.
+ * </p>
+ * <p>
+ * A thread that starts with a dummy node (the server knows about a common parent that isn't in the mailbox) has no
+ * UID for its root. In that case the first message of the first branch becomes the parent of the other branches, so
+ * all messages still end up in the same thread.
+ * </p>
+ */
+class ThreadResponse {
+    private final Map<String, String> parentUids;
+
+
+    private ThreadResponse(Map<String, String> parentUids) {
+        this.parentUids = parentUids;
+    }
+
+    public static ThreadResponse parse(List<ImapResponse> responses) {
+        Map<String, String> parentUids = new LinkedHashMap<>();
+
+        for (ImapResponse response : responses) {
+            if (response.isTagged() || response.size() < 1 || !equalsIgnoreCase(response.get(0), Responses.THREAD)) {
+                continue;
+            }
+
+            for (int i = 1, end = response.size(); i < end; i++) {
+                if (response.get(i) instanceof ImapList) {
+                    parseThread(response.getList(i), null, parentUids);
+                }
+            }
+        }
+
+        return new ThreadResponse(parentUids);
+    }
+
+    /**
+     * @return The first UID found in {@code thread}, or {@code null} if there was none.
+     */
+    private static String parseThread(ImapList thread, String parentUid, Map<String, String> parentUids) {
+        String firstUid = null;
+        String parent = parentUid;
+
+        for (Object element : thread) {
+            String uid;
+            if (element instanceof ImapList) {
+                uid = parseThread((ImapList) element, parent, parentUids);
+                if (parent == null) {
+                    // Branch of a dummy node; attach the remaining branches to this one
+                    parent = uid;
+                }
+            } else if (element instanceof String) {
+                uid = (String) element;
+                parentUids.put(uid, parent);
+                parent = uid;
+            } else {
+                continue;
+            }
+
+            if (firstUid == null) {
+                firstUid = uid;
+            }
+        }
+
+        return firstUid;
+    }
+
+    /**
+     * @return A map from each UID to the UID of its parent, or {@code null} for thread roots.
+     */
+    public Map<String, String> getParentUids() {
+        return Collections.unmodifiableMap(parentUids);
+    }
+}
@@ -0,0 +1,52 @@
+package com.fsck.k9.mail.store.imap
+
+import com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase
+
+/**
+ * Parses `VANISHED` responses sent by servers that have the QRESYNC extension (RFC 7162) enabled.
+ *
+ * Examples:
+ * - `* VANISHED 405,407,410`
+ * - `* VANISHED (EARLIER) 41,43:116,118`
+ *
+ * `VANISHED (EARLIER)` is sent in response to a `UID FETCH` with the `VANISHED` modifier and reports messages that
+ * were expunged before the command was issued. A `VANISHED` response without `EARLIER` replaces `EXPUNGE`.
+ */
+internal class VanishedResponse private constructor(val isEarlier: Boolean, val uids: List<Long>) {
+    companion object {
+        @JvmStatic
+        fun parse(response: ImapResponse): VanishedResponse? {
+            if (response.isTagged || response.size < 2 || !equalsIgnoreCase(response[0], Responses.VANISHED)) {
+                return null
+            }
+
+            val isEarlier = response.isList(1) && equalsIgnoreCase(response.getList(1).firstOrNull(), Responses.EARLIER)
+            val uidSetIndex = if (response.isList(1)) 2 else 1
+            if (uidSetIndex >= response.size || !response.isString(uidSetIndex)) return null
+
+            val uids = parseUidSet(response.getString(uidSetIndex)) ?: return null
+
+            return VanishedResponse(isEarlier, uids)
+        }
+
+        private fun parseUidSet(uidSet: String): List<Long>? {
+            val uids = mutableListOf<Long>()
+            for (element in uidSet.split(',')) {
+                val range = element.split(':')
+                when (range.size) {
+                    1 -> uids.add(range[0].toLongOrNull() ?: return null)
+                    2 -> {
+                        val first = range[0].toLongOrNull() ?: return null
+                        val second = range[1].toLongOrNull() ?: return null
+                        for (uid in minOf(first, second)..maxOf(first, second)) {
+                            uids.add(uid)
+                        }
+                    }
+                    else -> return null
+                }
+            }
+
+            return uids
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class FetchBodyCallbackTest {
+    private final ImapMessage message = new ImapMessage("1");
+    private final Map<String, ImapMessage> messageMap = Collections.singletonMap("1", message);
+
+
+    @Test
+    public void foundLiteral_withBodyLiteral_shouldParseMessageFromStream() throws Exception {
+        ImapResponse response = readResponse("* 1 FETCH (UID 1 BODY[] {19}\r\nSubject: Hi\r\n\r\nbody)\r\n");
+
+        assertEquals("Hi", message.getSubject());
+        assertEquals(1, response.getKeyedList("FETCH").get(4));
+    }
+
+    @Test
+    public void foundLiteral_withPartialBodyLiteral_shouldParseMessageFromStream() throws Exception {
+        ImapResponse response = readResponse("* 1 FETCH (UID 1 BODY[]<0> {19}\r\nSubject: Hi\r\n\r\nbody)\r\n");
+
+        assertEquals("Hi", message.getSubject());
+        assertEquals(1, response.getKeyedList("FETCH").get(5));
+    }
+
+    @Test
+    public void foundLiteral_withHeaderFieldsLiteral_shouldParseMessageFromStream() throws Exception {
+        readResponse("* 1 FETCH (UID 1 BODY[HEADER.FIELDS (date subject)] {15}\r\nSubject: Hi\r\n\r\n)\r\n");
+
+        assertEquals("Hi", message.getSubject());
+    }
+
+    @Test
+    public void foundLiteral_withLiteralInsideBodyStructure_shouldReturnLiteralAsString() throws Exception {
+        ImapResponse response = readResponse("* 1 FETCH (UID 1 BODYSTRUCTURE " +
+                "(\"TEXT\" \"PLAIN\" (\"NAME\" {4}\r\ntest) NIL NIL \"7BIT\" 4 1))\r\n");
+
+        assertNull(message.getSubject());
+        ImapList bodyStructure = response.getKeyedList("FETCH").getKeyedList("BODYSTRUCTURE");
+        assertEquals("test", bodyStructure.getList(2).getString(1));
+    }
+
+    @Test
+    public void foundLiteral_withLiteralBeforeUid_shouldReturnLiteralAsString() throws Exception {
+        ImapResponse response = readResponse("* 1 FETCH (BODY[] {15}\r\nSubject: Hi\r\n\r\n UID 1)\r\n");
+
+        assertNull(message.getSubject());
+        assertEquals("Subject: Hi\r\n\r\n", response.getKeyedList("FETCH").get(2));
+    }
+
+
+    private ImapResponse readResponse(String response) throws Exception {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(response.getBytes());
+        ImapResponseParser parser = new ImapResponseParser(new PeekableInputStream(inputStream));
+        return parser.readResponse(new FetchBodyCallback(messageMap));
+    }
+}
@@ -0,0 +1,54 @@
+package com.fsck.k9.mail.store.imap
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class HighestModSeqResponseTest {
+    @Test
+    fun validResponseWithText() {
+        val response = ImapResponseHelper.createImapResponse("* OK [HIGHESTMODSEQ 715194045007] Highest")
+
+        val result = HighestModSeqResponse.parse(response)
+
+        assertNotNull(result)
+        assertEquals(715194045007L, result!!.highestModSeq)
+    }
+
+    @Test
+    fun noModSeqResponse_shouldReturnResponseWithoutModSeq() {
+        val response = ImapResponseHelper.createImapResponse("* OK [NOMODSEQ] Sorry, no modseqs")
+
+        val result = HighestModSeqResponse.parse(response)
+
+        assertNotNull(result)
+        assertFalse(result!!.isModSeqSupported)
+    }
+
+    @Test
+    fun taggedResponse_shouldReturnNull() {
+        assertNotValid("99 OK [HIGHESTMODSEQ 42]")
+    }
+
+    @Test
+    fun otherResponseCode_shouldReturnNull() {
+        assertNotValid("* OK [UIDVALIDITY 42]")
+    }
+
+    @Test
+    fun modSeqIsNotANumber_shouldReturnNull() {
+        assertNotValid("* OK [HIGHESTMODSEQ fourtytwo]")
+    }
+
+    @Test
+    fun zeroModSeq_shouldReturnNull() {
+        assertNotValid("* OK [HIGHESTMODSEQ 0]")
+    }
+
+    private fun assertNotValid(response: String) {
+        val result = HighestModSeqResponse.parse(ImapResponseHelper.createImapResponse(response))
+        assertNull(result)
+    }
+}
@@ -0,0 +1,222 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse;
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponseList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class ImapConnectionPoolTest {
+    private final Deque<ImapConnection> imapConnections = new ArrayDeque<>();
+
+
+    @Test
+    public void acquire_withEmptyPool_shouldCreateNewConnection() throws Exception {
+        ImapConnectionPool pool = createPool(2);
+        ImapConnection imapConnection = enqueueImapConnection();
+
+        ImapConnection result = pool.acquire(null);
+
+        assertSame(imapConnection, result);
+        verify(imapConnection, never()).executeSimpleCommand(Commands.NOOP);
+        assertEquals(1, pool.getStats().getMisses());
+        assertEquals(1, pool.getStats().getActiveConnections());
+    }
+
+    @Test
+    public void acquire_afterRelease_shouldReuseConnectionAfterHealthCheck() throws Exception {
+        ImapConnectionPool pool = createPool(2);
+        ImapConnection imapConnection = enqueueConnectedImapConnection();
+        pool.release(pool.acquire(null));
+
+        ImapConnection result = pool.acquire(null);
+
+        assertSame(imapConnection, result);
+        verify(imapConnection).executeSimpleCommand(Commands.NOOP);
+        assertEquals(1, pool.getStats().getHits());
+    }
+
+    @Test
+    public void acquire_withFolder_shouldPreferConnectionWithFolderSelected() throws Exception {
+        ImapConnectionPool pool = createPool(2);
+        ImapConnection inboxConnection = enqueueConnectedImapConnection();
+        enqueueConnectedImapConnection();
+        ImapConnection first = pool.acquire(null);
+        ImapConnection second = pool.acquire(null);
+        when(inboxConnection.getSelectedFolderServerId()).thenReturn("INBOX");
+        pool.release(first);
+        pool.release(second);
+
+        ImapConnection result = pool.acquire("INBOX");
+
+        assertSame(inboxConnection, result);
+        verify(inboxConnection, never()).clearSelectedFolder();
+        assertEquals(1, pool.getStats().getAffinityHits());
+    }
+
+    @Test
+    public void acquire_forOtherFolder_shouldClearSelectedFolder() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        ImapConnection imapConnection = enqueueConnectedImapConnection();
+        when(imapConnection.getSelectedFolderServerId()).thenReturn("INBOX");
+        pool.release(pool.acquire(null));
+
+        pool.acquire("Archive");
+
+        verify(imapConnection).clearSelectedFolder();
+        assertEquals(0, pool.getStats().getAffinityHits());
+    }
+
+    @Test
+    public void acquire_withUntaggedResponseToHealthCheck_shouldClearSelectedFolder() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        ImapConnection imapConnection = enqueueConnectedImapConnection();
+        when(imapConnection.getSelectedFolderServerId()).thenReturn("INBOX");
+        when(imapConnection.executeSimpleCommand(Commands.NOOP))
+                .thenReturn(createImapResponseList("* 3 EXISTS", "1 OK NOOP completed"));
+        pool.release(pool.acquire("INBOX"));
+
+        pool.acquire("INBOX");
+
+        verify(imapConnection).clearSelectedFolder();
+    }
+
+    @Test
+    public void acquire_withBrokenPooledConnection_shouldCreateNewConnection() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        ImapConnection brokenConnection = enqueueConnectedImapConnection();
+        ImapConnection newConnection = enqueueImapConnection();
+        doThrow(IOException.class).when(brokenConnection).executeSimpleCommand(Commands.NOOP);
+        pool.release(pool.acquire(null));
+
+        ImapConnection result = pool.acquire(null);
+
+        assertSame(newConnection, result);
+        verify(brokenConnection).close();
+        assertEquals(1, pool.getStats().getReconnects());
+        assertEquals(1, pool.getStats().getActiveConnections());
+    }
+
+    @Test
+    public void acquire_withAllConnectionsInUse_shouldWaitForRelease() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        ImapConnection imapConnection = enqueueConnectedImapConnection();
+        CountDownLatch acquiredLatch = new CountDownLatch(1);
+        Thread otherThread = new Thread(() -> {
+            try {
+                ImapConnection connection = pool.acquire(null);
+                acquiredLatch.countDown();
+                Thread.sleep(100);
+                pool.release(connection);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        otherThread.start();
+        acquiredLatch.await();
+
+        ImapConnection result = pool.acquire(null);
+
+        otherThread.join();
+        assertSame(imapConnection, result);
+        assertEquals(1, pool.getStats().getWaits());
+        assertEquals(1, pool.getStats().getMisses());
+    }
+
+    @Test
+    public void acquire_withAllConnectionsInUseBySameThread_shouldNotWait() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        ImapConnection firstConnection = enqueueImapConnection();
+        ImapConnection secondConnection = enqueueImapConnection();
+
+        ImapConnection first = pool.acquire("INBOX");
+        ImapConnection second = pool.acquire(null);
+
+        assertSame(firstConnection, first);
+        assertSame(secondConnection, second);
+        assertEquals(0, pool.getStats().getWaits());
+        assertEquals(2, pool.getStats().getActiveConnections());
+    }
+
+    @Test
+    public void acquire_withClosedConnectionThatWasNotReleased_shouldNotCountTowardsLimit() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        ImapConnection closedConnection = enqueueImapConnection();
+        ImapConnection newConnection = enqueueImapConnection();
+        pool.acquire(null);
+        when(closedConnection.isClosed()).thenReturn(true);
+
+        ImapConnection result = pool.acquire(null);
+
+        assertSame(newConnection, result);
+        assertEquals(0, pool.getStats().getWaits());
+    }
+
+    @Test
+    public void release_withClosedConnection_shouldNotReturnConnectionToPool() throws Exception {
+        ImapConnectionPool pool = createPool(1);
+        enqueueImapConnection();
+
+        pool.release(pool.acquire(null));
+
+        assertEquals(0, pool.getStats().getIdleConnections());
+        assertEquals(0, pool.getStats().getActiveConnections());
+    }
+
+    @Test
+    public void performKeepAlive_shouldEvictBrokenConnections() throws Exception {
+        ImapConnectionPool pool = createPool(2);
+        ImapConnection healthyConnection = enqueueConnectedImapConnection();
+        ImapConnection brokenConnection = enqueueConnectedImapConnection();
+        doThrow(IOException.class).when(brokenConnection).executeSimpleCommand(Commands.NOOP);
+        ImapConnection first = pool.acquire(null);
+        ImapConnection second = pool.acquire(null);
+        pool.release(first);
+        pool.release(second);
+
+        pool.performKeepAlive();
+
+        verify(healthyConnection).executeSimpleCommand(Commands.NOOP);
+        verify(brokenConnection).close();
+        assertEquals(1, pool.getStats().getEvictions());
+        assertEquals(1, pool.getStats().getIdleConnections());
+    }
+
+
+    private ImapConnectionPool createPool(int maxConnections) {
+        return new ImapConnectionPool(() -> {
+            if (imapConnections.isEmpty()) {
+                throw new AssertionError("Unexpectedly tried to create an ImapConnection instance");
+            }
+            return imapConnections.pop();
+        }, maxConnections, "Account");
+    }
+
+    private ImapConnection enqueueImapConnection() {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        imapConnections.add(imapConnection);
+        return imapConnection;
+    }
+
+    private ImapConnection enqueueConnectedImapConnection() throws Exception {
+        ImapConnection imapConnection = enqueueImapConnection();
+        when(imapConnection.isConnected()).thenReturn(true);
+        when(imapConnection.executeSimpleCommand(Commands.NOOP))
+                .thenReturn(Collections.singletonList(createImapResponse("1 OK NOOP completed")));
+        return imapConnection;
+    }
+}
@@ -790,6 +790,53 @@ public class ImapConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void open_withQresyncCapability_shouldEnableQresync() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simplePreAuthAndLoginDialog(server, "ENABLE CONDSTORE QRESYNC");
+        server.expect("3 ENABLE QRESYNC");
+        server.output("* ENABLED QRESYNC");
+        server.output("3 OK");
+        simplePostAuthenticationDialog(server, 4);
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        imapConnection.open();
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+        assertTrue(imapConnection.isQresyncEnabled());
+    }
+
+    @Test
+    public void open_withNegativeResponseToEnableCommand_shouldContinueWithoutQresync() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simplePreAuthAndLoginDialog(server, "ENABLE CONDSTORE QRESYNC");
+        server.expect("3 ENABLE QRESYNC");
+        server.output("3 NO");
+        simplePostAuthenticationDialog(server, 4);
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        imapConnection.open();
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+        assertFalse(imapConnection.isQresyncEnabled());
+    }
+
+    @Test
+    public void open_withQresyncButWithoutEnableCapability_shouldNotIssueEnableCommand() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simplePreAuthAndLoginDialog(server, "CONDSTORE QRESYNC");
+        simplePostAuthenticationDialog(server, 3);
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        imapConnection.open();
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+        assertFalse(imapConnection.isQresyncEnabled());
+    }
+
     @Test
     public void open_withIoExceptionDuringListCommand_shouldThrow() throws Exception {
         settings.setAuthType(AuthType.PLAIN);
@@ -0,0 +1,99 @@
+package com.fsck.k9.mail.store.imap
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner
+import com.fsck.k9.mail.power.WakeLock
+import com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(K9LibRobolectricTestRunner::class)
+class ImapFolderIdlerTest {
+    private val imapConnection = mock<ImapConnection> {
+        on { isConnected } doReturn true
+        on { isIdleCapable } doReturn true
+    }
+    private val imapStore = mock<ImapStore> {
+        on { combinedPrefix } doReturn ""
+        on { folderNameCodec } doReturn FolderNameCodec.newInstance()
+        on { createImapConnection() } doReturn imapConnection
+    }
+    private val wakeLock = mock<WakeLock>()
+    private val idler = ImapFolderIdler(imapStore, wakeLock, "Folder", 10 * 60 * 1000L)
+
+    @Test
+    fun idle_withExistsResponse_shouldSendDoneAndReturnSync() {
+        whenever(imapConnection.sendCommand(Commands.IDLE, false)).thenReturn("2")
+        setupResponses("+ idling", "* 3 EXISTS", "2 OK IDLE terminated")
+
+        val result = idler.idle()
+
+        assertEquals(IdleResult.SYNC, result)
+        verify(imapConnection).executeSimpleCommand("EXAMINE \"Folder\"")
+        verify(imapConnection).sendContinuation("DONE")
+        verify(imapConnection, never()).close()
+    }
+
+    @Test
+    fun idle_withVanishedResponse_shouldReturnSync() {
+        whenever(imapConnection.sendCommand(Commands.IDLE, false)).thenReturn("2")
+        setupResponses("+ idling", "* VANISHED 1:3", "2 OK IDLE terminated")
+
+        val result = idler.idle()
+
+        assertEquals(IdleResult.SYNC, result)
+    }
+
+    @Test
+    fun idle_withRefresh_shouldIssueNewIdleCommand() {
+        whenever(imapConnection.sendCommand(Commands.IDLE, false)).thenReturn("2", "3")
+        val responses = ArrayDeque(
+            listOf("+ idling", "2 OK IDLE terminated", "+ idling", "* 1 EXPUNGE", "3 OK IDLE terminated")
+        )
+        whenever(imapConnection.readResponse()).thenAnswer {
+            val response = createImapResponse(responses.removeFirst())
+            if (responses.size == 4) idler.refresh()
+            response
+        }
+
+        val result = idler.idle()
+
+        assertEquals(IdleResult.SYNC, result)
+        verify(imapConnection, times(2)).sendCommand(Commands.IDLE, false)
+        verify(imapConnection, times(2)).sendContinuation("DONE")
+    }
+
+    @Test
+    fun idle_afterStop_shouldCloseConnectionAndReturnStopped() {
+        idler.stop()
+
+        val result = idler.idle()
+
+        assertEquals(IdleResult.STOPPED, result)
+        verify(imapConnection, never()).sendCommand(Commands.IDLE, false)
+        verify(imapConnection).close()
+    }
+
+    @Test
+    fun idle_withoutIdleCapability_shouldReturnNotSupported() {
+        whenever(imapConnection.isIdleCapable).thenReturn(false)
+
+        val result = idler.idle()
+
+        assertEquals(IdleResult.NOT_SUPPORTED, result)
+        verify(imapConnection, never()).sendCommand(any(), any())
+        verify(imapConnection).close()
+    }
+
+    private fun setupResponses(vararg responses: String) {
+        val imapResponses = responses.map { createImapResponse(it) }
+        whenever(imapConnection.readResponse()).thenReturn(imapResponses[0], *imapResponses.drop(1).toTypedArray())
+    }
+}
@@ -10,11 +10,15 @@ import com.fsck.k9.mail.MessagingException
 import com.fsck.k9.mail.Part
 import com.fsck.k9.mail.internet.BinaryTempFileBody
 import com.fsck.k9.mail.internet.MimeHeader
+import com.fsck.k9.mail.internet.RawDataBody
 import com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse
+import com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponseList
 import com.nhaarman.mockitokotlin2.anyOrNull
 import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.clearInvocations
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.doThrow
+import com.nhaarman.mockitokotlin2.inOrder
 import com.nhaarman.mockitokotlin2.mock
 import com.nhaarman.mockitokotlin2.whenever
 import java.io.IOException
@@ -22,6 +26,7 @@ import java.util.Date
 import java.util.TimeZone
 import okio.Buffer
 import org.apache.james.mime4j.util.MimeUtil
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNotNull
@@ -31,11 +36,13 @@ import org.junit.Assert.fail
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.anyBoolean
 import org.mockito.ArgumentMatchers.anySet
 import org.mockito.ArgumentMatchers.anyString
 import org.mockito.ArgumentMatchers.eq
 import org.mockito.ArgumentMatchers.startsWith
 import org.mockito.Mockito.atLeastOnce
+import org.mockito.Mockito.never
 import org.mockito.Mockito.times
 import org.mockito.Mockito.verify
 import org.mockito.Mockito.verifyNoMoreInteractions
@@ -123,7 +130,7 @@ class ImapFolderTest {
 
         imapFolder.open(ImapFolder.OPEN_MODE_RW)
 
-        verify(imapStore, times(1)).connection
+        verify(imapStore, times(1)).getConnection("Folder")
     }
 
     @Test
@@ -135,13 +142,56 @@ class ImapFolderTest {
         doThrow(IOException::class).whenever(imapConnection).executeSimpleCommand(Commands.NOOP)
         imapFolder.open(ImapFolder.OPEN_MODE_RW)
 
-        verify(imapStore, times(2)).connection
+        verify(imapStore, times(2)).getConnection("Folder")
+    }
+
+    @Test
+    fun open_withConnectionThatHasFolderSelected_shouldNotSelectFolderAgain() {
+        val imapFolder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isFolderSelected("Folder", ImapFolder.OPEN_MODE_RW)).thenReturn(true)
+        whenever(imapConnection.selectedFolderMessageCount).thenReturn(42)
+
+        imapFolder.open(ImapFolder.OPEN_MODE_RW)
+
+        assertEquals(42, imapFolder.messageCount)
+        verify(imapConnection, never()).executeSimpleCommand("SELECT \"Folder\"")
+    }
+
+    @Test
+    fun getHighestModSeq_afterReusingConnectionThatHasFolderSelected_shouldSelectFolderAgain() {
+        val imapFolder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isFolderSelected("Folder", ImapFolder.OPEN_MODE_RW)).thenReturn(true)
+        whenever(imapConnection.selectedFolderMessageCount).thenReturn(42)
+        imapFolder.open(ImapFolder.OPEN_MODE_RW)
+
+        val uidValidity = imapFolder.getUidValidity()
+        imapFolder.getHighestModSeq()
+
+        assertEquals(1125022061L, uidValidity)
+        assertEquals(23, imapFolder.messageCount)
+        verify(imapConnection, times(1)).executeSimpleCommand("SELECT \"Folder\"")
+    }
+
+    @Test
+    fun close_shouldPassMessageCountToConnection() {
+        val imapFolder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        imapFolder.open(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isFolderSelected("Folder", ImapFolder.OPEN_MODE_RW)).thenReturn(true)
+        clearInvocations(imapConnection)
+
+        imapFolder.close()
+
+        verify(imapConnection).setSelectedFolder("Folder", ImapFolder.OPEN_MODE_RW, 23, true)
+        verify(imapStore).releaseConnection(imapConnection)
     }
 
     @Test
     fun open_withIoException_shouldThrowMessagingException() {
         val imapFolder = createFolder("Folder")
-        whenever(imapStore.connection).thenReturn(imapConnection)
+        whenever(imapStore.getConnection("Folder")).thenReturn(imapConnection)
         doThrow(IOException::class).whenever(imapConnection).executeSimpleCommand("SELECT \"Folder\"")
 
         try {
@@ -156,7 +206,7 @@ class ImapFolderTest {
     @Test
     fun open_withMessagingException_shouldThrowMessagingException() {
         val imapFolder = createFolder("Folder")
-        whenever(imapStore.connection).thenReturn(imapConnection)
+        whenever(imapStore.getConnection("Folder")).thenReturn(imapConnection)
         doThrow(MessagingException::class).whenever(imapConnection).executeSimpleCommand("SELECT \"Folder\"")
 
         try {
@@ -169,7 +219,7 @@ class ImapFolderTest {
     @Test
     fun open_withoutExistsResponse_shouldThrowMessagingException() {
         val imapFolder = createFolder("Folder")
-        whenever(imapStore.connection).thenReturn(imapConnection)
+        whenever(imapStore.getConnection("Folder")).thenReturn(imapConnection)
         val selectResponses = listOf(
             createImapResponse("* OK [UIDNEXT 57576] Predicted next UID"),
             createImapResponse("2 OK [READ-WRITE] Select completed.")
@@ -379,6 +429,21 @@ class ImapFolderTest {
         assertEquals(3, unreadMessageCount)
     }
 
+    @Test
+    fun getUnreadMessageCount_withEsearchCapableServer_shouldUseSearchReturnCount() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isEsearchCapable).thenReturn(true)
+        val imapResponses = listOf(createImapResponse("* ESEARCH (TAG \"2\") COUNT 1337"))
+        whenever(imapConnection.executeSimpleCommand("SEARCH RETURN (COUNT) 1:* UNSEEN NOT DELETED"))
+            .thenReturn(imapResponses)
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val unreadMessageCount = folder.unreadMessageCount
+
+        assertEquals(1337, unreadMessageCount)
+    }
+
     @Test
     fun getFlaggedMessageCount_withClosedFolder_shouldThrow() {
         val folder = createFolder("Folder")
@@ -420,6 +485,34 @@ class ImapFolderTest {
         assertEquals(42L, highestUid)
     }
 
+    @Test
+    fun getHighestUid_withEsearchCapableServer_shouldUseSearchReturnMax() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isEsearchCapable).thenReturn(true)
+        whenever(imapConnection.executeSimpleCommand("UID SEARCH RETURN (MAX) *:*"))
+            .thenReturn(listOf(createImapResponse("* ESEARCH (TAG \"2\") UID MAX 42")))
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val highestUid = folder.highestUid
+
+        assertEquals(42L, highestUid)
+    }
+
+    @Test
+    fun getHighestUid_withEsearchCapableServerAndEmptyFolder_shouldReturnMinusOne() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isEsearchCapable).thenReturn(true)
+        whenever(imapConnection.executeSimpleCommand("UID SEARCH RETURN (MAX) *:*"))
+            .thenReturn(listOf(createImapResponse("* ESEARCH (TAG \"2\") UID")))
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val highestUid = folder.highestUid
+
+        assertEquals(-1L, highestUid)
+    }
+
     @Test
     fun getHighestUid_imapConnectionThrowsNegativesResponse_shouldReturnMinusOne() {
         val folder = createFolder("Folder")
@@ -489,6 +582,34 @@ class ImapFolderTest {
         verifyNoMoreInteractions(listener)
     }
 
+    @Test
+    fun getMessageUids_shouldReturnSortedUids() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        val imapResponses = listOf(createImapResponse("* SEARCH 6 3"), createImapResponse("* SEARCH 5"))
+        whenever(imapConnection.executeSimpleCommand("UID SEARCH 1:10 NOT DELETED")).thenReturn(imapResponses)
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val uids = folder.getMessageUids(1, 10, null)
+
+        assertArrayEquals(longArrayOf(3, 5, 6), uids)
+    }
+
+    @Test
+    fun getMessageUids_withEsearchCapableServer_shouldRequestSequenceSet() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isEsearchCapable).thenReturn(true)
+        val imapResponses = listOf(createImapResponse("* ESEARCH (TAG \"2\") UID ALL 7,2:4"))
+        whenever(imapConnection.executeSimpleCommand("UID SEARCH RETURN (ALL) 1:10 NOT DELETED"))
+            .thenReturn(imapResponses)
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val uids = folder.getMessageUids(1, 10, null)
+
+        assertArrayEquals(longArrayOf(2, 3, 4, 7), uids)
+    }
+
     @Test
     fun getMessages_withInvalidStartArgument_shouldThrow() {
         val folder = createFolder("Folder")
@@ -668,6 +789,36 @@ class ImapFolderTest {
         assertCommandIssued("SEARCH 1:99 NOT DELETED")
     }
 
+    @Test
+    fun areMoreMessagesAvailable_withEsearchCapableServer_shouldIssueSingleSearchReturnMinCommand() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isEsearchCapable).thenReturn(true)
+        whenever(imapConnection.executeSimpleCommand("SEARCH RETURN (MIN) 1:599 NOT DELETED"))
+            .thenReturn(listOf(createImapResponse("* ESEARCH (TAG \"2\") MIN 17")))
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val areMoreMessagesAvailable = folder.areMoreMessagesAvailable(600, null)
+
+        assertTrue(areMoreMessagesAvailable)
+        // SELECT during OPEN and a single SEARCH
+        verify(imapConnection, times(2)).executeSimpleCommand(anyString())
+    }
+
+    @Test
+    fun areMoreMessagesAvailable_withEsearchCapableServerAndNoMatch_shouldReturnFalse() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RW)
+        whenever(imapConnection.isEsearchCapable).thenReturn(true)
+        whenever(imapConnection.executeSimpleCommand("SEARCH RETURN (MIN) 1:599 NOT DELETED"))
+            .thenReturn(listOf(createImapResponse("* ESEARCH (TAG \"2\")")))
+        folder.open(ImapFolder.OPEN_MODE_RW)
+
+        val areMoreMessagesAvailable = folder.areMoreMessagesAvailable(600, null)
+
+        assertFalse(areMoreMessagesAvailable)
+    }
+
     @Test
     fun fetch_withNullMessageListArgument_shouldDoNothing() {
         val folder = createFolder("Folder")
@@ -809,6 +960,161 @@ class ImapFolderTest {
         verify(messages[0]).setFlag(Flag.SEEN, true)
     }
 
+    @Test
+    fun fetch_withPipelineDepth_shouldSendNextWindowBeforeReadingResponses() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapStore.fetchPipelineDepth).thenReturn(2)
+        whenever(imapConnection.sendCommand(startsWith("UID FETCH"), eq(false))).thenReturn("3", "4", "5")
+        whenever(imapConnection.readResponse(anyOrNull()))
+            .thenReturn(createImapResponse("* 1 FETCH (FLAGS (\\Seen) UID 1)"))
+            .thenReturn(createImapResponse("3 OK"))
+            .thenReturn(createImapResponse("4 OK"))
+            .thenReturn(createImapResponse("* 201 FETCH (FLAGS (\\Seen) UID 201)"))
+            .thenReturn(createImapResponse("5 OK"))
+        val messages = createImapMessages(*(1..201).map { it.toString() }.toTypedArray())
+        val fetchProfile = createFetchProfile(FetchProfile.Item.FLAGS, FetchProfile.Item.STRUCTURE)
+
+        folder.fetch(messages, fetchProfile, null, MAX_DOWNLOAD_SIZE)
+
+        inOrder(imapConnection) {
+            verify(imapConnection).sendCommand("UID FETCH 1:100 (UID FLAGS BODYSTRUCTURE)", false)
+            verify(imapConnection).sendCommand("UID FETCH 101:200 (UID FLAGS BODYSTRUCTURE)", false)
+            verify(imapConnection, times(2)).readResponse(anyOrNull())
+            verify(imapConnection).sendCommand("UID FETCH 201 (UID FLAGS BODYSTRUCTURE)", false)
+        }
+        verify(messages[0]).setFlag(Flag.SEEN, true)
+        verify(messages[200]).setFlag(Flag.SEEN, true)
+    }
+
+    @Test
+    fun fetch_cancelledAfterFirstWindow_shouldNotSendRemainingWindows() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.readResponse(anyOrNull()))
+            .thenReturn(createImapResponse("* 1 FETCH (FLAGS (\\Seen) UID 1)"))
+            .thenReturn(createImapResponse("3 OK"))
+        val messages = createImapMessages(*(1..201).map { it.toString() }.toTypedArray())
+        val fetchProfile = createFetchProfile(FetchProfile.Item.FLAGS, FetchProfile.Item.STRUCTURE)
+        var cancelled = false
+        whenever(imapConnection.sendCommand("UID FETCH 1:100 (UID FLAGS BODYSTRUCTURE)", false)).thenAnswer {
+            cancelled = true
+            "3"
+        }
+
+        folder.fetch(messages, fetchProfile, null, MAX_DOWNLOAD_SIZE) { cancelled }
+
+        verify(imapConnection, times(1)).sendCommand(startsWith("UID FETCH"), eq(false))
+        verify(imapConnection, times(2)).readResponse(anyOrNull())
+        verify(messages[0]).setFlag(Flag.SEEN, true)
+    }
+
+    @Test
+    fun fetch_withFlagsFetchProfile_shouldCollapseUidsIntoSingleCommand() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+        val uids = (1..300).map { it.toString() } + "500"
+        val messages = createImapMessages(*uids.toTypedArray())
+        val fetchProfile = createFetchProfile(FetchProfile.Item.FLAGS)
+
+        folder.fetch(messages, fetchProfile, null, MAX_DOWNLOAD_SIZE)
+
+        verify(imapConnection).sendCommand("UID FETCH 500,1:300 (UID FLAGS)", false)
+        verify(imapConnection, times(1)).sendCommand(anyString(), eq(false))
+    }
+
+    @Test
+    fun fetch_withBodyFetchProfile_shouldLimitWindowsByMessageSize() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+        val messages = listOf(
+            createImapMessage("1", size = 1_500_000),
+            createImapMessage("2", size = 400_000),
+            createImapMessage("3", size = 1_000_000),
+            createImapMessage("4", size = 5_000_000),
+            createImapMessage("5", size = 10_000)
+        )
+        val fetchProfile = createFetchProfile(FetchProfile.Item.BODY)
+
+        folder.fetch(messages, fetchProfile, null, MAX_DOWNLOAD_SIZE)
+
+        inOrder(imapConnection) {
+            verify(imapConnection).sendCommand("UID FETCH 1:2 (UID BODY.PEEK[])", false)
+            verify(imapConnection).sendCommand("UID FETCH 3 (UID BODY.PEEK[])", false)
+            verify(imapConnection).sendCommand("UID FETCH 4 (UID BODY.PEEK[])", false)
+            verify(imapConnection).sendCommand("UID FETCH 5 (UID BODY.PEEK[])", false)
+        }
+    }
+
+    @Test
+    fun fetch_withBodySaneFetchProfile_shouldLimitWindowsByMaximumDownloadSize() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+        val messages = listOf(
+            createImapMessage("1", size = 5_000_000),
+            createImapMessage("2", size = 5_000_000),
+            createImapMessage("3", size = 5_000_000)
+        )
+        val fetchProfile = createFetchProfile(FetchProfile.Item.BODY_SANE)
+
+        folder.fetch(messages, fetchProfile, null, 32768)
+
+        verify(imapConnection).sendCommand("UID FETCH 1:3 (UID BODY.PEEK[]<0.32768>)", false)
+    }
+
+    @Test
+    fun fetchChangedFlags_shouldIssueUidFetchCommandWithChangedSinceModifier() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        val messages = createImapMessages("1", "2")
+        whenever(imapConnection.executeCommandWithIdSet(eq(Commands.UID_FETCH), anyString(), anySet()))
+            .thenReturn(listOf(createImapResponse("* 2 FETCH (FLAGS (\\Seen) UID 2)")))
+
+        val flagChanges = folder.fetchChangedFlags(messages, 23)
+
+        assertCommandWithIdsIssued("UID FETCH 1,2 (UID FLAGS) (CHANGEDSINCE 23)")
+        assertEquals(listOf(messages[1]), flagChanges.changedMessages)
+        verify(messages[1]).setFlag(Flag.SEEN, true)
+    }
+
+    @Test
+    fun fetchChangedFlags_withQresyncEnabled_shouldReturnVanishedUids() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isQresyncEnabled).thenReturn(true)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        val messages = createImapMessages("1", "2")
+        whenever(imapConnection.executeCommandWithIdSet(eq(Commands.UID_FETCH), anyString(), anySet()))
+            .thenReturn(listOf(createImapResponse("* VANISHED (EARLIER) 1")))
+
+        val flagChanges = folder.fetchChangedFlags(messages, 23)
+
+        assertCommandWithIdsIssued("UID FETCH 1,2 (UID FLAGS) (CHANGEDSINCE 23 VANISHED)")
+        assertEquals(listOf("1"), flagChanges.vanishedUids)
+    }
+
+    @Test
+    fun fetchThreadParentUids_shouldIssueThreadCommand() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.executeSimpleCommand("UID THREAD REFERENCES US-ASCII UID 1:3"))
+            .thenReturn(createImapResponseList("* THREAD (1 (2)(3))", "x OK"))
+
+        val parentUids = folder.fetchThreadParentUids(1, 3)
+
+        assertEquals(mapOf("1" to null, "2" to "1", "3" to "1"), parentUids)
+    }
+
     @Test
     fun fetchPart_withTextSection_shouldIssueRespectiveCommand() {
         val folder = createFolder("Folder")
@@ -837,6 +1143,78 @@ class ImapFolderTest {
         verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1.1])", false)
     }
 
+    @Test
+    fun fetchPart_withBinaryCapabilityAndBase64Part_shouldFetchDecodedPart() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isBinaryCapable).thenReturn(true)
+        val message = createImapMessage("1")
+        val part = createBase64Part("1.2")
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+
+        folder.fetchPart(message, part, null, mock(), MAX_DOWNLOAD_SIZE)
+
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BINARY.PEEK[1.2])", false)
+        verify(imapConnection, never()).sendCommand("UID FETCH 1 (UID BODY.PEEK[1.2])", false)
+    }
+
+    @Test
+    fun fetchPart_withBinaryCapabilityAndUnknownContentTransferEncoding_shouldFallBackToBodyPeek() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isBinaryCapable).thenReturn(true)
+        val message = createImapMessage("1")
+        val part = createBase64Part("1.2")
+        whenever(imapConnection.readResponse(anyOrNull()))
+            .thenReturn(createImapResponse("x NO [UNKNOWN-CTE] Can't decode"))
+            .thenReturn(createImapResponse("x OK"))
+
+        folder.fetchPart(message, part, null, mock(), MAX_DOWNLOAD_SIZE)
+
+        inOrder(imapConnection) {
+            verify(imapConnection).sendCommand("UID FETCH 1 (UID BINARY.PEEK[1.2])", false)
+            verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1.2])", false)
+        }
+    }
+
+    @Test
+    fun fetchPart_withBinaryCapabilityAnd7bitPart_shouldFetchBodyPeek() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isBinaryCapable).thenReturn(true)
+        val message = createImapMessage("1")
+        val part = createPlainTextPart("1.1")
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+
+        folder.fetchPart(message, part, null, mock(), MAX_DOWNLOAD_SIZE)
+
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1.1])", false)
+    }
+
+    @Test
+    fun fetchPart_withDecodedPart_shouldKeepOriginalContentTransferEncoding() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isBinaryCapable).thenReturn(true)
+        val message = createImapMessage("1")
+        val part = createBase64Part("1.1")
+        setupSingleFetchResponseToCallback()
+
+        folder.fetchPart(message, part, null, DefaultBodyFactory(), MAX_DOWNLOAD_SIZE)
+
+        val bodyArgumentCaptor = argumentCaptor<Body>()
+        verify(part).body = bodyArgumentCaptor.capture()
+        val body = bodyArgumentCaptor.firstValue as RawDataBody
+        assertEquals(MimeUtil.ENC_BASE64, body.encoding)
+        val buffer = Buffer()
+        body.writeTo(buffer.outputStream())
+        assertEquals("dGV4dA==", buffer.readUtf8().trim())
+    }
+
     @Test
     fun fetchPart_withTextSection_shouldProcessImapResponses() {
         val folder = createFolder("Folder")
@@ -856,6 +1234,51 @@ class ImapFolderTest {
         assertEquals("text", buffer.readUtf8())
     }
 
+    @Test
+    fun fetchPartPrefix_shouldIssueCommandWithPartialRange() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        val message = createImapMessage("1")
+        val part = createPlainTextPart("1")
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+
+        folder.fetchPartPrefix(message, part, mock(), 4096)
+
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[1]<0.4096>)", false)
+    }
+
+    @Test
+    fun fetchPartPrefix_withBinaryCapabilityAndBase64Part_shouldFetchDecodedPrefix() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isBinaryCapable).thenReturn(true)
+        val message = createImapMessage("1")
+        val part = createBase64Part("1.2")
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+
+        folder.fetchPartPrefix(message, part, mock(), 4096)
+
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BINARY.PEEK[1.2]<0.4096>)", false)
+    }
+
+    @Test
+    fun fetchPartPrefix_withBinaryCapabilityAndBase64TextSection_shouldFetchBodyPeek() {
+        val folder = createFolder("Folder")
+        prepareImapFolderForOpen(ImapFolder.OPEN_MODE_RO)
+        folder.open(ImapFolder.OPEN_MODE_RO)
+        whenever(imapConnection.isBinaryCapable).thenReturn(true)
+        val message = createImapMessage("1")
+        val part = createBase64Part("TEXT")
+        whenever(imapConnection.readResponse(anyOrNull())).thenReturn(createImapResponse("x OK"))
+
+        folder.fetchPartPrefix(message, part, mock(), 4096)
+
+        verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[TEXT]<0.4096>)", false)
+        verify(imapConnection, never()).sendCommand(startsWith("UID FETCH 1 (UID BINARY.PEEK"), anyBoolean())
+    }
+
     @Test
     fun appendMessages_shouldIssueRespectiveCommand() {
         val folder = createFolder("Folder")
@@ -1008,6 +1431,13 @@ class ImapFolderTest {
         return part
     }
 
+    private fun createBase64Part(serverExtra: String): Part {
+        val part = createPart(serverExtra)
+        whenever(part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).thenReturn(arrayOf(MimeUtil.ENC_BASE64))
+        whenever(part.getHeader(MimeHeader.HEADER_CONTENT_TYPE)).thenReturn(arrayOf("application/octet-stream"))
+        return part
+    }
+
     private fun setupSingleFetchResponseToCallback() {
         whenever(imapConnection.readResponse(anyOrNull()))
             .thenAnswer { invocation ->
@@ -1016,7 +1446,7 @@ class ImapFolderTest {
             }
             .thenAnswer { invocation ->
                 val callback = invocation.arguments[0] as ImapResponseCallback
-                ImapResponse.newTaggedResponse(callback, "TAG")
+                ImapResponse.newTaggedResponse(callback, "TAG").apply { add("OK") }
             }
     }
 
@@ -1040,9 +1470,10 @@ class ImapFolderTest {
         return ImapFolder(imapStore, folderName, FolderNameCodec.newInstance())
     }
 
-    private fun createImapMessage(uid: String): ImapMessage {
+    private fun createImapMessage(uid: String, size: Long = 0L): ImapMessage {
         return mock {
             on { this.uid } doReturn uid
+            on { this.size } doReturn size
         }
     }
 
@@ -1060,6 +1491,8 @@ class ImapFolderTest {
 
     private fun prepareImapFolderForOpen(openMode: Int) {
         whenever(imapStore.connection).thenReturn(imapConnection)
+        whenever(imapStore.getConnection("Folder")).thenReturn(imapConnection)
+        whenever(imapConnection.lineLengthLimit).thenReturn(980)
         val imapResponses = listOf(
             createImapResponse("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft NonJunk \$MDNSent)"),
             createImapResponse(
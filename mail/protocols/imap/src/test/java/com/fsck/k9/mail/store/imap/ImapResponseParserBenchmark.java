@@ -0,0 +1,89 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Replays recorded {@code UID FETCH} transcripts through {@link ImapResponseParser}.
+ *
+ * <p>
+ * Run {@link #main(String[])} from the IDE, or add {@code -prof gc} to the JMH options to see the allocation rate per
+ * operation. Each operation parses the transcript {@code repetitions} times, so a run with the default parameters
+ * roughly corresponds to syncing the flags of 20,000 messages.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImapResponseParserBenchmark {
+    @Param({ "fetch-flags.txt", "fetch-envelope.txt" })
+    public String transcript;
+
+    @Param({ "100" })
+    public int repetitions;
+
+    private byte[] data;
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ImapResponseParserBenchmark.class.getSimpleName())
+                .build()
+        ).run();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] transcriptData = readTranscript(transcript);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(transcriptData.length * repetitions);
+        for (int i = 0; i < repetitions; i++) {
+            outputStream.write(transcriptData);
+        }
+        data = outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public void parseTranscript(Blackhole blackhole) throws IOException {
+        PeekableInputStream inputStream = new PeekableInputStream(new ByteArrayInputStream(data));
+        ImapResponseParser parser = new ImapResponseParser(inputStream);
+        while (inputStream.peek() != -1) {
+            blackhole.consume(parser.readResponse());
+        }
+    }
+
+    private static byte[] readTranscript(String name) throws IOException {
+        try (InputStream inputStream = ImapResponseParserBenchmark.class.getResourceAsStream("/transcripts/" + name)) {
+            // Transcripts are stored with LF line endings; IMAP uses CRLF
+            String transcript = IOUtils.toString(inputStream, StandardCharsets.US_ASCII);
+            return transcript.replace("\n", "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
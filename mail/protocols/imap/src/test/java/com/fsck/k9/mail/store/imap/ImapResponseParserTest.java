@@ -13,6 +13,7 @@ import org.junit.Test;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -336,6 +337,53 @@ public class ImapResponseParserTest {
         parser.readResponse(callback);
     }
 
+    @Test
+    public void testParseLiteralWithInvalidSize() throws Exception {
+        ImapResponseParser parser = createParser("* {4x}\r\ntest\r\n");
+
+        try {
+            parser.readResponse();
+            fail("Expected exception");
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    @Test
+    public void testParseFetchResponse_shouldReturnSharedInstancesForKnownAtoms() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 23 FLAGS (\\Seen \\Flagged))\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertSame(Responses.FETCH, response.get(1));
+        ImapList fetchList = response.getList(2);
+        assertSame("UID", fetchList.get(0));
+        assertSame("FLAGS", fetchList.get(2));
+        assertSame("\\Seen", fetchList.getList(3).get(0));
+        assertSame("\\Flagged", fetchList.getList(3).get(1));
+    }
+
+    @Test
+    public void testParseFetchResponse_withLowerCaseAtoms_shouldKeepOriginalCase() throws Exception {
+        ImapResponseParser parser = createParser("* 1 fetch (uid 23)\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(asList("1", "fetch", asList("uid", "23")), response);
+    }
+
+    @Test
+    public void testParseBareString_longerThanTokenBuffer() throws Exception {
+        StringBuilder longAtom = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longAtom.append('a');
+        }
+        ImapResponseParser parser = createParser("* " + longAtom + " x\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(asList(longAtom.toString(), "x"), response);
+    }
+
     @Test
     public void testParseQuoted() throws Exception {
         ImapResponseParser parser = createParser("* \"qu\\\"oted\"\r\n");
@@ -400,6 +448,21 @@ public class ImapResponseParserTest {
         assertEquals("TAG", responseTwo.getTag());
     }
 
+    @Test
+    public void readResponse_withStatusResponseContainingFolderNameWithBrackets() throws Exception {
+        ImapResponseParser parser = createParser("* STATUS [Gmail]/Sent (MESSAGES 231 UIDNEXT 44292)\r\n" +
+                "TAG OK STATUS completed\r\n");
+
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(3, response.size());
+        assertEquals("STATUS", response.get(0));
+        assertEquals("[Gmail]/Sent", response.get(1));
+        assertEquals(4, response.getList(2).size());
+        assertEquals("44292", response.getList(2).getString(3));
+        assertEquals("TAG", parser.readResponse().getTag());
+    }
+
     @Test
     public void readResponse_withListResponseContainingNil() throws Exception {
         ImapResponseParser parser = createParser("* LIST (\\NoInferiors) NIL INBOX\r\n");
@@ -11,6 +11,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.net.ConnectivityManager;
 
@@ -28,8 +30,11 @@ import org.mockito.internal.util.collections.Sets;
 import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -61,13 +66,50 @@ public class ImapStoreTest {
     }
 
     @Test
-    public void getFolder_calledTwice_shouldReturnFirstInstance() throws Exception {
+    public void getFolder_calledTwice_shouldReturnNewInstance() throws Exception {
         String folderName = "Trash";
         ImapFolder imapFolder = imapStore.getFolder(folderName);
 
         ImapFolder result = imapStore.getFolder(folderName);
 
-        assertEquals(imapFolder, result);
+        assertNotSame(imapFolder, result);
+    }
+
+    @Test
+    public void getFolder_withConcurrentOperationsOnSameFolder_shouldNotShareConnection() throws Exception {
+        ImapConnection imapConnectionOne = createConnectionForSelectingInbox();
+        ImapConnection imapConnectionTwo = createConnectionForSelectingInbox();
+        imapStore.enqueueImapConnection(imapConnectionOne);
+        imapStore.enqueueImapConnection(imapConnectionTwo);
+        ImapFolder folderOne = imapStore.getFolder("INBOX");
+        folderOne.open(ImapFolder.OPEN_MODE_RW);
+        CountDownLatch openedLatch = new CountDownLatch(1);
+        CountDownLatch closedLatch = new CountDownLatch(1);
+        AtomicReference<Throwable> otherThreadFailure = new AtomicReference<>();
+        Thread otherThread = new Thread(() -> {
+            try {
+                ImapFolder folderTwo = imapStore.getFolder("INBOX");
+                folderTwo.open(ImapFolder.OPEN_MODE_RW);
+                openedLatch.countDown();
+                closedLatch.await();
+                folderTwo.expunge();
+                folderTwo.close();
+            } catch (Throwable t) {
+                otherThreadFailure.set(t);
+            } finally {
+                openedLatch.countDown();
+            }
+        });
+        otherThread.start();
+        openedLatch.await();
+
+        folderOne.close();
+        closedLatch.countDown();
+
+        otherThread.join();
+        assertNull(otherThreadFailure.get());
+        verify(imapConnectionTwo).executeSimpleCommand("EXPUNGE");
+        verify(imapConnectionOne, never()).executeSimpleCommand("EXPUNGE");
     }
 
     @Test
@@ -294,6 +336,48 @@ public class ImapStoreTest {
         verify(imapConnection).close();
     }
 
+    @Test
+    public void getFolderStatus_withListStatusCapability_shouldUseSingleListCommand() throws Exception {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        when(imapConnection.hasCapability(Capabilities.LIST_STATUS)).thenReturn(true);
+        List<ImapResponse> imapResponses = Arrays.asList(
+                createImapResponse("* LIST () \".\" \"INBOX\""),
+                createImapResponse("* STATUS \"INBOX\" (MESSAGES 17 UIDNEXT 18 UNSEEN 2)"),
+                createImapResponse("* LIST () \".\" \"Other\""),
+                createImapResponse("* STATUS \"Other\" (MESSAGES 5 UIDNEXT 9 UNSEEN 0)"),
+                createImapResponse("* LIST () \".\" \"Sent\""),
+                createImapResponse("* STATUS \"Sent\" (MESSAGES 3 UIDNEXT 4 UNSEEN 0)"),
+                createImapResponse("5 OK Success")
+        );
+        when(imapConnection.executeSimpleCommand("LIST \"\" \"*\" RETURN (STATUS (MESSAGES UIDNEXT UNSEEN))"))
+                .thenReturn(imapResponses);
+        imapStore.enqueueImapConnection(imapConnection);
+
+        Map<String, FolderStatus> result = imapStore.getFolderStatus(Arrays.asList("INBOX", "Sent"));
+
+        assertEquals(2, result.size());
+        assertEquals(new FolderStatus(17L, 18L, 2L, null), result.get("INBOX"));
+        assertEquals(new FolderStatus(3L, 4L, 0L, null), result.get("Sent"));
+        verify(imapConnection, never()).sendCommand(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void getFolderStatus_withoutListStatusCapability_shouldPipelineStatusCommands() throws Exception {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        when(imapConnection.readResponse()).thenReturn(
+                createImapResponse("* STATUS \"INBOX\" (MESSAGES 17 UIDNEXT 18 UNSEEN 2 HIGHESTMODSEQ 100)"),
+                createImapResponse("1 OK STATUS completed"),
+                createImapResponse("2 NO Mailbox doesn't exist"));
+        imapStore.enqueueImapConnection(imapConnection);
+
+        Map<String, FolderStatus> result = imapStore.getFolderStatus(Arrays.asList("INBOX", "Gone"));
+
+        assertEquals(Collections.singletonMap("INBOX", new FolderStatus(17L, 18L, 2L, 100L)), result);
+        verify(imapConnection).sendCommand("STATUS \"INBOX\" (MESSAGES UIDNEXT UNSEEN HIGHESTMODSEQ)", false);
+        verify(imapConnection).sendCommand("STATUS \"Gone\" (MESSAGES UIDNEXT UNSEEN HIGHESTMODSEQ)", false);
+    }
+
     @Test
     public void getConnection_shouldCreateImapConnection() throws Exception {
         ImapConnection imapConnection = mock(ImapConnection.class);
@@ -364,6 +448,16 @@ public class ImapStoreTest {
     }
 
 
+    private ImapConnection createConnectionForSelectingInbox() throws Exception {
+        ImapConnection imapConnection = mock(ImapConnection.class);
+        when(imapConnection.isConnected()).thenReturn(true);
+        when(imapConnection.executeSimpleCommand("SELECT \"INBOX\"")).thenReturn(Arrays.asList(
+                createImapResponse("* 23 EXISTS"),
+                createImapResponse("2 OK [READ-WRITE] Select completed.")
+        ));
+        return imapConnection;
+    }
+
     private ServerSettings createServerSettings() {
         Map<String, String> extra = ImapStoreSettings.createExtra(true, null);
         return new ServerSettings(
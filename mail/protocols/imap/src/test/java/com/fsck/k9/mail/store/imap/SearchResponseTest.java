@@ -8,8 +8,10 @@ import org.junit.Test;
 
 import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponseList;
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 
 public class SearchResponseTest {
@@ -86,4 +88,61 @@ public class SearchResponseTest {
         assertNotNull(result);
         assertEquals(Collections.emptyList(), result.getNumbers());
     }
+
+    @Test
+    public void parse_withEsearchResponse_shouldExtractReturnData() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* ESEARCH (TAG \"1\") UID MIN 4 MAX 42 COUNT 7",
+                "1 OK SEARCH completed");
+
+        SearchResponse result = SearchResponse.parse(imapResponses);
+
+        assertEquals(Long.valueOf(4), result.getMin());
+        assertEquals(Long.valueOf(42), result.getMax());
+        assertEquals(Long.valueOf(7), result.getCount());
+        assertEquals(Collections.emptyList(), result.getNumbers());
+    }
+
+    @Test
+    public void parse_withEsearchResponseWithoutMatches_shouldReturnNullValues() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* ESEARCH (TAG \"1\")",
+                "1 OK SEARCH completed");
+
+        SearchResponse result = SearchResponse.parse(imapResponses);
+
+        assertNull(result.getMin());
+        assertNull(result.getMax());
+        assertNull(result.getCount());
+    }
+
+    @Test
+    public void parse_withEsearchAllResponse_shouldExpandSequenceSet() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList("* ESEARCH UID ALL 2,5:7,10");
+
+        SearchResponse result = SearchResponse.parse(imapResponses);
+
+        assertEquals(asList(2L, 5L, 6L, 7L, 10L), result.getNumbers());
+    }
+
+    @Test
+    public void getSortedNumbers_shouldReturnNumbersInAscendingOrder() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* SEARCH 42 17 23",
+                "* SEARCH 1",
+                "1 OK SEARCH completed");
+
+        SearchResponse result = SearchResponse.parse(imapResponses);
+
+        assertArrayEquals(new long[] { 1L, 17L, 23L, 42L }, result.getSortedNumbers());
+    }
+
+    @Test
+    public void parse_withPlainSearchResponse_shouldReturnNullReturnData() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList("* SEARCH 1 2 3");
+
+        SearchResponse result = SearchResponse.parse(imapResponses);
+
+        assertNull(result.getCount());
+    }
 }
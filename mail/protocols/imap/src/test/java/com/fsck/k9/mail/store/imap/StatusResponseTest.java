@@ -0,0 +1,69 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse;
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponseList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class StatusResponseTest {
+    @Test
+    public void parse_withStatusResponse() throws Exception {
+        ImapResponse imapResponse = createImapResponse(
+                "* STATUS \"Folder\" (MESSAGES 231 UIDNEXT 44292 UNSEEN 3 HIGHESTMODSEQ 7011231777)");
+
+        StatusResponse result = StatusResponse.parse(imapResponse);
+
+        assertEquals("Folder", result.getName());
+        assertEquals(new FolderStatus(231L, 44292L, 3L, 7011231777L), result.getFolderStatus());
+    }
+
+    @Test
+    public void parse_withMissingStatusItems_shouldReturnNullValues() throws Exception {
+        ImapResponse imapResponse = createImapResponse("* STATUS INBOX (UIDNEXT 17)");
+
+        StatusResponse result = StatusResponse.parse(imapResponse);
+
+        assertEquals(new FolderStatus(null, 17L, null, null), result.getFolderStatus());
+    }
+
+    @Test
+    public void parse_withInvalidNumber_shouldReturnNull() throws Exception {
+        ImapResponse imapResponse = createImapResponse("* STATUS INBOX (MESSAGES x)");
+
+        StatusResponse result = StatusResponse.parse(imapResponse);
+
+        assertNull(result);
+    }
+
+    @Test
+    public void parse_withTaggedResponse_shouldReturnNull() throws Exception {
+        ImapResponse imapResponse = createImapResponse("x OK STATUS completed");
+
+        StatusResponse result = StatusResponse.parse(imapResponse);
+
+        assertNull(result);
+    }
+
+    @Test
+    public void parse_withListStatusResponses_shouldOnlyReturnStatusResponses() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* LIST () \"/\" \"INBOX\"",
+                "* STATUS \"INBOX\" (MESSAGES 17 UIDNEXT 18 UNSEEN 0)",
+                "* LIST () \"/\" \"Drafts\"",
+                "* STATUS \"Drafts\" (MESSAGES 2 UIDNEXT 5 UNSEEN 1)",
+                "x OK LIST completed");
+
+        List<StatusResponse> result = StatusResponse.parse(imapResponses);
+
+        assertEquals(2, result.size());
+        assertEquals("INBOX", result.get(0).getName());
+        assertEquals("Drafts", result.get(1).getName());
+        assertEquals(new FolderStatus(2L, 5L, 1L, null), result.get(1).getFolderStatus());
+    }
+}
@@ -0,0 +1,61 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponseList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ThreadResponseTest {
+    @Test
+    public void parse_withNestedThreads_shouldMapUidsToParents() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* THREAD (2)(3 6 (4 23)(44 7 96))",
+                "1 OK THREAD completed");
+
+        ThreadResponse result = ThreadResponse.parse(imapResponses);
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("2", null);
+        expected.put("3", null);
+        expected.put("6", "3");
+        expected.put("4", "6");
+        expected.put("23", "4");
+        expected.put("44", "6");
+        expected.put("7", "44");
+        expected.put("96", "7");
+        assertEquals(expected, result.getParentUids());
+    }
+
+    @Test
+    public void parse_withDummyRoot_shouldAttachBranchesToFirstBranch() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* THREAD ((3)(5 8))",
+                "1 OK THREAD completed");
+
+        ThreadResponse result = ThreadResponse.parse(imapResponses);
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("3", null);
+        expected.put("5", "3");
+        expected.put("8", "5");
+        assertEquals(expected, result.getParentUids());
+    }
+
+    @Test
+    public void parse_withoutThreadResponse_shouldReturnEmptyMap() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* 23 EXISTS",
+                "1 OK THREAD completed");
+
+        ThreadResponse result = ThreadResponse.parse(imapResponses);
+
+        assertTrue(result.getParentUids().isEmpty());
+    }
+}
@@ -0,0 +1,47 @@
+package com.fsck.k9.mail.store.imap
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class VanishedResponseTest {
+    @Test
+    fun vanishedResponse() {
+        val response = ImapResponseHelper.createImapResponse("* VANISHED 405,407")
+
+        val result = VanishedResponse.parse(response)
+
+        assertNotNull(result)
+        assertFalse(result!!.isEarlier)
+        assertEquals(listOf(405L, 407L), result.uids)
+    }
+
+    @Test
+    fun vanishedEarlierResponseWithRanges() {
+        val response = ImapResponseHelper.createImapResponse("* VANISHED (EARLIER) 41,43:45,118")
+
+        val result = VanishedResponse.parse(response)
+
+        assertNotNull(result)
+        assertTrue(result!!.isEarlier)
+        assertEquals(listOf(41L, 43L, 44L, 45L, 118L), result.uids)
+    }
+
+    @Test
+    fun fetchResponse_shouldReturnNull() {
+        assertNotValid("* 1 FETCH (UID 23 FLAGS (\\Seen))")
+    }
+
+    @Test
+    fun invalidUidSet_shouldReturnNull() {
+        assertNotValid("* VANISHED 1:2:3")
+    }
+
+    private fun assertNotValid(response: String) {
+        val result = VanishedResponse.parse(ImapResponseHelper.createImapResponse(response))
+        assertNull(result)
+    }
+}